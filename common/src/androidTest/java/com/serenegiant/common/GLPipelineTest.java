@@ -29,6 +29,7 @@ import com.serenegiant.glpipeline.DistributePipeline;
 import com.serenegiant.glpipeline.DrawerPipeline;
 import com.serenegiant.glpipeline.EffectPipeline;
 import com.serenegiant.glpipeline.GLPipeline;
+import com.serenegiant.glpipeline.GLPipelineGraph;
 import com.serenegiant.glpipeline.GLPipelineSource;
 import com.serenegiant.glpipeline.ImageSourcePipeline;
 import com.serenegiant.glpipeline.ProxyPipeline;
@@ -46,6 +47,7 @@ import org.junit.runner.RunWith;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.List;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -136,6 +138,83 @@ public class GLPipelineTest {
 		assertTrue(validatePipelineOrder(src, src, dst2, dst3, dst1));
 	}
 
+	/**
+	 * GLPipelineGraphで分岐・合流するパイプライングラフを組み立てられるかどうかを確認
+	 */
+	@Test
+	public void pipelineGraph() {
+		final ProxyPipeline src = new ProxyPipeline();
+		final AtomicInteger effectCnt = new AtomicInteger();
+		final ProxyPipeline effect = new ProxyPipeline() {
+			@Override
+			public void onFrameAvailable(final boolean isOES, final int texId, @NonNull final float[] texMatrix) {
+				effectCnt.incrementAndGet();
+				// 映像効果を付与した結果のテクスチャとして別のテクスチャ名を渡す
+				super.onFrameAvailable(isOES, texId + 1, texMatrix);
+			}
+		};
+		final AtomicInteger previewTex = new AtomicInteger();
+		final ProxyPipeline preview = new ProxyPipeline() {
+			@Override
+			public void onFrameAvailable(final boolean isOES, final int texId, @NonNull final float[] texMatrix) {
+				previewTex.set(texId);
+				super.onFrameAvailable(isOES, texId, texMatrix);
+			}
+		};
+		final AtomicInteger encoderCnt = new AtomicInteger();
+		final AtomicInteger encoderTex = new AtomicInteger();
+		final ProxyPipeline encoder = new ProxyPipeline() {
+			@Override
+			public void onFrameAvailable(final boolean isOES, final int texId, @NonNull final float[] texMatrix) {
+				encoderCnt.incrementAndGet();
+				encoderTex.set(texId);
+				super.onFrameAvailable(isOES, texId, texMatrix);
+			}
+		};
+
+		final GLPipelineGraph graph = new GLPipelineGraph("src", src);
+		graph.add("effect", effect).add("preview", preview).add("encoder", encoder);
+		// src→effect→{preview, encoder}, src→encoder(合流)
+		graph.connectPath("src", "effect", "preview")
+			.connectPath("src", "effect", "encoder")
+			.connect("src", "encoder");
+		final List<String> order = graph.build();
+		assertEquals("src", order.get(0));
+		assertTrue(order.indexOf("effect") < order.indexOf("encoder"));
+		assertTrue(GLPipeline.validatePipelineChain(src));
+		assertEquals(src, GLPipeline.findFirst(preview));
+		assertNotNull(graph.getMerge("encoder"));
+
+		final float[] texMatrix = new float[16];
+		src.onFrameAvailable(false, 1, texMatrix);
+		// 共通の映像効果は下流の数に関係なくフレーム毎に1回だけ実行される
+		assertEquals(1, effectCnt.get());
+		assertEquals(2, previewTex.get());
+		// 合流するノードは選択した上流からの映像だけを受け取る
+		assertEquals(1, encoderCnt.get());
+		assertEquals(1, encoderTex.get());
+		graph.selectInput("encoder", "effect");
+		src.onFrameAvailable(false, 1, texMatrix);
+		assertEquals(2, effectCnt.get());
+		assertEquals(2, encoderCnt.get());
+		assertEquals(2, encoderTex.get());
+
+		// 循環しているパイプライングラフはエラー
+		final GLPipelineGraph cyclic = new GLPipelineGraph("a", new ProxyPipeline());
+		cyclic.add("b", new ProxyPipeline()).add("c", new ProxyPipeline())
+			.connectPath("a", "b", "c", "b");
+		try {
+			cyclic.validate();
+			fail();
+		} catch (final IllegalStateException e) {
+			// expected
+		}
+		cyclic.release();
+
+		graph.release();
+		assertFalse(encoder.isValid());
+	}
+
 	/**
 	 * 正常にパイプラインに伝播して呼び出されるかどうかを確認
 	 */
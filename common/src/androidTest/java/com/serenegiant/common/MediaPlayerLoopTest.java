@@ -0,0 +1,268 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Handler;
+import android.view.Surface;
+
+import com.serenegiant.media.IFrameCallback;
+import com.serenegiant.media.MediaCodecUtils;
+import com.serenegiant.media.MediaPlayer;
+import com.serenegiant.utils.HandlerThreadHandler;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.*;
+
+/**
+ * MediaPlayerのループ再生で各ループの最後のフレームまで再生するかどうかのテスト
+ * フレーム番号に応じた明るさの単色の動画を生成してループ再生し、
+ * 出力された映像の明るさが大きく下がった所をループの区切りとしてループ毎のフレーム数を数える
+ */
+@RunWith(AndroidJUnit4.class)
+public class MediaPlayerLoopTest {
+	private static final String TAG = MediaPlayerLoopTest.class.getSimpleName();
+
+	private static final int WIDTH = 320;
+	private static final int HEIGHT = 240;
+	private static final int NUM_FRAMES = 30;
+	private static final long FRAME_INTERVAL_MS = 33;
+	private static final int NUM_LOOPS = 3;
+	/**
+	 * 輝度がこれ以上下がればループの先頭へ戻ったとみなす
+	 */
+	private static final int LOOP_THRESHOLD = 64;
+	private static final long TIMEOUT_USEC = 10000;
+
+	@Test
+	public void loopFrameCount() throws IOException, InterruptedException {
+		final Context context = ApplicationProvider.getApplicationContext();
+		final File file = new File(context.getCacheDir(), TAG + ".mp4");
+		final Handler handler = HandlerThreadHandler.createHandler(TAG);
+		final ImageReader reader = ImageReader.newInstance(
+			WIDTH, HEIGHT, ImageFormat.YUV_420_888, 4);
+		MediaPlayer player = null;
+		try {
+			final int numFrames = createClip(file);
+			assertTrue(numFrames > 0);
+
+			final List<Integer> counts = new ArrayList<>();
+			final Semaphore sem = new Semaphore(0);
+			reader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+				private int prevY = -1;
+				private int count;
+				@Override
+				public void onImageAvailable(final ImageReader reader) {
+					final Image image = reader.acquireNextImage();
+					if (image == null) return;
+					try {
+						final int y = getCenterLuma(image);
+						if ((prevY >= 0) && (y < prevY - LOOP_THRESHOLD)) {
+							synchronized (counts) {
+								counts.add(count);
+								if (counts.size() == NUM_LOOPS) {
+									sem.release();
+								}
+							}
+							count = 0;
+						}
+						prevY = y;
+						count++;
+					} finally {
+						image.close();
+					}
+				}
+			}, handler);
+
+			final CountDownLatch prepared = new CountDownLatch(1);
+			player = new MediaPlayer(reader.getSurface(), new IFrameCallback() {
+				@Override
+				public void onPrepared() {
+					prepared.countDown();
+				}
+
+				@Override
+				public void onFinished() {
+				}
+
+				@Override
+				public boolean onFrameAvailable(final long presentationTimeUs) {
+					return false;
+				}
+			}, false);
+			player.setLoop(true);
+			player.prepare(file.getAbsolutePath());
+			assertTrue(prepared.await(3000, TimeUnit.MILLISECONDS));
+			player.play();
+			assertTrue(sem.tryAcquire(
+				(NUM_LOOPS + 2) * NUM_FRAMES * FRAME_INTERVAL_MS * 2, TimeUnit.MILLISECONDS));
+			synchronized (counts) {
+				// 先頭へ戻る度に最後のフレームまで再生していれば全てのループで同じフレーム数になる
+				for (int i = 0; i < NUM_LOOPS; i++) {
+					assertEquals("loop" + i, numFrames, (int)counts.get(i));
+				}
+			}
+		} finally {
+			if (player != null) {
+				player.stop();
+				player.release();
+			}
+			reader.close();
+			handler.getLooper().quit();
+			//noinspection ResultOfMethodCallIgnored
+			file.delete();
+		}
+	}
+
+	/**
+	 * 映像の中央の輝度を取得
+	 * @param image
+	 * @return
+	 */
+	private static int getCenterLuma(@NonNull final Image image) {
+		final Image.Plane plane = image.getPlanes()[0];
+		final ByteBuffer buffer = plane.getBuffer();
+		return buffer.get(plane.getRowStride() * (image.getHeight() / 2)
+			+ plane.getPixelStride() * (image.getWidth() / 2)) & 0xff;
+	}
+
+	/**
+	 * フレーム番号に応じて明るくなる単色の動画を生成する
+	 * @param file
+	 * @return 書き込んだフレーム数
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static int createClip(@NonNull final File file)
+		throws IOException, InterruptedException {
+
+		final MediaFormat format = MediaFormat.createVideoFormat(
+			MediaCodecUtils.MIME_VIDEO_AVC, WIDTH, HEIGHT);
+		format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+			MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+		format.setInteger(MediaFormat.KEY_BIT_RATE, 1000000);
+		format.setInteger(MediaFormat.KEY_FRAME_RATE, 30);
+		format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+		final MediaCodec encoder = MediaCodec.createEncoderByType(MediaCodecUtils.MIME_VIDEO_AVC);
+		encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+		final Surface surface = encoder.createInputSurface();
+		encoder.start();
+		final ClipWriter writer = new ClipWriter(encoder,
+			new MediaMuxer(file.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4));
+		try {
+			for (int i = 0; i < NUM_FRAMES; i++) {
+				final int level = i * 255 / (NUM_FRAMES - 1);
+				final Canvas canvas = surface.lockCanvas(null);
+				try {
+					canvas.drawColor(Color.rgb(level, level, level));
+				} finally {
+					surface.unlockCanvasAndPost(canvas);
+				}
+				Thread.sleep(FRAME_INTERVAL_MS);
+				writer.drain(false);
+			}
+			encoder.signalEndOfInputStream();
+			writer.drain(true);
+		} finally {
+			encoder.stop();
+			encoder.release();
+			surface.release();
+			writer.release();
+		}
+		return writer.written;
+	}
+
+	/**
+	 * エンコーダーの出力をMediaMuxerへ書き込む
+	 */
+	private static class ClipWriter {
+		@NonNull
+		private final MediaCodec encoder;
+		@NonNull
+		private final MediaMuxer muxer;
+		private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+		private int track = -1;
+		private long firstPtsUs = -1;
+		private int written;
+
+		private ClipWriter(@NonNull final MediaCodec encoder, @NonNull final MediaMuxer muxer) {
+			this.encoder = encoder;
+			this.muxer = muxer;
+		}
+
+		private void drain(final boolean endOfStream) {
+			for ( ; ; ) {
+				final int index = encoder.dequeueOutputBuffer(info, TIMEOUT_USEC);
+				if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+					if (!endOfStream) break;
+				} else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+					track = muxer.addTrack(encoder.getOutputFormat());
+					muxer.start();
+				} else if (index >= 0) {
+					final ByteBuffer buffer = encoder.getOutputBuffer(index);
+					if (((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0)
+						&& (info.size > 0) && (track >= 0) && (buffer != null)) {
+						// Surfaceからの入力はシステム時刻なので先頭を0にする
+						if (firstPtsUs < 0) {
+							firstPtsUs = info.presentationTimeUs;
+						}
+						info.presentationTimeUs -= firstPtsUs;
+						muxer.writeSampleData(track, buffer, info);
+						written++;
+					}
+					encoder.releaseOutputBuffer(index, false);
+					if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+						break;
+					}
+				}
+			}
+		}
+
+		private void release() {
+			if (track >= 0) {
+				muxer.stop();
+			}
+			muxer.release();
+		}
+	}
+}
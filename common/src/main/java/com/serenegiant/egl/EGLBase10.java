@@ -702,6 +702,10 @@ import androidx.annotation.Nullable;
         final EGLContext context = mEgl.eglCreateContext(
         	mEglDisplay, config, sharedContext.eglContext, attrib_list);
 //		checkEglError("eglCreateContext");
+		if ((context != null) && !EGL10.EGL_NO_CONTEXT.equals(context)) {
+			// EGLコンテキスト毎のキャッシュ用にハンドルが再利用されても重複しないトークンを割り当てる
+			EGLContextTokens.register(context);
+		}
         return context;
     }
 
@@ -710,6 +714,7 @@ import androidx.annotation.Nullable;
 		final EGLContext ctx = mContext.eglContext;
 		mContext = EGL_NO_CONTEXT;
 		if (ctx != EGL10.EGL_NO_CONTEXT) {
+			EGLContextTokens.unregister(ctx);
 			if (!mEgl.eglDestroyContext(mEglDisplay, ctx)) {
 				Log.e("destroyContext", "display:" + mEglDisplay
 					+ " context: " + ctx);
@@ -662,6 +662,10 @@ import androidx.annotation.RequiresApi;
 		final EGLContext context = EGL14.eglCreateContext(mEglDisplay,
 			config, sharedContext.eglContext, attrib_list, 0);
 //		checkEglError("eglCreateContext");
+		if ((context != null) && !EGL14.EGL_NO_CONTEXT.equals(context)) {
+			// EGLコンテキスト毎のキャッシュ用にハンドルが再利用されても重複しないトークンを割り当てる
+			EGLContextTokens.register(context);
+		}
         return context;
     }
 
@@ -670,6 +674,7 @@ import androidx.annotation.RequiresApi;
 		final EGLContext ctx = mContext.eglContext;
 		mContext = EGL_NO_CONTEXT;
 		if (ctx != EGL14.EGL_NO_CONTEXT) {
+			EGLContextTokens.unregister(ctx);
 			if (!EGL14.eglDestroyContext(mEglDisplay, ctx)) {
 				Log.e("destroyContext", "display:" + mEglDisplay
 					+ " context: " + ctx);
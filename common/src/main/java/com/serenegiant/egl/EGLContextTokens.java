@@ -0,0 +1,139 @@
+package com.serenegiant.egl;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.annotation.SuppressLint;
+import android.opengl.EGL14;
+import android.util.Log;
+
+import com.serenegiant.gl.GLTexturePool;
+import com.serenegiant.gl.ShaderProgramCache;
+import com.serenegiant.system.BuildCheck;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.microedition.khronos.egl.EGL10;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * EGLBaseで生成したEGLコンテキスト毎に一意なトークンを発行するためのヘルパークラス
+ * EGLコンテキストのハンドルは破棄後に生成した別のEGLコンテキストで再利用されることがあるので
+ * EGLコンテキスト毎のキャッシュ(ShaderProgramCache, GLTexturePool)はハンドルではなくトークンをキーにする
+ * トークンはEGLコンテキストを生成する度に新しく生成するので再利用されることはない
+ * EGLコンテキストを破棄したときはそのトークンのキャッシュを削除する
+ * EGLBaseを経由せずに生成したEGLコンテキストにはトークンが無いのでキャッシュしない
+ */
+public class EGLContextTokens {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = EGLContextTokens.class.getSimpleName();
+
+	/**
+	 * EGLコンテキスト(android.opengl.EGLContextまたはjavax.microedition.khronos.egl.EGLContext)と
+	 * トークンの対応
+	 */
+	@NonNull
+	private static final Map<Object, Object> sTokens = new HashMap<>();
+
+	private EGLContextTokens() {
+		// インスタンス化をエラーにするためにデフォルトコンストラクタをprivateに
+	}
+
+	/**
+	 * EGLコンテキストを生成したときに呼び出して新しいトークンを割り当てる
+	 * 同じハンドルのEGLコンテキストのトークンが残っていても新しいトークンに置き換える
+	 * @param context
+	 * @return 割り当てたトークン
+	 */
+	@NonNull
+	public static Object register(@NonNull final Object context) {
+		final Object token = new Object();
+		final Object prev;
+		synchronized (sTokens) {
+			prev = sTokens.put(context, token);
+		}
+		if (prev != null) {
+			// 破棄時に#unregisterが呼ばれなかったEGLコンテキストのキャッシュを削除する
+			if (DEBUG) Log.v(TAG, "register:stale token," + context);
+			removeCaches(prev);
+		}
+		return token;
+	}
+
+	/**
+	 * EGLコンテキストを破棄するときに呼び出してトークンとそのトークンのキャッシュを削除する
+	 * @param context
+	 */
+	public static void unregister(@Nullable final Object context) {
+		if (context == null) return;
+		final Object token;
+		synchronized (sTokens) {
+			token = sTokens.remove(context);
+		}
+		if (token != null) {
+			removeCaches(token);
+		}
+	}
+
+	/**
+	 * 指定したEGLコンテキストのトークンを取得
+	 * @param context
+	 * @return EGLBaseで生成したEGLコンテキストでなければnull
+	 */
+	@Nullable
+	public static Object getToken(@Nullable final Object context) {
+		if (context == null) return null;
+		synchronized (sTokens) {
+			return sTokens.get(context);
+		}
+	}
+
+	/**
+	 * 現在のスレッドのEGLコンテキストのトークンを取得
+	 * @return EGLコンテキストが無いかEGLBaseで生成したEGLコンテキストでなければnull
+	 */
+	@SuppressLint("NewApi")
+	@Nullable
+	public static Object getCurrentToken() {
+		if (BuildCheck.isAPI17()) {
+			final android.opengl.EGLContext context = EGL14.eglGetCurrentContext();
+			return (context != null) && !EGL14.EGL_NO_CONTEXT.equals(context)
+				? getToken(context) : null;
+		} else {
+			final EGL10 egl = (EGL10)javax.microedition.khronos.egl.EGLContext.getEGL();
+			final javax.microedition.khronos.egl.EGLContext context
+				= egl.eglGetCurrentContext();
+			return (context != null) && !EGL10.EGL_NO_CONTEXT.equals(context)
+				? getToken(context) : null;
+		}
+	}
+
+	/**
+	 * トークンをキーにしているキャッシュを削除する
+	 * キャッシュしていたシェーダープログラム・テクスチャ等はEGLコンテキストと一緒に破棄されるので
+	 * glDeleteXXXは呼ばない
+	 * @param token
+	 */
+	private static void removeCaches(@NonNull final Object token) {
+		ShaderProgramCache.getInstance().removeContext(token);
+		GLTexturePool.getInstance().removeContext(token);
+	}
+}
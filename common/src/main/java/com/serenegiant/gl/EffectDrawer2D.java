@@ -296,6 +296,16 @@ public class EffectDrawer2D extends GLDrawer2D {
 		}
 	}
 
+	/**
+	 * 共有しているシェーダープログラムを他のインスタンスが使った後なので
+	 * 映像効果のパラメータをセットし直す
+	 */
+	@Override
+	protected void onProgramOwnerChanged() {
+		super.onProgramOwnerChanged();
+		updateParams();
+	}
+
 	private void updateParams() {
 		if (DEBUG) Log.v(TAG, "MyRendererTask#updateParams:");
 		final int n = Math.min(mCurrentParams != null
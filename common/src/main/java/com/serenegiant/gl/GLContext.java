@@ -156,6 +156,8 @@ public class GLContext implements EGLConst {
 				mEglMasterSurface = null;
 			}
 			if (mEgl != null) {
+				// このEGLコンテキストでキャッシュしていたシェーダープログラムとプールしていたテクスチャ等は
+				// EGLBase#releaseでEGLコンテキストを破棄するときにEGLContextTokens経由で削除される
 				mEgl.release();
 				mEgl = null;
 			}
@@ -225,6 +225,12 @@ public class GLDrawer2D implements GLConst {
 	protected final int mTexTarget;
 
 	protected int hProgram;
+	/**
+	 * ShaderProgramCacheから取得したシェーダープログラム
+	 * #loadShaderをオーバーライドしてキャッシュを使わないときはnull
+	 */
+	@Nullable
+	private ShaderProgramCache.Program mCachedProgram;
 	/**
 	 * 頂点座標のlocation
 	 */
@@ -255,6 +261,12 @@ public class GLDrawer2D implements GLConst {
 	 * エラーカウンタ
 	 */
 	private int errCnt;
+	/**
+	 * 冗長なGL|ESの呼び出しをスキップするためのGLStateTracker
+	 * nullなら常に全てのGL|ESの呼び出しを行う
+	 */
+	@Nullable
+	private GLStateTracker mStateTracker;
 
 	/**
 	 * コンストラクタ
@@ -305,6 +317,22 @@ public class GLDrawer2D implements GLConst {
 		releaseShader();
 	}
 
+	/**
+	 * 冗長なGL|ESの呼び出しをスキップするためのGLStateTrackerをセットする
+	 * GLStateTrackerはEGLコンテキスト毎に生成したものを使うこと
+	 * GLStateTracker#beginBatchと#endBatchの間での描画時にシェーダープログラム・テクスチャの
+	 * バインドとユニフォーム変数が前回の描画と同じならGL|ESの呼び出しをスキップする
+	 * @param tracker nullなら常に全てのGL|ESの呼び出しを行う
+	 */
+	public synchronized void setStateTracker(@Nullable final GLStateTracker tracker) {
+		mStateTracker = tracker;
+	}
+
+	@Nullable
+	public GLStateTracker getStateTracker() {
+		return mStateTracker;
+	}
+
 	/**
 	 * 外部テクスチャを使うかどうか
 	 * IShaderDrawer2dの実装
@@ -430,7 +458,7 @@ public class GLDrawer2D implements GLConst {
 			updateMvpMatrix(mvp_matrix, mvp_offset);
 		}
 		bindTexture(texUnit, texId);
-		if (validateProgram(hProgram)) {
+		if (isProgramValid()) {
 			drawVertices();
 			errCnt = 0;
 		} else {
@@ -449,7 +477,11 @@ public class GLDrawer2D implements GLConst {
 	 * @param offset
 	 */
 	protected void updateTexMatrix(@NonNull @Size(min=16) final float[] texMatrix, final int offset) {
-		GLES20.glUniformMatrix4fv(muTexMatrixLoc, 1, false, texMatrix, offset);
+		if (mStateTracker != null) {
+			mStateTracker.uniformMatrix4fv(muTexMatrixLoc, texMatrix, offset);
+		} else {
+			GLES20.glUniformMatrix4fv(muTexMatrixLoc, 1, false, texMatrix, offset);
+		}
 	}
 
 	/**
@@ -457,7 +489,11 @@ public class GLDrawer2D implements GLConst {
 	 * @param mvpMatrix
 	 */
 	protected void updateMvpMatrix(@NonNull @Size(min=16)  final float[] mvpMatrix, final int offset) {
-		GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mvpMatrix, offset);
+		if (mStateTracker != null) {
+			mStateTracker.uniformMatrix4fv(muMVPMatrixLoc, mvpMatrix, offset);
+		} else {
+			GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mvpMatrix, offset);
+		}
 	}
 
 	/**
@@ -466,9 +502,14 @@ public class GLDrawer2D implements GLConst {
 	 * @param texId
 	 */
 	protected void bindTexture(@TexUnit final int texUnit, final int texId) {
-		GLES20.glActiveTexture(texUnit);
-		GLES20.glBindTexture(mTexTarget, texId);
-		GLES20.glUniform1i(muTextureLoc, GLUtils.gLTextureUnit2Index(texUnit));
+		if (mStateTracker != null) {
+			mStateTracker.bindTexture(texUnit, mTexTarget, texId);
+			mStateTracker.uniform1i(muTextureLoc, GLUtils.gLTextureUnit2Index(texUnit));
+		} else {
+			GLES20.glActiveTexture(texUnit);
+			GLES20.glBindTexture(mTexTarget, texId);
+			GLES20.glUniform1i(muTextureLoc, GLUtils.gLTextureUnit2Index(texUnit));
+		}
 	}
 
 	/**
@@ -519,10 +560,15 @@ public class GLDrawer2D implements GLConst {
 
 	/**
 	 * 描画の後処理
+	 * GLStateTrackerのバッチ中はバインド解除をGLStateTracker#endBatchまで遅延させる
 	 */
 	protected void finishDraw() {
-		GLES20.glBindTexture(mTexTarget, 0);
-        GLES20.glUseProgram(0);
+		if (mStateTracker != null) {
+			mStateTracker.finishDraw(mTexTarget);
+		} else {
+			GLES20.glBindTexture(mTexTarget, 0);
+			GLES20.glUseProgram(0);
+		}
 	}
 
 	/**
@@ -603,9 +649,18 @@ public class GLDrawer2D implements GLConst {
 		hProgram = GL_NO_PROGRAM;
 	}
 
+	/**
+	 * シェーダープログラムを取得する
+	 * 同じソースのシェーダープログラムはShaderProgramCacheで同じEGLコンテキスト内の
+	 * 他のインスタンスと共有するのでコンパイル・リンクは最初の1回だけ
+	 * @param vs
+	 * @param fs
+	 * @return シェーダープログラム, 失敗したときは0
+	 */
 	protected int loadShader(@NonNull final String vs, @NonNull final String fs) {
 		if (DEBUG) Log.v(TAG, "loadShader:");
-		return GLUtils.loadShader(vs, fs);
+		mCachedProgram = ShaderProgramCache.getInstance().acquire(vs, fs);
+		return mCachedProgram != null ? mCachedProgram.getProgram() : 0;
 	}
 
 	protected void internalReleaseShader(final int program) {
@@ -619,7 +674,16 @@ public class GLDrawer2D implements GLConst {
 			mBufTexCoord = GL_NO_BUFFER;
 		}
 		// シェーダーを破棄
-		GLES20.glDeleteProgram(program);
+		if ((mCachedProgram != null) && (mCachedProgram.getProgram() == program)) {
+			// キャッシュから取得したシェーダープログラムは参照カウンタが0になった時に破棄される
+			ShaderProgramCache.getInstance().release(mCachedProgram);
+			mCachedProgram = null;
+		} else {
+			GLES20.glDeleteProgram(program);
+		}
+		if (mStateTracker != null) {
+			mStateTracker.onProgramDeleted(program);
+		}
 	}
 
 	/**
@@ -629,7 +693,7 @@ public class GLDrawer2D implements GLConst {
 	 * @return
 	 */
 	public int glGetAttribLocation(@NonNull final String name) {
-		GLES20.glUseProgram(hProgram);
+		useProgram(hProgram);
 		return GLES20.glGetAttribLocation(hProgram, name);
 	}
 
@@ -640,7 +704,7 @@ public class GLDrawer2D implements GLConst {
 	 * @return
 	 */
 	public int glGetUniformLocation(@NonNull final String name) {
-		GLES20.glUseProgram(hProgram);
+		useProgram(hProgram);
 		return GLES20.glGetUniformLocation(hProgram, name);
 	}
 
@@ -648,7 +712,31 @@ public class GLDrawer2D implements GLConst {
 	 * glUseProgramが呼ばれた状態で返る
 	 */
 	public void glUseProgram() {
-		GLES20.glUseProgram(hProgram);
+		useProgram(hProgram);
+		if ((mCachedProgram != null) && mCachedProgram.setOwner(this)) {
+			onProgramOwnerChanged();
+		}
+	}
+
+	/**
+	 * GLStateTrackerがセットされていればGLStateTracker経由でglUseProgramを呼ぶ
+	 * @param program
+	 */
+	private void useProgram(final int program) {
+		if (mStateTracker != null) {
+			mStateTracker.useProgram(program);
+		} else {
+			GLES20.glUseProgram(program);
+		}
+	}
+
+	/**
+	 * 共有しているシェーダープログラムを前回は他のインスタンスが使っていたときに
+	 * glUseProgramの直後に呼ばれる
+	 * 描画毎にセットしないユニフォーム変数があれば下位クラスでオーバーライドしてセットし直すこと
+	 * GLDrawer2Dのテクスチャ変換行列とモデルビュー変換行列は描画毎にセットするので何もしない
+	 */
+	protected void onProgramOwnerChanged() {
 	}
 
 	/**
@@ -657,7 +745,10 @@ public class GLDrawer2D implements GLConst {
 	 */
 	protected void init() {
 		if (DEBUG) Log.v(TAG, "init:");
-		GLES20.glUseProgram(hProgram);
+		useProgram(hProgram);
+		if (mCachedProgram != null) {
+			mCachedProgram.setOwner(this);
+		}
 		maPositionLoc = GLES20.glGetAttribLocation(hProgram, "aPosition");
 		maTextureCoordLoc = GLES20.glGetAttribLocation(hProgram, "aTextureCoord");
 		muTextureLoc = GLES20.glGetAttribLocation(hProgram, "sTexture");
@@ -671,6 +762,22 @@ public class GLDrawer2D implements GLConst {
 		updateVertices();
 	}
 
+	/**
+	 * 描画前にシェーダープログラムが使用可能かどうかをチェック
+	 * GLStateTrackerのバッチ中に既に検証済みのシェーダープログラムなら検証を省略する
+	 * @return
+	 */
+	private boolean isProgramValid() {
+		if ((mStateTracker != null) && mStateTracker.isValidated()) {
+			return true;
+		}
+		final boolean result = validateProgram(hProgram);
+		if (result && (mStateTracker != null)) {
+			mStateTracker.setValidated();
+		}
+		return result;
+	}
+
 	private final int[] status = new int[1];
 	/**
 	 * シェーダープログラムが使用可能かどうかをチェック
@@ -0,0 +1,481 @@
+package com.serenegiant.gl;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.Size;
+
+/**
+ * EGLコンテキスト毎のGLのステートをキャッシュして
+ * 同じシェーダープログラム・テクスチャ・ユニフォーム変数を続けてセットするときに
+ * 冗長なGL|ESの呼び出しをスキップするためのクラス
+ * AbstractDistributeTaskのように同じテクスチャを複数の描画先へ続けて描画するときに
+ * #beginBatchと#endBatchの間で描画すると、描画毎のglUseProgram/glBindTexture/
+ * glUniformXXX/glValidateProgramと描画後のバインド解除を最初の1回または最後の1回だけにする
+ * バッチ外では何もキャッシュせずに全ての呼び出しをそのままGL|ESへ渡す
+ * バッチ中にこのクラスを経由せずにステートを変更したときは#invalidateを呼ぶこと
+ * GL|ESへのアクセスはBackendインターフェース経由で行うので
+ * キャッシュの処理はGLなしでテストできる
+ * EGLコンテキストを保持しているスレッド上から呼び出すこと
+ * (統計情報の取得はどのスレッドからでも可)
+ */
+public class GLStateTracker {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = GLStateTracker.class.getSimpleName();
+
+	/**
+	 * キャッシュしているテクスチャユニットの数
+	 */
+	private static final int MAX_TEX_UNITS = 32;
+	/**
+	 * ステートが不明(キャッシュしていない)ことを示す値
+	 */
+	private static final int UNKNOWN = Integer.MIN_VALUE;
+
+	/**
+	 * GLアクセス用インターフェース
+	 */
+	public interface Backend {
+		public void useProgram(final int program);
+		public void activeTexture(final int texUnit);
+		public void bindTexture(final int target, final int texId);
+		public void uniform1i(final int location, final int value);
+		public void uniformMatrix4fv(final int location,
+			@NonNull @Size(min=16) final float[] matrix, final int offset);
+	}
+
+	/**
+	 * シェーダープログラム毎のキャッシュ
+	 */
+	private static class ProgramState {
+		@NonNull
+		private final Map<Integer, float[]> matrices = new HashMap<>();
+		@NonNull
+		private final Map<Integer, Integer> ints = new HashMap<>();
+		private boolean validated;
+	}
+
+	@NonNull
+	private final Backend mBackend;
+	/**
+	 * #beginBatchのネスト数, 0ならバッチ外
+	 */
+	private int mBatchDepth;
+	private int mProgram = UNKNOWN;
+	@Nullable
+	private ProgramState mProgramState;
+	@NonNull
+	private final Map<Integer, ProgramState> mProgramStates = new HashMap<>();
+	private int mActiveTexUnit = UNKNOWN;
+	/**
+	 * テクスチャユニット毎にバインドしているGL_TEXTURE_2Dのテクスチャ
+	 */
+	@NonNull
+	private final int[] mBound2D = new int[MAX_TEX_UNITS];
+	/**
+	 * テクスチャユニット毎にバインドしているGL_TEXTURE_EXTERNAL_OESのテクスチャ
+	 */
+	@NonNull
+	private final int[] mBoundOES = new int[MAX_TEX_UNITS];
+	private volatile long mAvoidedPrograms;
+	private volatile long mAvoidedTextures;
+	private volatile long mAvoidedUniforms;
+	private volatile long mAvoidedValidations;
+	private volatile long mAvoidedUnbinds;
+	private volatile long mBatchedDraws;
+
+	/**
+	 * GL|ESを使うコンストラクタ
+	 * EGLコンテキスト毎に生成すること
+	 */
+	public GLStateTracker() {
+		this(new GLESBackend());
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param backend
+	 */
+	public GLStateTracker(@NonNull final Backend backend) {
+		mBackend = backend;
+		resetState();
+	}
+
+	/**
+	 * バッチを開始する
+	 * バッチ開始時のステートは不明として扱うので最初の描画ではそのままGL|ESを呼び出す
+	 * ネストしたときは一番外側の#endBatchでバッチを終了する
+	 */
+	public void beginBatch() {
+		if (mBatchDepth++ == 0) {
+			resetState();
+		}
+	}
+
+	/**
+	 * バッチを終了する
+	 * バッチ中に遅延させていたテクスチャとシェーダープログラムのバインド解除を行う
+	 */
+	public void endBatch() {
+		if (mBatchDepth <= 0) {
+			Log.w(TAG, "endBatch:not in batch");
+			return;
+		}
+		if (--mBatchDepth == 0) {
+			for (int i = 0; i < MAX_TEX_UNITS; i++) {
+				if (((mBound2D[i] != UNKNOWN) && (mBound2D[i] != 0))
+					|| ((mBoundOES[i] != UNKNOWN) && (mBoundOES[i] != 0))) {
+
+					mBackend.activeTexture(GLES20.GL_TEXTURE0 + i);
+					if ((mBound2D[i] != UNKNOWN) && (mBound2D[i] != 0)) {
+						mBackend.bindTexture(GLConst.GL_TEXTURE_2D, 0);
+					}
+					if ((mBoundOES[i] != UNKNOWN) && (mBoundOES[i] != 0)) {
+						mBackend.bindTexture(GLConst.GL_TEXTURE_EXTERNAL_OES, 0);
+					}
+				}
+			}
+			if ((mProgram != UNKNOWN) && (mProgram != 0)) {
+				mBackend.useProgram(0);
+			}
+			resetState();
+		}
+	}
+
+	/**
+	 * バッチ中かどうか
+	 * @return
+	 */
+	public boolean isBatching() {
+		return mBatchDepth > 0;
+	}
+
+	/**
+	 * キャッシュしているステートを破棄する
+	 * バッチ中にこのクラスを経由せずにステートを変更したときに呼び出す
+	 */
+	public void invalidate() {
+		resetState();
+	}
+
+	/**
+	 * シェーダープログラムを破棄したときに呼び出す
+	 * 同じ名前のシェーダープログラムが再生成されたときに古いキャッシュを使わないようにする
+	 * @param program
+	 */
+	public void onProgramDeleted(final int program) {
+		mProgramStates.remove(program);
+		if (mProgram == program) {
+			mProgram = UNKNOWN;
+			mProgramState = null;
+		}
+	}
+
+	/**
+	 * glUseProgramの代わりに呼び出す
+	 * @param program
+	 */
+	public void useProgram(final int program) {
+		if (mBatchDepth == 0) {
+			mBackend.useProgram(program);
+		} else if (program == mProgram) {
+			mAvoidedPrograms++;
+		} else {
+			mBackend.useProgram(program);
+			mProgram = program;
+			ProgramState state = mProgramStates.get(program);
+			if (state == null) {
+				state = new ProgramState();
+				mProgramStates.put(program, state);
+			}
+			mProgramState = state;
+		}
+	}
+
+	/**
+	 * glActiveTexture + glBindTextureの代わりに呼び出す
+	 * @param texUnit
+	 * @param target
+	 * @param texId
+	 */
+	public void bindTexture(final int texUnit, final int target, final int texId) {
+		final int[] bound = mBatchDepth > 0 ? getBound(texUnit, target) : null;
+		if (bound == null) {
+			// バッチ外またはキャッシュしないテクスチャユニット・テクスチャターゲット
+			mBackend.activeTexture(texUnit);
+			mBackend.bindTexture(target, texId);
+			mActiveTexUnit = mBatchDepth > 0 ? texUnit : UNKNOWN;
+			return;
+		}
+		if (mActiveTexUnit == texUnit) {
+			mAvoidedTextures++;
+		} else {
+			mBackend.activeTexture(texUnit);
+			mActiveTexUnit = texUnit;
+		}
+		final int ix = texUnit - GLES20.GL_TEXTURE0;
+		if (bound[ix] == texId) {
+			mAvoidedTextures++;
+		} else {
+			mBackend.bindTexture(target, texId);
+			bound[ix] = texId;
+		}
+	}
+
+	/**
+	 * 現在のシェーダープログラムに対するglUniform1iの代わりに呼び出す
+	 * @param location 負ならなにもしない
+	 * @param value
+	 */
+	public void uniform1i(final int location, final int value) {
+		if (location < 0) return;
+		final ProgramState state = mBatchDepth > 0 ? mProgramState : null;
+		if (state == null) {
+			mBackend.uniform1i(location, value);
+			return;
+		}
+		final Integer current = state.ints.get(location);
+		if ((current != null) && (current == value)) {
+			mAvoidedUniforms++;
+		} else {
+			mBackend.uniform1i(location, value);
+			state.ints.put(location, value);
+		}
+	}
+
+	/**
+	 * 現在のシェーダープログラムに対するglUniformMatrix4fvの代わりに呼び出す
+	 * @param location 負ならなにもしない
+	 * @param matrix
+	 * @param offset
+	 */
+	public void uniformMatrix4fv(final int location,
+		@NonNull @Size(min=16) final float[] matrix, final int offset) {
+
+		if (location < 0) return;
+		final ProgramState state = mBatchDepth > 0 ? mProgramState : null;
+		if (state == null) {
+			mBackend.uniformMatrix4fv(location, matrix, offset);
+			return;
+		}
+		float[] current = state.matrices.get(location);
+		if ((current != null) && equals(current, matrix, offset)) {
+			mAvoidedUniforms++;
+		} else {
+			mBackend.uniformMatrix4fv(location, matrix, offset);
+			if (current == null) {
+				current = new float[16];
+				state.matrices.put(location, current);
+			}
+			System.arraycopy(matrix, offset, current, 0, 16);
+		}
+	}
+
+	/**
+	 * 現在のシェーダープログラムがこのバッチ中に既に検証済みかどうか
+	 * 検証済みのときは検証を省略した回数として数える
+	 * @return バッチ外または未検証ならfalse
+	 */
+	public boolean isValidated() {
+		final ProgramState state = mBatchDepth > 0 ? mProgramState : null;
+		if ((state != null) && state.validated) {
+			mAvoidedValidations++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 現在のシェーダープログラムを検証済みにする
+	 * バッチ外ではなにもしない
+	 */
+	public void setValidated() {
+		final ProgramState state = mBatchDepth > 0 ? mProgramState : null;
+		if (state != null) {
+			state.validated = true;
+		}
+	}
+
+	/**
+	 * 描画後のテクスチャとシェーダープログラムのバインド解除
+	 * バッチ中は#endBatchまで遅延させて同じシェーダープログラム・テクスチャでの描画をまとめる
+	 * @param target
+	 */
+	public void finishDraw(final int target) {
+		if (mBatchDepth == 0) {
+			mBackend.bindTexture(target, 0);
+			mBackend.useProgram(0);
+		} else {
+			mAvoidedUnbinds += 2;
+			mBatchedDraws++;
+		}
+	}
+
+	/**
+	 * バッチ中に呼び出しをスキップしたglUseProgramの回数を取得
+	 * @return
+	 */
+	public long getAvoidedPrograms() {
+		return mAvoidedPrograms;
+	}
+
+	/**
+	 * バッチ中に呼び出しをスキップしたglActiveTexture/glBindTextureの回数を取得
+	 * @return
+	 */
+	public long getAvoidedTextures() {
+		return mAvoidedTextures;
+	}
+
+	/**
+	 * バッチ中に呼び出しをスキップしたglUniformXXXの回数を取得
+	 * @return
+	 */
+	public long getAvoidedUniforms() {
+		return mAvoidedUniforms;
+	}
+
+	/**
+	 * バッチ中に省略したシェーダープログラムの検証
+	 * (glValidateProgram + glGetProgramiv)の回数を取得
+	 * @return
+	 */
+	public long getAvoidedValidations() {
+		return mAvoidedValidations;
+	}
+
+	/**
+	 * バッチ中に#endBatchまで遅延させた描画後のバインド解除の呼び出し回数を取得
+	 * #endBatchで実際にバインド解除した分は差し引いていない
+	 * @return
+	 */
+	public long getAvoidedUnbinds() {
+		return mAvoidedUnbinds;
+	}
+
+	/**
+	 * スキップしたGL|ESの呼び出し回数の合計を取得
+	 * シェーダープログラムの検証は2回分(glValidateProgram + glGetProgramiv)として数える
+	 * @return
+	 */
+	public long getAvoidedCount() {
+		return mAvoidedPrograms + mAvoidedTextures + mAvoidedUniforms
+			+ mAvoidedValidations * 2 + mAvoidedUnbinds;
+	}
+
+	/**
+	 * バッチ中に描画した回数を取得
+	 * @return
+	 */
+	public long getBatchedDraws() {
+		return mBatchedDraws;
+	}
+
+	/**
+	 * 統計情報をリセットする
+	 */
+	public void resetStats() {
+		mAvoidedPrograms = mAvoidedTextures = mAvoidedUniforms
+			= mAvoidedValidations = mAvoidedUnbinds = mBatchedDraws = 0;
+	}
+
+	private void resetState() {
+		mProgram = UNKNOWN;
+		mProgramState = null;
+		mProgramStates.clear();
+		mActiveTexUnit = UNKNOWN;
+		for (int i = 0; i < MAX_TEX_UNITS; i++) {
+			mBound2D[i] = mBoundOES[i] = UNKNOWN;
+		}
+	}
+
+	/**
+	 * 指定したテクスチャユニット・テクスチャターゲットのキャッシュを取得
+	 * @param texUnit
+	 * @param target
+	 * @return キャッシュしないテクスチャユニット・テクスチャターゲットならnull
+	 */
+	@Nullable
+	private int[] getBound(final int texUnit, final int target) {
+		final int ix = texUnit - GLES20.GL_TEXTURE0;
+		if ((ix < 0) || (ix >= MAX_TEX_UNITS)) {
+			return null;
+		}
+		switch (target) {
+		case GLConst.GL_TEXTURE_2D:
+			return mBound2D;
+		case GLConst.GL_TEXTURE_EXTERNAL_OES:
+			return mBoundOES;
+		default:
+			return null;
+		}
+	}
+
+	private static boolean equals(@NonNull final float[] cached,
+		@NonNull final float[] matrix, final int offset) {
+
+		for (int i = 0; i < 16; i++) {
+			if (cached[i] != matrix[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * GL|ESを使うBackend実装
+	 */
+	private static class GLESBackend implements Backend {
+		@Override
+		public void useProgram(final int program) {
+			GLES20.glUseProgram(program);
+		}
+
+		@Override
+		public void activeTexture(final int texUnit) {
+			GLES20.glActiveTexture(texUnit);
+		}
+
+		@Override
+		public void bindTexture(final int target, final int texId) {
+			GLES20.glBindTexture(target, texId);
+		}
+
+		@Override
+		public void uniform1i(final int location, final int value) {
+			GLES20.glUniform1i(location, value);
+		}
+
+		@Override
+		public void uniformMatrix4fv(final int location,
+			@NonNull @Size(min=16) final float[] matrix, final int offset) {
+
+			GLES20.glUniformMatrix4fv(location, 1, false, matrix, offset);
+		}
+	}
+}
@@ -27,6 +27,7 @@ import android.os.Build;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.annotation.Size;
 
@@ -268,6 +269,11 @@ public abstract class GLSurface implements IGLSurface {
 	protected final int TEX_UNIT;
 	protected final boolean mHasDepthBuffer, mAdjustPower2;
 	protected boolean mWrappedTexture;
+	/**
+	 * 破棄するときにGLTexturePoolへ返却できるかどうか
+	 * #loadBitmapでテクスチャのメモリー領域を再確保したときはテクスチャサイズが変わるので返却しない
+	 */
+	protected boolean mPoolable = true;
 	/** 描画領域サイズ */
 	protected int mWidth, mHeight;
 	/** テクスチャサイズ */
@@ -304,10 +310,21 @@ public abstract class GLSurface implements IGLSurface {
 		mHasDepthBuffer = use_depth_buffer;
 		mAdjustPower2 = adjust_power2;
 
-		createFrameBuffer(width, height);
 		int tex = tex_id;
-		if (tex < 0) {
-			tex = genTexture(tex_target, tex_unit, mTexWidth, mTexHeight);
+		// 自前でテクスチャを生成するときは同じ条件で破棄されたものがあれば再利用する
+		final GLTexturePool.Resource pooled = tex < 0 ? obtainPooled(width, height) : null;
+		if (pooled != null) {
+			mFrameBufferObj = pooled.frameBuffer;
+			mDepthBufferObj = pooled.depthBuffer;
+			tex = pooled.texId;
+			// 以前の使用者が補間方法・クランプ方法を変更している可能性があるので#genTextureと同じ設定に戻す
+			GLUtils.setupTex(tex_target, tex_unit, tex,
+				GLES20.GL_LINEAR, GLES20.GL_LINEAR, GLES20.GL_CLAMP_TO_EDGE);
+		} else {
+			createFrameBuffer(width, height);
+			if (tex < 0) {
+				tex = genTexture(tex_target, tex_unit, mTexWidth, mTexHeight);
+			}
 		}
 		assignTexture(tex, width, height);
 		// assignTexture内で強制的にmWrappedTexture=trueになるので正しい値に上書き
@@ -323,7 +340,51 @@ public abstract class GLSurface implements IGLSurface {
 	@Override
 	public void release() {
 		if (DEBUG) Log.v(TAG, "release");
-		releaseFrameBuffer();
+		if (!mWrappedTexture && mPoolable
+			&& (mFBOTexId > GL_NO_TEXTURE) && (mFrameBufferObj > GL_NO_BUFFER)
+			&& GLTexturePool.getInstance().recycle(TEX_TARGET, mTexWidth, mTexHeight,
+				GLES20.GL_RGBA, getPoolFlags(), GLES20.GL_LINEAR,
+				mFBOTexId, mFrameBufferObj, mDepthBufferObj)) {
+			// テクスチャ・フレームバッファオブジェクト・デプスバッファはプールへ返却したので破棄しない
+			mFBOTexId = GL_NO_TEXTURE;
+			mFrameBufferObj = GL_NO_BUFFER;
+			mDepthBufferObj = GL_NO_BUFFER;
+		} else {
+			releaseFrameBuffer();
+		}
+	}
+
+	/**
+	 * GLTexturePoolから条件が同じテクスチャ・フレームバッファオブジェクトを取得する
+	 * 取得できたときは描画領域サイズとテクスチャサイズをセットする
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	@Nullable
+	private GLTexturePool.Resource obtainPooled(final int width, final int height) {
+		final int texWidth = mAdjustPower2 ? power2(width) : width;
+		final int texHeight = mAdjustPower2 ? power2(height) : height;
+		final GLTexturePool.Resource result = GLTexturePool.getInstance().obtain(
+			TEX_TARGET, texWidth, texHeight, GLES20.GL_RGBA, getPoolFlags(), GLES20.GL_LINEAR);
+		if (result != null) {
+			mTexWidth = texWidth;
+			mTexHeight = texHeight;
+			mWidth = width;
+			mHeight = height;
+		}
+		return result;
+	}
+
+	private int getPoolFlags() {
+		return GLTexturePool.FLAG_FRAMEBUFFER
+			| (mHasDepthBuffer ? GLTexturePool.FLAG_DEPTH : 0);
+	}
+
+	private static int power2(final int size) {
+		int result = 1;
+		for (; result < size; result <<= 1) ;
+		return result;
 	}
 
 	/**
@@ -621,6 +682,9 @@ public abstract class GLSurface implements IGLSurface {
 				releaseFrameBuffer();
 				createFrameBuffer(width, height);
 			}
+			if ((width != mTexWidth) || (height != mTexHeight)) {
+				mPoolable = false;
+			}
 			GLES20.glActiveTexture(TEX_UNIT);
 			GLES20.glBindTexture(TEX_TARGET, mFBOTexId);
 			android.opengl.GLUtils.texImage2D(TEX_TARGET, 0, bitmap, 0);
@@ -861,6 +925,9 @@ public abstract class GLSurface implements IGLSurface {
 				releaseFrameBuffer();
 				createFrameBuffer(width, height);
 			}
+			if ((width != mTexWidth) || (height != mTexHeight)) {
+				mPoolable = false;
+			}
 			GLES30.glActiveTexture(TEX_UNIT);
 			GLES30.glBindTexture(TEX_TARGET, mFBOTexId);
 			android.opengl.GLUtils.texImage2D(TEX_TARGET, 0, bitmap, 0);
@@ -135,6 +135,11 @@ public class GLTexture implements GLConst {
 	private final boolean ADJUST_POWER2;
 	private final boolean mWrappedTexture;
 	private int mTextureId;
+	/**
+	 * 破棄するときにGLTexturePoolへ返却できるかどうか
+	 * #loadBitmapでテクスチャのメモリー領域を再確保したときはテクスチャサイズが変わるので返却しない
+	 */
+	private boolean mPoolable;
 	@Size(min=16)
 	@NonNull
 	private final float[] mTexMatrix = new float[16];	// テクスチャ変換行列
@@ -343,6 +348,9 @@ public class GLTexture implements GLConst {
 			releaseTexture();
 			createTexture(width, height);
 		}
+		if ((width != mTexWidth) || (height != mTexHeight)) {
+			mPoolable = false;
+		}
 		bindTexture();
 		android.opengl.GLUtils.texImage2D(TEX_TARGET, 0, bitmap, 0);
 		GLES20.glBindTexture(TEX_TARGET, 0);
@@ -373,16 +381,27 @@ public class GLTexture implements GLConst {
 			}
 			mWidth = width;
 			mHeight = height;
-			mTextureId = GLUtils.initTex(TEX_TARGET, TEX_UNIT, FILTER_PARAM);
-			// テクスチャのメモリ領域を確保する
-			GLES20.glTexImage2D(TEX_TARGET,
-				0,					// ミップマップレベル0(ミップマップしない)
-				GLES20.GL_RGBA,				// 内部フォーマット
-				mTexWidth, mTexHeight,		// サイズ
-				0,					// 境界幅
-				GLES20.GL_RGBA,				// 引き渡すデータのフォーマット
-				GLES20.GL_UNSIGNED_BYTE,	// データの型
-				null);				// ピクセルデータ無し
+			// 同じ条件で破棄されたテクスチャがあれば再利用する
+			final GLTexturePool.Resource pooled = GLTexturePool.getInstance().obtain(
+				TEX_TARGET, mTexWidth, mTexHeight, GLES20.GL_RGBA, 0, FILTER_PARAM);
+			if (pooled != null) {
+				mTextureId = pooled.texId;
+				// 以前の使用者が補間方法・クランプ方法を変更している可能性があるので生成時と同じ設定に戻す
+				GLUtils.setupTex(TEX_TARGET, TEX_UNIT, mTextureId,
+					FILTER_PARAM, FILTER_PARAM, GLES20.GL_CLAMP_TO_EDGE);
+			} else {
+				mTextureId = GLUtils.initTex(TEX_TARGET, TEX_UNIT, FILTER_PARAM);
+				// テクスチャのメモリ領域を確保する
+				GLES20.glTexImage2D(TEX_TARGET,
+					0,					// ミップマップレベル0(ミップマップしない)
+					GLES20.GL_RGBA,				// 内部フォーマット
+					mTexWidth, mTexHeight,		// サイズ
+					0,					// 境界幅
+					GLES20.GL_RGBA,				// 引き渡すデータのフォーマット
+					GLES20.GL_UNSIGNED_BYTE,	// データの型
+					null);				// ピクセルデータ無し
+			}
+			mPoolable = true;
 		} else {
 			mWidth = mTexWidth = width;
 			mHeight = mTexHeight = height;
@@ -398,7 +417,12 @@ public class GLTexture implements GLConst {
 
 	private void releaseTexture() {
 		if (!mWrappedTexture && (mTextureId > GL_NO_TEXTURE)) {
-			GLUtils.deleteTex(mTextureId);
+			// GLコンテキストが無いとき(ファイナライザから呼ばれたとき等)はプールへ返却できない
+			if (!mPoolable
+				|| !GLTexturePool.getInstance().recycle(TEX_TARGET, mTexWidth, mTexHeight,
+					GLES20.GL_RGBA, 0, FILTER_PARAM, mTextureId, GL_NO_BUFFER, GL_NO_BUFFER)) {
+				GLUtils.deleteTex(mTextureId);
+			}
 			mTextureId = GL_NO_TEXTURE;
 		}
 	}
@@ -0,0 +1,519 @@
+package com.serenegiant.gl;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import com.serenegiant.egl.EGLContextTokens;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * GLSurface/GLTextureが自前で生成したテクスチャ・フレームバッファオブジェクト・
+ * デプスバッファをEGLコンテキスト毎にプールして再利用するためのクラス
+ * (幅, 高さ, フォーマット, テクスチャターゲット, 種類, 補間方法)が同じなら再利用するので
+ * パイプラインのリサイズや映像効果の切り替え毎にglGenTextures/glGenFramebuffersと
+ * ドライバーでのメモリー確保が繰り返されるのを防ぐ
+ * プール中の未使用リソースの合計サイズが上限を超えると最も長く使われていないものから破棄する
+ * 取り出したテクスチャの補間方法・クランプ方法は以前の使用者が変更している可能性があるので
+ * 呼び出し元で設定し直すこと
+ * EGLコンテキストのハンドルは破棄後に再利用されることがあり、テクスチャ等の名前も
+ * EGLコンテキスト毎に割り当てられるのでハンドルやglIsTextureでは古いリソースかどうかを
+ * 判別できない。そのためEGLコンテキスト毎のプールはEGLContextTokensのトークンをキーにして、
+ * EGLコンテキストの破棄時にそのトークンのプールを削除する
+ * GLへのアクセスはBackendインターフェース経由で行うので
+ * プールの処理はGLなしでテストできる
+ * GLコンテキストを保持しているスレッド上から呼び出すこと
+ */
+public class GLTexturePool {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = GLTexturePool.class.getSimpleName();
+
+	/**
+	 * デフォルトのEGLコンテキスト毎の未使用リソースの合計サイズの上限[バイト]
+	 */
+	public static final long DEFAULT_BUDGET_BYTES = 32 * 1024 * 1024;
+
+	/**
+	 * テクスチャに加えてフレームバッファオブジェクトを持つ
+	 */
+	public static final int FLAG_FRAMEBUFFER = 0x01;
+	/**
+	 * デプスバッファ(16ビット)を持つ
+	 */
+	public static final int FLAG_DEPTH = 0x02;
+
+	/**
+	 * GLアクセス用インターフェース
+	 */
+	public interface Backend {
+		/**
+		 * 現在のEGLコンテキストを識別するためのオブジェクトを取得
+		 * 破棄したEGLコンテキストと同じものを後から生成したEGLコンテキストで返してはいけない
+		 * @return EGLコンテキストが無いか識別できなければnull
+		 */
+		@Nullable
+		public Object getCurrentContext();
+
+		/**
+		 * テクスチャを破棄する
+		 * @param texId
+		 */
+		public void deleteTexture(final int texId);
+
+		/**
+		 * フレームバッファオブジェクトを破棄する
+		 * @param frameBuffer
+		 */
+		public void deleteFrameBuffer(final int frameBuffer);
+
+		/**
+		 * レンダーバッファオブジェクト(デプスバッファ)を破棄する
+		 * @param renderBuffer
+		 */
+		public void deleteRenderBuffer(final int renderBuffer);
+	}
+
+	/**
+	 * プールするリソース
+	 */
+	public static class Resource {
+		public final int texId;
+		/**
+		 * フレームバッファオブジェクト, 無ければGL_NO_BUFFER
+		 */
+		public final int frameBuffer;
+		/**
+		 * デプスバッファ, 無ければGL_NO_BUFFER
+		 */
+		public final int depthBuffer;
+		@NonNull
+		private final Key key;
+
+		private Resource(@NonNull final Key key,
+			final int texId, final int frameBuffer, final int depthBuffer) {
+
+			this.key = key;
+			this.texId = texId;
+			this.frameBuffer = frameBuffer;
+			this.depthBuffer = depthBuffer;
+		}
+	}
+
+	/**
+	 * プールのキー
+	 */
+	private static class Key {
+		private final int target;
+		private final int width;
+		private final int height;
+		private final int format;
+		private final int flags;
+		private final int filter;
+
+		private Key(final int target, final int width, final int height,
+			final int format, final int flags, final int filter) {
+
+			this.target = target;
+			this.width = width;
+			this.height = height;
+			this.format = format;
+			this.flags = flags;
+			this.filter = filter;
+		}
+
+		/**
+		 * 確保しているメモリーの概算値[バイト]
+		 * @return
+		 */
+		private long bytes() {
+			final long pixels = (long)width * height;
+			return pixels * bytesPerPixel(format)
+				+ ((flags & FLAG_DEPTH) != 0 ? pixels * 2 : 0);
+		}
+
+		@Override
+		public boolean equals(@Nullable final Object o) {
+			if (this == o) return true;
+			if (!(o instanceof Key)) return false;
+			final Key other = (Key) o;
+			return (target == other.target) && (width == other.width)
+				&& (height == other.height) && (format == other.format)
+				&& (flags == other.flags) && (filter == other.filter);
+		}
+
+		@Override
+		public int hashCode() {
+			int result = target;
+			result = 31 * result + width;
+			result = 31 * result + height;
+			result = 31 * result + format;
+			result = 31 * result + flags;
+			result = 31 * result + filter;
+			return result;
+		}
+	}
+
+	/**
+	 * EGLコンテキスト毎のプール
+	 */
+	private static class ContextPool {
+		/**
+		 * キー毎の未使用リソース, 最後に返却されたものが末尾
+		 */
+		@NonNull
+		private final Map<Key, ArrayDeque<Resource>> idle = new HashMap<>();
+		/**
+		 * 全ての未使用リソースを返却された順に保持する, 先頭が最も長く使われていないもの
+		 */
+		@NonNull
+		private final LinkedHashMap<Resource, Boolean> lru = new LinkedHashMap<>();
+		private long bytes;
+	}
+
+	private static GLTexturePool sInstance;
+
+	/**
+	 * GL|ESを使うシングルトンを取得
+	 * @return
+	 */
+	@NonNull
+	public static synchronized GLTexturePool getInstance() {
+		if (sInstance == null) {
+			sInstance = new GLTexturePool(new GLESBackend());
+		}
+		return sInstance;
+	}
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final Backend mBackend;
+	@NonNull
+	private final Map<Object, ContextPool> mPools = new HashMap<>();
+	private long mBudget = DEFAULT_BUDGET_BYTES;
+	private long mHitCount;
+	private long mMissCount;
+	private long mEvictedCount;
+
+	/**
+	 * コンストラクタ
+	 * 通常は#getInstanceを使うこと
+	 * @param backend
+	 */
+	public GLTexturePool(@NonNull final Backend backend) {
+		mBackend = backend;
+	}
+
+	/**
+	 * EGLコンテキスト毎の未使用リソースの合計サイズの上限をセット
+	 * 0ならプールせずに返却されたリソースはすぐに破棄する
+	 * 現在のEGLコンテキストのプールが上限を超えていれば古いものから破棄する
+	 * @param bytes
+	 */
+	public void setBudget(final long bytes) {
+		synchronized (mSync) {
+			mBudget = Math.max(bytes, 0);
+			final Object context = mBackend.getCurrentContext();
+			final ContextPool pool = context != null ? mPools.get(context) : null;
+			if (pool != null) {
+				trimLocked(context, pool, mBudget);
+			}
+		}
+	}
+
+	public long getBudget() {
+		synchronized (mSync) {
+			return mBudget;
+		}
+	}
+
+	/**
+	 * 現在のEGLコンテキストのプールから条件が同じ未使用リソースを取り出す
+	 * @param target テクスチャターゲット
+	 * @param width テクスチャの幅
+	 * @param height テクスチャの高さ
+	 * @param format テクスチャの内部フォーマット
+	 * @param flags FLAG_FRAMEBUFFER, FLAG_DEPTHの組み合わせ
+	 * @param filter テクスチャの補間方法
+	 * @return 無ければnull, 呼び出し元で生成すること
+	 */
+	@Nullable
+	public Resource obtain(final int target, final int width, final int height,
+		final int format, final int flags, final int filter) {
+
+		synchronized (mSync) {
+			final Object context = mBackend.getCurrentContext();
+			final ContextPool pool = context != null ? mPools.get(context) : null;
+			final ArrayDeque<Resource> resources = pool != null
+				? pool.idle.get(new Key(target, width, height, format, flags, filter)) : null;
+			final Resource result = resources != null ? resources.pollLast() : null;
+			if (result != null) {
+				if (resources.isEmpty()) {
+					pool.idle.remove(result.key);
+				}
+				pool.lru.remove(result);
+				pool.bytes -= result.key.bytes();
+				mHitCount++;
+			} else {
+				mMissCount++;
+			}
+			if (DEBUG) Log.v(TAG, "obtain:" + width + "x" + height + ",hit=" + (result != null));
+			return result;
+		}
+	}
+
+	/**
+	 * 使い終わったリソースを現在のEGLコンテキストのプールへ返却する
+	 * 未使用リソースの合計サイズが上限を超えれば最も長く使われていないものから破棄する
+	 * @param target テクスチャターゲット
+	 * @param width テクスチャの幅
+	 * @param height テクスチャの高さ
+	 * @param format テクスチャの内部フォーマット
+	 * @param flags FLAG_FRAMEBUFFER, FLAG_DEPTHの組み合わせ
+	 * @param filter テクスチャの補間方法
+	 * @param texId
+	 * @param frameBuffer 無ければGL_NO_BUFFER
+	 * @param depthBuffer 無ければGL_NO_BUFFER
+	 * @return プールしたときはtrue, EGLコンテキストが無いとき・上限を超えるときはプールせずにfalseを返すので
+	 * 		呼び出し元で破棄すること
+	 */
+	public boolean recycle(final int target, final int width, final int height,
+		final int format, final int flags, final int filter,
+		final int texId, final int frameBuffer, final int depthBuffer) {
+
+		final Key key = new Key(target, width, height, format, flags, filter);
+		synchronized (mSync) {
+			final Object context = mBackend.getCurrentContext();
+			if ((context == null) || (key.bytes() > mBudget)) {
+				return false;
+			}
+			ContextPool pool = mPools.get(context);
+			if (pool != null) {
+				// 新しいリソースが入るように古いものから破棄する
+				// 全て破棄したときはプールも削除されるので取得し直す
+				trimLocked(context, pool, mBudget - key.bytes());
+				pool = mPools.get(context);
+			}
+			if (pool == null) {
+				pool = new ContextPool();
+				mPools.put(context, pool);
+			}
+			ArrayDeque<Resource> resources = pool.idle.get(key);
+			if (resources == null) {
+				resources = new ArrayDeque<>();
+				pool.idle.put(key, resources);
+			}
+			final Resource resource = new Resource(key, texId, frameBuffer, depthBuffer);
+			resources.addLast(resource);
+			pool.lru.put(resource, Boolean.TRUE);
+			pool.bytes += key.bytes();
+			if (DEBUG) Log.v(TAG, "recycle:" + width + "x" + height + ",bytes=" + pool.bytes);
+			return true;
+		}
+	}
+
+	/**
+	 * 現在のEGLコンテキストのプール中の未使用リソースを全て破棄する
+	 */
+	public void trim() {
+		synchronized (mSync) {
+			final Object context = mBackend.getCurrentContext();
+			final ContextPool pool = context != null ? mPools.get(context) : null;
+			if (pool != null) {
+				trimLocked(context, pool, 0);
+			}
+		}
+	}
+
+	/**
+	 * EGLコンテキストを破棄するときに呼び出してそのEGLコンテキストのプールを削除する
+	 * リソースはEGLコンテキストと一緒に破棄されるのでglDeleteXXXは呼ばない
+	 * EGLBaseで生成したEGLコンテキストは破棄時にEGLContextTokensから呼び出される
+	 * @param context Backend#getCurrentContextが返すオブジェクト(EGLContextTokensのトークン)
+	 */
+	public void removeContext(@Nullable final Object context) {
+		if (context == null) return;
+		synchronized (mSync) {
+			final ContextPool pool = mPools.remove(context);
+			if (DEBUG && (pool != null)) Log.v(TAG, "removeContext:num=" + pool.lru.size());
+		}
+	}
+
+	/**
+	 * プールから再利用できた回数を取得
+	 * @return
+	 */
+	public long getHitCount() {
+		synchronized (mSync) {
+			return mHitCount;
+		}
+	}
+
+	/**
+	 * プールに無くて呼び出し元で生成した回数を取得
+	 * @return
+	 */
+	public long getMissCount() {
+		synchronized (mSync) {
+			return mMissCount;
+		}
+	}
+
+	/**
+	 * 上限を超えたために破棄した回数を取得
+	 * @return
+	 */
+	public long getEvictedCount() {
+		synchronized (mSync) {
+			return mEvictedCount;
+		}
+	}
+
+	/**
+	 * 全てのEGLコンテキストのプール中の未使用リソースの合計サイズ[バイト]を取得
+	 * @return
+	 */
+	public long getBytesHeld() {
+		synchronized (mSync) {
+			long result = 0;
+			for (final ContextPool pool: mPools.values()) {
+				result += pool.bytes;
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * 全てのEGLコンテキストのプール中の未使用リソースの数を取得
+	 * @return
+	 */
+	public int getPooledCount() {
+		synchronized (mSync) {
+			int result = 0;
+			for (final ContextPool pool: mPools.values()) {
+				result += pool.lru.size();
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * 未使用リソースの合計サイズが指定値以下になるまで最も長く使われていないものから破棄する
+	 * mSyncをロックした状態で呼び出すこと
+	 * @param context
+	 * @param pool
+	 * @param maxBytes
+	 */
+	private void trimLocked(@NonNull final Object context,
+		@NonNull final ContextPool pool, final long maxBytes) {
+
+		final Iterator<Resource> it = pool.lru.keySet().iterator();
+		while ((pool.bytes > maxBytes) && it.hasNext()) {
+			final Resource resource = it.next();
+			it.remove();
+			final ArrayDeque<Resource> resources = pool.idle.get(resource.key);
+			if (resources != null) {
+				resources.remove(resource);
+				if (resources.isEmpty()) {
+					pool.idle.remove(resource.key);
+				}
+			}
+			pool.bytes -= resource.key.bytes();
+			mEvictedCount++;
+			delete(resource);
+		}
+		if (pool.lru.isEmpty()) {
+			mPools.remove(context);
+		}
+	}
+
+	private void delete(@NonNull final Resource resource) {
+		if (DEBUG) Log.v(TAG, "delete:tex=" + resource.texId);
+		if (resource.depthBuffer > GLConst.GL_NO_BUFFER) {
+			mBackend.deleteRenderBuffer(resource.depthBuffer);
+		}
+		if (resource.texId > GLConst.GL_NO_TEXTURE) {
+			mBackend.deleteTexture(resource.texId);
+		}
+		if (resource.frameBuffer > GLConst.GL_NO_BUFFER) {
+			mBackend.deleteFrameBuffer(resource.frameBuffer);
+		}
+	}
+
+	/**
+	 * テクスチャの内部フォーマットの1ピクセルあたりのバイト数
+	 * @param format
+	 * @return
+	 */
+	private static int bytesPerPixel(final int format) {
+		switch (format) {
+		case GLES20.GL_ALPHA:
+		case GLES20.GL_LUMINANCE:
+			return 1;
+		case GLES20.GL_LUMINANCE_ALPHA:
+			return 2;
+		case GLES20.GL_RGB:
+			return 3;
+		default:
+			return 4;
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * GL|ESを使うBackend実装
+	 */
+	private static class GLESBackend implements Backend {
+		@NonNull
+		private final int[] mWork = new int[1];
+
+		@Nullable
+		@Override
+		public Object getCurrentContext() {
+			// EGLコンテキストのハンドルは再利用されるので一意なトークンを使う
+			return EGLContextTokens.getCurrentToken();
+		}
+
+		@Override
+		public void deleteTexture(final int texId) {
+			GLUtils.deleteTex(texId);
+		}
+
+		@Override
+		public void deleteFrameBuffer(final int frameBuffer) {
+			mWork[0] = frameBuffer;
+			GLES20.glDeleteFramebuffers(1, mWork, 0);
+		}
+
+		@Override
+		public void deleteRenderBuffer(final int renderBuffer) {
+			mWork[0] = renderBuffer;
+			GLES20.glDeleteRenderbuffers(1, mWork, 0);
+		}
+	}
+}
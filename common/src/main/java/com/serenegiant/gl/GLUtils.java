@@ -293,15 +293,33 @@ public class GLUtils implements GLConst {
 
 		if (DEBUG) Log.v(TAG, "initTex:target=" + texTarget);
 		final int[] tex = new int[1];
-		GLES20.glActiveTexture(texUnit);
 		GLES20.glGenTextures(1, tex, 0);
-		GLES20.glBindTexture(texTarget, tex[0]);
+		setupTex(texTarget, texUnit, tex[0], minFilter, magFilter, wrap);
+		Log.d(TAG, "initTex:texId=" + tex[0]);
+		return tex[0];
+	}
+
+	/**
+	 * 既存のテクスチャをバインドして補間方法とクランプ方法をセットする
+	 * GLTexturePoolから再利用するテクスチャを生成時と同じ設定に戻すとき等に使う
+	 * @param texTarget テクスチャのタイプ, GL_TEXTURE_EXTERNAL_OESかGL_TEXTURE_2D
+	 * @param texUnit テクスチャユニット, GL_TEXTURE0...GL_TEXTURE31
+	 * @param texId
+	 * @param minFilter テクスチャの補間方法を指定, GL_LINEARとかGL_NEAREST
+	 * @param magFilter テクスチャの補間方法を指定, GL_LINEARとかGL_NEAREST
+	 * @param wrap テクスチャのクランプ方法, GL_CLAMP_TO_EDGE等
+	 */
+	public static void setupTex(
+		@TexTarget final int texTarget, @TexUnit final int texUnit, final int texId,
+		@MinMagFilter final int minFilter, @MinMagFilter final int magFilter,
+		@Wrap final int wrap) {
+
+		GLES20.glActiveTexture(texUnit);
+		GLES20.glBindTexture(texTarget, texId);
 		GLES20.glTexParameteri(texTarget, GLES20.GL_TEXTURE_WRAP_S, wrap);
 		GLES20.glTexParameteri(texTarget, GLES20.GL_TEXTURE_WRAP_T, wrap);
 		GLES20.glTexParameteri(texTarget, GLES20.GL_TEXTURE_MIN_FILTER, minFilter);
 		GLES20.glTexParameteri(texTarget, GLES20.GL_TEXTURE_MAG_FILTER, magFilter);
-		Log.d(TAG, "initTex:texId=" + tex[0]);
-		return tex[0];
 	}
 
 	/**
@@ -0,0 +1,635 @@
+package com.serenegiant.gl;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.annotation.SuppressLint;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+import android.util.SparseLongArray;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.WorkerThread;
+
+/**
+ * 複数のピクセルバッファをリングバッファとして使って
+ * glReadPixelsによる読み取りを非同期に行うためのヘルパークラス
+ * GL|ES3ではPBO(GL_PIXEL_PACK_BUFFER)へ読み取りを発行して、
+ * 指定したフレーム数(レイテンシ)後にマップしてコールバックで引き渡すので
+ * 読み取り完了待ちでGLスレッドが止まらない
+ * GLへのアクセスはBackendインターフェース経由で行うので
+ * リングバッファのスケジューリングとバッファの再利用はGLなしでテストできる
+ * GLコンテキストを保持しているスレッド上から呼び出すこと(#releasePixelsを除く)
+ */
+public class PixelReadbackRing {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = PixelReadbackRing.class.getSimpleName();
+
+	/**
+	 * 1ピクセルあたりのバイト数(RGBA8888)
+	 */
+	public static final int PIXEL_BYTES = 4;
+
+	/**
+	 * ピクセルバッファへのGLアクセス用インターフェース
+	 */
+	public interface Backend {
+		/**
+		 * ピクセルバッファを生成する
+		 * @param bytes
+		 * @return ピクセルバッファのハンドル(0以上)
+		 */
+		public int createBuffer(final int bytes);
+
+		/**
+		 * ピクセルバッファを破棄する
+		 * @param handle
+		 */
+		public void deleteBuffer(final int handle);
+
+		/**
+		 * 現在の読み取り用フレームバッファからピクセルバッファへの読み取りを発行する
+		 * @param handle
+		 * @param width
+		 * @param height
+		 */
+		public void readPixels(final int handle, final int width, final int height);
+
+		/**
+		 * 読み取りが完了していてブロッキングせずにマップできるかどうか
+		 * @param handle
+		 * @return
+		 */
+		public boolean isReady(final int handle);
+
+		/**
+		 * ピクセルバッファをマップする, 読み取りが完了していなければ完了までブロックする
+		 * @param handle
+		 * @param bytes
+		 * @return 先頭からbytesバイトを読み取れるByteBuffer
+		 */
+		@NonNull
+		public ByteBuffer map(final int handle, final int bytes);
+
+		/**
+		 * #mapでマップしたピクセルバッファのマップを解除する
+		 * @param handle
+		 */
+		public void unmap(final int handle);
+	}
+
+	/**
+	 * 読み取り結果を受け取るためのコールバックインターフェース
+	 * いずれもGLスレッド上で呼び出される
+	 */
+	public interface Callback {
+		/**
+		 * 読み取ったピクセルデータを受け取ったときの処理
+		 * pixelsはこの呼び出し中だけ有効なので必要なら呼び出し中にコピーすること
+		 * 呼び出し中に#retainPixelsを呼び出したときは#releasePixelsを呼び出すまで有効なので
+		 * 他のスレッドでコピーすることもできる
+		 * @param pixels RGBA8888のピクセルデータ, position=0, limit=width*height*PIXEL_BYTES
+		 * @param width
+		 * @param height
+		 * @param tag #readPixelsで指定したオブジェクト
+		 */
+		@WorkerThread
+		public void onPixelsAvailable(
+			@NonNull final ByteBuffer pixels,
+			final int width, final int height, @Nullable final Object tag);
+
+		/**
+		 * 読み取りを発行したがマップせずに破棄したときの処理(#releaseを呼び出したとき)
+		 * @param tag #readPixelsで指定したオブジェクト
+		 */
+		@WorkerThread
+		public void onPixelsDropped(@Nullable final Object tag);
+	}
+
+	/**
+	 * GL|ESのバージョンに応じたBackendを生成する
+	 * GL|ES3ならPBOを使う非同期読み取り、それ以外はglReadPixelsで同期読み取りする
+	 * @param isGLES3
+	 * @return
+	 */
+	@SuppressLint("NewApi")
+	@NonNull
+	public static Backend createBackend(final boolean isGLES3) {
+		if (isGLES3 && (GLUtils.getSupportedGLVersion() > 2)) {
+			return new PboBackend();
+		} else {
+			return new ReadPixelsBackend();
+		}
+	}
+
+	/**
+	 * リングバッファの要素
+	 */
+	private static class Slot {
+		private final int index;
+		private int handle = -1;
+		private int capacity;
+		private int width;
+		private int height;
+		private long frame;
+		@Nullable
+		private Object tag;
+		/**
+		 * #retainPixelsでマップしたまま保持しているかどうか
+		 */
+		private boolean held;
+		/**
+		 * 保持中に#releasePixelsが呼び出されたかどうか
+		 */
+		private boolean released;
+
+		private Slot(final int index) {
+			this.index = index;
+		}
+	}
+
+	@NonNull
+	private final Backend mBackend;
+	@NonNull
+	private final Callback mCallback;
+	@NonNull
+	private final Slot[] mSlots;
+	private final int mLatency;
+	/**
+	 * Slot#held/Slot#releasedの排他制御と解放待ち用
+	 */
+	@NonNull
+	private final Object mHoldSync = new Object();
+	/**
+	 * Callback#onPixelsAvailableで引き渡し中のスロット, GLスレッド上でのみアクセスする
+	 */
+	@Nullable
+	private Slot mDelivering;
+	/**
+	 * 読み取り待ちの最も古いスロットのインデックス
+	 */
+	private int mHead;
+	/**
+	 * 読み取り待ちのスロット数
+	 */
+	private int mPending;
+	/**
+	 * #readPixelsの呼び出し回数
+	 */
+	private long mFrame;
+	private long mIssuedCount;
+	private long mDeliveredCount;
+	private long mStallCount;
+	private long mAllocatedCount;
+
+	/**
+	 * コンストラクタ
+	 * @param backend
+	 * @param numBuffers ピクセルバッファの数, 1以上
+	 * @param latency 読み取りを発行してから何フレーム後にマップするか, 0以上numBuffers未満
+	 * @param callback
+	 * @throws IllegalArgumentException
+	 */
+	public PixelReadbackRing(
+		@NonNull final Backend backend,
+		final int numBuffers, final int latency,
+		@NonNull final Callback callback) throws IllegalArgumentException {
+
+		if ((numBuffers < 1) || (latency < 0) || (latency >= numBuffers)) {
+			throw new IllegalArgumentException(
+				"invalid numBuffers/latency," + numBuffers + "/" + latency);
+		}
+		mBackend = backend;
+		mCallback = callback;
+		mLatency = latency;
+		mSlots = new Slot[numBuffers];
+		for (int i = 0; i < numBuffers; i++) {
+			mSlots[i] = new Slot(i);
+		}
+	}
+
+	/**
+	 * 関連するリソースを破棄する
+	 * 読み取り待ちのデータはマップせずに破棄してCallback#onPixelsDroppedを呼び出す
+	 * #retainPixelsで保持中のデータは#releasePixelsが呼び出されるまで待ってからマップを解除する
+	 * GLコンテキストを保持しているスレッド上で呼び出すこと
+	 */
+	@WorkerThread
+	public void release() {
+		if (DEBUG) Log.v(TAG, "release:");
+		while (mPending > 0) {
+			final Slot slot = mSlots[mHead];
+			final Object tag = slot.tag;
+			slot.tag = null;
+			mHead = (mHead + 1) % mSlots.length;
+			mPending--;
+			mCallback.onPixelsDropped(tag);
+		}
+		for (final Slot slot: mSlots) {
+			reclaim(slot);
+			if (slot.handle >= 0) {
+				mBackend.deleteBuffer(slot.handle);
+				slot.handle = -1;
+				slot.capacity = 0;
+			}
+		}
+	}
+
+	/**
+	 * 現在の読み取り用フレームバッファからの読み取りを発行する
+	 * レイテンシ分のフレームが経過して読み取りが完了しているデータがあれば先にコールバックで引き渡す
+	 * 空いているピクセルバッファが無いときは最も古いデータを(完了を待って)引き渡してから再利用する
+	 * 再利用するピクセルバッファを#retainPixelsで保持中なら#releasePixelsが呼び出されるまで待つ
+	 * @param width
+	 * @param height
+	 * @param tag 読み取り結果と一緒にコールバックへ引き渡すオブジェクト
+	 */
+	@WorkerThread
+	public void readPixels(final int width, final int height, @Nullable final Object tag) {
+		mFrame++;
+		poll();
+		if (mPending >= mSlots.length) {
+			// 空いているピクセルバッファが無いので最も古いものを完了待ちして引き渡す
+			if (DEBUG) Log.v(TAG, "readPixels:stall");
+			mStallCount++;
+			deliverHead();
+		}
+		final Slot slot = mSlots[(mHead + mPending) % mSlots.length];
+		if (reclaim(slot)) {
+			mStallCount++;
+		}
+		final int bytes = width * height * PIXEL_BYTES;
+		if ((slot.handle < 0) || (slot.capacity < bytes)) {
+			// 映像サイズが大きくなったときだけ再生成する
+			if (slot.handle >= 0) {
+				mBackend.deleteBuffer(slot.handle);
+			}
+			slot.handle = mBackend.createBuffer(bytes);
+			slot.capacity = bytes;
+			mAllocatedCount++;
+		}
+		slot.width = width;
+		slot.height = height;
+		slot.frame = mFrame;
+		slot.tag = tag;
+		mBackend.readPixels(slot.handle, width, height);
+		mPending++;
+		mIssuedCount++;
+		if (mLatency == 0) {
+			poll();
+		}
+	}
+
+	/**
+	 * レイテンシ分のフレームが経過して読み取りが完了しているデータを古い順にコールバックで引き渡す
+	 * @return 引き渡したデータの数
+	 */
+	@WorkerThread
+	public int poll() {
+		int result = 0;
+		while (mPending > 0) {
+			final Slot slot = mSlots[mHead];
+			if ((mFrame - slot.frame < mLatency) || !mBackend.isReady(slot.handle)) {
+				break;
+			}
+			deliverHead();
+			result++;
+		}
+		return result;
+	}
+
+	/**
+	 * 読み取り待ちのデータを全て(完了を待って)コールバックで引き渡す
+	 * 映像の入力が止まるときなどに呼び出す
+	 * @return 引き渡したデータの数
+	 */
+	@WorkerThread
+	public int flush() {
+		final int result = mPending;
+		while (mPending > 0) {
+			deliverHead();
+		}
+		return result;
+	}
+
+	/**
+	 * Callback#onPixelsAvailableで引き渡したピクセルデータを呼び出し終了後も保持する
+	 * Callback#onPixelsAvailableの呼び出し中にGLスレッド上から呼び出すこと
+	 * 保持中はピクセルバッファをマップしたままにするので、
+	 * 使い終わったら返り値を引数として#releasePixelsを呼び出すこと
+	 * @return #releasePixelsへ引き渡す値
+	 * @throws IllegalStateException Callback#onPixelsAvailableの呼び出し中でないとき
+	 */
+	@WorkerThread
+	public int retainPixels() throws IllegalStateException {
+		final Slot slot = mDelivering;
+		if (slot == null) {
+			throw new IllegalStateException("retainPixels is only valid in Callback#onPixelsAvailable");
+		}
+		synchronized (mHoldSync) {
+			slot.held = true;
+			slot.released = false;
+		}
+		return slot.index;
+	}
+
+	/**
+	 * #retainPixelsで保持したピクセルデータを使い終わったことを通知する
+	 * マップの解除はGLスレッド上で次にそのピクセルバッファを使うときに行う
+	 * 任意のスレッドから呼び出すことができる
+	 * @param token #retainPixelsの返り値
+	 * @throws IllegalArgumentException
+	 */
+	public void releasePixels(final int token) throws IllegalArgumentException {
+		if ((token < 0) || (token >= mSlots.length)) {
+			throw new IllegalArgumentException("invalid token," + token);
+		}
+		synchronized (mHoldSync) {
+			final Slot slot = mSlots[token];
+			if (slot.held) {
+				slot.released = true;
+				mHoldSync.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * #retainPixelsで保持中のピクセルデータの数を取得
+	 * @return
+	 */
+	public int getRetainedCount() {
+		int result = 0;
+		synchronized (mHoldSync) {
+			for (final Slot slot: mSlots) {
+				if (slot.held && !slot.released) {
+					result++;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 読み取り待ちのデータ数を取得
+	 * @return
+	 */
+	public int getPendingCount() {
+		return mPending;
+	}
+
+	/**
+	 * 読み取りを発行した回数を取得
+	 * @return
+	 */
+	public long getIssuedCount() {
+		return mIssuedCount;
+	}
+
+	/**
+	 * コールバックで引き渡した回数を取得
+	 * @return
+	 */
+	public long getDeliveredCount() {
+		return mDeliveredCount;
+	}
+
+	/**
+	 * 空いているピクセルバッファが無いために完了待ちした回数を取得
+	 * @return
+	 */
+	public long getStallCount() {
+		return mStallCount;
+	}
+
+	/**
+	 * ピクセルバッファを生成した回数を取得
+	 * @return
+	 */
+	public long getAllocatedCount() {
+		return mAllocatedCount;
+	}
+
+	/**
+	 * 最も古い読み取り待ちのデータをマップしてコールバックで引き渡す
+	 */
+	private void deliverHead() {
+		final Slot slot = mSlots[mHead];
+		final Object tag = slot.tag;
+		slot.tag = null;
+		mHead = (mHead + 1) % mSlots.length;
+		mPending--;
+		final int bytes = slot.width * slot.height * PIXEL_BYTES;
+		final ByteBuffer pixels;
+		try {
+			pixels = mBackend.map(slot.handle, bytes);
+		} catch (final RuntimeException e) {
+			mCallback.onPixelsDropped(tag);
+			throw e;
+		}
+		try {
+			pixels.clear();
+			pixels.limit(bytes);
+			mDeliveredCount++;
+			mDelivering = slot;
+			mCallback.onPixelsAvailable(pixels, slot.width, slot.height, tag);
+		} finally {
+			mDelivering = null;
+			final boolean held;
+			synchronized (mHoldSync) {
+				held = slot.held;
+			}
+			if (!held) {
+				mBackend.unmap(slot.handle);
+			}
+		}
+	}
+
+	/**
+	 * #retainPixelsで保持中のスロットなら#releasePixelsが呼び出されるまで待ってからマップを解除する
+	 * @param slot
+	 * @return true: #releasePixelsが呼び出されるのを待った
+	 */
+	private boolean reclaim(@NonNull final Slot slot) {
+		boolean waited = false;
+		boolean interrupted = false;
+		synchronized (mHoldSync) {
+			if (!slot.held) {
+				return false;
+			}
+			// マップしたまま他のスレッドがアクセスしている可能性があるので
+			// 割り込まれても#releasePixelsが呼び出されるまでは待つ
+			while (!slot.released) {
+				waited = true;
+				try {
+					mHoldSync.wait();
+				} catch (final InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			slot.held = slot.released = false;
+		}
+		mBackend.unmap(slot.handle);
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return waited;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * GL|ES3のPBO(GL_PIXEL_PACK_BUFFER)を使って非同期に読み取るBackend実装
+	 * 読み取り完了はフェンスで確認する
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+	public static class PboBackend implements Backend {
+		private final int[] mWork = new int[1];
+		/**
+		 * ハンドル(PBOのバッファ名)毎のフェンス
+		 */
+		@NonNull
+		private final SparseLongArray mFences = new SparseLongArray();
+
+		@Override
+		public int createBuffer(final int bytes) {
+			GLES30.glGenBuffers(1, mWork, 0);
+			final int handle = mWork[0];
+			GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, handle);
+			GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, bytes, null, GLES30.GL_STREAM_READ);
+			GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+			if (DEBUG) GLUtils.checkGlError("PboBackend#createBuffer");
+			return handle;
+		}
+
+		@Override
+		public void deleteBuffer(final int handle) {
+			deleteFence(handle);
+			mWork[0] = handle;
+			GLES30.glDeleteBuffers(1, mWork, 0);
+		}
+
+		@Override
+		public void readPixels(final int handle, final int width, final int height) {
+			GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, handle);
+			// PBOをバインドしているのでオフセット0への読み取りになり、すぐに戻る
+			GLES30.glReadPixels(0, 0, width, height,
+				GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, 0);
+			GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+			deleteFence(handle);
+			mFences.put(handle, GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0));
+			GLES30.glFlush();
+			if (DEBUG) GLUtils.checkGlError("PboBackend#readPixels");
+		}
+
+		@Override
+		public boolean isReady(final int handle) {
+			final long fence = mFences.get(handle, 0);
+			return (fence == 0)
+				|| (GLES30.glClientWaitSync(fence, 0, 0) != GLES30.GL_TIMEOUT_EXPIRED);
+		}
+
+		@NonNull
+		@Override
+		public ByteBuffer map(final int handle, final int bytes) {
+			deleteFence(handle);
+			GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, handle);
+			final ByteBuffer result = (ByteBuffer)GLES30.glMapBufferRange(
+				GLES30.GL_PIXEL_PACK_BUFFER, 0, bytes, GLES30.GL_MAP_READ_BIT);
+			if (result == null) {
+				GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+				throw new IllegalStateException("failed to map pixel pack buffer");
+			}
+			return result.order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		@Override
+		public void unmap(final int handle) {
+			GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, handle);
+			GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+			GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+		}
+
+		private void deleteFence(final int handle) {
+			final long fence = mFences.get(handle, 0);
+			if (fence != 0) {
+				GLES30.glDeleteSync(fence);
+				mFences.delete(handle);
+			}
+		}
+	}
+
+	/**
+	 * PBOが使えないときにglReadPixelsで同期読み取りするBackend実装
+	 * 読み取り自体は同期だがBitmapへの変換等はコールバック側で別スレッドへ移せる
+	 */
+	public static class ReadPixelsBackend implements Backend {
+		@NonNull
+		private ByteBuffer[] mBuffers = new ByteBuffer[0];
+
+		@Override
+		public int createBuffer(final int bytes) {
+			int handle = 0;
+			while ((handle < mBuffers.length) && (mBuffers[handle] != null)) {
+				handle++;
+			}
+			if (handle == mBuffers.length) {
+				final ByteBuffer[] buffers = new ByteBuffer[handle + 1];
+				System.arraycopy(mBuffers, 0, buffers, 0, handle);
+				mBuffers = buffers;
+			}
+			mBuffers[handle] = ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+			return handle;
+		}
+
+		@Override
+		public void deleteBuffer(final int handle) {
+			mBuffers[handle] = null;
+		}
+
+		@Override
+		public void readPixels(final int handle, final int width, final int height) {
+			final ByteBuffer buffer = mBuffers[handle];
+			buffer.clear();
+			GLES20.glReadPixels(0, 0, width, height,
+				GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buffer);
+			if (DEBUG) GLUtils.checkGlError("ReadPixelsBackend#readPixels");
+		}
+
+		@Override
+		public boolean isReady(final int handle) {
+			return true;
+		}
+
+		@NonNull
+		@Override
+		public ByteBuffer map(final int handle, final int bytes) {
+			return mBuffers[handle];
+		}
+
+		@Override
+		public void unmap(final int handle) {
+			// do nothing
+		}
+	}
+}
@@ -0,0 +1,581 @@
+package com.serenegiant.gl;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import com.serenegiant.egl.EGLContextTokens;
+import com.serenegiant.system.BuildCheck;
+import com.serenegiant.utils.HashUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+/**
+ * シェーダープログラムをEGLコンテキスト毎に頂点シェーダー・フラグメントシェーダーの
+ * ソースのハッシュをキーとしてキャッシュするためのクラス
+ * 同じソースのシェーダープログラムは参照カウンタ付きで共有するので
+ * 複数のGLDrawer2DやMediaEffectDrawerを生成してもコンパイル・リンクは1回だけになる
+ * GL|ES3でキャッシュディレクトリを指定したときはプログラムバイナリを保存して
+ * 次回起動時にはコンパイル・リンクせずにプログラムバイナリから読み込む
+ * EGLコンテキストのハンドルは破棄後に再利用されることがあり、シェーダープログラムの名前も
+ * EGLコンテキスト毎に1から割り当てられるのでハンドルやglIsProgramでは古いシェーダープログラムかどうかを
+ * 判別できない。そのためEGLコンテキスト毎のキャッシュはEGLContextTokensのトークンをキーにして、
+ * EGLコンテキストの破棄時にそのトークンのキャッシュを削除する
+ * GLへのアクセスはBackendインターフェース経由で行うので
+ * キャッシュと参照カウンタの処理はGLなしでテストできる
+ * GLコンテキストを保持しているスレッド上から呼び出すこと
+ */
+public class ShaderProgramCache {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = ShaderProgramCache.class.getSimpleName();
+
+	/**
+	 * プログラムバイナリのファイルの拡張子
+	 */
+	private static final String BINARY_EXT = ".bin";
+	/**
+	 * プログラムバイナリのファイルの先頭に書き込む識別子
+	 */
+	private static final int BINARY_MAGIC = 0x53504342;	// "SPCB"
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * シェーダープログラムへのGLアクセス用インターフェース
+	 */
+	public interface Backend {
+		/**
+		 * 現在のEGLコンテキストを識別するためのオブジェクトを取得する
+		 * 破棄したEGLコンテキストと同じものを後から生成したEGLコンテキストで返してはいけない
+		 * @return EGLコンテキストが無いか識別できなければnull
+		 */
+		@Nullable
+		public Object getCurrentContext();
+		/**
+		 * シェーダーをコンパイル・リンクする
+		 * @param vs
+		 * @param fs
+		 * @return シェーダープログラム, 失敗したときは0
+		 */
+		public int compile(@NonNull final String vs, @NonNull final String fs);
+		/**
+		 * シェーダープログラムを破棄する
+		 * @param program
+		 */
+		public void deleteProgram(final int program);
+		/**
+		 * プログラムバイナリの読み書きができるかどうか
+		 * @return
+		 */
+		public boolean isBinarySupported();
+		/**
+		 * プログラムバイナリを保存したときとGLドライバーが同じかどうかを判別するための文字列
+		 * @return
+		 */
+		@NonNull
+		public String getDriverId();
+		/**
+		 * プログラムバイナリを取得する
+		 * @param program
+		 * @param format プログラムバイナリのフォーマットを受け取るための配列
+		 * @return 取得できなければnull
+		 */
+		@Nullable
+		public byte[] getProgramBinary(final int program, @NonNull final int[] format);
+		/**
+		 * プログラムバイナリからシェーダープログラムを生成する
+		 * @param format
+		 * @param binary
+		 * @return シェーダープログラム, 失敗したときは0
+		 */
+		public int loadProgramBinary(final int format, @NonNull final byte[] binary);
+	}
+
+	/**
+	 * キャッシュしているシェーダープログラム
+	 */
+	public static class Program {
+		@Nullable
+		private final Object mContext;
+		@NonNull
+		private final String mKey;
+		private final int mProgram;
+		private int mRefCount;
+		/**
+		 * 最後にこのシェーダープログラムを使ったオブジェクト
+		 */
+		@Nullable
+		private Object mOwner;
+		/**
+		 * EGLコンテキストが破棄されたときにfalseになる
+		 */
+		private boolean mValid = true;
+
+		private Program(@Nullable final Object context,
+			@NonNull final String key, final int program) {
+
+			mContext = context;
+			mKey = key;
+			mProgram = program;
+			mRefCount = 1;
+		}
+
+		/**
+		 * シェーダープログラムを取得
+		 * @return
+		 */
+		public int getProgram() {
+			return mProgram;
+		}
+
+		/**
+		 * このシェーダープログラムを使うオブジェクトをセットする
+		 * シェーダープログラムを共有しているときにユニフォーム変数の値が
+		 * 他のオブジェクトによって変更されている可能性があるかどうかの判定用
+		 * @param owner
+		 * @return 前回と違うオブジェクトならtrue
+		 */
+		public boolean setOwner(@NonNull final Object owner) {
+			if (mOwner != owner) {
+				mOwner = owner;
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * 参照カウンタを取得
+		 * @return
+		 */
+		public int getRefCount() {
+			return mRefCount;
+		}
+	}
+
+	private static ShaderProgramCache sInstance;
+
+	/**
+	 * GL|ESを使うシングルトンを取得
+	 * @return
+	 */
+	@NonNull
+	public static synchronized ShaderProgramCache getInstance() {
+		if (sInstance == null) {
+			sInstance = new ShaderProgramCache(new GLESBackend());
+		}
+		return sInstance;
+	}
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final Backend mBackend;
+	/**
+	 * EGLコンテキスト毎のキャッシュ
+	 */
+	@NonNull
+	private final Map<Object, Map<String, Program>> mCache = new HashMap<>();
+	/**
+	 * プログラムバイナリを保存するディレクトリ
+	 */
+	@Nullable
+	private File mBinaryDir;
+	private int mHitCount;
+	private int mCompileCount;
+	private int mBinaryLoadCount;
+
+	/**
+	 * コンストラクタ
+	 * 通常は#getInstanceを使うこと
+	 * @param backend
+	 */
+	public ShaderProgramCache(@NonNull final Backend backend) {
+		mBackend = backend;
+	}
+
+	/**
+	 * プログラムバイナリを保存するディレクトリをセットする
+	 * nullならプログラムバイナリを保存しない
+	 * @param dir
+	 */
+	public void setBinaryCacheDir(@Nullable final File dir) {
+		synchronized (mSync) {
+			if ((dir != null) && !dir.isDirectory() && !dir.mkdirs()) {
+				Log.w(TAG, "setBinaryCacheDir:failed to create " + dir);
+				mBinaryDir = null;
+			} else {
+				mBinaryDir = dir;
+			}
+		}
+	}
+
+	/**
+	 * 現在のEGLコンテキストでシェーダープログラムを取得する
+	 * キャッシュにあれば参照カウンタを増やしてそれを返し、
+	 * 無ければプログラムバイナリから読み込むかコンパイル・リンクする
+	 * 使い終わったら#releaseを呼ぶこと
+	 * @param vs 頂点シェーダーのソース
+	 * @param fs フラグメントシェーダーのソース
+	 * @return 生成できなかったときはnull
+	 */
+	@Nullable
+	public Program acquire(@NonNull final String vs, @NonNull final String fs) {
+		final String key = makeKey(vs, fs);
+		synchronized (mSync) {
+			final Object context = mBackend.getCurrentContext();
+			if (context == null) {
+				// EGLコンテキストが無いか識別できないときはキャッシュできないのでそのままコンパイルする
+				final int program = mBackend.compile(vs, fs);
+				mCompileCount++;
+				return program != 0 ? new Program(null, key, program) : null;
+			}
+			Map<String, Program> programs = mCache.get(context);
+			Program result = programs != null ? programs.get(key) : null;
+			if (result != null) {
+				result.mRefCount++;
+				mHitCount++;
+				return result;
+			}
+			int program = loadBinaryLocked(key);
+			if (program == 0) {
+				program = mBackend.compile(vs, fs);
+				mCompileCount++;
+				if (program != 0) {
+					saveBinaryLocked(key, program);
+				}
+			}
+			if (program != 0) {
+				if (programs == null) {
+					programs = new HashMap<>();
+					mCache.put(context, programs);
+				}
+				result = new Program(context, key, program);
+				programs.put(key, result);
+			}
+			if (DEBUG) Log.v(TAG, "acquire:program=" + program + ",key=" + key);
+			return result;
+		}
+	}
+
+	/**
+	 * #acquireで取得したシェーダープログラムを返却する
+	 * 参照カウンタが0になればシェーダープログラムを破棄する
+	 * EGLコンテキストが破棄済みのときは何もしない
+	 * @param program
+	 */
+	public void release(@NonNull final Program program) {
+		synchronized (mSync) {
+			if (!program.mValid || (program.mRefCount <= 0)) return;
+			if (--program.mRefCount == 0) {
+				if (DEBUG) Log.v(TAG, "release:delete program=" + program.mProgram);
+				final Map<String, Program> programs
+					= program.mContext != null ? mCache.get(program.mContext) : null;
+				if ((programs != null) && (programs.get(program.mKey) == program)) {
+					programs.remove(program.mKey);
+					if (programs.isEmpty()) {
+						mCache.remove(program.mContext);
+					}
+				}
+				program.mValid = false;
+				mBackend.deleteProgram(program.mProgram);
+			}
+		}
+	}
+
+	/**
+	 * EGLコンテキストを破棄するときに呼び出してそのEGLコンテキストのキャッシュを削除する
+	 * シェーダープログラムはEGLコンテキストと一緒に破棄されるのでglDeleteProgramは呼ばない
+	 * EGLBaseで生成したEGLコンテキストは破棄時にEGLContextTokensから呼び出される
+	 * @param context Backend#getCurrentContextが返すオブジェクト(EGLContextTokensのトークン)
+	 */
+	public void removeContext(@Nullable final Object context) {
+		if (context == null) return;
+		synchronized (mSync) {
+			final Map<String, Program> programs = mCache.remove(context);
+			if (programs != null) {
+				if (DEBUG) Log.v(TAG, "removeContext:num=" + programs.size());
+				for (final Program program: programs.values()) {
+					program.mValid = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * キャッシュ済みのシェーダープログラムの数を取得
+	 * @return
+	 */
+	public int getCachedCount() {
+		synchronized (mSync) {
+			int result = 0;
+			for (final Map<String, Program> programs: mCache.values()) {
+				result += programs.size();
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * キャッシュにあったのでコンパイル・リンクしなかった回数を取得
+	 * @return
+	 */
+	public int getHitCount() {
+		synchronized (mSync) {
+			return mHitCount;
+		}
+	}
+
+	/**
+	 * コンパイル・リンクした回数を取得
+	 * @return
+	 */
+	public int getCompileCount() {
+		synchronized (mSync) {
+			return mCompileCount;
+		}
+	}
+
+	/**
+	 * プログラムバイナリから読み込んだ回数を取得
+	 * @return
+	 */
+	public int getBinaryLoadCount() {
+		synchronized (mSync) {
+			return mBinaryLoadCount;
+		}
+	}
+
+	/**
+	 * 頂点シェーダー・フラグメントシェーダーのソースからキャッシュのキーを生成する
+	 * @param vs
+	 * @param fs
+	 * @return
+	 */
+	@NonNull
+	public static String makeKey(@NonNull final String vs, @NonNull final String fs) {
+		// ソースの区切りが違うだけの組み合わせが同じキーにならないように長さも含める
+		final String src = vs.length() + ":" + vs + "\u0000" + fs;
+		final String result = HashUtils.getDigestString(
+			HashUtils.HASH_ALGORITHM_SHA256, src.getBytes(UTF8));
+		return result != null ? result : Integer.toHexString(src.hashCode()) + "_" + src.length();
+	}
+
+	/**
+	 * プログラムバイナリのファイル名を生成する
+	 * GLドライバーが変わるとプログラムバイナリを使えないのでドライバーの識別子も含めてハッシュする
+	 * @param driverId
+	 * @param key
+	 * @return
+	 */
+	@NonNull
+	public static String makeBinaryName(@NonNull final String driverId, @NonNull final String key) {
+		return makeKey(driverId, key) + BINARY_EXT;
+	}
+
+	/**
+	 * mSyncをロックした状態で呼び出すこと
+	 * @param key
+	 * @return プログラムバイナリから読み込んだシェーダープログラム, 読み込めなければ0
+	 */
+	private int loadBinaryLocked(@NonNull final String key) {
+		final File file = getBinaryFileLocked(key);
+		if ((file == null) || !file.isFile()) return 0;
+		int format = 0;
+		byte[] binary = null;
+		try {
+			final DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() == BINARY_MAGIC) {
+					format = in.readInt();
+					final int length = in.readInt();
+					if ((length > 0) && (length <= file.length())) {
+						binary = new byte[length];
+						in.readFully(binary);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (final IOException e) {
+			if (DEBUG) Log.w(TAG, e);
+			binary = null;
+		}
+		final int program = binary != null ? mBackend.loadProgramBinary(format, binary) : 0;
+		if (program != 0) {
+			mBinaryLoadCount++;
+		} else {
+			// 壊れているか使えないプログラムバイナリなので削除して作り直す
+			if (DEBUG) Log.v(TAG, "loadBinaryLocked:failed, delete " + file);
+			//noinspection ResultOfMethodCallIgnored
+			file.delete();
+		}
+		return program;
+	}
+
+	/**
+	 * mSyncをロックした状態で呼び出すこと
+	 * @param key
+	 * @param program
+	 */
+	private void saveBinaryLocked(@NonNull final String key, final int program) {
+		final File file = getBinaryFileLocked(key);
+		if (file == null) return;
+		final int[] format = new int[1];
+		final byte[] binary = mBackend.getProgramBinary(program, format);
+		if ((binary == null) || (binary.length == 0)) return;
+		// 書き込み途中のファイルを読み込まないように一時ファイルへ書き込んでからリネームする
+		final File tmp = new File(file.getPath() + ".tmp");
+		try {
+			final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(BINARY_MAGIC);
+				out.writeInt(format[0]);
+				out.writeInt(binary.length);
+				out.write(binary);
+				out.flush();
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) {
+				Log.w(TAG, "saveBinaryLocked:failed to rename " + tmp);
+				//noinspection ResultOfMethodCallIgnored
+				tmp.delete();
+			}
+		} catch (final IOException e) {
+			Log.w(TAG, e);
+			//noinspection ResultOfMethodCallIgnored
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * mSyncをロックした状態で呼び出すこと
+	 * @param key
+	 * @return プログラムバイナリを保存しないときはnull
+	 */
+	@Nullable
+	private File getBinaryFileLocked(@NonNull final String key) {
+		if ((mBinaryDir == null) || !mBackend.isBinarySupported()) return null;
+		return new File(mBinaryDir, makeBinaryName(mBackend.getDriverId(), key));
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * GL|ESを使うBackend実装
+	 */
+	private static class GLESBackend implements Backend {
+		@NonNull
+		private final int[] mWork = new int[1];
+		@Nullable
+		private String mDriverId;
+
+		@Nullable
+		@Override
+		public Object getCurrentContext() {
+			// EGLコンテキストのハンドルは再利用されるので一意なトークンを使う
+			return EGLContextTokens.getCurrentToken();
+		}
+
+		@Override
+		public int compile(@NonNull final String vs, @NonNull final String fs) {
+			return GLUtils.loadShader(vs, fs);
+		}
+
+		@Override
+		public void deleteProgram(final int program) {
+			GLES20.glDeleteProgram(program);
+		}
+
+		@Override
+		public boolean isBinarySupported() {
+			if (BuildCheck.isAPI18() && (GLUtils.getSupportedGLVersion() >= 3)) {
+				GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, mWork, 0);
+				return mWork[0] > 0;
+			}
+			return false;
+		}
+
+		@NonNull
+		@Override
+		public String getDriverId() {
+			if (mDriverId == null) {
+				mDriverId = GLES20.glGetString(GLES20.GL_VENDOR)
+					+ "/" + GLES20.glGetString(GLES20.GL_RENDERER)
+					+ "/" + GLES20.glGetString(GLES20.GL_VERSION)
+					+ "/" + Build.FINGERPRINT;
+			}
+			return mDriverId;
+		}
+
+		@RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+		@Nullable
+		@Override
+		public byte[] getProgramBinary(final int program, @NonNull final int[] format) {
+			GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, mWork, 0);
+			final int length = mWork[0];
+			if (length <= 0) return null;
+			final ByteBuffer buf = ByteBuffer.allocateDirect(length)
+				.order(ByteOrder.nativeOrder());
+			GLES30.glGetProgramBinary(program, length, mWork, 0, format, 0, buf);
+			if ((GLES20.glGetError() != GLES20.GL_NO_ERROR) || (mWork[0] <= 0)) {
+				return null;
+			}
+			final byte[] result = new byte[mWork[0]];
+			buf.get(result);
+			return result;
+		}
+
+		@RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+		@Override
+		public int loadProgramBinary(final int format, @NonNull final byte[] binary) {
+			final int program = GLES20.glCreateProgram();
+			if (program == 0) return 0;
+			final ByteBuffer buf = ByteBuffer.allocateDirect(binary.length)
+				.order(ByteOrder.nativeOrder());
+			buf.put(binary).flip();
+			GLES30.glProgramBinary(program, format, buf, binary.length);
+			GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, mWork, 0);
+			if ((GLES20.glGetError() != GLES20.GL_NO_ERROR) || (mWork[0] != GLES20.GL_TRUE)) {
+				GLES20.glDeleteProgram(program);
+				return 0;
+			}
+			return program;
+		}
+	}
+}
@@ -26,22 +26,64 @@ import com.serenegiant.gl.GLDrawer2D;
 import com.serenegiant.gl.GLSurface;
 import com.serenegiant.gl.GLTexture;
 import com.serenegiant.gl.GLUtils;
-import com.serenegiant.utils.Pool;
-import com.serenegiant.utils.ThreadPool;
 
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import androidx.annotation.IntDef;
+import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
 /**
  * 静止画キャプチャ機能を追加したProxyPipeline実装
+ * キャプチャ用のBitmapは指定した数のリングバッファとしてあらかじめ確保して使い回す
+ * コールバックはパイプラインのスレッドとは別の専用スレッド上でキャプチャした順に呼び出す
+ * カメラのフレームレートで連続キャプチャ(バースト)する場合に
+ * リングバッファに空きが無いときはBACKPRESSURE_SKIPならそのフレームをスキップし、
+ * BACKPRESSURE_BLOCKなら空きができるまで(最大でMAX_BLOCK_MS)パイプラインのスレッドを待機させる
  */
 public class CapturePipeline extends ProxyPipeline {
 	private static final boolean DEBUG = false;	// set false on production
 	private static final String TAG = CapturePipeline.class.getSimpleName();
 
+	/**
+	 * リングバッファに空きが無いときはそのフレームをスキップする
+	 */
+	public static final int BACKPRESSURE_SKIP = 0;
+	/**
+	 * リングバッファに空きが無いときは空きができるまで待機する
+	 */
+	public static final int BACKPRESSURE_BLOCK = 1;
+
+	@IntDef({
+		BACKPRESSURE_SKIP,
+		BACKPRESSURE_BLOCK,
+	})
+	@Retention(RetentionPolicy.SOURCE)
+	public @interface BackpressurePolicy {}
+
+	/**
+	 * デフォルトのリングバッファのサイズ
+	 */
+	public static final int DEFAULT_RING_SIZE = 4;
+	/**
+	 * BACKPRESSURE_BLOCKのときにリングバッファの空きを待機する最大時間[ミリ秒]
+	 * これを超えるとそのフレームはスキップする
+	 */
+	public static final long MAX_BLOCK_MS = 500L;
+	/**
+	 * コールバックするものが無いときにコールバック用スレッドを終了するまでの時間[秒]
+	 */
+	private static final long KEEP_ALIVE_TIME_SECS = 5L;
+
 	/**
 	 * キャプチャ時のコールバックリスナー
 	 */
@@ -52,10 +94,87 @@ public class CapturePipeline extends ProxyPipeline {
 		public void onError(@NonNull final Throwable t);
 	}
 
+	/**
+	 * 指定回数のキャプチャが終了したときの統計情報も受け取るためのコールバックリスナー
+	 */
+	public interface BurstCallback extends Callback {
+		/**
+		 * 指定回数のキャプチャが終了して全てのコールバックを呼び出した後に呼ばれる
+		 * キャプチャ回数が無制限のときは呼ばれない
+		 * @param stats
+		 */
+		@WorkerThread
+		public void onBurstFinished(@NonNull final BurstStats stats);
+	}
+
+	/**
+	 * 連続キャプチャの統計情報
+	 */
+	public static class BurstStats {
+		/**
+		 * 要求したキャプチャ回数, -1なら無制限
+		 */
+		public final int numCaptures;
+		/**
+		 * キャプチャした回数
+		 */
+		public final int captured;
+		/**
+		 * コールバックした回数
+		 */
+		public final int delivered;
+		/**
+		 * リングバッファに空きが無くてスキップしたフレーム数
+		 */
+		public final int dropped;
+		/**
+		 * 最初のキャプチャから最後のキャプチャまでの時間[ナノ秒]
+		 */
+		public final long captureDurationNs;
+
+		private BurstStats(final int numCaptures,
+			final int captured, final int delivered, final int dropped,
+			final long captureDurationNs) {
+
+			this.numCaptures = numCaptures;
+			this.captured = captured;
+			this.delivered = delivered;
+			this.dropped = dropped;
+			this.captureDurationNs = captureDurationNs;
+		}
+
+		/**
+		 * 実際のキャプチャレート[フレーム/秒]を取得
+		 * @return キャプチャ回数が2未満なら0
+		 */
+		public float getCaptureRate() {
+			return (captured > 1) && (captureDurationNs > 0)
+				? (captured - 1) * 1000000000.0f / captureDurationNs : 0.0f;
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return "BurstStats{" +
+				"numCaptures=" + numCaptures +
+				",captured=" + captured +
+				",delivered=" + delivered +
+				",dropped=" + dropped +
+				",rate=" + getCaptureRate() +
+				"fps}";
+		}
+	}
+
 	@NonNull
 	private final Object mSync = new Object();
 	@NonNull
 	private final Callback mCallback;
+	/**
+	 * コールバック用のスレッド
+	 * キャプチャした順にコールバックするためにスレッドは1つだけ
+	 */
+	@NonNull
+	private final ThreadPoolExecutor mDeliveryExecutor;
 
 	/**
 	 * キャプチャ回数
@@ -66,6 +185,8 @@ public class CapturePipeline extends ProxyPipeline {
 	 * キャプチャ周期[ミリ秒]
 	 */
 	private long mIntervalsMs;
+	@BackpressurePolicy
+	private int mBackpressure = BACKPRESSURE_SKIP;
 
 	/**
 	 * キャプチャした回数
@@ -75,6 +196,18 @@ public class CapturePipeline extends ProxyPipeline {
 	 * キャプチャしたシステム時刻[ミリ秒]
 	 */
 	private long mLastCaptureMs;
+	/**
+	 * コールバックした回数
+	 */
+	private int mDeliveredCnt;
+	/**
+	 * リングバッファに空きが無くてスキップしたフレーム数
+	 */
+	private int mDroppedCnt;
+	/**
+	 * 最初と最後にキャプチャしたシステム時刻[ナノ秒]
+	 */
+	private long mFirstCaptureNs, mLastCaptureNs;
 	/**
 	 * 映像読み取り用のワークバッファ
 	 */
@@ -88,32 +221,20 @@ public class CapturePipeline extends ProxyPipeline {
 	@Nullable
 	private GLDrawer2D mDrawer;
 
-	private final Pool<Bitmap> mPool = new Pool<Bitmap>(0, 4) {
-		@NonNull
-		@Override
-		protected Bitmap createObject(@Nullable final Object... args) {
-			final int w = (int)args[0];
-			final int h = (int)args[1];
-			return Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-		}
-
-		@Nullable
-		@Override
-		public Bitmap obtain(@Nullable final Object... args) {
-			final int w = (int)args[0];
-			final int h = (int)args[1];
-			Bitmap result = super.obtain(args);
-			while ((result != null)
-				&& (result.isRecycled()
-					|| (result.getWidth() != w)
-					|| (result.getHeight() != h))) {
-				// サイズが違う・リサイクルされてしまっているBitmapは返さない
-				release(result);
-				result = super.obtain(args);
-			}
-			return result;
-		}
-	};
+	/**
+	 * リングバッファのサイズ(確保するBitmapの最大数)
+	 */
+	private int mRingSize = DEFAULT_RING_SIZE;
+	/**
+	 * リングバッファとして確保済みのBitmapの数(コールバック中のものを含む)
+	 */
+	private int mAllocated;
+	/**
+	 * リングバッファの空きBitmap
+	 */
+	@NonNull
+	private final ArrayDeque<Bitmap> mFreeBitmaps = new ArrayDeque<>();
+	private boolean mReleased;
 
 	/**
 	 * コンストラクタ
@@ -123,6 +244,30 @@ public class CapturePipeline extends ProxyPipeline {
 		mCallback = callback;
 		mCaptureCnt = mNumCaptures = 0;
 		mLastCaptureMs = mIntervalsMs = 0L;
+		mDeliveryExecutor = new ThreadPoolExecutor(1, 1,
+			KEEP_ALIVE_TIME_SECS, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(),
+			r -> new Thread(r, TAG));
+		mDeliveryExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	@Override
+	protected void internalRelease() {
+		if (DEBUG) Log.v(TAG, "internalRelease:");
+		synchronized (mSync) {
+			mReleased = true;
+			mNumCaptures = 0;
+			for (final Bitmap bitmap: mFreeBitmaps) {
+				bitmap.recycle();
+			}
+			mAllocated -= mFreeBitmaps.size();
+			mFreeBitmaps.clear();
+			// BACKPRESSURE_BLOCKで待機中なら起床させる
+			mSync.notifyAll();
+		}
+		// コールバック待ちのものは最後まで呼び出す
+		mDeliveryExecutor.shutdown();
+		super.internalRelease();
 	}
 
 	/**
@@ -134,15 +279,87 @@ public class CapturePipeline extends ProxyPipeline {
 
 	/**
 	 * 指定した条件でキャプチャ要求
+	 * リングバッファに空きが無いときはそのフレームをスキップする
 	 * @param numCaptures キャプチャ回数, -1: 無制限, 0: 無効, 1以上: 指定回数
 	 * @param intervalsMs 複数回キャプチャする場合の周期[ミリ秒]
 	 */
 	public void trigger(final int numCaptures, final long intervalsMs) {
+		trigger(numCaptures, intervalsMs, DEFAULT_RING_SIZE, BACKPRESSURE_SKIP);
+	}
+
+	/**
+	 * 映像のフレームレートで連続キャプチャ(バースト)を要求
+	 * @param numCaptures キャプチャ回数, -1: 無制限, 0: 無効, 1以上: 指定回数
+	 * @param ringSize リングバッファのサイズ
+	 * @param backpressure リングバッファに空きが無いときの処理
+	 */
+	public void triggerBurst(final int numCaptures,
+		@IntRange(from = 1) final int ringSize,
+		@BackpressurePolicy final int backpressure) {
+
+		trigger(numCaptures, 0L, ringSize, backpressure);
+	}
+
+	/**
+	 * 指定した条件でキャプチャ要求
+	 * 映像サイズが決まっていればリングバッファのBitmapをここで確保する
+	 * @param numCaptures キャプチャ回数, -1: 無制限, 0: 無効, 1以上: 指定回数
+	 * @param intervalsMs 複数回キャプチャする場合の周期[ミリ秒]
+	 * @param ringSize リングバッファのサイズ
+	 * @param backpressure リングバッファに空きが無いときの処理
+	 * @throws IllegalArgumentException ringSizeが1未満のとき
+	 * @throws IllegalStateException 破棄済みのとき
+	 */
+	public void trigger(final int numCaptures, final long intervalsMs,
+		@IntRange(from = 1) final int ringSize,
+		@BackpressurePolicy final int backpressure)
+			throws IllegalArgumentException, IllegalStateException {
+
+		if (ringSize < 1) {
+			throw new IllegalArgumentException("ringSize should be greater than zero");
+		}
+		final int w = getWidth();
+		final int h = getHeight();
 		synchronized (mSync) {
+			if (mReleased) {
+				throw new IllegalStateException("already released");
+			}
 			mCaptureCnt = 0;
 			mNumCaptures = numCaptures;
 			mIntervalsMs = intervalsMs;
 			mLastCaptureMs = 0L;
+			mDeliveredCnt = mDroppedCnt = 0;
+			mFirstCaptureNs = mLastCaptureNs = 0L;
+			mRingSize = ringSize;
+			mBackpressure = backpressure;
+			// 映像サイズが違うBitmapやリングバッファのサイズを超える分は破棄する
+			for (int i = mFreeBitmaps.size(); i > 0; i--) {
+				final Bitmap bitmap = mFreeBitmaps.pollFirst();
+				if ((mAllocated <= mRingSize) && isReusable(bitmap, w, h)) {
+					mFreeBitmaps.addLast(bitmap);
+				} else {
+					bitmap.recycle();
+					mAllocated--;
+				}
+			}
+			// キャプチャ開始時にパイプラインのスレッドでBitmapを生成しなくて済むように
+			// あらかじめリングバッファを確保しておく
+			if ((numCaptures != 0) && (w > 0) && (h > 0)) {
+				for (; mAllocated < mRingSize; mAllocated++) {
+					mFreeBitmaps.addLast(Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888));
+				}
+			}
+		}
+	}
+
+	/**
+	 * 現在の連続キャプチャの統計情報を取得
+	 * @return
+	 */
+	@NonNull
+	public BurstStats getBurstStats() {
+		synchronized (mSync) {
+			return getBurstStatsLocked();
 		}
 	}
 
@@ -153,7 +370,9 @@ public class CapturePipeline extends ProxyPipeline {
 		final long current = System.currentTimeMillis();
 		final boolean needCapture;
 		synchronized (mSync) {
-			needCapture = (mNumCaptures != 0) && (mCaptureCnt < mNumCaptures)
+			needCapture = !mReleased
+				&& (mNumCaptures != 0)
+				&& ((mNumCaptures < 0) || (mCaptureCnt < mNumCaptures))
 				&& (current - mLastCaptureMs > mIntervalsMs);
 			if (needCapture) {
 				mLastCaptureMs = current;
@@ -177,7 +396,7 @@ public class CapturePipeline extends ProxyPipeline {
 //		if (DEBUG) Log.v(TAG, "doCapture:");
 //		final int w = getWidth();
 //		final int h = getHeight();
-//		final Bitmap bitmap = mPool.obtain(w, h);
+//		final Bitmap bitmap = obtainBitmap(w, h);
 //		if (bitmap != null) {
 //			try {
 //				// GLSurfaceを経由してテクスチャを読み取る
@@ -191,21 +410,18 @@ public class CapturePipeline extends ProxyPipeline {
 //				bitmap.copyPixelsFromBuffer(buffer);
 //				mBuffer = buffer;
 //				// コールバックをワーカースレッド上で呼び出す
-//				ThreadPool.queueEvent(() -> {
+//				deliver(() -> {
 //					try {
 //						mCallback.onCapture(bitmap);
 //					} catch (final Exception e) {
 //						Log.w(TAG, e);
 //					} finally {
-//						if (bitmap.isRecycled()) {
-//							mPool.release(bitmap);
-//						} else {
-//							mPool.recycle(bitmap);
-//						}
+//						recycleBitmap(bitmap);
+//						onDelivered();
 //					}
 //				});
 //			} catch (final Exception e) {
-//				ThreadPool.queueEvent(() -> {
+//				deliver(() -> {
 //					mCallback.onError(e);
 //				});
 //			}
@@ -222,7 +438,7 @@ public class CapturePipeline extends ProxyPipeline {
 		if (DEBUG) Log.v(TAG, "doCapture:");
 		final int w = getWidth();
 		final int h = getHeight();
-		final Bitmap bitmap = mPool.obtain(w, h);
+		final Bitmap bitmap = obtainBitmap(w, h);
 		if (bitmap != null) {
 			try {
 				if ((mOffscreen == null)
@@ -253,25 +469,166 @@ public class CapturePipeline extends ProxyPipeline {
 				mOffscreen.swap();
 				bitmap.copyPixelsFromBuffer(buffer);
 				mBuffer = buffer;
-				// コールバックをワーカースレッド上で呼び出す
-				ThreadPool.queueEvent(() -> {
+				onCaptured();
+				// コールバックを専用スレッド上で呼び出す
+				deliver(() -> {
 					try {
 						mCallback.onCapture(bitmap);
 					} catch (final Exception e) {
 						Log.w(TAG, e);
 					} finally {
-						if (bitmap.isRecycled()) {
-							mPool.release(bitmap);
-						} else {
-							mPool.recycle(bitmap);
-						}
+						recycleBitmap(bitmap);
+						onDelivered();
 					}
 				});
 			} catch (final Exception e) {
-				ThreadPool.queueEvent(() -> {
-					mCallback.onError(e);
+				recycleBitmap(bitmap);
+				deliver(() -> {
+					try {
+						mCallback.onError(e);
+					} finally {
+						onDelivered();
+					}
 				});
 			}
+		} else {
+			onDropped();
+		}
+	}
+
+	/**
+	 * リングバッファから空きBitmapを取得する
+	 * リングバッファが未確保または確保済みの数がリングバッファのサイズ未満なら新たに生成する
+	 * 空きが無いときはBACKPRESSURE_BLOCKなら最大でMAX_BLOCK_MS待機する
+	 * @param w
+	 * @param h
+	 * @return 空きが無ければnull
+	 */
+	@Nullable
+	private Bitmap obtainBitmap(final int w, final int h) {
+		synchronized (mSync) {
+			final long endMs = System.currentTimeMillis() + MAX_BLOCK_MS;
+			for (; !mReleased; ) {
+				final Bitmap bitmap = mFreeBitmaps.pollFirst();
+				if (bitmap != null) {
+					if (isReusable(bitmap, w, h)) {
+						return bitmap;
+					}
+					// サイズが違う・リサイクルされてしまっているBitmapは破棄して生成し直す
+					bitmap.recycle();
+					mAllocated--;
+					continue;
+				}
+				if (mAllocated < mRingSize) {
+					mAllocated++;
+					return Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+				}
+				final long remainsMs = endMs - System.currentTimeMillis();
+				if ((mBackpressure != BACKPRESSURE_BLOCK) || (remainsMs <= 0)) {
+					break;
+				}
+				try {
+					mSync.wait(remainsMs);
+				} catch (final InterruptedException e) {
+					break;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 使用済みのBitmapをリングバッファへ返却する
+	 * コールバック内でリサイクルされたときやリングバッファのサイズを超えたときは破棄する
+	 * @param bitmap
+	 */
+	private void recycleBitmap(@NonNull final Bitmap bitmap) {
+		synchronized (mSync) {
+			if (!mReleased && !bitmap.isRecycled() && (mAllocated <= mRingSize)) {
+				mFreeBitmaps.addLast(bitmap);
+			} else {
+				if (!bitmap.isRecycled()) {
+					bitmap.recycle();
+				}
+				mAllocated--;
+			}
+			mSync.notifyAll();
 		}
 	}
+
+	/**
+	 * キャプチャできたときの処理
+	 */
+	private void onCaptured() {
+		final long now = System.nanoTime();
+		synchronized (mSync) {
+			if (mFirstCaptureNs == 0L) {
+				mFirstCaptureNs = now;
+			}
+			mLastCaptureNs = now;
+		}
+	}
+
+	/**
+	 * リングバッファに空きが無くてキャプチャできなかったときの処理
+	 * キャプチャ回数に含めずに次のフレームで再度キャプチャする
+	 */
+	private void onDropped() {
+		synchronized (mSync) {
+			mDroppedCnt++;
+			if (mCaptureCnt > 0) {
+				mCaptureCnt--;
+			}
+			mLastCaptureMs = 0L;
+		}
+	}
+
+	/**
+	 * コールバック用のスレッド上でコールバックを呼び出した後の処理
+	 * 指定回数のキャプチャが終了すればBurstCallback#onBurstFinishedを呼び出す
+	 */
+	@WorkerThread
+	private void onDelivered() {
+		final BurstStats stats;
+		synchronized (mSync) {
+			mDeliveredCnt++;
+			stats = (mNumCaptures > 0) && (mDeliveredCnt == mNumCaptures)
+				? getBurstStatsLocked() : null;
+		}
+		if ((stats != null) && (mCallback instanceof BurstCallback)) {
+			if (DEBUG) Log.v(TAG, "onDelivered:" + stats);
+			try {
+				((BurstCallback) mCallback).onBurstFinished(stats);
+			} catch (final Exception e) {
+				Log.w(TAG, e);
+			}
+		}
+	}
+
+	/**
+	 * コールバック用のスレッド上で実行する
+	 * @param task
+	 */
+	private void deliver(@NonNull final Runnable task) {
+		try {
+			mDeliveryExecutor.execute(task);
+		} catch (final RejectedExecutionException e) {
+			if (DEBUG) Log.w(TAG, e);
+		}
+	}
+
+	/**
+	 * mSyncをロックした状態で呼び出すこと
+	 * @return
+	 */
+	@NonNull
+	private BurstStats getBurstStatsLocked() {
+		final int captured = mCaptureCnt;
+		return new BurstStats(mNumCaptures, captured, mDeliveredCnt, mDroppedCnt,
+			mLastCaptureNs - mFirstCaptureNs);
+	}
+
+	private static boolean isReusable(@NonNull final Bitmap bitmap, final int w, final int h) {
+		return !bitmap.isRecycled() && (bitmap.getWidth() == w) && (bitmap.getHeight() == h);
+	}
 }
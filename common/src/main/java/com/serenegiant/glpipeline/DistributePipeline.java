@@ -20,6 +20,10 @@ package com.serenegiant.glpipeline;
 
 import android.util.Log;
 
+import com.serenegiant.glutils.StageProfiler;
+
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 
@@ -193,6 +197,15 @@ public class DistributePipeline implements GLPipeline {
 		}
 	}
 
+	/**
+	 * 下流のGLPipelineの一覧を取得
+	 * @return
+	 */
+	@NonNull
+	public List<GLPipeline> getPipelines() {
+		return new ArrayList<>(mPipelines);
+	}
+
 	/**
 	 * 下流のGLPipelineを追加する
 	 * 通常のGLPipelineと異なり
@@ -262,9 +275,16 @@ public class DistributePipeline implements GLPipeline {
 		@NonNull @Size(min=16) final float[] texMatrix) {
 
 		if (!mReleased) {
+			final StageProfiler profiler = StageProfiler.getInstance();
 			for (final GLPipeline pipeline: mPipelines) {
 				if (pipeline != null) {
-					pipeline.onFrameAvailable(isOES, texId, texMatrix);
+					// 計測が有効なら分岐先のGLPipeline毎の処理時間を計測する
+					final boolean profile = profiler.enter(pipeline);
+					try {
+						pipeline.onFrameAvailable(isOES, texId, texMatrix);
+					} finally {
+						if (profile) profiler.exit();
+					}
 				}
 			}
 		}
@@ -31,6 +31,7 @@ import com.serenegiant.gl.GLDrawer2D;
 import com.serenegiant.gl.GLManager;
 import com.serenegiant.gl.GLUtils;
 import com.serenegiant.gl.RendererTarget;
+import com.serenegiant.glutils.StageProfiler;
 import com.serenegiant.math.Fraction;
 import com.serenegiant.media.AbstractVideoEncoder;
 import com.serenegiant.media.EncoderListener;
@@ -260,7 +261,13 @@ public class EncodePipeline extends AbstractVideoEncoder implements GLPipeline {
 		}
 		if (pipeline != null) {
 			// 次のGLPipelineへつなぐ
-			pipeline.onFrameAvailable(isOES, texId, texMatrix);
+			final StageProfiler profiler = StageProfiler.getInstance();
+			final boolean profile = profiler.enter(pipeline);
+			try {
+				pipeline.onFrameAvailable(isOES, texId, texMatrix);
+			} finally {
+				if (profile) profiler.exit();
+			}
 		}
 		if (!mReleased && !isRequestStop()) {
 			if ((target != null)
@@ -19,6 +19,7 @@ package com.serenegiant.glpipeline;
 */
 
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.media.FaceDetector;
 import android.opengl.GLES20;
@@ -27,12 +28,14 @@ import android.util.Log;
 import com.serenegiant.egl.EGLBase;
 import com.serenegiant.gl.GLDrawer2D;
 import com.serenegiant.gl.GLManager;
+import com.serenegiant.gl.PixelReadbackRing;
 import com.serenegiant.gl.RendererTarget;
 import com.serenegiant.math.Fraction;
 import com.serenegiant.utils.HandlerThreadHandler;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayDeque;
 
 import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
@@ -42,6 +45,11 @@ import androidx.annotation.WorkerThread;
 
 /**
  * 顔検出をしてコールバックするGLPipeline実装
+ * 受け取った映像を解析用の小さなオフスクリーンへ縮小描画してから
+ * PixelReadbackRingで非同期に読み取り(GL|ES3ならPBO)、
+ * Bitmapへの変換と顔検出はワーカースレッド上で行う
+ * GLスレッドでは縮小描画と読み取りの発行、読み取ったピクセルデータのコピーだけを行う
+ * 顔検出が間に合わないときは最新のフレームだけを保持して古いフレームは破棄する
  */
 public class FaceDetectPipeline extends ProxyPipeline {
 	private static final boolean DEBUG = false;	// set false on production
@@ -51,6 +59,14 @@ public class FaceDetectPipeline extends ProxyPipeline {
 	 * 最大fps未指定時のデフォルトの顔検出フレームレート
 	 */
 	private static final float DEFAULT_MAX_FPS = 1.0f;
+	/**
+	 * デフォルトの解析用映像の幅
+	 */
+	public static final int DEFAULT_ANALYSIS_WIDTH = 320;
+	/**
+	 * 非同期読み取り用のピクセルバッファの数
+	 */
+	private static final int NUM_READBACK_BUFFERS = 2;
 
 	/**
 	 * 顔検出したときのコールバックリスナー
@@ -58,6 +74,13 @@ public class FaceDetectPipeline extends ProxyPipeline {
 	 * ただしEGL/GLレンダリングコンテキストはないので直接OpenGL|ES関係の処理はできない
 	 */
 	public interface OnDetectedListener {
+		/**
+		 * 顔検出したときの処理
+		 * @param num 検出した顔の数
+		 * @param faces 検出結果
+		 * @param width 解析用映像の幅, 検出結果の座標はこのサイズの映像での値
+		 * @param height 解析用映像の高さ, 検出結果の座標はこのサイズの映像での値
+		 */
 		@WorkerThread
 		public void onDetected(
 			/*@NonNull final Bitmap debugBitmap,*/
@@ -65,6 +88,20 @@ public class FaceDetectPipeline extends ProxyPipeline {
 			final int width, final int height);
 	}
 
+	/**
+	 * GLスレッドから顔検出用スレッドへ引き渡すフレーム
+	 */
+	private static class Frame {
+		@NonNull
+		private ByteBuffer buffer;
+		private int width;
+		private int height;
+
+		private Frame(final int bytes) {
+			buffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
 //--------------------------------------------------------------------------------
 	@NonNull
 	private final Object mSync = new Object();
@@ -79,6 +116,10 @@ public class FaceDetectPipeline extends ProxyPipeline {
 	 * 最大で検出する顔の数
 	 */
 	private final int mMaxDetectNum;
+	/**
+	 * 解析用映像の幅の最大値, 0なら縮小しない
+	 */
+	private final int mAnalysisWidth;
 	/**
 	 * コールバックリスなー
 	 */
@@ -93,6 +134,24 @@ public class FaceDetectPipeline extends ProxyPipeline {
 	 */
 	@NonNull
 	private final HandlerThreadHandler mAsyncHandler = HandlerThreadHandler.createHandler(TAG);
+	/**
+	 * 再利用可能なFrameのプール
+	 */
+	@NonNull
+	private final ArrayDeque<Frame> mFreeFrames = new ArrayDeque<>();
+	/**
+	 * 顔検出待ちの最新のフレーム
+	 */
+	@Nullable
+	private Frame mPendingFrame;
+	/**
+	 * 顔検出が間に合わずに破棄したフレーム数
+	 */
+	private long mDroppedFrames;
+	/**
+	 * 顔検出したフレーム数
+	 */
+	private long mAnalyzedFrames;
 
 	/**
 	 * 受け取ったテキスチャをオフスクリーンへ転送するためのGLDrawer2D
@@ -106,20 +165,33 @@ public class FaceDetectPipeline extends ProxyPipeline {
 	@Nullable
 	private RendererTarget mRendererTarget;
 	/**
-	 * 受け取ったテクスチャをBitmapへ変換するためのワーク用のオフスクリーン
+	 * 受け取ったテクスチャを縮小描画するためのワーク用のオフスクリーン
 	 */
 	@Nullable
 	private EGLBase.IEglSurface offscreen;
 	/**
-	 * オフスクリーンからBitmapへ転送する際のワーク用
+	 * オフスクリーンを生成したときの映像ソースのサイズ
+	 */
+	private int mSourceWidth, mSourceHeight;
+	/**
+	 * オフスクリーンから非同期で読み取るためのPixelReadbackRing, GLスレッド上でのみアクセスする
 	 */
 	@Nullable
-	private ByteBuffer mWorkBuffer;
+	private PixelReadbackRing mReadback;
+
+	// 以下は顔検出用スレッド上でのみアクセスする
 	/**
-	 * 顔検出処理へ引き渡すBitmapオブジェクト
+	 * 読み取ったピクセルデータを受け取るBitmap
 	 */
 	@Nullable
 	private Bitmap mWorkBitmap;
+	/**
+	 * 顔検出処理へ引き渡すRGB565のBitmap
+	 */
+	@Nullable
+	private Bitmap mBitmap565;
+	@Nullable
+	private Canvas mCanvas565;
 	/**
 	 * 顔検出のためのFaceDetectorオブジェクト
 	 */
@@ -128,6 +200,7 @@ public class FaceDetectPipeline extends ProxyPipeline {
 
 	/**
 	 * コンストラクタ
+	 * 解析用映像の幅はDEFAULT_ANALYSIS_WIDTH
 	 * @param manager
 	 * @param maxFps 未指定(null)または0以下の場合はDEFAULT_MAX_FPS(=1fps)になる
 	 * @param maxDetectNum 顔検出する最大数, 1以上
@@ -139,9 +212,28 @@ public class FaceDetectPipeline extends ProxyPipeline {
 		@IntRange(from=1) final int maxDetectNum,
 		@NonNull final OnDetectedListener listener) {
 
+		this(manager, maxFps, maxDetectNum, DEFAULT_ANALYSIS_WIDTH, listener);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param manager
+	 * @param maxFps 未指定(null)または0以下の場合はDEFAULT_MAX_FPS(=1fps)になる
+	 * @param maxDetectNum 顔検出する最大数, 1以上
+	 * @param analysisWidth 解析用映像の幅の最大値, 映像の幅がこれより大きければアスペクト比を保って縮小する, 0なら縮小しない
+	 * @param listener
+	 */
+	public FaceDetectPipeline(
+		@NonNull final GLManager manager,
+		@Nullable final Fraction maxFps,
+		@IntRange(from=1) final int maxDetectNum,
+		@IntRange(from=0) final int analysisWidth,
+		@NonNull final OnDetectedListener listener) {
+
 		mManager = manager;
-		mMaxFps = maxFps != null ? maxFps.asFloat() : DEFAULT_MAX_FPS;
+		mMaxFps = (maxFps != null) && (maxFps.asFloat() > 0) ? maxFps.asFloat() : DEFAULT_MAX_FPS;
 		mMaxDetectNum = maxDetectNum;
+		mAnalysisWidth = Math.max(analysisWidth, 0);
 		mListener = listener;
 		mDetected = new FaceDetector.Face[maxDetectNum];
 	}
@@ -152,7 +244,15 @@ public class FaceDetectPipeline extends ProxyPipeline {
 		if (isValid()) {
 			releaseTarget();
 			mAsyncHandler.removeCallbacksAndMessages(null);
-			mAsyncHandler.quit();
+			// 顔検出用のBitmap等は顔検出用スレッド上で破棄してから終了する
+			mAsyncHandler.post(new Runnable() {
+				@WorkerThread
+				@Override
+				public void run() {
+					releaseDetector();
+					mAsyncHandler.quit();
+				}
+			});
 		}
 		super.internalRelease();
 	}
@@ -162,6 +262,48 @@ public class FaceDetectPipeline extends ProxyPipeline {
 		return super.isValid() && mManager.isValid();
 	}
 
+	/**
+	 * 解析用映像のサイズを計算する
+	 * FaceDetectorは幅が偶数でないといけないので偶数に切り捨てる
+	 * @param analysisWidth 0なら縮小しない
+	 * @param width 映像の幅
+	 * @param height 映像の高さ
+	 * @return [幅, 高さ]
+	 */
+	@NonNull
+	@Size(value=2)
+	public static int[] getAnalysisSize(
+		final int analysisWidth, final int width, final int height) {
+
+		int w = width;
+		int h = height;
+		if ((analysisWidth > 0) && (width > analysisWidth)) {
+			w = analysisWidth;
+			h = Math.round(height * analysisWidth / (float)width);
+		}
+		return new int[] {Math.max(w & ~1, 2), Math.max(h, 1)};
+	}
+
+	/**
+	 * 顔検出が間に合わずに破棄したフレーム数を取得
+	 * @return
+	 */
+	public long getDroppedFrames() {
+		synchronized (mSync) {
+			return mDroppedFrames;
+		}
+	}
+
+	/**
+	 * 顔検出したフレーム数を取得
+	 * @return
+	 */
+	public long getAnalyzedFrames() {
+		synchronized (mSync) {
+			return mAnalyzedFrames;
+		}
+	}
+
 	private int cnt;
 	@WorkerThread
 	@Override
@@ -177,9 +319,9 @@ public class FaceDetectPipeline extends ProxyPipeline {
 			final GLDrawer2D drawer;
 			@Nullable
 			final RendererTarget target;
+			@Nullable
+			final EGLBase.IEglSurface surface;
 			synchronized (mSync) {
-				width = getWidth();
-				height = getHeight();
 				if ((mDrawer == null) || isOES != mDrawer.isOES()) {
 					// 初回またはGLPipelineを繋ぎ変えたあとにテクスチャが変わるかもしれない
 					if (mDrawer != null) {
@@ -190,35 +332,39 @@ public class FaceDetectPipeline extends ProxyPipeline {
 				}
 				drawer = mDrawer;
 				if ((mRendererTarget == null)
-					|| (mRendererTarget.width() != width)
-					|| (mRendererTarget.height() != height)) {
+					|| (mSourceWidth != getWidth())
+					|| (mSourceHeight != getHeight())) {
 					createTarget();
 				}
 				target = mRendererTarget;
+				surface = offscreen;
+				width = surface != null ? surface.getWidth() : 0;
+				height = surface != null ? surface.getHeight() : 0;
 			}
-			if ((target != null) && target.canDraw()) {
-				// API1からあるFaceDetectorはBitmapからしか検出できないのでテキスチャをオフスクリーンへ描画して
-				// それを読み取ってBitmapに変換して検出処理を行う
-				// オフスクリーンへ描画
-				target.draw(drawer, GLES20.GL_TEXTURE0, texId, texMatrix);
-				offscreen.makeCurrent();
-				// オフスクリーンから読み取る
-				mWorkBuffer.clear();
-				GLES20.glReadPixels(0, 0,
-					width, height,
-					GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mWorkBuffer);
-				// Bitmapへ代入
-				mWorkBuffer.clear();
-				mAsyncHandler.removeCallbacks(mDetectTask);
-				synchronized (mSync) {
-					if (mWorkBitmap != null) {
-						mWorkBitmap.copyPixelsFromBuffer(mWorkBuffer);
-						mAsyncHandler.post(mDetectTask);
-					}
+			if ((target != null) && (surface != null) && target.canDraw()) {
+				// API1からあるFaceDetectorはBitmapからしか検出できないのでテキスチャを
+				// 解析用の小さなオフスクリーンへ縮小描画して、それを非同期で読み取って顔検出用スレッドへ引き渡す
+				if (mReadback == null) {
+					final PixelReadbackRing.Backend backend
+						= PixelReadbackRing.createBackend(mManager.isGLES3());
+					// 最大フレームレートで間引くので次のフレームを待たずに読み取りが完了した時点で引き渡せるように
+					// レイテンシ0にしてPBOの読み取り完了(フェンス)だけで判定する
+					// PBOが使えないときは同期読み取りなので読み取ったフレームですぐに引き渡す
+					mReadback = new PixelReadbackRing(backend, NUM_READBACK_BUFFERS, 0,
+						mReadbackCallback);
 				}
+				// オフスクリーンへ縮小描画
+				target.draw(drawer, GLES20.GL_TEXTURE0, texId, texMatrix);
+				surface.makeCurrent();
+				// オフスクリーンからの読み取りを発行
+				// 読み取りが完了しているフレームがあればmReadbackCallbackへ引き渡される
+				mReadback.readPixels(width, height, null);
 				if (DEBUG && (++cnt % 100) == 0) {
 					Log.v(TAG, "onFrameAvailable:" + cnt);
 				}
+			} else if (mReadback != null) {
+				// 読み取り済みのフレームがあれば次に描画するまで待たずに引き渡す
+				mReadback.poll();
 			}
 		}
 	}
@@ -249,12 +395,14 @@ public class FaceDetectPipeline extends ProxyPipeline {
 
 	/**
 	 * 描画先のSurfaceを生成
+	 * 映像ソースのサイズからアスペクト比を保って縮小した解析用のオフスクリーンを生成する
 	 */
 	@WorkerThread
 	private void createTarget() {
 		if (DEBUG) Log.v(TAG, "createTarget:");
 		final int width = getWidth();
 		final int height = getHeight();
+		final int[] size = getAnalysisSize(mAnalysisWidth, width, height);
 		synchronized (mSync) {
 			if (mRendererTarget != null) {
 				mRendererTarget.release();
@@ -264,17 +412,12 @@ public class FaceDetectPipeline extends ProxyPipeline {
 				offscreen.release();
 				offscreen = null;
 			}
-			if (mWorkBitmap != null) {
-				mWorkBitmap.recycle();
-				mWorkBitmap = null;
-			}
-			if (DEBUG) Log.v(TAG, "createTarget:create IEglSurface as work offscreen");
-			offscreen = mManager.getEgl().createOffscreen(width, height);
+			if (DEBUG) Log.v(TAG, "createTarget:create IEglSurface as work offscreen," + size[0] + "x" + size[1]);
+			mSourceWidth = width;
+			mSourceHeight = height;
+			offscreen = mManager.getEgl().createOffscreen(size[0], size[1]);
 			mRendererTarget = RendererTarget.newInstance(
-				mManager.getEgl(), offscreen, mMaxFps > 0 ? mMaxFps : DEFAULT_MAX_FPS);
-			mWorkBuffer = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.LITTLE_ENDIAN);
-			mWorkBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-			mDetector = new FaceDetector(width, height, mMaxDetectNum);
+				mManager.getEgl(), offscreen, mMaxFps);
 		}
 	}
 
@@ -290,14 +433,10 @@ public class FaceDetectPipeline extends ProxyPipeline {
 			mRendererTarget = null;
 			surface = offscreen;
 			offscreen = null;
-			if (mWorkBitmap != null) {
-				mWorkBitmap.recycle();
-				mWorkBitmap = null;
-			}
-			mWorkBuffer = null;
-			mDetector = null;
+			mPendingFrame = null;
+			mFreeFrames.clear();
 		}
-		if ((drawer != null) || (target != null)) {
+		if ((drawer != null) || (target != null) || (mReadback != null)) {
 			if (DEBUG) Log.v(TAG, "releaseTarget:");
 			if (mManager.isValid()) {
 				try {
@@ -305,6 +444,11 @@ public class FaceDetectPipeline extends ProxyPipeline {
 						@WorkerThread
 						@Override
 						public void run() {
+							if (mReadback != null) {
+								if (DEBUG) Log.v(TAG, "releaseTarget:release readback");
+								mReadback.release();
+								mReadback = null;
+							}
 							if (drawer != null) {
 								if (DEBUG) Log.v(TAG, "releaseTarget:release drawer");
 								drawer.release();
@@ -328,35 +472,119 @@ public class FaceDetectPipeline extends ProxyPipeline {
 		}
 	}
 
+	/**
+	 * 顔検出用スレッド上で顔検出用のBitmap等を破棄する
+	 */
+	@WorkerThread
+	private void releaseDetector() {
+		if (mWorkBitmap != null) {
+			mWorkBitmap.recycle();
+			mWorkBitmap = null;
+		}
+		if (mBitmap565 != null) {
+			mBitmap565.recycle();
+			mBitmap565 = null;
+		}
+		mCanvas565 = null;
+		mDetector = null;
+	}
+
+	/**
+	 * PixelReadbackRingから読み取り結果を受け取るためのコールバック
+	 * ここはGLスレッド上なので解析用の小さなピクセルデータのコピーだけを行う
+	 */
+	private final PixelReadbackRing.Callback mReadbackCallback
+		= new PixelReadbackRing.Callback() {
+		@WorkerThread
+		@Override
+		public void onPixelsAvailable(
+			@NonNull final ByteBuffer pixels,
+			final int width, final int height, @Nullable final Object tag) {
+
+			final int bytes = pixels.remaining();
+			Frame frame;
+			synchronized (mSync) {
+				frame = mFreeFrames.pollFirst();
+			}
+			if (frame == null) {
+				frame = new Frame(bytes);
+			} else if (frame.buffer.capacity() < bytes) {
+				frame.buffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+			}
+			frame.buffer.clear();
+			frame.buffer.put(pixels);
+			frame.buffer.flip();
+			frame.width = width;
+			frame.height = height;
+			synchronized (mSync) {
+				if (mPendingFrame != null) {
+					// 顔検出が間に合っていないので古いフレームは破棄して最新のフレームだけを保持する
+					mFreeFrames.addLast(mPendingFrame);
+					mDroppedFrames++;
+				}
+				mPendingFrame = frame;
+			}
+			mAsyncHandler.removeCallbacks(mDetectTask);
+			mAsyncHandler.post(mDetectTask);
+		}
+
+		@WorkerThread
+		@Override
+		public void onPixelsDropped(@Nullable final Object tag) {
+			// 何もしない
+		}
+	};
+
 	/**
 	 * 顔検出処理を非同期で行うためのRunnable実装
 	 */
 	private final Runnable mDetectTask = new Runnable() {
+		/**
+		 * OpenGL|ESから読み取った映像は通常とは上下反転しているのでひっくり返すための行列
+		 */
 		private final Matrix m = new Matrix();
 		@WorkerThread
 		@Override
 		public void run() {
-			final Bitmap bitmap565;
-			final int width, height;
+			final Frame frame;
 			synchronized (mSync) {
-				// FaceDetectorはRGB565でないと検出できないので変換＆コピーする
-				if (mWorkBitmap != null) {
-					bitmap565 = mWorkBitmap.copy(Bitmap.Config.RGB_565, true);
-					width = getWidth();
-					height = getHeight();
-				} else {
-					return;
+				frame = mPendingFrame;
+				mPendingFrame = null;
+			}
+			if (frame == null) {
+				return;
+			}
+			final int width = frame.width;
+			final int height = frame.height;
+			try {
+				if ((mWorkBitmap == null)
+					|| (mWorkBitmap.getWidth() != width)
+					|| (mWorkBitmap.getHeight() != height)) {
+
+					releaseDetector();
+					mWorkBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+					// FaceDetectorはRGB565でないと検出できない
+					mBitmap565 = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+					mCanvas565 = new Canvas(mBitmap565);
+					mDetector = new FaceDetector(width, height, mMaxDetectNum);
+					m.setScale(1, -1);
+					m.postTranslate(0, height);
+				}
+				mWorkBitmap.copyPixelsFromBuffer(frame.buffer);
+			} finally {
+				synchronized (mSync) {
+					mFreeFrames.addLast(frame);
 				}
 			}
-			// OpenGL|ESから読み取った映像は通常とは上下反転しているのでひっくり返す
-			m.preScale(1, -1);
-			final Bitmap flippedBitmap = Bitmap.createBitmap(bitmap565, 0, 0, width, height, m, true);
-			bitmap565.recycle();
-			final int n = mDetector.findFaces(flippedBitmap, mDetected);
+			// 上下反転しながらRGB565へ変換
+			mCanvas565.drawBitmap(mWorkBitmap, m, null);
+			final int n = mDetector.findFaces(mBitmap565, mDetected);
+			synchronized (mSync) {
+				mAnalyzedFrames++;
+			}
 			if (n > 0) {
-				mListener.onDetected(/*flippedBitmap,*/ n, mDetected, width, height);
+				mListener.onDetected(/*mBitmap565,*/ n, mDetected, width, height);
 			}
-			flippedBitmap.recycle();
 		}
 	};
 }
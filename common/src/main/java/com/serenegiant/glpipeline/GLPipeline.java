@@ -22,6 +22,13 @@ import android.util.Log;
 
 import com.serenegiant.gl.GLConst;
 
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.Size;
@@ -232,24 +239,77 @@ public interface GLPipeline extends GLConst {
 		return sb.toString();
 	}
 
+	/**
+	 * 指定したGLPipelineの直後につながっているGLPipelineの一覧を取得する
+	 * DistributePipelineなら分岐先全て、MergePipeline.Inputなら合流先のMergePipelineを返す
+	 * @param pipeline
+	 * @return
+	 */
+	@NonNull
+	public static List<GLPipeline> getPipelines(@NonNull final GLPipeline pipeline) {
+		if (pipeline instanceof DistributePipeline) {
+			return ((DistributePipeline) pipeline).getPipelines();
+		} else if (pipeline instanceof MergePipeline.Input) {
+			return Collections.singletonList(((MergePipeline.Input) pipeline).getMerge());
+		} else {
+			final GLPipeline next = pipeline.getPipeline();
+			return next != null
+				? Collections.singletonList(next) : Collections.<GLPipeline>emptyList();
+		}
+	}
+
 	/**
 	 * パイプラインチェーンが正しく繋がっているかどうかを検証
 	 * ProxyPipelineの継承クラスの場合はGLPipeline#removeを呼び出したときに自動的に呼び出される
+	 * DistributePipelineによる分岐とMergePipelineによる合流を含むパイプライングラフも
+	 * 深さ優先で全て辿って検証する。親の設定が間違っているときは修正するが
+	 * 循環しているときは修正できないのでその先は辿らずにfalseを返す
 	 * @param root
 	 * @return
 	 */
 	public static boolean validatePipelineChain(@NonNull final GLPipeline root) {
 		boolean result = true;
-		GLPipeline pipeline = root;
-		while (pipeline != null) {
-			final GLPipeline next = pipeline.getPipeline();
-			if ((next != null) && (next.getParent() != pipeline)) {
+		final Set<GLPipeline> visited
+			= Collections.newSetFromMap(new IdentityHashMap<GLPipeline, Boolean>());
+		final Set<GLPipeline> onPath
+			= Collections.newSetFromMap(new IdentityHashMap<GLPipeline, Boolean>());
+		final ArrayDeque<GLPipeline> path = new ArrayDeque<>();
+		final ArrayDeque<Iterator<GLPipeline>> iterators = new ArrayDeque<>();
+		visited.add(root);
+		onPath.add(root);
+		path.push(root);
+		iterators.push(getPipelines(root).iterator());
+		while (!path.isEmpty()) {
+			final Iterator<GLPipeline> itr = iterators.peek();
+			if (!itr.hasNext()) {
+				onPath.remove(path.pop());
+				iterators.pop();
+				continue;
+			}
+			final GLPipeline pipeline = path.peek();
+			final GLPipeline next = itr.next();
+			if (onPath.contains(next)) {
+				Log.w(TAG, "validatePipelineChain:found cyclic chain" + pipeline + "=>" + next);
+				result = false;
+				continue;
+			}
+			if (next instanceof MergePipeline) {
+				// MergePipelineの親は選択中の入力用GLPipelineなので入力用GLPipelineかどうかだけを確認する
+				if (!((MergePipeline) next).hasInput(pipeline)) {
+					Log.v(TAG, "validatePipelineChain:found wrong chain" + pipeline + "=>" + next);
+					result = false;
+				}
+			} else if (next.getParent() != pipeline) {
 				Log.v(TAG, "validatePipelineChain:found wrong chain" + pipeline
-					+ "=>" + next + (next != null ? "(" + next.getParent() + ")" : ""));
+					+ "=>" + next + "(" + next.getParent() + ")");
 				next.setParent(pipeline);
 				result = false;
 			}
-			pipeline = next;
+			if (visited.add(next)) {
+				onPath.add(next);
+				path.push(next);
+				iterators.push(getPipelines(next).iterator());
+			}
 		}
 		return result;
 	}
@@ -0,0 +1,431 @@
+package com.serenegiant.glpipeline;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 分岐(fan-out)と合流(fan-in)を含むパイプライングラフを組み立てるためのヘルパークラス
+ * 名前をつけたGLPipelineをノードとして追加して#connect/#connectPathでつなぎ、
+ * #buildで実際のGLPipelineを接続する
+ * ・複数の下流へつながるノードの後ろには自動的にDistributePipelineを挿入する
+ *   (ノード自体がDistributePipelineならそのまま使う)
+ * ・複数の上流からつながるノードの前には自動的にMergePipelineを挿入する
+ * 同じ名前のノードは1つのGLPipelineなので、複数の下流で共通する映像効果等を
+ * 同じノードとして経路へ含めれば映像ソースのフレーム毎に1回だけ実行され
+ * その結果のテクスチャを全ての下流で共有する
+ * 例: source→beauty→{preview, encoder}, source→{faceDetect, capture}
+ */
+public class GLPipelineGraph {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = GLPipelineGraph.class.getSimpleName();
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final String mRootName;
+	/**
+	 * ノード名→GLPipeline, 追加した順を保持する
+	 */
+	@NonNull
+	private final Map<String, GLPipeline> mNodes = new LinkedHashMap<>();
+	/**
+	 * ノード名→下流のノード名
+	 */
+	@NonNull
+	private final Map<String, Set<String>> mEdges = new HashMap<>();
+	/**
+	 * #buildで自動的に挿入したMergePipeline, ノード名→MergePipeline
+	 */
+	@NonNull
+	private final Map<String, MergePipeline> mMerges = new HashMap<>();
+	/**
+	 * #buildで自動的に挿入したMergePipelineの入力, 合流先のノード名→(上流のノード名→入力用GLPipeline)
+	 */
+	@NonNull
+	private final Map<String, Map<String, MergePipeline.Input>> mMergeInputs = new HashMap<>();
+	/**
+	 * #buildで自動的に挿入したDistributePipeline
+	 */
+	@NonNull
+	private final List<DistributePipeline> mDistributors = new ArrayList<>();
+	private boolean mBuilt;
+
+	/**
+	 * コンストラクタ
+	 * @param rootName 映像ソースとなるノードの名前
+	 * @param root 映像ソースとなるGLPipeline(通常はGLPipelineSource)
+	 */
+	public GLPipelineGraph(@NonNull final String rootName, @NonNull final GLPipeline root) {
+		mRootName = rootName;
+		mNodes.put(rootName, root);
+	}
+
+	/**
+	 * ノードを追加する
+	 * @param name ノードの名前
+	 * @param pipeline
+	 * @return
+	 * @throws IllegalArgumentException 同じ名前のノードまたは同じGLPipelineが既に追加されているとき
+	 * @throws IllegalStateException #build済みのとき
+	 */
+	@NonNull
+	public GLPipelineGraph add(@NonNull final String name, @NonNull final GLPipeline pipeline)
+		throws IllegalArgumentException, IllegalStateException {
+
+		synchronized (mSync) {
+			checkNotBuilt();
+			if (mNodes.containsKey(name)) {
+				throw new IllegalArgumentException("Node already exists," + name);
+			}
+			if (mNodes.containsValue(pipeline)) {
+				throw new IllegalArgumentException("Pipeline already added," + pipeline);
+			}
+			mNodes.put(name, pipeline);
+		}
+		return this;
+	}
+
+	/**
+	 * ノード間をつなぐ
+	 * @param from 上流のノードの名前
+	 * @param to 下流のノードの名前
+	 * @return
+	 * @throws IllegalArgumentException ノードが存在しないとき・自分自身へつなごうとしたとき
+	 * @throws IllegalStateException #build済みのとき
+	 */
+	@NonNull
+	public GLPipelineGraph connect(@NonNull final String from, @NonNull final String to)
+		throws IllegalArgumentException, IllegalStateException {
+
+		synchronized (mSync) {
+			checkNotBuilt();
+			if (!mNodes.containsKey(from)) {
+				throw new IllegalArgumentException("Unknown node," + from);
+			}
+			if (!mNodes.containsKey(to)) {
+				throw new IllegalArgumentException("Unknown node," + to);
+			}
+			if (from.equals(to)) {
+				throw new IllegalArgumentException("Can't connect to itself," + from);
+			}
+			Set<String> next = mEdges.get(from);
+			if (next == null) {
+				next = new LinkedHashSet<>();
+				mEdges.put(from, next);
+			}
+			next.add(to);
+		}
+		return this;
+	}
+
+	/**
+	 * 指定した順にノード間をつなぐ
+	 * 複数の経路で同じノード名を使うとそこまでの処理を共有する
+	 * @param names
+	 * @return
+	 * @throws IllegalArgumentException
+	 * @throws IllegalStateException
+	 */
+	@NonNull
+	public GLPipelineGraph connectPath(@NonNull final String... names)
+		throws IllegalArgumentException, IllegalStateException {
+
+		for (int i = 1; i < names.length; i++) {
+			connect(names[i - 1], names[i]);
+		}
+		return this;
+	}
+
+	/**
+	 * パイプライングラフを検証してトポロジカル順(上流から下流の順)のノード名一覧を返す
+	 * @return
+	 * @throws IllegalStateException 映像ソースへつながっている・循環している・
+	 *                               映像ソースからたどり着けないノードがあるとき
+	 */
+	@NonNull
+	public List<String> validate() throws IllegalStateException {
+		synchronized (mSync) {
+			return validateLocked();
+		}
+	}
+
+	/**
+	 * パイプライングラフを検証して実際のGLPipelineを接続する
+	 * 各ノードに既に接続されているGLPipelineはつなぎ替える
+	 * @return 接続順(トポロジカル順)のノード名一覧
+	 * @throws IllegalStateException パイプライングラフが正しくないとき・#build済みのとき
+	 */
+	@NonNull
+	public List<String> build() throws IllegalStateException {
+		final GLPipeline root;
+		final List<String> order;
+		synchronized (mSync) {
+			checkNotBuilt();
+			order = validateLocked();
+			final Map<String, Integer> numParents = countParents();
+			// 合流するノードの前にMergePipelineを挿入する
+			for (final String name: order) {
+				final Integer n = numParents.get(name);
+				if ((n != null) && (n > 1)) {
+					final MergePipeline merge = new MergePipeline();
+					merge.setPipeline(mNodes.get(name));
+					mMerges.put(name, merge);
+					mMergeInputs.put(name, new HashMap<String, MergePipeline.Input>());
+				}
+			}
+			// 上流から順に接続する
+			for (final String name: order) {
+				final Set<String> next = mEdges.get(name);
+				if ((next == null) || next.isEmpty()) {
+					continue;
+				}
+				final GLPipeline pipeline = mNodes.get(name);
+				final List<GLPipeline> targets = new ArrayList<>(next.size());
+				for (final String to: next) {
+					targets.add(getInputLocked(name, to));
+				}
+				if (targets.size() == 1) {
+					pipeline.setPipeline(targets.get(0));
+				} else if (pipeline instanceof DistributePipeline) {
+					for (final GLPipeline target: targets) {
+						((DistributePipeline) pipeline).addPipeline(target);
+					}
+				} else {
+					// 複数の下流へつながるときはDistributePipelineで分岐させる
+					final DistributePipeline distributor = new DistributePipeline();
+					pipeline.setPipeline(distributor);
+					for (final GLPipeline target: targets) {
+						distributor.addPipeline(target);
+					}
+					mDistributors.add(distributor);
+				}
+			}
+			mBuilt = true;
+			root = mNodes.get(mRootName);
+		}
+		if (DEBUG) Log.v(TAG, "build:" + order);
+		GLPipeline.validatePipelineChain(root);
+		return order;
+	}
+
+	/**
+	 * 指定したノードのGLPipelineを取得
+	 * @param name
+	 * @return 存在しなければnull
+	 */
+	@Nullable
+	public GLPipeline get(@NonNull final String name) {
+		synchronized (mSync) {
+			return mNodes.get(name);
+		}
+	}
+
+	/**
+	 * 映像ソースとなるGLPipelineを取得
+	 * @return
+	 */
+	@NonNull
+	public GLPipeline getRoot() {
+		synchronized (mSync) {
+			//noinspection ConstantConditions
+			return mNodes.get(mRootName);
+		}
+	}
+
+	/**
+	 * 合流するノードの前に挿入したMergePipelineを取得
+	 * @param name 合流するノードの名前
+	 * @return #build前または合流しないノードならnull
+	 */
+	@Nullable
+	public MergePipeline getMerge(@NonNull final String name) {
+		synchronized (mSync) {
+			return mMerges.get(name);
+		}
+	}
+
+	/**
+	 * 合流するノードへ映像を渡す上流のノードを選択する
+	 * 選択するまではトポロジカル順で最初の上流のノードからの映像を渡す
+	 * @param name 合流するノードの名前
+	 * @param from 上流のノードの名前
+	 * @throws IllegalArgumentException 合流するノードでないときまたはfromが上流のノードでないとき
+	 */
+	public void selectInput(@NonNull final String name, @NonNull final String from)
+		throws IllegalArgumentException {
+
+		final MergePipeline merge;
+		final MergePipeline.Input input;
+		synchronized (mSync) {
+			merge = mMerges.get(name);
+			final Map<String, MergePipeline.Input> inputs = mMergeInputs.get(name);
+			input = inputs != null ? inputs.get(from) : null;
+		}
+		if ((merge == null) || (input == null)) {
+			throw new IllegalArgumentException("Not a merge node or input," + from + "=>" + name);
+		}
+		merge.selectInput(input);
+	}
+
+	/**
+	 * パイプライングラフに含まれる全てのGLPipelineと
+	 * 自動的に挿入したDistributePipeline/MergePipelineを破棄する
+	 */
+	public void release() {
+		final List<GLPipeline> pipelines;
+		synchronized (mSync) {
+			pipelines = new ArrayList<>(mNodes.values());
+			pipelines.addAll(mDistributors);
+			pipelines.addAll(mMerges.values());
+			mDistributors.clear();
+			mMerges.clear();
+			mMergeInputs.clear();
+		}
+		for (final GLPipeline pipeline: pipelines) {
+			pipeline.release();
+		}
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		synchronized (mSync) {
+			return "GLPipelineGraph{" + mEdges + "}";
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	private void checkNotBuilt() throws IllegalStateException {
+		if (mBuilt) {
+			throw new IllegalStateException("already built!");
+		}
+	}
+
+	/**
+	 * ノード名→上流のノード数
+	 * mSyncをロックした状態で呼び出すこと
+	 * @return
+	 */
+	@NonNull
+	private Map<String, Integer> countParents() {
+		final Map<String, Integer> result = new HashMap<>();
+		for (final Set<String> next: mEdges.values()) {
+			for (final String to: next) {
+				final Integer n = result.get(to);
+				result.put(to, n != null ? n + 1 : 1);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Kahnのアルゴリズムでトポロジカルソートしながら検証する
+	 * mSyncをロックした状態で呼び出すこと
+	 * @return
+	 * @throws IllegalStateException
+	 */
+	@NonNull
+	private List<String> validateLocked() throws IllegalStateException {
+		final Map<String, Integer> numParents = countParents();
+		if (numParents.containsKey(mRootName)) {
+			throw new IllegalStateException("Root node can't have upstream," + mRootName);
+		}
+		// 映像ソースからたどり着けるかどうか
+		final Set<String> reachable = new HashSet<>();
+		final ArrayDeque<String> queue = new ArrayDeque<>();
+		reachable.add(mRootName);
+		queue.add(mRootName);
+		while (!queue.isEmpty()) {
+			final Set<String> next = mEdges.get(queue.poll());
+			if (next != null) {
+				for (final String to: next) {
+					if (reachable.add(to)) {
+						queue.add(to);
+					}
+				}
+			}
+		}
+		for (final String name: mNodes.keySet()) {
+			if (!reachable.contains(name)) {
+				throw new IllegalStateException("Unreachable node," + name);
+			}
+		}
+		// 上流が無いノード(=映像ソースのみ)から順に取り出す
+		final List<String> result = new ArrayList<>(mNodes.size());
+		final Map<String, Integer> remains = new HashMap<>(numParents);
+		queue.add(mRootName);
+		while (!queue.isEmpty()) {
+			final String name = queue.poll();
+			result.add(name);
+			final Set<String> next = mEdges.get(name);
+			if (next != null) {
+				for (final String to: next) {
+					final int n = remains.get(to) - 1;
+					remains.put(to, n);
+					if (n == 0) {
+						queue.add(to);
+					}
+				}
+			}
+		}
+		if (result.size() != mNodes.size()) {
+			final List<String> cyclic = new ArrayList<>(mNodes.keySet());
+			cyclic.removeAll(result);
+			throw new IllegalStateException("Cyclic graph," + cyclic);
+		}
+		return Collections.unmodifiableList(result);
+	}
+
+	/**
+	 * 上流のノードから下流のノードへつなぐときの接続先を取得する
+	 * 下流のノードが合流するノードならMergePipelineの入力用GLPipelineを生成して返す
+	 * mSyncをロックした状態で呼び出すこと
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	@NonNull
+	private GLPipeline getInputLocked(@NonNull final String from, @NonNull final String to) {
+		final MergePipeline merge = mMerges.get(to);
+		if (merge != null) {
+			final MergePipeline.Input input = merge.addInput();
+			//noinspection ConstantConditions
+			mMergeInputs.get(to).put(from, input);
+			return input;
+		} else {
+			//noinspection ConstantConditions
+			return mNodes.get(to);
+		}
+	}
+}
@@ -0,0 +1,293 @@
+package com.serenegiant.glpipeline;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import androidx.annotation.CallSuper;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.Size;
+
+/**
+ * 複数の上流GLPipelineからの映像を1つの下流GLPipelineへ合流させるGLPipeline実装
+ * 上流毎に#addInputで入力用のGLPipelineを生成して上流へつなぐ
+ * 映像ソースのフレーム毎に下流が重複して呼び出されないように
+ * #selectInputで選択した入力からの映像だけを下流へ渡す
+ * (映像効果あり/なしの分岐を切り替えて録画する等)
+ */
+public class MergePipeline extends ProxyPipeline {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = MergePipeline.class.getSimpleName();
+
+	/**
+	 * MergePipelineへの入力用GLPipeline
+	 * 上流のGLPipelineへ接続して使う
+	 */
+	public static class Input extends ProxyPipeline {
+		@NonNull
+		private final MergePipeline mMerge;
+
+		private Input(@NonNull final MergePipeline merge) {
+			super(merge.getWidth(), merge.getHeight());
+			mMerge = merge;
+		}
+
+		@Override
+		protected void internalRelease() {
+			super.internalRelease();
+			mMerge.onInputReleased(this);
+		}
+
+		/**
+		 * 入力用GLPipelineの下流にはMergePipelineが固定で繋がっているので
+		 * 他のGLPipelineへつなぎ替えることはできない
+		 * @param pipeline
+		 * @throws UnsupportedOperationException
+		 */
+		@Override
+		public void setPipeline(@Nullable final GLPipeline pipeline) {
+			if (pipeline != null) {
+				throw new UnsupportedOperationException("Can't change downstream of MergePipeline.Input");
+			}
+		}
+
+		/**
+		 * 合流先のMergePipelineを取得
+		 * @return
+		 */
+		@NonNull
+		public MergePipeline getMerge() {
+			return mMerge;
+		}
+
+		@Override
+		public void resize(final int width, final int height) throws IllegalStateException {
+			super.resize(width, height);
+			mMerge.onInputResized(this, width, height);
+		}
+
+		@Override
+		public void refresh() {
+			super.refresh();
+			if (isValid() && (mMerge.getSelectedInput() == this)) {
+				mMerge.refresh();
+			}
+		}
+
+		@Override
+		public void onFrameAvailable(
+			final boolean isOES, final int texId,
+			@NonNull @Size(min=16) final float[] texMatrix) {
+
+			if (isValid()) {
+				mMerge.onInputFrameAvailable(this, isOES, texId, texMatrix);
+			}
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return "MergePipeline.Input{" + mMerge + "}";
+		}
+	}
+
+	@NonNull
+	private final List<Input> mInputs = new CopyOnWriteArrayList<>();
+	@Nullable
+	private volatile Input mSelected;
+	private volatile long mDroppedFrames;
+
+	/**
+	 * デフォルトコンストラクタ
+	 */
+	public MergePipeline() {
+		super();
+	}
+
+	@Override
+	protected void internalRelease() {
+		if (DEBUG) Log.v(TAG, "internalRelease:" + this);
+		mSelected = null;
+		final List<Input> inputs = new ArrayList<>(mInputs);
+		mInputs.clear();
+		for (final Input input: inputs) {
+			input.release();
+		}
+		super.internalRelease();
+	}
+
+	/**
+	 * 入力用GLPipelineを追加する
+	 * 最初に追加した入力用GLPipelineが選択された状態になる
+	 * @return
+	 * @throws IllegalStateException
+	 */
+	@NonNull
+	public Input addInput() throws IllegalStateException {
+		if (!isValid()) {
+			throw new IllegalStateException("already released!");
+		}
+		final Input input = new Input(this);
+		mInputs.add(input);
+		if (mSelected == null) {
+			mSelected = input;
+		}
+		return input;
+	}
+
+	/**
+	 * 入力用GLPipelineの一覧を取得
+	 * @return
+	 */
+	@NonNull
+	public List<Input> getInputs() {
+		return new ArrayList<>(mInputs);
+	}
+
+	/**
+	 * 指定したGLPipelineがこのMergePipelineの入力用GLPipelineかどうか
+	 * @param pipeline
+	 * @return
+	 */
+	public boolean hasInput(@Nullable final GLPipeline pipeline) {
+		//noinspection SuspiciousMethodCalls
+		return (pipeline != null) && mInputs.contains(pipeline);
+	}
+
+	/**
+	 * 下流へ映像を渡す入力用GLPipelineを選択する
+	 * @param input
+	 * @throws IllegalArgumentException このMergePipelineの入力用GLPipelineでないとき
+	 */
+	public void selectInput(@NonNull final Input input) throws IllegalArgumentException {
+		if (!mInputs.contains(input)) {
+			throw new IllegalArgumentException("Not an input of this MergePipeline," + input);
+		}
+		if (DEBUG) Log.v(TAG, "selectInput:" + input);
+		mSelected = input;
+		if ((input.getWidth() != getWidth()) || (input.getHeight() != getHeight())) {
+			resize(input.getWidth(), input.getHeight());
+		}
+	}
+
+	/**
+	 * 選択中の入力用GLPipelineを取得
+	 * @return
+	 */
+	@Nullable
+	public Input getSelectedInput() {
+		return mSelected;
+	}
+
+	/**
+	 * 選択されていない入力用GLPipelineからの映像で下流へ渡さなかったフレーム数を取得
+	 * @return
+	 */
+	public long getDroppedFrames() {
+		return mDroppedFrames;
+	}
+
+	/**
+	 * 選択中の入力用GLPipelineを経由して上流をたどれるように
+	 * 選択中の入力用GLPipelineがあればそれを返す
+	 * @return
+	 */
+	@Nullable
+	@Override
+	public GLPipeline getParent() {
+		final Input selected = mSelected;
+		return selected != null ? selected : super.getParent();
+	}
+
+	/**
+	 * 入力用GLPipelineを上流から切り離す
+	 * 入力が1つだけなら上流と下流をつなぎ替える
+	 */
+	@CallSuper
+	@Override
+	public void remove() {
+		if (DEBUG) Log.v(TAG, "remove:" + this);
+		final GLPipeline downstream = getPipeline();
+		final List<Input> inputs = new ArrayList<>(mInputs);
+		final GLPipeline upstream = inputs.size() == 1 ? inputs.get(0).getParent() : null;
+		mSelected = null;
+		mInputs.clear();
+		for (final Input input: inputs) {
+			input.remove();
+		}
+		super.remove();
+		if ((upstream != null) && (downstream != null)) {
+			// 入力が1つだけなら上流と下流をつなぎ替える
+			upstream.setPipeline(downstream);
+			GLPipeline.validatePipelineChain(GLPipeline.findFirst(upstream));
+		} else if (inputs.size() > 1) {
+			Log.d(TAG, "#remove can't rebuild pipeline chain!");
+		}
+	}
+
+	/**
+	 * 入力用GLPipelineから映像を受け取ったときの処理
+	 * 選択中の入力用GLPipelineからの映像のときだけ下流へ渡す
+	 * @param input
+	 * @param isOES
+	 * @param texId
+	 * @param texMatrix
+	 */
+	private void onInputFrameAvailable(
+		@NonNull final Input input,
+		final boolean isOES, final int texId,
+		@NonNull @Size(min=16) final float[] texMatrix) {
+
+		if (input == mSelected) {
+			super.onFrameAvailable(isOES, texId, texMatrix);
+		} else {
+			mDroppedFrames++;
+		}
+	}
+
+	/**
+	 * 入力用GLPipelineのサイズが変更されたときの処理
+	 * 選択中の入力用GLPipelineのときだけ下流へ伝播する
+	 * @param input
+	 * @param width
+	 * @param height
+	 */
+	private void onInputResized(@NonNull final Input input, final int width, final int height) {
+		if ((input == mSelected)
+			&& ((width != getWidth()) || (height != getHeight()))) {
+			resize(width, height);
+		}
+	}
+
+	/**
+	 * 入力用GLPipelineが破棄されたときの処理
+	 * 選択中の入力用GLPipelineが破棄されたときは残っている入力用GLPipelineを選択する
+	 * @param input
+	 */
+	private void onInputReleased(@NonNull final Input input) {
+		if (mInputs.remove(input) && (mSelected == input)) {
+			mSelected = mInputs.isEmpty() ? null : mInputs.get(0);
+		}
+	}
+}
@@ -20,6 +20,8 @@ package com.serenegiant.glpipeline;
 
 import android.util.Log;
 
+import com.serenegiant.glutils.StageProfiler;
+
 import androidx.annotation.CallSuper;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -230,7 +232,14 @@ public class ProxyPipeline implements GLPipeline {
 				pipeline = mPipeline;
 			}
 			if (pipeline != null) {
-				pipeline.onFrameAvailable(isOES, texId, texMatrix);
+				// 計測が有効なら下流のGLPipeline毎の処理時間を計測する
+				final StageProfiler profiler = StageProfiler.getInstance();
+				final boolean profile = profiler.enter(pipeline);
+				try {
+					pipeline.onFrameAvailable(isOES, texId, texMatrix);
+				} finally {
+					if (profile) profiler.exit();
+				}
 			}
 		}
 	}
@@ -0,0 +1,262 @@
+package com.serenegiant.glpipeline;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.opengl.GLES20;
+import android.util.Log;
+import android.view.Surface;
+
+import com.serenegiant.gl.GLDrawer2D;
+import com.serenegiant.gl.GLManager;
+import com.serenegiant.gl.GLUtils;
+import com.serenegiant.gl.RendererTarget;
+import com.serenegiant.math.Fraction;
+import com.serenegiant.media.ISurfaceEncoder;
+import com.serenegiant.media.MediaEncoder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.Size;
+import androidx.annotation.WorkerThread;
+
+/**
+ * 1つの映像ソースを複数の映像エンコーダーへ同時に異なる解像度で転送するためのGLPipeline実装
+ * (フル解像度でのローカル録画と低解像度でのライブ配信を同時に行う等)
+ * エンコーダー毎にRendererTargetを生成して各エンコーダーの入力Surfaceのサイズで描画するので
+ * 縮小はエンコーダー毎の描画パスで行われる
+ * GLDrawer2D(シェーダー)と入力テクスチャは全エンコーダーで共有するので
+ * 映像ソースからエンコーダーまでのパイプラインを複数用意するよりも負荷が小さい
+ * 各エンコーダー(とその出力先muxer)は呼び出し元でprepareしておくこと
+ */
+public class SimulcastPipeline extends ProxyPipeline {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = SimulcastPipeline.class.getSimpleName();
+
+	/**
+	 * エンコーダー毎の情報を保持するためのホルダークラス
+	 */
+	private static class EncoderTarget {
+		@NonNull
+		private final ISurfaceEncoder encoder;
+		@NonNull
+		private final RendererTarget target;
+		private long frames;
+
+		private EncoderTarget(@NonNull final ISurfaceEncoder encoder,
+			@NonNull final RendererTarget target) {
+
+			this.encoder = encoder;
+			this.target = target;
+		}
+	}
+
+	@NonNull
+	private final GLManager mManager;
+	/**
+	 * GLスレッド上でのみアクセスする
+	 */
+	@NonNull
+	private final List<EncoderTarget> mTargets = new ArrayList<>();
+	@Nullable
+	private GLDrawer2D mDrawer;
+
+	/**
+	 * コンストラクタ
+	 * @param manager
+	 */
+	public SimulcastPipeline(@NonNull final GLManager manager) {
+		super();
+		mManager = manager;
+	}
+
+	@Override
+	protected void internalRelease() {
+		if (DEBUG) Log.v(TAG, "internalRelease:");
+		if (mManager.isValid()) {
+			try {
+				mManager.runOnGLThread(new Runnable() {
+					@WorkerThread
+					@Override
+					public void run() {
+						releaseTargetsOnGL();
+					}
+				});
+			} catch (final Exception e) {
+				if (DEBUG) Log.w(TAG, e);
+			}
+		}
+		super.internalRelease();
+	}
+
+	@Override
+	public boolean isValid() {
+		return super.isValid() && mManager.isValid();
+	}
+
+	/**
+	 * 映像エンコーダーを追加する
+	 * 最大フレームレートはエンコーダーのVideoConfig#getCaptureFpsを使う
+	 * @param encoder prepare済みのエンコーダー
+	 * @throws IllegalStateException
+	 */
+	public void addEncoder(@NonNull final MediaEncoder.MediaVideoEncoder encoder)
+		throws IllegalStateException {
+
+		addEncoder(encoder, encoder.getConfig().getCaptureFps());
+	}
+
+	/**
+	 * 映像エンコーダーを追加する
+	 * @param encoder prepare済みのエンコーダー
+	 * @param maxFps 最大フレームレート, nullまたはFraction#ZEROなら制限なし
+	 * @throws IllegalStateException 解放済みまたはエンコーダーの入力Surfaceが無いとき
+	 */
+	public void addEncoder(@NonNull final ISurfaceEncoder encoder, @Nullable final Fraction maxFps)
+		throws IllegalStateException {
+
+		if (DEBUG) Log.v(TAG, "addEncoder:" + encoder + ",maxFps=" + maxFps);
+		if (!isValid()) {
+			throw new IllegalStateException("already released?");
+		}
+		final Surface surface = encoder.getInputSurface();
+		if ((surface == null) || !GLUtils.isSupportedSurface(surface)) {
+			throw new IllegalStateException("encoder has no input surface, not prepared yet?");
+		}
+		mManager.runOnGLThread(new Runnable() {
+			@WorkerThread
+			@Override
+			public void run() {
+				for (final EncoderTarget t: mTargets) {
+					if (t.encoder == encoder) {
+						return;
+					}
+				}
+				final RendererTarget target = RendererTarget.newInstance(
+					mManager.getEgl(), surface, maxFps != null ? maxFps.asFloat() : 0);
+				mTargets.add(new EncoderTarget(encoder, target));
+			}
+		});
+	}
+
+	/**
+	 * 映像エンコーダーを取り除く
+	 * エンコーダー自体の停止・破棄は呼び出し元で行うこと
+	 * @param encoder
+	 */
+	public void removeEncoder(@NonNull final ISurfaceEncoder encoder) {
+		if (DEBUG) Log.v(TAG, "removeEncoder:" + encoder);
+		if (isValid()) {
+			mManager.runOnGLThread(new Runnable() {
+				@WorkerThread
+				@Override
+				public void run() {
+					for (int i = mTargets.size() - 1; i >= 0; i--) {
+						final EncoderTarget t = mTargets.get(i);
+						if (t.encoder == encoder) {
+							mTargets.remove(i);
+							t.target.release();
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * 指定したエンコーダーへ描画したフレーム数を取得する
+	 * GLスレッド上で呼び出すこと
+	 * @param encoder
+	 * @return 追加されていなければ-1
+	 */
+	@WorkerThread
+	public long getFrameCount(@NonNull final ISurfaceEncoder encoder) {
+		for (final EncoderTarget t: mTargets) {
+			if (t.encoder == encoder) {
+				return t.frames;
+			}
+		}
+		return -1;
+	}
+
+	private int cnt;
+	@WorkerThread
+	@Override
+	public void onFrameAvailable(
+		final boolean isOES, final int texId,
+		@NonNull @Size(min=16) final float[] texMatrix) {
+
+		super.onFrameAvailable(isOES, texId, texMatrix);
+		if (isValid() && !mTargets.isEmpty()) {
+			if ((mDrawer == null) || (isOES != mDrawer.isOES())) {
+				// 初回またはGLPipelineを繋ぎ変えたあとにテクスチャが変わるかもしれない
+				if (mDrawer != null) {
+					mDrawer.release();
+				}
+				if (DEBUG) Log.v(TAG, "onFrameAvailable:create GLDrawer2D");
+				mDrawer = GLDrawer2D.create(mManager.isGLES3(), isOES);
+			}
+			// 全エンコーダーで同じGLDrawer2Dと入力テクスチャを使って
+			// それぞれの入力Surfaceのサイズで描画する
+			for (final EncoderTarget t: mTargets) {
+				if (t.encoder.isEncoding() && t.target.canDraw()) {
+					t.target.draw(mDrawer, GLES20.GL_TEXTURE0, texId, texMatrix);
+					t.frames++;
+					t.encoder.frameAvailableSoon();
+				}
+			}
+			if (DEBUG && (++cnt % 100) == 0) {
+				Log.v(TAG, "onFrameAvailable:" + cnt);
+			}
+		}
+	}
+
+	@Override
+	public void refresh() {
+		super.refresh();
+		// XXX SurfaceRendererPipelineと同様にシェーダーを再生成する
+		if (isValid()) {
+			mManager.runOnGLThread(new Runnable() {
+				@WorkerThread
+				@Override
+				public void run() {
+					if (mDrawer != null) {
+						mDrawer.release();
+						mDrawer = null;
+					}
+				}
+			});
+		}
+	}
+
+	@WorkerThread
+	private void releaseTargetsOnGL() {
+		if (DEBUG) Log.v(TAG, "releaseTargetsOnGL:");
+		for (final EncoderTarget t: mTargets) {
+			t.target.release();
+		}
+		mTargets.clear();
+		if (mDrawer != null) {
+			mDrawer.release();
+			mDrawer = null;
+		}
+	}
+}
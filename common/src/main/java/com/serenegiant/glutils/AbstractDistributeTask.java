@@ -26,9 +26,11 @@ import android.util.SparseArray;
 import com.serenegiant.egl.EGLBase;
 import com.serenegiant.gl.GLContext;
 import com.serenegiant.gl.GLDrawer2D;
+import com.serenegiant.gl.GLStateTracker;
 import com.serenegiant.gl.GLUtils;
 import com.serenegiant.gl.RendererTarget;
 import com.serenegiant.math.Fraction;
+import com.serenegiant.system.Time;
 import com.serenegiant.utils.ThreadUtils;
 
 import androidx.annotation.AnyThread;
@@ -76,6 +78,27 @@ public abstract class AbstractDistributeTask implements IMirror {
 	private volatile boolean mHasNewFrame;
 	private volatile boolean mReleased;
 	private GLDrawer2D mDrawer;
+	/**
+	 * 分配描画先毎の最大フレームレートに合わせて描画するかどうかを決めるスケジューラー
+	 */
+	@NonNull
+	private final FramePacingScheduler mScheduler = new FramePacingScheduler();
+	/**
+	 * 直前の#handleDrawTargetsで実際に描画した分配描画先の数
+	 */
+	private int mDrawnTargets;
+	/**
+	 * 描画するフレームのタイムスタンプ[ナノ秒]
+	 * #handleUpdateTextureで#setFrameTimestampを呼び出して映像ソースのタイムスタンプをセットする
+	 */
+	private long mFrameTimestampNs;
+	/**
+	 * 同じテクスチャを複数の分配描画先へ続けて描画するときに
+	 * 冗長なGL|ESの呼び出しをスキップするためのGLStateTracker
+	 * このインスタンスのEGLコンテキスト専用
+	 */
+	@NonNull
+	private final GLStateTracker mStateTracker = new GLStateTracker();
 
 	/**
 	 * コンストラクタ
@@ -305,6 +328,35 @@ public abstract class AbstractDistributeTask implements IMirror {
 		}
 	}
 
+	/**
+	 * 指定した分配描画先へ実際に描画しているフレームレートを取得
+	 * @param id
+	 * @return 未計算または存在しないidなら0
+	 */
+	@AnyThread
+	public float getFps(final int id) {
+		return mScheduler.getFps(id);
+	}
+
+	/**
+	 * 指定した分配描画先の最大フレームレートに合わせて描画しなかったフレーム数を取得
+	 * @param id
+	 * @return
+	 */
+	@AnyThread
+	public long getSkippedFrames(final int id) {
+		return mScheduler.getSkippedFrames(id);
+	}
+
+	/**
+	 * 分配描画時にスキップした冗長なGL|ESの呼び出し回数の合計を取得
+	 * @return
+	 */
+	@AnyThread
+	public long getAvoidedGLCalls() {
+		return mStateTracker.getAvoidedCount();
+	}
+
 	/**
 	 * 分配描画用のSurfaceの数を取得
 	 * @return
@@ -395,6 +447,7 @@ public abstract class AbstractDistributeTask implements IMirror {
 		if (DEBUG) Log.v(TAG, "internalOnStart:");
 		synchronized (mSync) {
 			mDrawer = mDrawerFactory.create(isGLES3(), true);
+			mDrawer.setStateTracker(mStateTracker);
 		}
 		handleReCreateInputSurface();
 	}
@@ -495,7 +548,12 @@ public abstract class AbstractDistributeTask implements IMirror {
 				makeCurrent();
 				if (mHasNewFrame) {
 					mHasNewFrame = false;
+					mFrameTimestampNs = 0;
 					handleUpdateTexture();
+					if (mFrameTimestampNs == 0) {
+						// 映像ソースのタイムスタンプが無いときは描画時の時刻で代用する
+						mFrameTimestampNs = Time.nanoTime();
+					}
 					GLES20.glFlush();
 					ThreadUtils.NoThrowSleep(0, 0);
 				}
@@ -507,10 +565,14 @@ public abstract class AbstractDistributeTask implements IMirror {
 			handleDrawTargets(isOES, texId, texMatrix);
 		}
 
-		// Egl保持用のSurfaceへ描画しないとデッドロックする端末対策
-		makeCurrent();
-		GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-		GLES20.glFlush();	// これなくても良さそう?
+		if (mDrawnTargets > 0) {
+			// Egl保持用のSurfaceへ描画しないとデッドロックする端末対策
+			// 分配描画先へ描画しなかったときはEgl保持用のSurfaceがカレントのままなので不要
+			mDrawnTargets = 0;
+			makeCurrent();
+			GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+			GLES20.glFlush();	// これなくても良さそう?
+		}
 		if (mIsFirstFrameRendered) {
 			callOnFrameAvailable();
 		}
@@ -533,14 +595,47 @@ public abstract class AbstractDistributeTask implements IMirror {
 					mDrawer.release();
 				}
 				mDrawer = mDrawerFactory.create(isGLES3(), isOES);
+				mDrawer.setStateTracker(mStateTracker);
 			}
 			drawer = mDrawer;
 		}
+		// 描画時の時刻だと描画スレッドの遅延でフレーム間隔が揺らぐので
+		// 映像ソースのフレームのタイムスタンプで間引く
+		mScheduler.onFrame(mFrameTimestampNs != 0 ? mFrameTimestampNs : Time.nanoTime());
+		// 同じテクスチャを続けて描画するので2つ目以降の分配描画先では
+		// シェーダープログラム・テクスチャのバインド等をスキップして
+		// 描画後のバインド解除は最後に1回だけ行う
+		mStateTracker.beginBatch();
+		try {
+			drawTargets(drawer, n, texId, texMatrix);
+		} finally {
+			mStateTracker.endBatch();
+		}
+	}
+
+	/**
+	 * #handleDrawTargetsの実体
+	 * @param drawer
+	 * @param n
+	 * @param texId
+	 * @param texMatrix
+	 */
+	@WorkerThread
+	private void drawTargets(@NonNull final GLDrawer2D drawer,
+		final int n, final int texId,
+		@NonNull @Size(min=16) final float[] texMatrix) {
+
+		final StageProfiler profiler = StageProfiler.getInstance();
 		for (int i = n - 1; i >= 0; i--) {
 			final RendererTarget target = mTargets.valueAt(i);
-			if ((target != null) && target.canDraw()) {
+			final int id = mTargets.keyAt(i);
+			// 最大フレームレートに達している分配描画先はmakeCurrent/描画せずにスキップする
+			if ((target != null) && target.canDraw() && mScheduler.isDue(id)) {
+				// 計測が有効なら分配描画先毎の処理時間を計測する
+				final boolean profile = profiler.enter(target);
 				try {
 					target.draw(drawer, GLES20.GL_TEXTURE0, texId, texMatrix);
+					mDrawnTargets++;
 				} catch (final Exception e) {
 					if (DEBUG) Log.w(TAG, e);
 					// removeSurfaceが呼ばれなかったかremoveSurfaceを呼ぶ前に破棄されてしまった
@@ -548,7 +643,10 @@ public abstract class AbstractDistributeTask implements IMirror {
 						// removeSurface/removeSurfaceAllを別スレッドが参照する可能性があるので排他制御する
 						mTargets.removeAt(i);
 					}
+					mScheduler.remove(id);
 					target.release();
+				} finally {
+					if (profile) profiler.exit();
 				}
 			}
 		}
@@ -584,6 +682,7 @@ public abstract class AbstractDistributeTask implements IMirror {
 				synchronized (mTargets) {
 					mTargets.append(ts.id, target);
 				}
+				mScheduler.add(ts.id, ts.maxFps);
 			} catch (final Exception e) {
 				Log.w(TAG, "invalid surface: surface=" + ts, e);
 			}
@@ -612,7 +711,9 @@ public abstract class AbstractDistributeTask implements IMirror {
 		@NonNull final Object surface, @Nullable final Fraction maxFps) {
 
 		if (DEBUG) Log.v(TAG, "createRendererTarget:" + id);
-		return RendererTarget.newInstance(egl, surface, maxFps != null ? maxFps.asFloat() : -1.0f);
+		// 最大フレームレートの制限はFramePacingSchedulerでまとめて行うので
+		// RendererTarget自体には最大フレームレートを指定しない
+		return RendererTarget.newInstance(egl, surface, -1.0f);
 	}
 
 	/**
@@ -625,6 +726,7 @@ public abstract class AbstractDistributeTask implements IMirror {
 		final RendererTarget target = mTargets.get(id);
 		if (target != null) {
 			mTargets.remove(id);
+			mScheduler.remove(id);
 			if (target.isValid()) {
 				target.clear(0);	// XXX 黒で塗りつぶし, 色指定できるようにする?
 			}
@@ -656,6 +758,7 @@ public abstract class AbstractDistributeTask implements IMirror {
 			}
 			mTargets.clear();
 		}
+		mScheduler.clear();
 		synchronized (mSync) {
 			mSync.notify();
 		}
@@ -675,6 +778,7 @@ public abstract class AbstractDistributeTask implements IMirror {
 				final int id = mTargets.keyAt(i);
 				if (DEBUG) Log.i(TAG, "checkTarget:found invalid surface:id=" + id);
 				mTargets.remove(id);
+				mScheduler.remove(id);
 				target.release();
 			}
 		}
@@ -843,10 +947,21 @@ public abstract class AbstractDistributeTask implements IMirror {
 	protected abstract void handleReleaseInputSurface();
 	/**
 	 * テクスチャを更新
+	 * 映像ソースのフレームのタイムスタンプがわかるときは#setFrameTimestampを呼び出すこと
 	 */
 	@WorkerThread
 	protected abstract void handleUpdateTexture();
 
+	/**
+	 * #handleUpdateTextureで取り込んだフレームのタイムスタンプをセットする
+	 * 分配描画先毎の最大フレームレートに合わせて間引くときに使う
+	 * @param timestampNs SurfaceTexture#getTimestamp等で取得したタイムスタンプ[ナノ秒], 0なら描画時の時刻で代用する
+	 */
+	@WorkerThread
+	protected void setFrameTimestamp(final long timestampNs) {
+		mFrameTimestampNs = timestampNs;
+	}
+
 	public abstract void notifyParent(final boolean isRunning);
 	public abstract void callOnFrameAvailable();
 
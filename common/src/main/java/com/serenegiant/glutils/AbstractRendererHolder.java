@@ -19,13 +19,10 @@ package com.serenegiant.glutils;
 */
 
 import android.annotation.SuppressLint;
-import android.annotation.TargetApi;
 import android.graphics.Bitmap;
 import android.graphics.SurfaceTexture;
 import android.opengl.GLES20;
-import android.opengl.GLES30;
 import android.opengl.Matrix;
-import android.os.Build;
 import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -50,7 +47,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.concurrent.Semaphore;
 
 import static com.serenegiant.gl.ShaderConst.GL_TEXTURE_EXTERNAL_OES;
 
@@ -62,6 +60,10 @@ public abstract class AbstractRendererHolder implements IRendererHolder {
 	private static final String TAG = AbstractRendererHolder.class.getSimpleName();
 	private static final String RENDERER_THREAD_NAME = "RendererHolder";
 	private static final String CAPTURE_THREAD_NAME = "CaptureTask";
+	/**
+	 * 同時に受け付ける静止画撮影要求の最大数(圧縮・書き込み中のものを含む)
+	 */
+	private static final int MAX_CAPTURES_IN_FLIGHT = 4;
 
 	@NonNull
 	private final Object mSync = new Object();
@@ -69,13 +71,23 @@ public abstract class AbstractRendererHolder implements IRendererHolder {
 	private final RenderHolderCallback mCallback;
 	private volatile boolean isRunning;
 
-	@Nullable
-	private OutputStream mCaptureStream;
-	@StillCaptureFormat
-	private int mCaptureFormat;
-	@IntRange(from = 1L,to = 99L)
-	private int mCaptureCompression = DEFAULT_CAPTURE_COMPRESSION;
-	private OnCapturedListener mOnCapturedListener;
+	/**
+	 * 未処理の静止画撮影要求
+	 */
+	@NonNull
+	private final ArrayDeque<CaptureRequest> mCaptureRequests = new ArrayDeque<>();
+	/**
+	 * 静止画撮影要求の受付枠
+	 * #captureStillで取得して撮影結果を通知するときに返却するので
+	 * キャプチャスレッドから圧縮用のワーカースレッドへ引き渡し中でも数がずれない
+	 */
+	@NonNull
+	private final Semaphore mCaptureSlots = new Semaphore(MAX_CAPTURES_IN_FLIGHT);
+	/**
+	 * 静止画の圧縮・書き込みをキャプチャスレッド外で行うためのヘルパー
+	 */
+	@NonNull
+	private final StillCaptureCompressor mCompressor = new StillCaptureCompressor();
 	@NonNull
 	protected final BaseRendererTask mRendererTask;
 
@@ -359,6 +371,9 @@ public abstract class AbstractRendererHolder implements IRendererHolder {
 
 	/**
 	 * 実際の静止画撮影要求メソッド
+	 * 要求をキューに追加してすぐに返る。圧縮・書き込みはワーカースレッドで行うので
+	 * 前の撮影要求の終了を待たずにMAX_CAPTURES_IN_FLIGHTまで続けて要求できる
+	 * listenerがOnCaptureTimingListenerなら撮影1回毎の所要時間も通知する
 	 * @param out
 	 * @param captureFormat
 	 * @param captureCompression
@@ -378,13 +393,11 @@ public abstract class AbstractRendererHolder implements IRendererHolder {
 			if (!isRunning) {
 				throw new IllegalStateException("already released?");
 			}
-			if (mCaptureStream != null) {
-				throw new IllegalStateException("already run still capturing now");
+			if (!mCaptureSlots.tryAcquire()) {
+				throw new IllegalStateException("too many still captures in flight");
 			}
-			mCaptureStream = out;
-			mCaptureFormat = captureFormat;
-			mCaptureCompression = captureCompression;
-			mOnCapturedListener = listener;
+			mCaptureRequests.addLast(new CaptureRequest(
+				out, captureFormat, captureCompression, listener));
 			mSync.notifyAll();
 		}
 		if (DEBUG) Log.v(TAG, "captureStill:終了");
@@ -756,6 +769,7 @@ public abstract class AbstractRendererHolder implements IRendererHolder {
 		protected void handleUpdateTexture() {
 			mInputTexture.updateTexImage();
 			mInputTexture.getTransformMatrix(mTexMatrix);
+			setFrameTimestamp(mInputTexture.getTimestamp());
 		}
 
 		/**
@@ -840,8 +854,68 @@ public abstract class AbstractRendererHolder implements IRendererHolder {
 	protected void setupCaptureDrawer(final GLDrawer2D drawer) {
 	}
 	
+	/**
+	 * 静止画撮影要求を保持するためのホルダークラス
+	 */
+	private static class CaptureRequest {
+		@NonNull
+		private final OutputStream out;
+		@StillCaptureFormat
+		private final int format;
+		@IntRange(from = 1L,to = 99L)
+		private final int compression;
+		@Nullable
+		private final OnCapturedListener listener;
+		/**
+		 * 撮影要求時のシステム時刻[ナノ秒]
+		 */
+		private final long requestTimeNs;
+
+		private CaptureRequest(
+			@NonNull final OutputStream out,
+			@StillCaptureFormat final int format,
+			final int compression,
+			@Nullable final OnCapturedListener listener) {
+
+			this.out = out;
+			this.format = format;
+			this.compression = ((compression <= 0) || (compression >= 100))
+				? 90 : compression;
+			this.listener = listener;
+			this.requestTimeNs = System.nanoTime();
+		}
+	}
+
+	/**
+	 * 静止画撮影の結果をコールバックする
+	 * @param request
+	 * @param success
+	 * @param timing
+	 */
+	private void callOnCaptured(@NonNull final CaptureRequest request,
+		final boolean success, @Nullable final CaptureTiming timing) {
+
+		if (DEBUG) Log.v(TAG, "callOnCaptured:success=" + success + "," + timing);
+		// コールバック内から次の撮影要求をできるように先に受付枠を返却する
+		mCaptureSlots.release();
+		if (request.listener != null) {
+			try {
+				request.listener.onCaptured(AbstractRendererHolder.this, success);
+				if ((timing != null)
+					&& (request.listener instanceof OnCaptureTimingListener)) {
+					((OnCaptureTimingListener)request.listener)
+						.onCaptureTiming(AbstractRendererHolder.this, timing);
+				}
+			} catch (final Exception e) {
+				if (DEBUG) Log.w(TAG, e);
+			}
+		}
+	}
+
 	/**
 	 * 静止画を非同期でキャプチャするためのRunnable
+	 * キャプチャスレッドでは描画とglReadPixelsだけを行い、
+	 * Bitmapへの変換と圧縮・書き込みはStillCaptureCompressorのワーカースレッドで行う
 	 */
 	private final Runnable mCaptureTask = new Runnable() {
 		private GLContext mContext;
@@ -867,11 +941,7 @@ public abstract class AbstractRendererHolder implements IRendererHolder {
 			if (isRunning) {
 				init();
 				try {
-					if (mContext.isOES3Supported()) {
-						captureLoopGLES3();
-					} else {
-						captureLoopGLES2();
-					}
+					captureLoop();
 				} catch (final Exception e) {
 					Log.w(TAG, e);
 				} finally {
@@ -892,189 +962,109 @@ public abstract class AbstractRendererHolder implements IRendererHolder {
 			setupCaptureDrawer(drawer);
 		}
 
-		private final void captureLoopGLES2() {
+		/**
+		 * 撮影要求を受け取って描画とglReadPixelsを行いワーカースレッドへ引き渡すループ
+		 * 以前はGL|ES2とGL|ES3で別々のループだったが
+		 * GLES30#glReadPixelsはGLES20#glReadPixelsと同じなので1つにまとめた
+		 */
+		private final void captureLoop() {
 			int width = -1, height = -1;
-			ByteBuffer buf = null;
-			int captureCompression = DEFAULT_CAPTURE_COMPRESSION;
 //			if (DEBUG) Log.v(TAG, "captureTask loop");
 			for (; isRunning ;) {
+				final CaptureRequest request;
 				synchronized (mSync) {
-					if (mCaptureStream == null) {
+					if (mCaptureRequests.isEmpty()) {
 						try {
 							mSync.wait();
 						} catch (final InterruptedException e) {
 							break;
 						}
-						if (mCaptureStream != null) {
-//							if (DEBUG) Log.i(TAG, "静止画撮影要求を受け取った");
-							captureCompression = mCaptureCompression;
-							if ((captureCompression <= 0) || (captureCompression >= 100)) {
-								captureCompression = 90;
-							}
-						} else {
-							// 起床されたけどmCaptureStreamがnullだった
-							continue;
-						}
+						// 起床されたけど撮影要求が無ければ待機し直す
+						continue;
 					}
-					if (DEBUG) Log.v(TAG, "#captureLoopGLES2:start capture");
-					boolean success = false;
-					if ((buf == null)
-						|| (width != mRendererTask.width())
-						|| (height != mRendererTask.height())) {
-
-						width = mRendererTask.width();
-						height = mRendererTask.height();
-						buf = ByteBuffer.allocateDirect(width * height * 4);
-				    	buf.order(ByteOrder.LITTLE_ENDIAN);
-				    	if (captureSurface != null) {
-				    		captureSurface.release();
-				    		captureSurface = null;
-				    	}
-				    	captureSurface = mContext.getEgl().createOffscreen(width, height);
-					}
-					if (isRunning && (width > 0) && (height > 0)) {
-						GLUtils.setMirror(mMvpMatrix, mRendererTask.getMirror());
-						mMvpMatrix[5] *= -1.0f;	// flip up-side down
-						drawer.setMvpMatrix(mMvpMatrix, 0);
-						captureSurface.makeCurrent();
-						drawer.draw(GLES20.GL_TEXTURE0, mRendererTask.mTexId, mRendererTask.mTexMatrix, 0);
-						captureSurface.swap();
-				        buf.clear();
-				        GLES20.glReadPixels(0, 0, width, height,
-				        	GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buf);
-//				        if (DEBUG) Log.v(TAG, "save pixels to file:" + captureFile);
-				        final Bitmap.CompressFormat compressFormat
-				        	= getCaptureFormat(mCaptureFormat);
-						try {
-					        try {
-					            final Bitmap bmp = Bitmap.createBitmap(
-					            	width, height, Bitmap.Config.ARGB_8888);
-						        buf.clear();
-					            bmp.copyPixelsFromBuffer(buf);
-					            bmp.compress(compressFormat, captureCompression, mCaptureStream);
-					            bmp.recycle();
-								mCaptureStream.flush();
-								success = true;
-					        } finally {
-					            mCaptureStream.close();
-					        }
-						} catch (final IOException e) {
-							Log.w(TAG, "failed to save file", e);
-						}
-					} else if (isRunning) {
-						Log.w(TAG, "#captureLoopGLES3:unexpectedly width/height is zero");
+					request = mCaptureRequests.pollFirst();
+				}
+				if (DEBUG) Log.v(TAG, "#captureLoop:start capture");
+				final long startNs = System.nanoTime();
+				if ((width != mRendererTask.width())
+					|| (height != mRendererTask.height())) {
+
+					width = mRendererTask.width();
+					height = mRendererTask.height();
+			    	if (captureSurface != null) {
+			    		captureSurface.release();
+			    		captureSurface = null;
+			    	}
+			    	captureSurface = mContext.getEgl().createOffscreen(width, height);
+				}
+				if (isRunning && (width > 0) && (height > 0)) {
+					GLUtils.setMirror(mMvpMatrix, mRendererTask.getMirror());
+					mMvpMatrix[5] *= -1.0f;	// flip up-side down
+					drawer.setMvpMatrix(mMvpMatrix, 0);
+					captureSurface.makeCurrent();
+					drawer.draw(GLES20.GL_TEXTURE0, mRendererTask.mTexId, mRendererTask.mTexMatrix, 0);
+					captureSurface.swap();
+					final ByteBuffer buf = mCompressor.obtainBuffer(width, height);
+			        GLES20.glReadPixels(0, 0, width, height,
+			        	GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buf);
+					final long waitNs = startNs - request.requestTimeNs;
+					final long readNs = System.nanoTime() - startNs;
+					try {
+						// ここではワーカースレッドへ引き渡すだけですぐに次の撮影要求の処理へ戻る
+						mCompressor.compress(buf, width, height,
+							request.out, getCaptureFormat(request.format), request.compression,
+							(success, queueNs, compressNs) -> {
+								callOnCaptured(request, success,
+									new CaptureTiming(waitNs, readNs, queueNs, compressNs));
+								synchronized (mSync) {
+									mSync.notifyAll();
+								}
+							});
+					} catch (final IllegalStateException e) {
+						mCompressor.recycleBuffer(buf);
+						failCapture(request);
 					}
-					if (DEBUG) Log.i(TAG, "#captureLoopGLES2:静止画撮影終了");
-					mCaptureStream = null;
-					if (mOnCapturedListener != null) {
-						try {
-							mOnCapturedListener.onCaptured(AbstractRendererHolder.this, success);
-						} catch (final Exception e) {
-							if (DEBUG) Log.w(TAG, e);
-						}
+				} else {
+					if (isRunning) {
+						Log.w(TAG, "#captureLoop:unexpectedly width/height is zero");
 					}
-					mOnCapturedListener = null;
-					mSync.notifyAll();
-				}	// end of synchronized (mSync)
+					failCapture(request);
+				}
 			}	// end of for (; isRunning ;)
-			synchronized (mSync) {
-				mSync.notifyAll();
+			// 終了時に未処理の撮影要求が残っていれば失敗として通知する
+			for (; ; ) {
+				final CaptureRequest request;
+				synchronized (mSync) {
+					request = mCaptureRequests.pollFirst();
+					if (request == null) {
+						mSync.notifyAll();
+						break;
+					}
+				}
+				failCapture(request);
 			}
 		}
 
-		@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
-		private final void captureLoopGLES3() {
-			int width = -1, height = -1;
-			ByteBuffer buf = null;
-			int captureCompression = 90;
-//			if (DEBUG) Log.v(TAG, "captureTask loop");
-			for (; isRunning ;) {
-				synchronized (mSync) {
-					if (mCaptureStream == null) {
-						try {
-							mSync.wait();
-						} catch (final InterruptedException e) {
-							break;
-						}
-						if (mCaptureStream != null) {
-//							if (DEBUG) Log.i(TAG, "静止画撮影要求を受け取った");
-							captureCompression = mCaptureCompression;
-							if ((captureCompression <= 0) || (captureCompression >= 100)) {
-								captureCompression = 90;
-							}
-						} else {
-							// 起床されたけどmCaptureStreamがnullだった
-							continue;
-						}
-					}
-					if (DEBUG) Log.v(TAG, "#captureLoopGLES3:start capture");
-					boolean success = false;
-					if ((buf == null)
-						|| (width != mRendererTask.width())
-						|| (height != mRendererTask.height())) {
-
-						width = mRendererTask.width();
-						height = mRendererTask.height();
-						buf = ByteBuffer.allocateDirect(width * height * 4);
-				    	buf.order(ByteOrder.LITTLE_ENDIAN);
-				    	if (captureSurface != null) {
-				    		captureSurface.release();
-				    		captureSurface = null;
-				    	}
-				    	captureSurface = mContext.getEgl().createOffscreen(width, height);
-					}
-					if (isRunning && (width > 0) && (height > 0)) {
-						GLUtils.setMirror(mMvpMatrix, mRendererTask.getMirror());
-						mMvpMatrix[5] *= -1.0f;	// flip up-side down
-						drawer.setMvpMatrix(mMvpMatrix, 0);
-						captureSurface.makeCurrent();
-						drawer.draw(GLES20.GL_TEXTURE0, mRendererTask.mTexId, mRendererTask.mTexMatrix, 0);
-						captureSurface.swap();
-				        buf.clear();
-						// FIXME これはGL|ES3のPBOとglMapBufferRange/glUnmapBufferを使うように変更する
-				        GLES30.glReadPixels(0, 0, width, height,
-							GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, buf);
-//				        if (DEBUG) Log.v(TAG, "save pixels to file:" + captureFile);
-						final Bitmap.CompressFormat compressFormat
-							= getCaptureFormat(mCaptureFormat);
-						try {
-					        try {
-					            final Bitmap bmp = Bitmap.createBitmap(
-					            	width, height, Bitmap.Config.ARGB_8888);
-						        buf.clear();
-					            bmp.copyPixelsFromBuffer(buf);
-					            bmp.compress(compressFormat, captureCompression, mCaptureStream);
-					            bmp.recycle();
-								mCaptureStream.flush();
-								success = true;
-					        } finally {
-					            mCaptureStream.close();
-					        }
-						} catch (final IOException e) {
-							Log.w(TAG, "failed to save file", e);
-						}
-					} else if (isRunning) {
-						Log.w(TAG, "#captureLoopGLES3:unexpectedly width/height is zero");
-					}
-					if (DEBUG) Log.i(TAG, "#captureLoopGLES3:静止画撮影終了");
-					mCaptureStream = null;
-					if (mOnCapturedListener != null) {
-						try {
-							mOnCapturedListener.onCaptured(AbstractRendererHolder.this, success);
-						} catch (final Exception e) {
-							if (DEBUG) Log.w(TAG, e);
-						}
-					}
-					mOnCapturedListener = null;
-					mSync.notifyAll();
-				}	// end of synchronized (mSync)
-			}	// end of for (; isRunning ;)
+		/**
+		 * 撮影できなかったときの処理
+		 * 出力先をクローズして失敗を通知する
+		 * @param request
+		 */
+		private void failCapture(@NonNull final CaptureRequest request) {
+			try {
+				request.out.close();
+			} catch (final IOException e) {
+				if (DEBUG) Log.w(TAG, e);
+			}
+			callOnCaptured(request, false, null);
 			synchronized (mSync) {
 				mSync.notifyAll();
 			}
 		}
 
 		private void release() {
+			// 要求済みの圧縮・書き込みはワーカースレッドで最後まで実行される
+			mCompressor.release();
 			if (captureSurface != null) {
 				captureSurface.makeCurrent();
 				captureSurface.release();
@@ -0,0 +1,548 @@
+package com.serenegiant.glutils;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.math.Fraction;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.Size;
+
+import static com.serenegiant.gl.ShaderConst.*;
+
+/**
+ * CompositeRendererHolderで複数の映像入力を1パスで合成するための
+ * レイアウト(表示位置・重ね順・アルファ値・最大フレームレート)と
+ * 再合成が必要かどうかを管理するクラス
+ * 映像入力毎の最大フレームレートはFramePacingSchedulerで間引いて、
+ * 表示中の映像入力に描画すべき新しいフレームが来たときかレイアウトを変更したときだけ
+ * 再合成が必要とする
+ * GLに依存しないのでローカルユニットテストでテストできる
+ */
+public class CompositeLayout {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = CompositeLayout.class.getSimpleName();
+
+	/**
+	 * 映像入力の最大数
+	 * 映像入力毎にテクスチャユニットを1つ使うので
+	 * GLES2で保証されているフラグメントシェーダーのテクスチャユニット数(8)に合わせる
+	 * 1映像入力あたりフラグメントシェーダーのuniformをvec4で3つ使うので
+	 * 6以上の映像入力を使うときはGL_MAX_FRAGMENT_UNIFORM_VECTORSが
+	 * GLES2の最小値(16)より大きい必要がある
+	 */
+	public static final int MAX_INPUTS = 8;
+
+	/**
+	 * 合成時のサンプラーのuniform変数名, 後ろに重ね順(0から)が付く
+	 */
+	public static final String SAMPLER_NAME = "sTexture";
+	/**
+	 * 表示位置のuniform変数名(vec4配列)
+	 * (左下x, 左下y, 1/幅, 1/高さ), 合成先の左下を原点とする0-1の座標
+	 */
+	public static final String RECT_NAME = "uRect";
+	/**
+	 * テクスチャ変換行列の2x2部分のuniform変数名(vec4配列)
+	 */
+	public static final String TEX_MATRIX_NAME = "uTexMatrix2";
+	/**
+	 * テクスチャ変換行列の平行移動成分とアルファ値のuniform変数名(vec4配列)
+	 */
+	public static final String TEX_PARAM_NAME = "uTexParam";
+
+	/**
+	 * #pollで取得する合成時の描画内容
+	 * 表示する映像入力を奥から手前の順(重ね順)に保持する
+	 */
+	public static class Composition {
+		private int mCount;
+		@NonNull
+		private final int[] mInputs = new int[MAX_INPUTS];
+		/**
+		 * 重ね順毎の表示位置(左下x, 左下y, 右上x, 右上y)
+		 * 合成先の左下を原点とする0-1の座標
+		 */
+		@NonNull
+		private final float[] mRects = new float[MAX_INPUTS * 4];
+		@NonNull
+		private final float[] mAlphas = new float[MAX_INPUTS];
+
+		/**
+		 * 表示する映像入力の数
+		 * @return
+		 */
+		public int getCount() {
+			return mCount;
+		}
+
+		/**
+		 * 指定した重ね順の映像入力のインデックスを取得
+		 * @param slot 0が一番奥
+		 * @return
+		 */
+		public int getInput(final int slot) {
+			return mInputs[slot];
+		}
+
+		/**
+		 * 指定した重ね順の映像入力のアルファ値を取得
+		 * @param slot 0が一番奥
+		 * @return
+		 */
+		public float getAlpha(final int slot) {
+			return mAlphas[slot];
+		}
+
+		/**
+		 * 指定した重ね順の映像入力の表示位置を取得
+		 * @param slot 0が一番奥
+		 * @param out (左下x, 左下y, 右上x, 右上y), 合成先の左下を原点とする0-1の座標
+		 * @return out
+		 */
+		@NonNull
+		public float[] getRect(final int slot, @NonNull @Size(min=4) final float[] out) {
+			System.arraycopy(mRects, slot * 4, out, 0, 4);
+			return out;
+		}
+
+		/**
+		 * 合成用シェーダーへ引き渡すuniformの値を生成する
+		 * 各配列は重ね順毎にvec4(4要素)ずつ書き込む
+		 * @param texMatrices 映像入力のインデックス毎のテクスチャ変換行列
+		 * @param rects RECT_NAMEへ引き渡す値
+		 * @param texMatrix2 TEX_MATRIX_NAMEへ引き渡す値
+		 * @param texParams TEX_PARAM_NAMEへ引き渡す値
+		 */
+		public void getUniforms(@NonNull final float[][] texMatrices,
+			@NonNull final float[] rects,
+			@NonNull final float[] texMatrix2,
+			@NonNull final float[] texParams) {
+
+			for (int slot = 0; slot < mCount; slot++) {
+				final int ix = slot * 4;
+				final float[] m = texMatrices[mInputs[slot]];
+				rects[ix] = mRects[ix];
+				rects[ix + 1] = mRects[ix + 1];
+				rects[ix + 2] = 1.0f / (mRects[ix + 2] - mRects[ix]);
+				rects[ix + 3] = 1.0f / (mRects[ix + 3] - mRects[ix + 1]);
+				// 映像入力はz=0の平面なのでテクスチャ変換行列は2x2部分と平行移動成分だけ使う
+				texMatrix2[ix] = m[0];
+				texMatrix2[ix + 1] = m[1];
+				texMatrix2[ix + 2] = m[4];
+				texMatrix2[ix + 3] = m[5];
+				texParams[ix] = m[12];
+				texParams[ix + 1] = m[13];
+				texParams[ix + 2] = mAlphas[slot];
+				texParams[ix + 3] = 0.0f;
+			}
+		}
+	}
+
+	/**
+	 * 映像入力毎のレイアウト情報
+	 */
+	private static class Input {
+		/**
+		 * 表示位置, 合成先の左上を原点とする0-1の座標
+		 */
+		private float left = 0.0f, top = 0.0f, right = 1.0f, bottom = 1.0f;
+		private int zOrder;
+		private float alpha = 1.0f;
+		private boolean visible = true;
+		/**
+		 * 1度でもフレームをテクスチャへ取り込んだ(#pollNewFramesで取得した)かどうか
+		 * 取り込むまではテクスチャの内容が不定なので合成しない
+		 */
+		private boolean hasFrame;
+		/**
+		 * 前回#pollNewFramesを呼び出した後に新しいフレームを受け取ったかどうか
+		 */
+		private boolean pending;
+		/**
+		 * 受け取ったフレームを取り込んだときに再合成が必要かどうか
+		 */
+		private boolean due;
+		/**
+		 * 最大フレームレートで間引くためのスケジューラー(id=0のみ使う)
+		 */
+		@NonNull
+		private final FramePacingScheduler pacer = new FramePacingScheduler();
+
+		/**
+		 * フレームを取り込めば表示されるかどうか
+		 * @return
+		 */
+		private boolean isVisible() {
+			return visible && (alpha > 0.0f)
+				&& (right > left) && (bottom > top);
+		}
+
+		private boolean isShown() {
+			return hasFrame && isVisible();
+		}
+	}
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final Input[] mInputs;
+	private boolean mDirty = true;
+	private long mComposed;
+	private long mSkipped;
+
+	/**
+	 * コンストラクタ
+	 * 初期状態では全ての映像入力を合成先全面へインデックス順に重ねる
+	 * @param numInputs 映像入力の数, 1以上MAX_INPUTS以下
+	 * @throws IllegalArgumentException
+	 */
+	public CompositeLayout(final int numInputs) throws IllegalArgumentException {
+		if ((numInputs < 1) || (numInputs > MAX_INPUTS)) {
+			throw new IllegalArgumentException("numInputs should be 1.." + MAX_INPUTS + ", but " + numInputs);
+		}
+		mInputs = new Input[numInputs];
+		for (int i = 0; i < numInputs; i++) {
+			mInputs[i] = new Input();
+			mInputs[i].zOrder = i;
+		}
+	}
+
+	/**
+	 * 映像入力の数を取得
+	 * @return
+	 */
+	public int getNumInputs() {
+		return mInputs.length;
+	}
+
+	/**
+	 * 映像入力の表示位置を設定
+	 * @param index
+	 * @param left 合成先の左上を原点とする0-1の座標
+	 * @param top 合成先の左上を原点とする0-1の座標
+	 * @param right 合成先の左上を原点とする0-1の座標
+	 * @param bottom 合成先の左上を原点とする0-1の座標
+	 * @return 変更したかどうか
+	 * @throws IllegalArgumentException
+	 */
+	public boolean setRect(final int index,
+		final float left, final float top, final float right, final float bottom)
+			throws IllegalArgumentException {
+
+		synchronized (mSync) {
+			final Input input = getInput(index);
+			if ((input.left != left) || (input.top != top)
+				|| (input.right != right) || (input.bottom != bottom)) {
+				input.left = left;
+				input.top = top;
+				input.right = right;
+				input.bottom = bottom;
+				mDirty = true;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 映像入力の重ね順を設定
+	 * 値が大きいほど手前に表示する, 同じ値のときはインデックスが大きいほど手前
+	 * @param index
+	 * @param zOrder
+	 * @return 変更したかどうか
+	 * @throws IllegalArgumentException
+	 */
+	public boolean setZOrder(final int index, final int zOrder) throws IllegalArgumentException {
+		synchronized (mSync) {
+			final Input input = getInput(index);
+			if (input.zOrder != zOrder) {
+				input.zOrder = zOrder;
+				mDirty = true;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 映像入力のアルファ値を設定
+	 * @param index
+	 * @param alpha 0-1の範囲外なら丸める
+	 * @return 変更したかどうか
+	 * @throws IllegalArgumentException
+	 */
+	public boolean setAlpha(final int index, final float alpha) throws IllegalArgumentException {
+		final float a = Math.max(0.0f, Math.min(1.0f, alpha));
+		synchronized (mSync) {
+			final Input input = getInput(index);
+			if (input.alpha != a) {
+				input.alpha = a;
+				mDirty = true;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 映像入力を表示するかどうかを設定
+	 * @param index
+	 * @param visible
+	 * @return 変更したかどうか
+	 * @throws IllegalArgumentException
+	 */
+	public boolean setVisible(final int index, final boolean visible) throws IllegalArgumentException {
+		synchronized (mSync) {
+			final Input input = getInput(index);
+			if (input.visible != visible) {
+				input.visible = visible;
+				mDirty = true;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 映像入力を表示するかどうかを取得
+	 * @param index
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	public boolean isVisible(final int index) throws IllegalArgumentException {
+		synchronized (mSync) {
+			return getInput(index).visible;
+		}
+	}
+
+	/**
+	 * 映像入力の最大フレームレートを設定
+	 * 最大フレームレートを超える分のフレームは受け取っても再合成しない
+	 * @param index
+	 * @param maxFps nullまたは0以下なら最大フレームレートの制限なし
+	 * @throws IllegalArgumentException
+	 */
+	public void setMaxFps(final int index, @Nullable final Fraction maxFps)
+		throws IllegalArgumentException {
+
+		synchronized (mSync) {
+			getInput(index).pacer.add(0, maxFps);
+		}
+	}
+
+	/**
+	 * 映像入力が新しいフレームを受け取ったときに呼び出す
+	 * 表示中の映像入力で最大フレームレートに達していなければ
+	 * #pollNewFramesでフレームを取り込んだときに再合成が必要になる
+	 * (#pollNewFramesと#pollの間に受け取ったフレームはまだテクスチャへ取り込まれていないので
+	 * 次の#pollNewFramesまで再合成しない)
+	 * @param index
+	 * @param timestampNs フレームのタイムスタンプ[ナノ秒]
+	 * @return フレームを取り込んだときに再合成が必要かどうか
+	 * @throws IllegalArgumentException
+	 */
+	public boolean onFrameAvailable(final int index, final long timestampNs)
+		throws IllegalArgumentException {
+
+		synchronized (mSync) {
+			final Input input = getInput(index);
+			input.pending = true;
+			if (input.isVisible()) {
+				input.pacer.onFrame(timestampNs);
+				if (input.pacer.isDue(0)) {
+					input.due = true;
+				}
+			}
+			return input.due;
+		}
+	}
+
+	/**
+	 * 前回呼び出した後に新しいフレームを受け取った映像入力を取得してクリアする
+	 * 再合成するかどうかに関わらず該当する映像入力のフレームを取り込む
+	 * (SurfaceTexture#updateTexImageを呼ぶ)ために使う
+	 * 呼び出した時点でフレームを取り込んだものとして、初めてフレームを取り込んだ映像入力は合成対象にして
+	 * 最大フレームレートに達していないフレームを取り込んだときは再合成が必要になる
+	 * @return 映像入力のインデックスのビットマスク
+	 */
+	public int pollNewFrames() {
+		int result = 0;
+		synchronized (mSync) {
+			final int n = mInputs.length;
+			for (int i = 0; i < n; i++) {
+				final Input input = mInputs[i];
+				if (input.pending) {
+					input.pending = false;
+					input.hasFrame = true;
+					if (input.due) {
+						input.due = false;
+						mDirty = true;
+					}
+					result |= (1 << i);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 強制的に再合成が必要な状態にする
+	 */
+	public void invalidate() {
+		synchronized (mSync) {
+			mDirty = true;
+		}
+	}
+
+	/**
+	 * 再合成が必要かどうか
+	 * @return
+	 */
+	public boolean isDirty() {
+		synchronized (mSync) {
+			return mDirty;
+		}
+	}
+
+	/**
+	 * 再合成が必要なら合成時の描画内容を取得して再合成が不要な状態にする
+	 * @param out
+	 * @return 再合成が必要ならtrue, falseのときはoutを変更しない
+	 */
+	public boolean poll(@NonNull final Composition out) {
+		synchronized (mSync) {
+			if (!mDirty) {
+				mSkipped++;
+				return false;
+			}
+			mDirty = false;
+			mComposed++;
+			// 映像入力の数は少ないので重ね順で安定な挿入ソートをする
+			final int n = mInputs.length;
+			int count = 0;
+			for (int i = 0; i < n; i++) {
+				final Input input = mInputs[i];
+				if (!input.isShown()) continue;
+				int j = count;
+				for (; (j > 0) && (mInputs[out.mInputs[j - 1]].zOrder > input.zOrder); j--) {
+					out.mInputs[j] = out.mInputs[j - 1];
+				}
+				out.mInputs[j] = i;
+				count++;
+			}
+			out.mCount = count;
+			for (int slot = 0; slot < count; slot++) {
+				final Input input = mInputs[out.mInputs[slot]];
+				final int ix = slot * 4;
+				// 左上原点から左下原点(GLの座標系)へ変換する
+				out.mRects[ix] = input.left;
+				out.mRects[ix + 1] = 1.0f - input.bottom;
+				out.mRects[ix + 2] = input.right;
+				out.mRects[ix + 3] = 1.0f - input.top;
+				out.mAlphas[slot] = input.alpha;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * 再合成した回数を取得
+	 * @return
+	 */
+	public long getComposedCount() {
+		synchronized (mSync) {
+			return mComposed;
+		}
+	}
+
+	/**
+	 * 再合成が不要でスキップした回数を取得
+	 * @return
+	 */
+	public long getSkippedCount() {
+		synchronized (mSync) {
+			return mSkipped;
+		}
+	}
+
+	@NonNull
+	private Input getInput(final int index) throws IllegalArgumentException {
+		if ((index < 0) || (index >= mInputs.length)) {
+			throw new IllegalArgumentException("index should be 0.." + (mInputs.length - 1) + ", but " + index);
+		}
+		return mInputs[index];
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * 指定した数の映像入力(GL_TEXTURE_EXTERNAL_OES)を1パスで合成するフラグメントシェーダーを生成する
+	 * 重ね順k番目の映像入力はサンプラーSAMPLER_NAME + kから読み込んで
+	 * 不透明な黒の上に奥から順にアルファ値で重ねる
+	 * 表示位置外かどうかはstepで判定して分岐しない
+	 * @param numSlots 合成する映像入力の数, 1以上MAX_INPUTS以下
+	 * @param isGLES3
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	@NonNull
+	public static String createFragmentShader(final int numSlots, final boolean isGLES3)
+		throws IllegalArgumentException {
+
+		if ((numSlots < 1) || (numSlots > MAX_INPUTS)) {
+			throw new IllegalArgumentException("numSlots should be 1.." + MAX_INPUTS + ", but " + numSlots);
+		}
+		final StringBuilder sb = new StringBuilder();
+		if (isGLES3) {
+			sb.append(SHADER_VERSION_ES3).append(HEADER_OES_ES3);
+		} else {
+			sb.append(SHADER_VERSION_ES2).append(HEADER_OES_ES2);
+		}
+		sb.append("precision highp float;\n");
+		sb.append(isGLES3 ? "in" : "varying").append(" vec2 vTextureCoord;\n");
+		for (int k = 0; k < numSlots; k++) {
+			sb.append("uniform ").append(SAMPLER_OES).append(' ')
+				.append(SAMPLER_NAME).append(k).append(";\n");
+		}
+		sb.append("uniform vec4 ").append(RECT_NAME).append('[').append(numSlots).append("];\n");
+		sb.append("uniform vec4 ").append(TEX_MATRIX_NAME).append('[').append(numSlots).append("];\n");
+		sb.append("uniform vec4 ").append(TEX_PARAM_NAME).append('[').append(numSlots).append("];\n");
+		if (isGLES3) {
+			sb.append("layout(location = 0) out vec4 o_FragColor;\n");
+		}
+		sb.append("void main() {\n");
+		sb.append("    vec3 color = vec3(0.0);\n");
+		sb.append("    vec2 q;\n");
+		sb.append("    vec4 c;\n");
+		final String texture = isGLES3 ? "texture" : "texture2D";
+		for (int k = 0; k < numSlots; k++) {
+			sb.append("    q = (vTextureCoord - ").append(RECT_NAME).append('[').append(k).append("].xy) * ")
+				.append(RECT_NAME).append('[').append(k).append("].zw;\n");
+			sb.append("    c = ").append(texture).append('(').append(SAMPLER_NAME).append(k)
+				.append(", mat2(").append(TEX_MATRIX_NAME).append('[').append(k).append("].xy, ")
+				.append(TEX_MATRIX_NAME).append('[').append(k).append("].zw) * q + ")
+				.append(TEX_PARAM_NAME).append('[').append(k).append("].xy);\n");
+			sb.append("    color = mix(color, c.rgb, c.a * ").append(TEX_PARAM_NAME).append('[').append(k).append("].z")
+				.append(" * step(0.0, q.x) * step(q.x, 1.0) * step(0.0, q.y) * step(q.y, 1.0));\n");
+		}
+		sb.append("    ").append(isGLES3 ? "o_FragColor" : "gl_FragColor").append(" = vec4(color, 1.0);\n");
+		sb.append("}\n");
+		return sb.toString();
+	}
+}
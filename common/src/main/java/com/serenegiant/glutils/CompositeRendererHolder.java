@@ -0,0 +1,654 @@
+package com.serenegiant.glutils;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.annotation.SuppressLint;
+import android.graphics.SurfaceTexture;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Surface;
+
+import com.serenegiant.egl.EGLBase;
+import com.serenegiant.egl.EGLConst;
+import com.serenegiant.gl.GLDrawer2D;
+import com.serenegiant.gl.GLSurface;
+import com.serenegiant.gl.GLUtils;
+import com.serenegiant.math.Fraction;
+import com.serenegiant.system.BuildCheck;
+import com.serenegiant.system.Time;
+import com.serenegiant.utils.HandlerThreadHandler;
+import com.serenegiant.utils.HandlerUtils;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.Size;
+import androidx.annotation.WorkerThread;
+
+import static com.serenegiant.gl.ShaderConst.*;
+
+/**
+ * 複数の映像入力を表示位置・重ね順・アルファ値を指定して合成して表示するためのIRendererHolder実装
+ * (ピクチャーインピクチャーや複数カメラの並べて表示等)
+ * 映像入力0はマスター映像入力(#getSurface/#getSurfaceTexture)で、
+ * 映像入力1以降は#getInputSurface/#getInputSurfaceTextureで取得する
+ * 全ての映像入力を別々のテクスチャユニットへ割り当てて1パスでオフスクリーンへ合成してから
+ * 合成結果を各分配描画先へ描画するので、分配描画先の数に関わらず合成は1回だけ
+ * 表示中の映像入力に新しいフレームが来たときかレイアウトを変更したときだけ再合成・描画する
+ * 映像入力毎に最大フレームレートを設定するとそれを超える分のフレームでは再合成しない
+ * (フレームの取り込みはするので映像入力側がブロックすることはない)
+ * 静止画撮影はマスター映像入力の映像のみ
+ */
+public class CompositeRendererHolder extends AbstractRendererHolder {
+	private static final boolean DEBUG = false; // FIXME set false on production
+	private static final String TAG = CompositeRendererHolder.class.getSimpleName();
+
+	/**
+	 * 映像入力生成待ちのタイムアウト[ミリ秒]
+	 */
+	private static final long SETUP_TIMEOUT_MS = 3000;
+
+	@NonNull
+	private final CompositeLayout mLayout;
+
+	/**
+	 * コンストラクタ
+	 * @param width
+	 * @param height
+	 * @param numInputs 映像入力の数, 1以上CompositeLayout.MAX_INPUTS以下
+	 * @param callback
+	 */
+	public CompositeRendererHolder(final int width, final int height,
+		final int numInputs,
+		@Nullable final RenderHolderCallback callback) {
+
+		this(width, height, numInputs,
+			3, null, EGLConst.EGL_FLAG_RECORDABLE,
+			callback);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param width
+	 * @param height
+	 * @param numInputs 映像入力の数, 1以上CompositeLayout.MAX_INPUTS以下
+	 * @param maxClientVersion
+	 * @param sharedContext
+	 * @param flags
+	 * @param callback
+	 * @throws IllegalArgumentException numInputsが範囲外のとき
+	 * @throws IllegalStateException 映像入力を生成できなかったとき
+	 */
+	public CompositeRendererHolder(final int width, final int height,
+		final int numInputs,
+		final int maxClientVersion,
+		@Nullable final EGLBase.IContext<?> sharedContext, final int flags,
+		@Nullable final RenderHolderCallback callback)
+			throws IllegalArgumentException, IllegalStateException {
+
+		super(width, height, maxClientVersion, sharedContext, flags, callback);
+		if (DEBUG) Log.v(TAG, "コンストラクタ:");
+		mLayout = new CompositeLayout(numInputs);
+		// 描画タスクはスーパークラスのコンストラクタ内で生成・開始するので
+		// 映像入力の数が決まってから映像入力1以降を生成する
+		if (!((CompositeRendererTask)mRendererTask).setup(mLayout)) {
+			release();
+			throw new IllegalStateException("Failed to create input surfaces");
+		}
+	}
+
+	/**
+	 * 映像入力の数を取得
+	 * @return
+	 */
+	public int getNumInputs() {
+		return mLayout.getNumInputs();
+	}
+
+	/**
+	 * 指定した映像入力の映像を受け取るためのSurfaceを取得
+	 * @param index 0ならマスター映像入力(#getSurfaceと同じ)
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	public Surface getInputSurface(final int index) throws IllegalArgumentException {
+		return index == 0 ? getSurface()
+			: ((CompositeRendererTask)mRendererTask).getInputSurface(index);
+	}
+
+	/**
+	 * 指定した映像入力の映像を受け取るためのSurfaceTextureを取得
+	 * @param index 0ならマスター映像入力(#getSurfaceTextureと同じ)
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	public SurfaceTexture getInputSurfaceTexture(final int index) throws IllegalArgumentException {
+		return index == 0 ? getSurfaceTexture()
+			: ((CompositeRendererTask)mRendererTask).getInputSurfaceTexture(index);
+	}
+
+	/**
+	 * 映像入力の表示位置を設定
+	 * @param index
+	 * @param left 合成先の左上を原点とする0-1の座標
+	 * @param top 合成先の左上を原点とする0-1の座標
+	 * @param right 合成先の左上を原点とする0-1の座標
+	 * @param bottom 合成先の左上を原点とする0-1の座標
+	 * @throws IllegalArgumentException
+	 */
+	public void setLayerRect(final int index,
+		final float left, final float top, final float right, final float bottom)
+			throws IllegalArgumentException {
+
+		if (mLayout.setRect(index, left, top, right, bottom)) {
+			super.requestFrame();
+		}
+	}
+
+	/**
+	 * 映像入力の重ね順を設定
+	 * 値が大きいほど手前に表示する, 同じ値のときはインデックスが大きいほど手前
+	 * デフォルトはインデックスと同じ値
+	 * @param index
+	 * @param zOrder
+	 * @throws IllegalArgumentException
+	 */
+	public void setLayerZOrder(final int index, final int zOrder) throws IllegalArgumentException {
+		if (mLayout.setZOrder(index, zOrder)) {
+			super.requestFrame();
+		}
+	}
+
+	/**
+	 * 映像入力のアルファ値を設定
+	 * @param index
+	 * @param alpha 0-1
+	 * @throws IllegalArgumentException
+	 */
+	public void setLayerAlpha(final int index, final float alpha) throws IllegalArgumentException {
+		if (mLayout.setAlpha(index, alpha)) {
+			super.requestFrame();
+		}
+	}
+
+	/**
+	 * 映像入力を表示するかどうかを設定
+	 * @param index
+	 * @param visible
+	 * @throws IllegalArgumentException
+	 */
+	public void setLayerVisible(final int index, final boolean visible) throws IllegalArgumentException {
+		if (mLayout.setVisible(index, visible)) {
+			super.requestFrame();
+		}
+	}
+
+	/**
+	 * 映像入力の最大フレームレートを設定
+	 * 最大フレームレートを超える分のフレームは受け取っても再合成しない
+	 * @param index
+	 * @param maxFps nullまたは0以下なら最大フレームレートの制限なし
+	 * @throws IllegalArgumentException
+	 */
+	public void setLayerMaxFps(final int index, @Nullable final Fraction maxFps)
+		throws IllegalArgumentException {
+
+		mLayout.setMaxFps(index, maxFps);
+	}
+
+	/**
+	 * 再合成した回数を取得
+	 * @return
+	 */
+	public long getComposedCount() {
+		return mLayout.getComposedCount();
+	}
+
+	/**
+	 * 新しいフレームもレイアウトの変更もなく再合成・描画をスキップした回数を取得
+	 * @return
+	 */
+	public long getSkippedCount() {
+		return mLayout.getSkippedCount();
+	}
+
+	/**
+	 * 強制的に再合成して現在の最新のフレームを描画要求する
+	 * 分配描画用Surface全てが更新されるので注意
+	 */
+	@Override
+	public void requestFrame() {
+		mLayout.invalidate();
+		super.requestFrame();
+	}
+
+	/**
+	 * 描画タスクを生成
+	 * @param width
+	 * @param height
+	 * @param maxClientVersion
+	 * @param sharedContext
+	 * @param flags
+	 * @return
+	 */
+	@NonNull
+	@Override
+	protected BaseRendererTask createRendererTask(
+		final int width, final int height,
+		final int maxClientVersion,
+		@Nullable final EGLBase.IContext<?> sharedContext, final int flags) {
+
+		return new CompositeRendererTask(this, width, height,
+			maxClientVersion, sharedContext, flags, null);
+	}
+
+	/**
+	 * 描画タスク
+	 */
+	private final class CompositeRendererTask extends BaseRendererTask {
+		/**
+		 * 映像入力のインデックス毎のテクスチャ名, 映像入力0はマスター映像入力なので使わない
+		 */
+		@NonNull
+		private final int[] mInputTexIds = new int[CompositeLayout.MAX_INPUTS];
+		@NonNull
+		private final SurfaceTexture[] mInputTextures = new SurfaceTexture[CompositeLayout.MAX_INPUTS];
+		@NonNull
+		private final Surface[] mInputSurfaces = new Surface[CompositeLayout.MAX_INPUTS];
+		/**
+		 * 映像入力のインデックス毎のテクスチャ変換行列
+		 * 映像入力0はマスター映像入力のテクスチャ変換行列を参照する
+		 */
+		@NonNull
+		private final float[][] mInputTexMatrices = new float[CompositeLayout.MAX_INPUTS][];
+		@Size(min=16)
+		@NonNull
+		private final float[] mIdentityMatrix = new float[16];
+
+		@NonNull
+		private final CompositeLayout.Composition mComposition = new CompositeLayout.Composition();
+		@NonNull
+		private final float[] mRects = new float[CompositeLayout.MAX_INPUTS * 4];
+		@NonNull
+		private final float[] mTexMatrix2 = new float[CompositeLayout.MAX_INPUTS * 4];
+		@NonNull
+		private final float[] mTexParams = new float[CompositeLayout.MAX_INPUTS * 4];
+		@NonNull
+		private final int[] muSamplerLocs = new int[CompositeLayout.MAX_INPUTS];
+		private int muRectLoc, muTexMatrix2Loc, muTexParamLoc;
+		/**
+		 * 合成用シェーダーの重ね順の数, 0なら合成用シェーダー未生成
+		 */
+		private int mNumSlots;
+		/**
+		 * #setupが呼ばれるまではnull
+		 */
+		@Nullable
+		private volatile CompositeLayout mTaskLayout;
+		@Nullable
+		private GLDrawer2D mCompositor;
+		@Nullable
+		private GLSurface mOffscreen;
+
+		/**
+		 * OnFrameAvailable呼び出し用のHandler
+		 */
+		private Handler mAsyncHandler;
+
+		/**
+		 * コンストラクタ
+		 * @param parent
+		 * @param width
+		 * @param height
+		 * @param maxClientVersion
+		 * @param sharedContext
+		 * @param flags
+		 */
+		public CompositeRendererTask(@NonNull final AbstractRendererHolder parent,
+			final int width, final int height,
+			final int maxClientVersion,
+			@Nullable final EGLBase.IContext<?> sharedContext, final int flags,
+			@Nullable GLDrawer2D.DrawerFactory factory) {
+
+			super(parent, width, height, maxClientVersion, sharedContext, flags, factory);
+			if (BuildCheck.isAndroid5()) {
+				mAsyncHandler = HandlerThreadHandler.createHandler("OnFrameAvailable");
+			}
+			Matrix.setIdentityM(mIdentityMatrix, 0);
+			if (DEBUG) Log.v(TAG, "CompositeRendererTask#コンストラクタ:");
+		}
+
+		/**
+		 * 映像入力1以降を描画スレッド上で生成して終了するまで待機する
+		 * @param layout
+		 * @return 生成できたかどうか
+		 */
+		public boolean setup(@NonNull final CompositeLayout layout) {
+			if (DEBUG) Log.v(TAG, "setup:" + layout.getNumInputs());
+			final Semaphore sync = new Semaphore(0);
+			queueEvent(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						handleSetup(layout);
+					} catch (final Exception e) {
+						Log.w(TAG, e);
+					}
+					sync.release();
+				}
+			});
+			try {
+				if (sync.tryAcquire(SETUP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+					return mTaskLayout != null;
+				}
+			} catch (final InterruptedException e) {
+				// do nothing
+			}
+			return false;
+		}
+
+		/**
+		 * 映像入力取得用のSurfaceを取得
+		 * @param index 1以上
+		 * @return
+		 */
+		public Surface getInputSurface(final int index) throws IllegalArgumentException {
+			checkIndex(index);
+			checkMasterSurface();
+			return mInputSurfaces[index];
+		}
+
+		/**
+		 * 映像入力受け取り用のSurfaceTextureを取得
+		 * @param index 1以上
+		 * @return
+		 */
+		public SurfaceTexture getInputSurfaceTexture(final int index) throws IllegalArgumentException {
+			checkIndex(index);
+			checkMasterSurface();
+			return mInputTextures[index];
+		}
+
+		private void checkIndex(final int index) throws IllegalArgumentException {
+			final CompositeLayout layout = mTaskLayout;
+			if ((layout == null) || (index < 1) || (index >= layout.getNumInputs())) {
+				throw new IllegalArgumentException("invalid input index " + index);
+			}
+		}
+
+		/**
+		 * #setupの実体
+		 * 映像入力1以降のテクスチャ/SurfaceTexture/Surfaceを生成する
+		 * 映像入力iのテクスチャはテクスチャユニットGL_TEXTURE0+iへ割り当てる
+		 * @param layout
+		 */
+		@SuppressLint("NewApi")
+		@WorkerThread
+		private void handleSetup(@NonNull final CompositeLayout layout) {
+			if (DEBUG) Log.v(TAG, String.format("handleSetup:init input textures(%dx%d)",
+				width(), height()));
+			makeCurrent();
+			final int n = layout.getNumInputs();
+			for (int i = 1; i < n; i++) {
+				mInputTexIds[i] = GLUtils.initTex(
+					GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE0 + i,
+					GLES20.GL_LINEAR, GLES20.GL_LINEAR, GLES20.GL_CLAMP_TO_EDGE);
+				mInputTextures[i] = new SurfaceTexture(mInputTexIds[i]);
+				mInputTextures[i].setDefaultBufferSize(width(), height());
+				mInputSurfaces[i] = new Surface(mInputTextures[i]);
+				mInputTexMatrices[i] = new float[16];
+				Matrix.setIdentityM(mInputTexMatrices[i], 0);
+				final InputListener listener = new InputListener(i);
+				if (BuildCheck.isAndroid5()) {
+					mInputTextures[i].setOnFrameAvailableListener(listener, mAsyncHandler);
+				} else {
+					mInputTextures[i].setOnFrameAvailableListener(listener);
+				}
+			}
+			mTaskLayout = layout;
+		}
+
+		@Override
+		protected void internalOnStop() {
+			if (DEBUG) Log.v(TAG, "internalOnStop:");
+			synchronized (CompositeRendererHolder.this) {
+				if (mAsyncHandler != null) {
+					try {
+						mAsyncHandler.removeCallbacksAndMessages(null);
+					} catch (final Exception e) {
+						Log.w(TAG, e);
+					}
+				}
+			}
+			mTaskLayout = null;
+			for (int i = 1; i < CompositeLayout.MAX_INPUTS; i++) {
+				if (mInputTextures[i] != null) {
+					mInputTextures[i].release();
+					mInputTextures[i] = null;
+				}
+				if (mInputSurfaces[i] != null) {
+					mInputSurfaces[i].release();
+					mInputSurfaces[i] = null;
+				}
+				if (mInputTexIds[i] > 0) {
+					GLUtils.deleteTex(mInputTexIds[i]);
+					mInputTexIds[i] = 0;
+				}
+			}
+			if (mCompositor != null) {
+				mCompositor.release();
+				mCompositor = null;
+			}
+			mNumSlots = 0;
+			if (mOffscreen != null) {
+				mOffscreen.release();
+				mOffscreen = null;
+			}
+			if (mAsyncHandler != null) {
+				HandlerUtils.NoThrowQuit(mAsyncHandler);
+				mAsyncHandler = null;
+			}
+			if (DEBUG) Log.v(TAG, "internalOnStop:finished");
+			super.internalOnStop();
+		}
+
+		/**
+		 * 新しいフレームを受け取った映像入力だけフレームを取り込む
+		 * 合成した映像には映像入力毎に別々の時計のタイムスタンプが混ざるので
+		 * 分配描画先毎の間引きには合成時の時刻を使う
+		 */
+		@Override
+		protected void handleUpdateTexture() {
+			final CompositeLayout layout = mTaskLayout;
+			if (layout == null) {
+				super.handleUpdateTexture();
+				return;
+			}
+			final int updated = layout.pollNewFrames();
+			if ((updated & 1) != 0) {
+				super.handleUpdateTexture();
+			}
+			final int n = layout.getNumInputs();
+			for (int i = 1; i < n; i++) {
+				if (((updated & (1 << i)) != 0) && (mInputTextures[i] != null)) {
+					mInputTextures[i].updateTexImage();
+					mInputTextures[i].getTransformMatrix(mInputTexMatrices[i]);
+				}
+			}
+			// 映像入力0のタイムスタンプと他の映像入力のタイムスタンプは時計が違うことがあるので
+			// 合成した映像は映像入力0のフレームの有無に関わらず常に合成時の時刻で間引く
+			setFrameTimestamp(Time.nanoTime());
+		}
+
+		/**
+		 * 再合成が必要なときだけオフスクリーンへ合成してから各Surfaceへ描画する
+		 * @param isOES
+		 * @param texId
+		 * @param texMatrix
+		 */
+		@WorkerThread
+		@Override
+		protected void handleDrawTargets(
+			final boolean isOES,
+			final int texId, @NonNull @Size(min=16) final float[] texMatrix) {
+
+			final CompositeLayout layout = mTaskLayout;
+			if ((layout == null) || !layout.poll(mComposition)) {
+				// 表示中の映像入力に描画すべき新しいフレームが無くてレイアウトも変わっていない
+				return;
+			}
+			final GLSurface offscreen = compose();
+			if (offscreen != null) {
+				super.handleDrawTargets(false, offscreen.getTexId(), offscreen.getTexMatrix());
+			}
+		}
+
+		/**
+		 * 全ての映像入力を1パスでオフスクリーンへ合成する
+		 * @return 合成先のオフスクリーン, 映像サイズが不正なときはnull
+		 */
+		@Nullable
+		@WorkerThread
+		private GLSurface compose() {
+			final int w = width();
+			final int h = height();
+			if ((w <= 0) || (h <= 0)) {
+				return null;
+			}
+			if ((mOffscreen == null)
+				|| (w != mOffscreen.getWidth())
+				|| (h != mOffscreen.getHeight())) {
+
+				if (mOffscreen != null) {
+					mOffscreen.release();
+				}
+				mOffscreen = GLSurface.newInstance(isGLES3(), GLES20.GL_TEXTURE0, w, h);
+			}
+			final int n = mComposition.getCount();
+			mOffscreen.makeCurrent();
+			if (n > 0) {
+				final GLDrawer2D compositor = obtainCompositor(n);
+				mInputTexMatrices[0] = getTexMatrix();
+				mComposition.getUniforms(mInputTexMatrices, mRects, mTexMatrix2, mTexParams);
+				compositor.glUseProgram();
+				GLES20.glUniform4fv(muRectLoc, n, mRects, 0);
+				GLES20.glUniform4fv(muTexMatrix2Loc, n, mTexMatrix2, 0);
+				GLES20.glUniform4fv(muTexParamLoc, n, mTexParams, 0);
+				for (int slot = 0; slot < n; slot++) {
+					final int input = mComposition.getInput(slot);
+					GLES20.glUniform1i(muSamplerLocs[slot], input);
+					if (input > 0) {
+						GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + input);
+						GLES20.glBindTexture(GL_TEXTURE_EXTERNAL_OES, mInputTexIds[input]);
+					}
+				}
+				// マスター映像入力はGL_TEXTURE0へGLDrawer2D側でバインドする
+				compositor.draw(GLES20.GL_TEXTURE0, getTexId(), mIdentityMatrix, 0);
+			} else {
+				// 表示する映像入力が無いときは黒で塗りつぶす
+				GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+				GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+			}
+			mOffscreen.swap();
+			return mOffscreen;
+		}
+
+		/**
+		 * 指定した重ね順の数の合成用シェーダーを使うGLDrawer2Dを取得する
+		 * 重ね順の数が変わったときだけシェーダーを生成し直す
+		 * @param numSlots
+		 * @return
+		 */
+		@NonNull
+		@WorkerThread
+		private GLDrawer2D obtainCompositor(final int numSlots) {
+			if (mCompositor == null) {
+				mCompositor = GLDrawer2D.create(isGLES3(), true);
+				mNumSlots = 0;
+			}
+			if (mNumSlots != numSlots) {
+				if (DEBUG) Log.v(TAG, "obtainCompositor:numSlots=" + numSlots);
+				mCompositor.updateShader(CompositeLayout.createFragmentShader(numSlots, isGLES3()));
+				for (int slot = 0; slot < numSlots; slot++) {
+					muSamplerLocs[slot] = mCompositor.glGetUniformLocation(
+						CompositeLayout.SAMPLER_NAME + slot);
+				}
+				muRectLoc = mCompositor.glGetUniformLocation(CompositeLayout.RECT_NAME);
+				muTexMatrix2Loc = mCompositor.glGetUniformLocation(CompositeLayout.TEX_MATRIX_NAME);
+				muTexParamLoc = mCompositor.glGetUniformLocation(CompositeLayout.TEX_PARAM_NAME);
+				mNumSlots = numSlots;
+			}
+			return mCompositor;
+		}
+
+		@Override
+		protected void handleResize(final int width, final int height) {
+			super.handleResize(width, height);
+			if (DEBUG) Log.v(TAG, String.format("handleResize:(%dx%d)", width, height));
+			for (int i = 1; i < CompositeLayout.MAX_INPUTS; i++) {
+				if (mInputTextures[i] != null) {
+					mInputTextures[i].setDefaultBufferSize(width(), height());
+				}
+			}
+			final CompositeLayout layout = mTaskLayout;
+			if (layout != null) {
+				layout.invalidate();
+			}
+		}
+
+		/**
+		 * マスター映像入力で映像を受け取った際のコールバック
+		 * @param surfaceTexture
+		 */
+		@Override
+		public void onFrameAvailable(final SurfaceTexture surfaceTexture) {
+			final CompositeLayout layout = mTaskLayout;
+			if (layout != null) {
+				layout.onFrameAvailable(0, Time.nanoTime());
+			}
+			super.onFrameAvailable(surfaceTexture);
+		}
+
+		/**
+		 * 映像入力1以降で映像を受け取った際のコールバックリスナー
+		 * 再合成しないフレームでもSurfaceTextureへ取り込まないと
+		 * 映像入力側がブロックするので常に描画要求する
+		 */
+		private final class InputListener implements SurfaceTexture.OnFrameAvailableListener {
+			private final int mIndex;
+
+			private InputListener(final int index) {
+				mIndex = index;
+			}
+
+			@Override
+			public void onFrameAvailable(final SurfaceTexture surfaceTexture) {
+				final CompositeLayout layout = mTaskLayout;
+				if (layout != null) {
+					layout.onFrameAvailable(mIndex, Time.nanoTime());
+					requestFrame(true, getTexId(), getTexMatrix());
+				}
+			}
+		}
+	}
+}
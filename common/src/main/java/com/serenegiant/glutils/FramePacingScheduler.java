@@ -0,0 +1,287 @@
+package com.serenegiant.glutils;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.math.Fraction;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 分配描画先毎の最大フレームレートに合わせて
+ * 映像ソースのフレーム毎にどの分配描画先へ描画すべきかを決めるスケジューラー
+ * 映像ソースのフレームのタイムスタンプを分配描画先のフレームレートで量子化した
+ * ティック番号が進んだときだけ描画するので、30fps→12.5fpsのような
+ * 整数比でない間引きでも誤差が蓄積せずに長時間で正確なフレームレートになる
+ * タイムスタンプのジッターでティックの境界付近のフレームが前後しないように
+ * 映像ソースのフレーム間隔の半分だけ位相をずらして量子化する
+ * ループ再生やシークでタイムスタンプが戻ったり大きく飛んだときは
+ * 次のフレームを描画してそこからティック番号を数え直す
+ * GLに依存しないのでローカルユニットテストでテストできる
+ */
+public class FramePacingScheduler {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = FramePacingScheduler.class.getSimpleName();
+
+	private static final long NANOS_PER_SEC = 1000000000L;
+	/**
+	 * 実際のフレームレートを計算する期間[ナノ秒]
+	 */
+	private static final long STATS_WINDOW_NS = NANOS_PER_SEC;
+	/**
+	 * 映像ソースのフレーム間隔の推定値を更新するときの係数(1/2^INTERVAL_SHIFT)
+	 */
+	private static final int INTERVAL_SHIFT = 3;
+	/**
+	 * タイムスタンプが映像ソースのフレーム間隔のこの倍数より大きく進んだときは不連続とみなす
+	 */
+	private static final int MAX_GAP_INTERVALS = 4;
+
+	/**
+	 * 分配描画先毎のスケジュール情報
+	 */
+	private static class Pacer {
+		/**
+		 * 最大フレームレートの分子, 0なら制限なし
+		 */
+		private final long fpsNum;
+		/**
+		 * 最大フレームレートの分母
+		 */
+		private final long fpsDen;
+		private boolean started;
+		/**
+		 * ティック番号の基準となるタイムスタンプ[ナノ秒]
+		 */
+		private long originNs;
+		private long lastTick;
+		private long drawn;
+		private long skipped;
+		private long windowStartNs;
+		private int windowCount;
+		private float fps;
+
+		private Pacer(final long fpsNum, final long fpsDen) {
+			this.fpsNum = fpsNum;
+			this.fpsDen = fpsDen;
+		}
+
+		/**
+		 * 指定したタイムスタンプのフレームを描画すべきかどうか
+		 * @param timestampNs
+		 * @param phaseNs
+		 * @return
+		 */
+		private boolean isDue(final long timestampNs, final long phaseNs) {
+			if (!started) {
+				started = true;
+				originNs = timestampNs;
+				lastTick = 0;
+				return true;
+			}
+			if (fpsNum <= 0) {
+				return true;
+			}
+			final long elapsedNs = timestampNs - originNs + phaseNs;
+			if (elapsedNs < 0) {
+				return false;
+			}
+			final long tick = elapsedNs * fpsNum / (fpsDen * NANOS_PER_SEC);
+			if (tick <= lastTick) {
+				return false;
+			}
+			// 映像ソースが途切れた後に追いつくために連続で描画しないよう
+			// 1ティックずつではなく現在のティックまで進める
+			lastTick = tick;
+			if (lastTick >= fpsNum) {
+				// fpsNumティック経過するとちょうどfpsDen秒経過するので
+				// 誤差なしで基準を進めてオーバーフローを防ぐ
+				final long periods = lastTick / fpsNum;
+				originNs += periods * fpsDen * NANOS_PER_SEC;
+				lastTick -= periods * fpsNum;
+			}
+			return true;
+		}
+
+		/**
+		 * タイムスタンプが不連続になったときに呼び出して
+		 * 次のフレームからティック番号と実際のフレームレートの計算をやり直す
+		 */
+		private void reset() {
+			started = false;
+			windowCount = 0;
+		}
+
+		private void onDrawn(final long timestampNs) {
+			drawn++;
+			if (windowCount == 0) {
+				windowStartNs = timestampNs;
+			}
+			windowCount++;
+			final long windowNs = timestampNs - windowStartNs;
+			if (windowNs >= STATS_WINDOW_NS) {
+				// 期間の最初の描画から最後の描画までの描画間隔の数で計算する
+				fps = (windowCount - 1) * (float)NANOS_PER_SEC / windowNs;
+				windowStartNs = timestampNs;
+				windowCount = 1;
+			}
+		}
+	}
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final Map<Integer, Pacer> mPacers = new HashMap<>();
+	private boolean mHasFrame;
+	private long mTimestampNs;
+	/**
+	 * 映像ソースのフレーム間隔の推定値[ナノ秒]
+	 */
+	private long mSourceIntervalNs;
+
+	/**
+	 * 分配描画先を追加する
+	 * 既に同じidが追加されていれば置き換える
+	 * @param id
+	 * @param maxFps nullまたは0以下なら最大フレームレートの制限なし
+	 */
+	public void add(final int id, @Nullable final Fraction maxFps) {
+		final Pacer pacer;
+		if ((maxFps != null) && (maxFps.denominator() != 0) && (maxFps.asDouble() > 0)) {
+			final long num = Math.abs((long)maxFps.numerator());
+			final long den = Math.abs((long)maxFps.denominator());
+			pacer = new Pacer(num, den);
+		} else {
+			pacer = new Pacer(0, 1);
+		}
+		synchronized (mSync) {
+			mPacers.put(id, pacer);
+		}
+	}
+
+	/**
+	 * 分配描画先を削除する
+	 * @param id
+	 */
+	public void remove(final int id) {
+		synchronized (mSync) {
+			mPacers.remove(id);
+		}
+	}
+
+	/**
+	 * 全ての分配描画先を削除する
+	 */
+	public void clear() {
+		synchronized (mSync) {
+			mPacers.clear();
+		}
+	}
+
+	/**
+	 * 映像ソースのフレーム毎に分配描画先へ描画する前に呼び出す
+	 * タイムスタンプが前のフレームより戻ったときや
+	 * フレーム間隔のMAX_GAP_INTERVALS倍より大きく進んだときは全ての分配描画先のスケジュールをやり直す
+	 * @param timestampNs 映像ソースのフレームのタイムスタンプ[ナノ秒]
+	 */
+	public void onFrame(final long timestampNs) {
+		synchronized (mSync) {
+			if (mHasFrame) {
+				final long intervalNs = timestampNs - mTimestampNs;
+				if ((intervalNs < 0)
+					|| ((mSourceIntervalNs > 0) && (intervalNs > mSourceIntervalNs * MAX_GAP_INTERVALS))) {
+					// ループ再生・シーク等でタイムスタンプが不連続になったので
+					// 古い基準のままだと描画されなくなったりするのでやり直す
+					// フレーム間隔の推定値は不連続な間隔で更新しない
+					for (final Pacer pacer: mPacers.values()) {
+						pacer.reset();
+					}
+				} else if (intervalNs > 0) {
+					mSourceIntervalNs = mSourceIntervalNs > 0
+						? mSourceIntervalNs + ((intervalNs - mSourceIntervalNs) >> INTERVAL_SHIFT)
+						: intervalNs;
+				}
+			}
+			mHasFrame = true;
+			mTimestampNs = timestampNs;
+		}
+	}
+
+	/**
+	 * #onFrameで指定したフレームを指定した分配描画先へ描画すべきかどうか
+	 * trueを返したときは描画したものとして次のスケジュールへ進める
+	 * 追加されていないidならtrueを返す
+	 * @param id
+	 * @return
+	 */
+	public boolean isDue(final int id) {
+		synchronized (mSync) {
+			final Pacer pacer = mPacers.get(id);
+			if (pacer == null) {
+				return true;
+			}
+			if (pacer.isDue(mTimestampNs, mSourceIntervalNs / 2)) {
+				pacer.onDrawn(mTimestampNs);
+				return true;
+			} else {
+				pacer.skipped++;
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * 指定した分配描画先の実際のフレームレートを取得
+	 * @param id
+	 * @return 未計算または追加されていないidなら0
+	 */
+	public float getFps(final int id) {
+		synchronized (mSync) {
+			final Pacer pacer = mPacers.get(id);
+			return pacer != null ? pacer.fps : 0.0f;
+		}
+	}
+
+	/**
+	 * 指定した分配描画先へ描画したフレーム数を取得
+	 * @param id
+	 * @return
+	 */
+	public long getDrawnFrames(final int id) {
+		synchronized (mSync) {
+			final Pacer pacer = mPacers.get(id);
+			return pacer != null ? pacer.drawn : 0L;
+		}
+	}
+
+	/**
+	 * 指定した分配描画先へ描画しなかったフレーム数を取得
+	 * @param id
+	 * @return
+	 */
+	public long getSkippedFrames(final int id) {
+		synchronized (mSync) {
+			final Pacer pacer = mPacers.get(id);
+			return pacer != null ? pacer.skipped : 0L;
+		}
+	}
+}
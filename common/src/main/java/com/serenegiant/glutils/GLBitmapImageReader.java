@@ -27,11 +27,13 @@ import android.util.Log;
 
 import com.serenegiant.gl.GLConst;
 import com.serenegiant.gl.GLSurface;
-import com.serenegiant.gl.GLUtils;
-import com.serenegiant.graphics.BitmapHelper;
+import com.serenegiant.gl.PixelReadbackRing;
+import com.serenegiant.utils.HandlerThreadHandler;
+import com.serenegiant.utils.HandlerUtils;
 import com.serenegiant.utils.Pool;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.concurrent.LinkedBlockingDeque;
 
 import androidx.annotation.NonNull;
@@ -42,11 +44,24 @@ import static com.serenegiant.gl.GLConst.GL_TEXTURE_EXTERNAL_OES;
 
 /**
  * GLImageReceiverを使ってBitmapとして映像を受け取るためのGLImageReader<Bitmap></>実装
+ * GL|ES3ではPixelReadbackRingで複数のPBOへ非同期に読み取って1フレーム後にマップする
+ * マップしたピクセルデータはPixelReadbackRing#retainPixelsで保持したまま変換用のワーカースレッドへ引き渡し、
+ * Bitmapへのコピーは全てGLスレッドではなく変換用のワーカースレッド上で行う
  */
 public class GLBitmapImageReader implements ImageReader<Bitmap>, GLImageReceiver.Callback {
 	private static final boolean DEBUG = false;
 	private static final String TAG = GLBitmapImageReader.class.getSimpleName();
 
+	/**
+	 * 非同期読み取り用のピクセルバッファの数
+	 * 変換用スレッドでのコピー中も保持するのでレイテンシ+変換中の分が必要
+	 */
+	private static final int NUM_READBACK_BUFFERS = 3;
+	/**
+	 * 非同期読み取りを発行してから何フレーム後にマップするか
+	 */
+	private static final int READBACK_LATENCY = 1;
+
 	@NonNull
 	private final Object mSync = new Object();
 	@NonNull
@@ -64,8 +79,21 @@ public class GLBitmapImageReader implements ImageReader<Bitmap>, GLImageReceiver
 	private final LinkedBlockingDeque<Bitmap> mQueue = new LinkedBlockingDeque<>();
 	@NonNull
 	private final Paint mPaint = new Paint();
+	/**
+	 * GLスレッドからBitmap変換用スレッドへピクセルデータとBitmapを引き渡すためのタスクのプール
+	 */
+	@NonNull
+	private final ArrayDeque<ConvertTask> mConvertTasks = new ArrayDeque<>();
+	/**
+	 * 非同期読み取り用, GLスレッド上でのみアクセスする
+	 */
 	@Nullable
-	private ByteBuffer mWorkBuffer;
+	private PixelReadbackRing mReadback;
+	/**
+	 * Bitmap変換用のワーカースレッドのHandler
+	 */
+	@Nullable
+	private volatile Handler mConvertHandler;
 	private volatile boolean mAllBitmapAcquired = false;
 
 	@Nullable
@@ -110,7 +138,7 @@ public class GLBitmapImageReader implements ImageReader<Bitmap>, GLImageReceiver
 	@Override
 	public void onInitialize(@NonNull final GLImageReceiver reader) {
 		if (DEBUG) Log.v(TAG, "onInitialize:");
-		// do nothing now
+		mConvertHandler = HandlerThreadHandler.createHandler(TAG);
 	}
 
 	/**
@@ -121,10 +149,23 @@ public class GLBitmapImageReader implements ImageReader<Bitmap>, GLImageReceiver
 	public void onRelease() {
 		if (DEBUG) Log.v(TAG, "release:");
 		setOnImageAvailableListener(null, null);
+		// 変換用スレッドで保持中のピクセルデータを使い終わるまで待つので
+		// 変換用スレッドを終了する前に破棄する
+		if (mReadback != null) {
+			mReadback.release();
+			mReadback = null;
+		}
+		final Handler handler = mConvertHandler;
+		mConvertHandler = null;
+		if (handler != null) {
+			HandlerUtils.NoThrowQuit(handler);
+		}
 		synchronized (mQueue) {
 			mQueue.clear();
 		}
-		mWorkBuffer = null;
+		synchronized (mConvertTasks) {
+			mConvertTasks.clear();
+		}
 		mPool.clear();
 	}
 
@@ -147,7 +188,10 @@ public class GLBitmapImageReader implements ImageReader<Bitmap>, GLImageReceiver
 	@Override
 	public void onReleaseInputSurface(@NonNull final GLImageReceiver reader) {
 		if (DEBUG) Log.v(TAG, "onReleaseInputSurface:");
-		mWorkBuffer = null;
+		// 映像が来なくなるので読み取り待ちのデータを全て引き渡す
+		if (mReadback != null) {
+			mReadback.flush();
+		}
 	}
 
 	/**
@@ -183,13 +227,17 @@ public class GLBitmapImageReader implements ImageReader<Bitmap>, GLImageReceiver
 //		if (DEBUG) Log.v(TAG, "onFrameAvailable:");
 		final int width = reader.getWidth();
 		final int height = reader.getHeight();
-		final int bytes = width * height * BitmapHelper.getPixelBytes(mConfig);
-		if ((mWorkBuffer == null) || (mWorkBuffer.capacity() != bytes)) {
-			synchronized (mSync) {
-				mWidth = width;
-				mHeight = height;
-			}
-			mWorkBuffer = ByteBuffer.allocateDirect(bytes);
+		synchronized (mSync) {
+			mWidth = width;
+			mHeight = height;
+		}
+		if (mReadback == null) {
+			final PixelReadbackRing.Backend backend
+				= PixelReadbackRing.createBackend(reader.isGLES3());
+			// PBOが使えないときは同期読み取りなので読み取ったフレームですぐに引き渡す
+			mReadback = new PixelReadbackRing(backend, NUM_READBACK_BUFFERS,
+				backend instanceof PixelReadbackRing.PboBackend ? READBACK_LATENCY : 0,
+				mReadbackCallback);
 		}
 		final Bitmap bitmap = obtainBitmap(width, height);
 		if (bitmap != null) {
@@ -199,21 +247,17 @@ public class GLBitmapImageReader implements ImageReader<Bitmap>, GLImageReceiver
 				isOES ? GL_TEXTURE_EXTERNAL_OES : GLConst.GL_TEXTURE_2D,
 				GLES20.GL_TEXTURE4, texId, width, height, false);
 			readSurface.makeCurrent();
-			// テクスチャをバックバッファとしたオフスクリーンから読み取り
-			mWorkBuffer.clear();
-			GLUtils.glReadPixels(mWorkBuffer, width, height);
+			// テクスチャをバックバッファとしたオフスクリーンからの読み取りを発行
+			// 前のフレームの読み取り結果があればmReadbackCallbackへ引き渡される
+			mReadback.readPixels(width, height, bitmap);
 			readSurface.release();
-			// Bitmapへ代入
-			mWorkBuffer.clear();
-			bitmap.copyPixelsFromBuffer(mWorkBuffer);
-			synchronized (mQueue) {
-				mQueue.addLast(bitmap);
-			}
 		} else {
 			mAllBitmapAcquired = true;
 			if (DEBUG) Log.w(TAG, "handleDraw: failed to obtain bitmap from pool!");
+			// 読み取り待ちのBitmapが返ってこないとプールが空のままになるので全て引き渡す
+			mReadback.flush();
+			callOnFrameAvailable();
 		}
-		callOnFrameAvailable();
 	}
 
 	/**
@@ -329,6 +373,113 @@ public class GLBitmapImageReader implements ImageReader<Bitmap>, GLImageReceiver
 		return result;
 	}
 
+	/**
+	 * 変換用のタスクを取得する
+	 * @return
+	 */
+	@NonNull
+	private ConvertTask obtainConvertTask() {
+		synchronized (mConvertTasks) {
+			final ConvertTask result = mConvertTasks.pollFirst();
+			return result != null ? result : new ConvertTask();
+		}
+	}
+
+	/**
+	 * 変換用のタスクをプールへ返却する
+	 * @param task
+	 */
+	private void recycleConvertTask(@NonNull final ConvertTask task) {
+		task.ring = null;
+		task.pixels = null;
+		task.bitmap = null;
+		synchronized (mConvertTasks) {
+			mConvertTasks.addLast(task);
+		}
+	}
+
+	/**
+	 * ピクセルデータをBitmapへコピーしてキューへ追加する
+	 * @param pixels
+	 * @param bitmap
+	 */
+	@WorkerThread
+	private void handleConvert(@NonNull final ByteBuffer pixels, @NonNull final Bitmap bitmap) {
+		if (!bitmap.isRecycled()) {
+			bitmap.copyPixelsFromBuffer(pixels);
+		}
+		synchronized (mQueue) {
+			mQueue.addLast(bitmap);
+		}
+		callOnFrameAvailable();
+	}
+
+	/**
+	 * 変換用スレッドでピクセルデータをBitmapへコピーするためのタスク
+	 * 毎フレーム生成しないようにmConvertTasksで再利用する
+	 */
+	private final class ConvertTask implements Runnable {
+		@Nullable
+		private PixelReadbackRing ring;
+		private int token;
+		@Nullable
+		private ByteBuffer pixels;
+		@Nullable
+		private Bitmap bitmap;
+
+		@WorkerThread
+		@Override
+		public void run() {
+			final PixelReadbackRing ring = this.ring;
+			try {
+				handleConvert(pixels, bitmap);
+			} finally {
+				// コピーが終わったのでGLスレッドでマップを解除できるようにする
+				ring.releasePixels(token);
+				recycleConvertTask(this);
+			}
+		}
+	}
+
+	/**
+	 * PixelReadbackRingから読み取り結果を受け取るためのコールバック
+	 * ここはGLスレッド上なのでピクセルデータを保持したまま変換用スレッドへ引き渡すだけにする
+	 */
+	private final PixelReadbackRing.Callback mReadbackCallback
+		= new PixelReadbackRing.Callback() {
+		@WorkerThread
+		@Override
+		public void onPixelsAvailable(
+			@NonNull final ByteBuffer pixels,
+			final int width, final int height, @Nullable final Object tag) {
+
+			final Bitmap bitmap = (Bitmap)tag;
+			if (bitmap == null) return;
+			final Handler handler = mConvertHandler;
+			if ((handler != null) && (mReadback != null)) {
+				final ConvertTask task = obtainConvertTask();
+				task.ring = mReadback;
+				task.token = mReadback.retainPixels();
+				task.pixels = pixels;
+				task.bitmap = bitmap;
+				if (!handler.post(task)) {
+					// 変換用スレッドが終了しているときはここでコピーする
+					task.run();
+				}
+			} else {
+				handleConvert(pixels, bitmap);
+			}
+		}
+
+		@WorkerThread
+		@Override
+		public void onPixelsDropped(@Nullable final Object tag) {
+			if (tag instanceof Bitmap) {
+				recycle((Bitmap)tag);
+			}
+		}
+	};
+
 	/**
 	 * OnImageAvailableListener#onImageAvailableを呼び出す
 	 */
@@ -63,6 +63,68 @@ public interface IRendererHolder extends IMirror {
 		public void onCaptured(@NonNull final IRendererHolder rendererHolder, final boolean success);
 	}
 
+	/**
+	 * 静止画キャプチャ1回毎の所要時間
+	 * 時間はいずれもナノ秒
+	 */
+	public static class CaptureTiming {
+		/**
+		 * キャプチャ要求からキャプチャスレッドで処理を開始するまでの時間
+		 */
+		public final long waitNs;
+		/**
+		 * キャプチャスレッドでの描画とglReadPixelsにかかった時間
+		 */
+		public final long readNs;
+		/**
+		 * ピクセルデータを読み取ってからワーカースレッドで圧縮を開始するまでの時間
+		 */
+		public final long queueNs;
+		/**
+		 * Bitmapへの変換と圧縮・書き込みにかかった時間
+		 */
+		public final long compressNs;
+
+		public CaptureTiming(
+			final long waitNs, final long readNs,
+			final long queueNs, final long compressNs) {
+
+			this.waitNs = waitNs;
+			this.readNs = readNs;
+			this.queueNs = queueNs;
+			this.compressNs = compressNs;
+		}
+
+		/**
+		 * キャプチャ要求から圧縮・書き込み終了までの時間
+		 * @return
+		 */
+		public long getTotalNs() {
+			return waitNs + readNs + queueNs + compressNs;
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return "CaptureTiming{" +
+				"wait=" + waitNs / 1000L +
+				"us,read=" + readNs / 1000L +
+				"us,queue=" + queueNs / 1000L +
+				"us,compress=" + compressNs / 1000L +
+				"us,total=" + getTotalNs() / 1000L +
+				"us}";
+		}
+	}
+
+	/**
+	 * 静止画キャプチャの結果に加えてキャプチャ1回毎の所要時間を受け取るためのコールバックリスナー
+	 * OnCapturedListenerの代わりにcaptureStillへ渡すと#onCapturedの後に#onCaptureTimingを呼び出す
+	 */
+	public interface OnCaptureTimingListener extends OnCapturedListener {
+		public void onCaptureTiming(@NonNull final IRendererHolder rendererHolder,
+			@NonNull final CaptureTiming timing);
+	}
+
 	/**
 	 * 実行中かどうか
 	 * @return
@@ -0,0 +1,677 @@
+package com.serenegiant.glutils;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+
+import android.annotation.SuppressLint;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import com.serenegiant.system.BuildCheck;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * GLPipelineのパイプラインチェーンの各GLPipelineや分配描画先毎の処理時間を計測して
+ * 直近のフレームの処理時間のパーセンタイル値を取得するためのクラス
+ * CPU時間は各段の呼び出しから戻るまでの経過時間から下流の段の時間を除いたもの(自己時間)
+ * GPU時間はGL_EXT_disjoint_timer_queryが使えるときのみ計測する
+ * 経過時間クエリはネストできないので段が切り替わる毎にクエリを区切って
+ * その間のGPU時間を実行中の段へ加算する
+ * クエリの結果は非同期に取得するので数フレーム遅れて反映される
+ * 無効時は#enterがfalseを返すだけなので呼び出し元のオーバーヘッドはほぼ無い
+ * 時間の取得とGPUクエリはBackendインターフェース経由で行うので集計処理はGLなしでテストできる
+ * 計測(#enter/#exit)はEGLコンテキストを保持しているスレッド上から呼び出すこと
+ * 1つのスレッドでは1つのEGLコンテキストだけを使うことを前提とする
+ * (統計情報の取得はどのスレッドからでも可)
+ */
+public class StageProfiler {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = StageProfiler.class.getSimpleName();
+
+	/**
+	 * デフォルトのパーセンタイル値を計算するフレーム数
+	 */
+	public static final int DEFAULT_WINDOW = 120;
+	/**
+	 * 結果を取得していないGPUクエリの最大数
+	 * これを超えるとGPUの計測を一時的に止める
+	 */
+	private static final int MAX_PENDING_QUERIES = 256;
+	/**
+	 * GL_EXT_disjoint_timer_queryの定数
+	 */
+	private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+	private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+
+	/**
+	 * 時間の取得とGPUクエリ用インターフェース
+	 */
+	public interface Backend {
+		/**
+		 * 現在時刻[ナノ秒]を取得
+		 * @return
+		 */
+		public long nanoTime();
+
+		/**
+		 * 現在のEGLコンテキストでGPUの経過時間クエリを使えるかどうか
+		 * @return
+		 */
+		public boolean isGpuTimerSupported();
+
+		/**
+		 * 経過時間クエリを生成する
+		 * @return 失敗したときは0
+		 */
+		public int genQuery();
+
+		/**
+		 * 経過時間クエリを開始する
+		 * @param query
+		 */
+		public void beginQuery(final int query);
+
+		/**
+		 * 実行中の経過時間クエリを終了する
+		 */
+		public void endQuery();
+
+		/**
+		 * 経過時間クエリの結果を取得できるかどうか
+		 * @param query
+		 * @return
+		 */
+		public boolean isQueryAvailable(final int query);
+
+		/**
+		 * 経過時間クエリの結果[ナノ秒]を取得
+		 * @param query
+		 * @return
+		 */
+		public long getQueryResult(final int query);
+
+		/**
+		 * 前回呼び出してからGPUの計測が不連続になった
+		 * (周波数の変更等で結果が信頼できない)かどうか
+		 * @return
+		 */
+		public boolean checkDisjoint();
+	}
+
+	/**
+	 * 段毎の統計情報のスナップショット
+	 */
+	public static class Stats {
+		@NonNull
+		private final String mName;
+		private final long mCount;
+		@NonNull
+		private final long[] mCpuNs;
+		@NonNull
+		private final long[] mGpuNs;
+
+		private Stats(@NonNull final String name, final long count,
+			@NonNull final long[] cpuNs, @NonNull final long[] gpuNs) {
+
+			mName = name;
+			mCount = count;
+			mCpuNs = cpuNs;
+			mGpuNs = gpuNs;
+		}
+
+		/**
+		 * 段の名前を取得
+		 * @return
+		 */
+		@NonNull
+		public String getName() {
+			return mName;
+		}
+
+		/**
+		 * 計測開始からの計測回数を取得
+		 * @return
+		 */
+		public long getCount() {
+			return mCount;
+		}
+
+		/**
+		 * 直近のフレームのCPU時間のパーセンタイル値[ナノ秒]を取得
+		 * @param percentile 0-100
+		 * @return 計測していなければ-1
+		 */
+		public long getCpuPercentileNs(final float percentile) {
+			return percentile(mCpuNs, percentile);
+		}
+
+		/**
+		 * 直近のフレームのGPU時間のパーセンタイル値[ナノ秒]を取得
+		 * @param percentile 0-100
+		 * @return GPU時間を計測していなければ-1
+		 */
+		public long getGpuPercentileNs(final float percentile) {
+			return percentile(mGpuNs, percentile);
+		}
+
+		/**
+		 * GPU時間を計測したかどうか
+		 * @return
+		 */
+		public boolean hasGpuTime() {
+			return mGpuNs.length > 0;
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			final StringBuilder sb = new StringBuilder();
+			sb.append(mName).append("{count=").append(mCount)
+				.append(",cpu(p50/p90/p99)=").append(format(mCpuNs));
+			if (hasGpuTime()) {
+				sb.append(",gpu(p50/p90/p99)=").append(format(mGpuNs));
+			}
+			return sb.append('}').toString();
+		}
+
+		@NonNull
+		private static String format(@NonNull final long[] sorted) {
+			return String.format(Locale.US, "%.3f/%.3f/%.3fms",
+				percentile(sorted, 50) / 1000000.0,
+				percentile(sorted, 90) / 1000000.0,
+				percentile(sorted, 99) / 1000000.0);
+		}
+
+		/**
+		 * 昇順にソートした配列から最近傍順位法でパーセンタイル値を取得
+		 * @param sorted
+		 * @param percentile
+		 * @return
+		 */
+		private static long percentile(@NonNull final long[] sorted, final float percentile) {
+			final int n = sorted.length;
+			if (n == 0) {
+				return -1;
+			}
+			final int rank = (int)Math.ceil(Math.min(Math.max(percentile, 0.0f), 100.0f) / 100.0 * n);
+			return sorted[Math.max(rank - 1, 0)];
+		}
+	}
+
+	/**
+	 * 直近の一定数の値を保持するリングバッファ
+	 */
+	private static class Window {
+		@NonNull
+		private final long[] values;
+		private int pos;
+		private int size;
+
+		private Window(final int capacity) {
+			values = new long[capacity];
+		}
+
+		private void add(final long value) {
+			values[pos] = value;
+			pos = (pos + 1) % values.length;
+			if (size < values.length) {
+				size++;
+			}
+		}
+
+		@NonNull
+		private long[] sortedCopy() {
+			final long[] result = Arrays.copyOf(values, size);
+			Arrays.sort(result);
+			return result;
+		}
+	}
+
+	/**
+	 * 計測する段
+	 */
+	private static class Stage {
+		@NonNull
+		private final String name;
+		@NonNull
+		private final Window cpu;
+		@NonNull
+		private final Window gpu;
+		private long count;
+		/**
+		 * GPU時間を加算中のフレーム番号, 無ければ-1
+		 */
+		private long gpuFrame = -1;
+		private long gpuAccumNs;
+
+		private Stage(@NonNull final String name, final int window) {
+			this.name = name;
+			cpu = new Window(window);
+			gpu = new Window(window);
+		}
+	}
+
+	/**
+	 * 計測中の段
+	 */
+	private static class Frame {
+		private Stage stage;
+		private long startNs;
+		/**
+		 * 下流の段の経過時間の合計
+		 */
+		private long childNs;
+	}
+
+	/**
+	 * 結果を取得していないGPUクエリ
+	 */
+	private static class Pending {
+		private int query;
+		private Stage stage;
+		private long frame;
+	}
+
+	/**
+	 * スレッド毎の計測状態
+	 */
+	private static class ThreadState {
+		@NonNull
+		private Frame[] stack = new Frame[8];
+		private int depth;
+		/**
+		 * 最上位の段を計測する毎に増えるフレーム番号
+		 */
+		private long frame;
+		private boolean gpuChecked;
+		private boolean gpuSupported;
+		/**
+		 * 実行中の経過時間クエリ, 無ければ0
+		 */
+		private int activeQuery;
+		@NonNull
+		private final ArrayDeque<Integer> freeQueries = new ArrayDeque<>();
+		@NonNull
+		private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+		@NonNull
+		private final ArrayDeque<Pending> freePending = new ArrayDeque<>();
+	}
+
+	@NonNull
+	private static final StageProfiler sInstance = new StageProfiler(new GLESBackend(), DEFAULT_WINDOW);
+
+	/**
+	 * GL|ESを使うシングルトンを取得
+	 * @return
+	 */
+	@NonNull
+	public static StageProfiler getInstance() {
+		return sInstance;
+	}
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final Backend mBackend;
+	private final int mWindow;
+	/**
+	 * 計測する段のキー(GLPipeline等)→段, キーが破棄されれば自動的に削除される
+	 */
+	@NonNull
+	private final Map<Object, Stage> mStages = new WeakHashMap<>();
+	@NonNull
+	private final ThreadLocal<ThreadState> mThreadState = new ThreadLocal<ThreadState>() {
+		@Override
+		protected ThreadState initialValue() {
+			return new ThreadState();
+		}
+	};
+	private volatile boolean mEnabled;
+	private volatile boolean mGpuEnabled = true;
+
+	/**
+	 * コンストラクタ
+	 * 通常は#getInstanceを使うこと
+	 * @param backend
+	 * @param window パーセンタイル値を計算するフレーム数
+	 */
+	public StageProfiler(@NonNull final Backend backend, final int window) {
+		mBackend = backend;
+		mWindow = Math.max(window, 1);
+	}
+
+	/**
+	 * 計測するかどうかをセット
+	 * デフォルトは計測しない
+	 * @param enabled
+	 */
+	public void setEnabled(final boolean enabled) {
+		mEnabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	/**
+	 * GPU時間を計測するかどうかをセット
+	 * デフォルトは計測する(GL_EXT_disjoint_timer_queryが使えるときのみ)
+	 * @param enabled
+	 */
+	public void setGpuTimingEnabled(final boolean enabled) {
+		mGpuEnabled = enabled;
+	}
+
+	public boolean isGpuTimingEnabled() {
+		return mGpuEnabled;
+	}
+
+	/**
+	 * 段の計測を開始する
+	 * trueを返したときは必ず#exitを呼ぶこと
+	 * 	final boolean profile = profiler.enter(key);
+	 * 	try { ... } finally { if (profile) profiler.exit(); }
+	 * @param key 段を識別するオブジェクト(GLPipeline等), 文字列ならそのまま名前として使う
+	 * @return 計測を開始したときはtrue, 無効ならfalse
+	 */
+	public boolean enter(@NonNull final Object key) {
+		if (!mEnabled) {
+			return false;
+		}
+		final Stage stage;
+		synchronized (mSync) {
+			Stage s = mStages.get(key);
+			if (s == null) {
+				s = new Stage(nameOf(key), mWindow);
+				mStages.put(key, s);
+			}
+			stage = s;
+		}
+		final ThreadState ts = mThreadState.get();
+		if (ts.depth == 0) {
+			ts.frame++;
+		}
+		// 実行中の段のGPU時間の区切り
+		switchQuery(ts, ts.depth > 0 ? ts.stack[ts.depth - 1].stage : null, stage);
+		if (ts.depth == ts.stack.length) {
+			ts.stack = Arrays.copyOf(ts.stack, ts.depth * 2);
+		}
+		Frame f = ts.stack[ts.depth];
+		if (f == null) {
+			f = ts.stack[ts.depth] = new Frame();
+		}
+		ts.depth++;
+		f.stage = stage;
+		f.childNs = 0;
+		f.startNs = mBackend.nanoTime();
+		return true;
+	}
+
+	/**
+	 * #enterで開始した段の計測を終了する
+	 */
+	public void exit() {
+		final long now = mBackend.nanoTime();
+		final ThreadState ts = mThreadState.get();
+		if (ts.depth <= 0) {
+			Log.w(TAG, "exit:not entered");
+			return;
+		}
+		final Frame f = ts.stack[--ts.depth];
+		final long elapsedNs = now - f.startNs;
+		final long selfNs = Math.max(elapsedNs - f.childNs, 0);
+		if (ts.depth > 0) {
+			ts.stack[ts.depth - 1].childNs += elapsedNs;
+		}
+		synchronized (mSync) {
+			f.stage.cpu.add(selfNs);
+			f.stage.count++;
+		}
+		// 上流の段のGPU時間の計測を再開する
+		switchQuery(ts, f.stage, ts.depth > 0 ? ts.stack[ts.depth - 1].stage : null);
+		f.stage = null;
+		if (ts.depth == 0) {
+			pollQueries(ts);
+		}
+	}
+
+	/**
+	 * 全ての段の統計情報を取得
+	 * 直近のフレームのCPU時間の中央値の降順
+	 * @return
+	 */
+	@NonNull
+	public List<Stats> getStats() {
+		final List<Stats> result = new ArrayList<>();
+		synchronized (mSync) {
+			for (final Stage stage: mStages.values()) {
+				result.add(snapshot(stage));
+			}
+		}
+		Collections.sort(result, new Comparator<Stats>() {
+			@Override
+			public int compare(final Stats o1, final Stats o2) {
+				final int r = Long.compare(o2.getCpuPercentileNs(50), o1.getCpuPercentileNs(50));
+				return r != 0 ? r : o1.getName().compareTo(o2.getName());
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * 指定した段の統計情報を取得
+	 * @param key
+	 * @return 計測していなければnull
+	 */
+	@Nullable
+	public Stats getStats(@NonNull final Object key) {
+		synchronized (mSync) {
+			final Stage stage = mStages.get(key);
+			return stage != null ? snapshot(stage) : null;
+		}
+	}
+
+	/**
+	 * 全ての段の統計情報をリセットする
+	 */
+	public void reset() {
+		synchronized (mSync) {
+			mStages.clear();
+		}
+	}
+
+	/**
+	 * 実行中の経過時間クエリを終了して次の段の経過時間クエリを開始する
+	 * @param ts
+	 * @param current 実行中の経過時間クエリで計測していた段
+	 * @param next 次に計測する段, nullなら開始しない
+	 */
+	private void switchQuery(@NonNull final ThreadState ts,
+		@Nullable final Stage current, @Nullable final Stage next) {
+
+		if (ts.activeQuery != 0) {
+			mBackend.endQuery();
+			if (current != null) {
+				final Pending p = ts.freePending.isEmpty() ? new Pending() : ts.freePending.pollFirst();
+				p.query = ts.activeQuery;
+				p.stage = current;
+				p.frame = ts.frame;
+				ts.pending.addLast(p);
+			} else {
+				ts.freeQueries.addLast(ts.activeQuery);
+			}
+			ts.activeQuery = 0;
+		}
+		if ((next != null) && mGpuEnabled && (ts.pending.size() < MAX_PENDING_QUERIES)) {
+			if (!ts.gpuChecked) {
+				ts.gpuChecked = true;
+				ts.gpuSupported = mBackend.isGpuTimerSupported();
+				if (DEBUG) Log.v(TAG, "switchQuery:gpuSupported=" + ts.gpuSupported);
+			}
+			if (ts.gpuSupported) {
+				final int query = ts.freeQueries.isEmpty() ? mBackend.genQuery() : ts.freeQueries.pollFirst();
+				if (query != 0) {
+					mBackend.beginQuery(query);
+					ts.activeQuery = query;
+				}
+			}
+		}
+	}
+
+	/**
+	 * 結果を取得できる経過時間クエリを古い順に取得して段毎・フレーム毎に加算する
+	 * GPUの計測が不連続になったときは取得した結果を破棄する
+	 * @param ts
+	 */
+	private void pollQueries(@NonNull final ThreadState ts) {
+		int available = 0;
+		for (final Pending p: ts.pending) {
+			if (!mBackend.isQueryAvailable(p.query)) {
+				break;
+			}
+			available++;
+		}
+		if (available == 0) {
+			return;
+		}
+		final boolean disjoint = mBackend.checkDisjoint();
+		synchronized (mSync) {
+			for (int i = 0; i < available; i++) {
+				final Pending p = ts.pending.pollFirst();
+				final Stage stage = p.stage;
+				if (disjoint) {
+					stage.gpuFrame = -1;
+				} else {
+					final long ns = mBackend.getQueryResult(p.query);
+					if (stage.gpuFrame != p.frame) {
+						// 前のフレームのGPU時間が確定した
+						if (stage.gpuFrame >= 0) {
+							stage.gpu.add(stage.gpuAccumNs);
+						}
+						stage.gpuFrame = p.frame;
+						stage.gpuAccumNs = 0;
+					}
+					stage.gpuAccumNs += ns;
+				}
+				ts.freeQueries.addLast(p.query);
+				p.stage = null;
+				ts.freePending.addLast(p);
+			}
+		}
+		if (DEBUG && disjoint) Log.v(TAG, "pollQueries:disjoint,discarded " + available);
+	}
+
+	/**
+	 * mSyncをロックした状態で呼び出すこと
+	 * @param stage
+	 * @return
+	 */
+	@NonNull
+	private static Stats snapshot(@NonNull final Stage stage) {
+		return new Stats(stage.name, stage.count, stage.cpu.sortedCopy(), stage.gpu.sortedCopy());
+	}
+
+	@NonNull
+	private static String nameOf(@NonNull final Object key) {
+		if (key instanceof String) {
+			return (String)key;
+		}
+		return key.getClass().getSimpleName()
+			+ "@" + Integer.toHexString(System.identityHashCode(key));
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * GL|ESを使うBackend実装
+	 * GL_EXT_disjoint_timer_queryはGL|ES3のglBeginQuery等を使うのでGL|ES3のときのみ対応
+	 */
+	private static class GLESBackend implements Backend {
+		@NonNull
+		private final int[] mWork = new int[1];
+
+		@Override
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+
+		@Override
+		public boolean isGpuTimerSupported() {
+			if (!BuildCheck.isAPI18()) {
+				return false;
+			}
+			final String version = GLES20.glGetString(GLES20.GL_VERSION);
+			final String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+			return (version != null) && version.startsWith("OpenGL ES 3")
+				&& (extensions != null) && extensions.contains("GL_EXT_disjoint_timer_query");
+		}
+
+		@SuppressLint("NewApi")
+		@Override
+		public int genQuery() {
+			GLES30.glGenQueries(1, mWork, 0);
+			return mWork[0];
+		}
+
+		@SuppressLint("NewApi")
+		@Override
+		public void beginQuery(final int query) {
+			GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, query);
+		}
+
+		@SuppressLint("NewApi")
+		@Override
+		public void endQuery() {
+			GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+		}
+
+		@SuppressLint("NewApi")
+		@Override
+		public boolean isQueryAvailable(final int query) {
+			GLES30.glGetQueryObjectuiv(query, GLES30.GL_QUERY_RESULT_AVAILABLE, mWork, 0);
+			return mWork[0] != 0;
+		}
+
+		@SuppressLint("NewApi")
+		@Override
+		public long getQueryResult(final int query) {
+			// Javaからは32ビットでしか取得できないので約4.29秒まで
+			GLES30.glGetQueryObjectuiv(query, GLES30.GL_QUERY_RESULT, mWork, 0);
+			return mWork[0] & 0xffffffffL;
+		}
+
+		@Override
+		public boolean checkDisjoint() {
+			GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, mWork, 0);
+			return mWork[0] != 0;
+		}
+	}
+}
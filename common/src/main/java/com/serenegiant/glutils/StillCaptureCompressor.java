@@ -0,0 +1,316 @@
+package com.serenegiant.glutils;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+/**
+ * glReadPixelsで読み取ったRGBAのピクセルデータをワーカースレッド上でBitmapへ変換して
+ * 圧縮・書き込みするためのヘルパークラス
+ * GLスレッドはピクセルデータを読み取ってすぐに#compressを呼べば次の処理へ戻ることができる
+ * ピクセルバッファとBitmapはサイズが同じ間はプールして再利用する
+ */
+public class StillCaptureCompressor {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = StillCaptureCompressor.class.getSimpleName();
+
+	/**
+	 * ワーカースレッド数の上限
+	 * 静止画圧縮は1枚毎の負荷が大きくメモリーも多く使うのでコア数が多くても2つまでにする
+	 */
+	private static final int MAX_WORKERS = 2;
+	/**
+	 * 処理待ちが無いときにワーカースレッドを終了するまでの時間[秒]
+	 */
+	private static final long KEEP_ALIVE_TIME_SECS = 5L;
+
+	/**
+	 * 圧縮・書き込みが終了したときのコールバックリスナー
+	 * ワーカースレッド上で呼ばれる
+	 */
+	public interface Callback {
+		/**
+		 * @param success 圧縮・書き込みに成功したかどうか
+		 * @param queueNs #compressを呼び出してからワーカースレッドで処理を開始するまでの時間[ナノ秒]
+		 * @param compressNs Bitmapへの変換と圧縮・書き込みにかかった時間[ナノ秒]
+		 */
+		@WorkerThread
+		public void onCompressed(final boolean success,
+			final long queueNs, final long compressNs);
+	}
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final ThreadPoolExecutor mExecutor;
+	/**
+	 * 再利用するためのピクセルバッファのプール
+	 */
+	@NonNull
+	private final ArrayDeque<ByteBuffer> mBufferPool = new ArrayDeque<>();
+	/**
+	 * 再利用するためのBitmapのプール
+	 */
+	@NonNull
+	private final ArrayDeque<Bitmap> mBitmapPool = new ArrayDeque<>();
+	private final int mMaxPoolSize;
+	private int mInFlight;
+	private boolean mReleased;
+
+	/**
+	 * コンストラクタ
+	 * ワーカースレッド数はコア数とMAX_WORKERSの小さい方
+	 */
+	public StillCaptureCompressor() {
+		this(Math.min(Runtime.getRuntime().availableProcessors(), MAX_WORKERS));
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param numWorkers ワーカースレッド数
+	 */
+	public StillCaptureCompressor(@IntRange(from = 1) final int numWorkers) {
+		final int n = Math.max(numWorkers, 1);
+		mMaxPoolSize = n + 1;
+		mExecutor = new ThreadPoolExecutor(n, n,
+			KEEP_ALIVE_TIME_SECS, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(),
+			r -> new Thread(r, TAG));
+		mExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * 関係するリソースを破棄する、再利用はできない
+	 * 既に#compressで要求済みの圧縮・書き込みは終了するまで実行する
+	 */
+	public void release() {
+		if (DEBUG) Log.v(TAG, "release:");
+		synchronized (mSync) {
+			mReleased = true;
+			mBufferPool.clear();
+			for (final Bitmap bitmap: mBitmapPool) {
+				bitmap.recycle();
+			}
+			mBitmapPool.clear();
+		}
+		mExecutor.shutdown();
+	}
+
+	/**
+	 * 圧縮・書き込み中または処理待ちの数を取得
+	 * @return
+	 */
+	public int getInFlightCount() {
+		synchronized (mSync) {
+			return mInFlight;
+		}
+	}
+
+	/**
+	 * 指定したサイズのRGBAピクセルデータを読み取るためのバッファを取得する
+	 * プールにあれば再利用し、無ければ新たに生成する
+	 * @param width
+	 * @param height
+	 * @return ネイティブバイトオーダー(LITTLE_ENDIAN)のダイレクトバッファ
+	 */
+	@NonNull
+	public ByteBuffer obtainBuffer(final int width, final int height) {
+		final int bytes = width * height * 4;
+		ByteBuffer result = null;
+		synchronized (mSync) {
+			for (; !mBufferPool.isEmpty(); ) {
+				final ByteBuffer buf = mBufferPool.pollFirst();
+				if (buf.capacity() >= bytes) {
+					result = buf;
+					break;
+				}
+				// 小さいバッファはもう使わないので破棄する
+			}
+		}
+		if (result == null) {
+			result = ByteBuffer.allocateDirect(bytes);
+			result.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		result.clear();
+		result.limit(bytes);
+		return result;
+	}
+
+	/**
+	 * #obtainBufferで取得したバッファを#compressへ渡さずに返却する
+	 * @param buf
+	 */
+	public void recycleBuffer(@Nullable final ByteBuffer buf) {
+		if (buf != null) {
+			synchronized (mSync) {
+				if (!mReleased && (mBufferPool.size() < mMaxPoolSize)) {
+					mBufferPool.addLast(buf);
+				}
+			}
+		}
+	}
+
+	/**
+	 * RGBAのピクセルデータをワーカースレッド上で圧縮して書き込む
+	 * このメソッドはすぐに返る
+	 * ピクセルバッファはBitmapへコピーした時点でプールへ返却するので呼び出し後は使わないこと
+	 * 出力先のOutputStreamは成功失敗にかかわらず圧縮・書き込み後にクローズする
+	 * @param pixels #obtainBufferで取得して読み取ったピクセルデータ
+	 * @param width
+	 * @param height
+	 * @param out
+	 * @param format
+	 * @param quality
+	 * @param callback
+	 * @throws IllegalStateException 破棄済みのとき
+	 */
+	public void compress(@NonNull final ByteBuffer pixels,
+		final int width, final int height,
+		@NonNull final OutputStream out,
+		@NonNull final Bitmap.CompressFormat format,
+		@IntRange(from = 1L, to = 99L) final int quality,
+		@NonNull final Callback callback) throws IllegalStateException {
+
+		final long submitNs = System.nanoTime();
+		synchronized (mSync) {
+			if (mReleased) {
+				throw new IllegalStateException("already released");
+			}
+			mInFlight++;
+		}
+		try {
+			mExecutor.execute(() -> {
+				final long startNs = System.nanoTime();
+				final boolean success = handleCompress(pixels, width, height, out, format, quality);
+				final long endNs = System.nanoTime();
+				synchronized (mSync) {
+					mInFlight--;
+				}
+				try {
+					callback.onCompressed(success, startNs - submitNs, endNs - startNs);
+				} catch (final Exception e) {
+					Log.w(TAG, e);
+				}
+			});
+		} catch (final RejectedExecutionException e) {
+			synchronized (mSync) {
+				mInFlight--;
+			}
+			throw new IllegalStateException("already released", e);
+		}
+	}
+
+	/**
+	 * ワーカースレッド上でピクセルデータをBitmapへ変換して圧縮・書き込みする
+	 * @param pixels
+	 * @param width
+	 * @param height
+	 * @param out
+	 * @param format
+	 * @param quality
+	 * @return
+	 */
+	@WorkerThread
+	private boolean handleCompress(@NonNull final ByteBuffer pixels,
+		final int width, final int height,
+		@NonNull final OutputStream out,
+		@NonNull final Bitmap.CompressFormat format,
+		final int quality) {
+
+		boolean success = false;
+		Bitmap bitmap = null;
+		try {
+			try {
+				bitmap = obtainBitmap(width, height);
+				pixels.rewind();
+				bitmap.copyPixelsFromBuffer(pixels);
+				// Bitmapへコピーした後はピクセルバッファは不要なので次の読み取りに使えるように返却する
+				recycleBuffer(pixels);
+				success = bitmap.compress(format, quality, out);
+				out.flush();
+			} finally {
+				out.close();
+			}
+		} catch (final IOException e) {
+			Log.w(TAG, "failed to save file", e);
+			success = false;
+		} catch (final Exception e) {
+			Log.w(TAG, e);
+			success = false;
+		} finally {
+			recycleBitmap(bitmap);
+		}
+		return success;
+	}
+
+	/**
+	 * 指定したサイズのBitmapを取得する
+	 * プールにサイズが同じものがあれば再利用し、無ければ新たに生成する
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	@NonNull
+	private Bitmap obtainBitmap(final int width, final int height) {
+		synchronized (mSync) {
+			for (; !mBitmapPool.isEmpty(); ) {
+				final Bitmap bitmap = mBitmapPool.pollFirst();
+				if ((bitmap.getWidth() == width) && (bitmap.getHeight() == height)
+					&& !bitmap.isRecycled()) {
+					return bitmap;
+				}
+				// サイズが変わったBitmapはもう使わないので破棄する
+				bitmap.recycle();
+			}
+		}
+		return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+	}
+
+	/**
+	 * Bitmapをプールへ返却する
+	 * @param bitmap
+	 */
+	private void recycleBitmap(@Nullable final Bitmap bitmap) {
+		if (bitmap != null) {
+			synchronized (mSync) {
+				if (!mReleased && (mBitmapPool.size() < mMaxPoolSize)) {
+					mBitmapPool.addLast(bitmap);
+					return;
+				}
+			}
+			bitmap.recycle();
+		}
+	}
+}
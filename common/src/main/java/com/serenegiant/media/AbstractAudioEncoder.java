@@ -24,6 +24,7 @@ import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 /**
  * 音声データをMediaCodecを使ってAACエンコードするための基本クラス
@@ -134,4 +135,15 @@ public abstract class AbstractAudioEncoder extends AbstractEncoder
 		return new Encoder(mediaCodec, reaper, false);
 	}
 
+	/**
+	 * PCMデータを複数まとめてMediaCodecの入力バッファへ送るためにPcmInputAggregatorを生成する
+	 * @param mediaCodec
+	 * @return
+	 */
+	@Nullable
+	@Override
+	protected PcmInputAggregator createInputAggregator(@NonNull final MediaCodec mediaCodec) {
+		return new PcmInputAggregator(mediaCodec, mSampleRate, mChannelCount);
+	}
+
 }
@@ -40,6 +40,10 @@ public abstract class AbstractDecoder implements Decoder {
 	private static final String TAG = AbstractDecoder.class.getSimpleName();
 
     public static final int TIMEOUT_USEC = 10000;	// 10ミリ秒
+	/**
+	 * #flushで出力スレッドがフラッシュするのを待機する最大時間[ミリ秒]
+	 */
+	private static final long MAX_FLUSH_WAIT_MS = 1000;
 
 	@NonNull
 	protected final Object mSync = new Object();
@@ -52,7 +56,40 @@ public abstract class AbstractDecoder implements Decoder {
 	@Nullable
 	protected MediaCodec mDecoder;
 	private long mStartTimeNs;
+	/**
+	 * 再生タイミング調整用のマスタークロック
+	 */
+	@NonNull
+	private volatile MediaClock mClock = new MediaClock();
 	private volatile int mTrackIndex;
+	/**
+	 * このPTSより前のフレームはデコードするだけで出力しない[マイクロ秒], 負なら無効
+	 */
+	private volatile long mSkipUntilUs = -1L;
+	/**
+	 * デコーダーへ入力するサンプルのPTSへ加算するオフセット[マイクロ秒]
+	 */
+	private volatile long mPtsOffsetUs;
+	/**
+	 * 非参照フレームをデコーダーへ入力する割合(0-1), 1なら全て入力する
+	 */
+	private volatile float mNonRefKeepRatio = 1.0f;
+	/**
+	 * 非参照フレームの間引き用の累積値
+	 */
+	private float mNonRefAccum;
+	/**
+	 * 非参照フレームを間引いたときに次のサンプルで再利用する入力バッファのインデックス, 無ければ-1
+	 */
+	private int mHeldInputIndex = -1;
+	/**
+	 * 間引いてデコーダーへ入力しなかったフレーム数
+	 */
+	private volatile long mSkippedInputFrames;
+	/**
+	 * 出力スレッド上でデコーダーをフラッシュする要求があるかどうか
+	 */
+	private volatile boolean mFlushRequested;
 	private volatile boolean mIsRunning;
 	protected boolean mOutputDone;
 
@@ -90,6 +127,209 @@ public abstract class AbstractDecoder implements Decoder {
 		return mIsRunning;
 	}
 
+	/**
+	 * 再生タイミング調整に使うマスタークロックを設定
+	 * 映像と音声のデコーダーで同じMediaClockを設定すると同期して再生する
+	 * 設定しなければデコーダー毎にMODE_SYSTEMのMediaClockを使う
+	 * @param clock
+	 */
+	public void setClock(@NonNull final MediaClock clock) {
+		mClock = clock;
+	}
+
+	/**
+	 * 再生タイミング調整に使うマスタークロックを取得
+	 * @return
+	 */
+	@NonNull
+	public MediaClock getClock() {
+		return mClock;
+	}
+
+	/**
+	 * 指定したPTSより前のフレームを出力せずに破棄するように設定する
+	 * キーフレームへシークしてから目的のフレームまでデコードを進めるときに使う
+	 * 指定したPTS以降のフレームを受け取ると自動的に解除される
+	 * @param ptsUs [マイクロ秒], 負なら解除
+	 */
+	public void setSkipUntil(final long ptsUs) {
+		mSkipUntilUs = ptsUs;
+	}
+
+	/**
+	 * デコーダーへ入力するサンプルのPTSへ加算するオフセットを設定する
+	 * ループ再生で先頭へ戻ったときにデコーダー内に残っている前のループのフレームを
+	 * 破棄せずにPTSを連続させるために使う
+	 * 以降に入力したサンプルから適用されて出力されるフレームのPTSもオフセットを加算した値になる
+	 * @param offsetUs [マイクロ秒]
+	 */
+	public void setPresentationTimeOffset(final long offsetUs) {
+		mPtsOffsetUs = offsetUs;
+	}
+
+	/**
+	 * #setSkipUntilで指定したPTSより前のフレームかどうか
+	 * 指定したPTS以降のフレームならば設定を解除する
+	 * @param presentationTimeUs
+	 * @return 出力せずに破棄すべきならtrue
+	 */
+	protected boolean checkSkip(final long presentationTimeUs) {
+		final long skipUntilUs = mSkipUntilUs;
+		if (skipUntilUs >= 0) {
+			if (presentationTimeUs < skipUntilUs) {
+				return true;
+			}
+			mSkipUntilUs = -1L;
+		}
+		return false;
+	}
+
+	/**
+	 * デコーダー内に残っている入力済み・出力待ちのフレームを破棄する
+	 * シーク時にシーク前の位置のフレームが出力されないようにするために使う
+	 * 出力バッファを保持している出力スレッド上でMediaCodec#flushを呼び出して
+	 * 終了するまで待機する
+	 * デコーダーへ入力するスレッド(#decodeを呼び出すスレッド)から呼び出すこと
+	 */
+	public void flush() {
+		final MediaCodec decoder = mDecoder;
+		if (decoder == null) return;
+		if (DEBUG) Log.v(TAG, "flush:");
+		synchronized (mSync) {
+			if (mIsRunning && !mOutputDone) {
+				mFlushRequested = true;
+				// 描画予定時刻・AudioTrackの空き待ちをしていれば起床させる
+				mSync.notifyAll();
+				final long endMs = System.currentTimeMillis() + MAX_FLUSH_WAIT_MS;
+				for (; mFlushRequested && mIsRunning && !mOutputDone; ) {
+					final long remainsMs = endMs - System.currentTimeMillis();
+					if (remainsMs <= 0) {
+						Log.w(TAG, "flush:timeout");
+						break;
+					}
+					try {
+						mSync.wait(remainsMs);
+					} catch (final InterruptedException e) {
+						break;
+					}
+				}
+				// タイムアウトしたときに後から出力スレッドがフラッシュしないように取り消す
+				mFlushRequested = false;
+			} else if (mIsRunning) {
+				// 出力スレッドが終了しているときはこのスレッドでフラッシュする
+				try {
+					decoder.flush();
+				} catch (final IllegalStateException e) {
+					Log.w(TAG, e);
+				}
+			}
+		}
+		// 入力バッファのインデックスはフラッシュすると無効になる
+		mHeldInputIndex = -1;
+		mNonRefAccum = 0;
+	}
+
+	/**
+	 * #flushで出力スレッドにフラッシュを要求中かどうか
+	 * 出力スレッドで出力バッファを受け取るループはtrueなら抜けること
+	 * @return
+	 */
+	protected boolean isFlushRequested() {
+		return mFlushRequested;
+	}
+
+	/**
+	 * 出力スレッド上でMediaCodec#flushを呼び出す直前の処理
+	 * 出力スレッドで保持している出力バッファがあればここで返却・破棄すること
+	 * デフォルトは何もしない
+	 * @param decoder
+	 */
+	protected void onFlush(@NonNull final MediaCodec decoder) {
+	}
+
+	/**
+	 * フラッシュ要求があれば出力スレッド上でフラッシュする
+	 * @param decoder
+	 */
+	private void handleFlush(@Nullable final MediaCodec decoder) {
+		synchronized (mSync) {
+			if (mFlushRequested) {
+				if (decoder != null) {
+					onFlush(decoder);
+					decoder.flush();
+				}
+				mFlushRequested = false;
+				mSync.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * 非参照フレーム(他のフレームのデコードに使われないフレーム)を
+	 * デコーダーへ入力する割合を設定する
+	 * 高速再生時に表示しきれないフレームをデコード前に間引くために使う
+	 * 非参照フレームかどうかを判定できないコーデックでは何もしない
+	 * @param ratio 0-1, 1なら全て入力する, 0なら全て間引く
+	 */
+	public void setNonReferenceKeepRatio(final float ratio) {
+		mNonRefKeepRatio = Math.max(0.0f, Math.min(ratio, 1.0f));
+	}
+
+	/**
+	 * 間引いてデコーダーへ入力しなかったフレーム数を取得
+	 * @return
+	 */
+	public long getSkippedInputFrames() {
+		return mSkippedInputFrames;
+	}
+
+	/**
+	 * 入力バッファへ読み込んだサンプルが非参照フレームかどうか
+	 * デフォルトは常にfalse(判定しない)
+	 * @param buffer
+	 * @param size
+	 * @return
+	 */
+	protected boolean isNonReferenceFrame(@NonNull final ByteBuffer buffer, final int size) {
+		return false;
+	}
+
+	/**
+	 * 入力バッファへ読み込んだサンプルをデコーダーへ入力せずに間引くかどうか
+	 * #setNonReferenceKeepRatioで設定した割合になるように非参照フレームを間引く
+	 * @param buffer
+	 * @param size
+	 * @return
+	 */
+	private boolean shouldSkipInput(@NonNull final ByteBuffer buffer, final int size) {
+		final float ratio = mNonRefKeepRatio;
+		if ((ratio >= 1.0f) || !isNonReferenceFrame(buffer, size)) {
+			return false;
+		}
+		mNonRefAccum += ratio;
+		if (mNonRefAccum >= 1.0f) {
+			mNonRefAccum -= 1.0f;
+			return false;
+		}
+		mSkippedInputFrames++;
+		return true;
+	}
+
+	/**
+	 * 入力バッファを取得する
+	 * 間引いたサンプルの入力バッファがあればそれを再利用する
+	 * @param decoder
+	 * @return 入力バッファのインデックス, 取得できなければ負
+	 */
+	private int dequeueInputBuffer(@NonNull final MediaCodec decoder) {
+		final int held = mHeldInputIndex;
+		if (held >= 0) {
+			mHeldInputIndex = -1;
+			return held;
+		}
+		return decoder.dequeueInputBuffer(TIMEOUT_USEC);
+	}
+
 	/**
 	 * デコードの準備
 	 * @param extractor String, AssetFileDescriptor, FileDescriptorのいずれか
@@ -127,6 +367,8 @@ public abstract class AbstractDecoder implements Decoder {
 			try {
 				mDecoder = createDecoder(mTrackIndex, mFormat);
 				mOutputDone = false;
+				mHeldInputIndex = -1;
+				mNonRefAccum = 0;
 				mIsRunning = true;
 				final Thread outputThread = new Thread(createOutputTask(mTrackIndex), TAG + "-" + this.hashCode());
 				synchronized (mSync) {
@@ -172,7 +414,7 @@ public abstract class AbstractDecoder implements Decoder {
 	public void signalEndOfStream() {
 		if (DEBUG) Log.i(TAG, "signalEndOfStream:");
 		while (isRunning()) {
-			final int inputBufIndex = mDecoder.dequeueInputBuffer(TIMEOUT_USEC);
+			final int inputBufIndex = dequeueInputBuffer(mDecoder);
 			if (inputBufIndex >= 0) {
 				mDecoder.queueInputBuffer(inputBufIndex, 0, 0, 0L,
 					MediaCodec.BUFFER_FLAG_END_OF_STREAM);
@@ -196,11 +438,14 @@ public abstract class AbstractDecoder implements Decoder {
 		final ByteBuffer[] inputBuffers) {
 
 		while (isRunning()) {
-			final int inputBufIndex = decoder.dequeueInputBuffer(TIMEOUT_USEC);
+			final int inputBufIndex = dequeueInputBuffer(decoder);
 			if (inputBufIndex >= 0) {
 				final int size = extractor.readSampleData(inputBuffers[inputBufIndex], 0);
-				if (size > 0) {
-					final long presentationTimeUs = extractor.getSampleTime();
+				if ((size > 0) && shouldSkipInput(inputBuffers[inputBufIndex], size)) {
+					// 間引いたときは入力バッファを次のサンプルで再利用する
+					mHeldInputIndex = inputBufIndex;
+				} else if (size > 0) {
+					final long presentationTimeUs = extractor.getSampleTime() + mPtsOffsetUs;
 					decoder.queueInputBuffer(inputBufIndex, 0, size, presentationTimeUs, 0);
 				} else {
 					// 念のためにsize<=0ならEOSを送る
@@ -223,12 +468,15 @@ public abstract class AbstractDecoder implements Decoder {
 		@NonNull final MediaCodec decoder) {
 
 		while (isRunning()) {
-			final int inputBufIndex = decoder.dequeueInputBuffer(TIMEOUT_USEC);
+			final int inputBufIndex = dequeueInputBuffer(decoder);
 			if (inputBufIndex >= 0) {
 				final ByteBuffer in = decoder.getInputBuffer(inputBufIndex);
 				final int size = extractor.readSampleData(in, 0);
-				if (size > 0) {
-					final long presentationTimeUs = extractor.getSampleTime();
+				if ((size > 0) && shouldSkipInput(in, size)) {
+					// 間引いたときは入力バッファを次のサンプルで再利用する
+					mHeldInputIndex = inputBufIndex;
+				} else if (size > 0) {
+					final long presentationTimeUs = extractor.getSampleTime() + mPtsOffsetUs;
 					decoder.queueInputBuffer(inputBufIndex, 0, size, presentationTimeUs, 0);
 				} else {
 					// 念のためにsize<=0ならEOSを送る
@@ -267,6 +515,9 @@ public abstract class AbstractDecoder implements Decoder {
 			}
 			while ( mIsRunning && !mOutputDone ) {
 				try {
+					if (mFlushRequested) {
+						handleFlush(mDecoder);
+					}
 			        if (!mOutputDone) {
 						handleOutput(mDecoder);
 			        }
@@ -296,43 +547,55 @@ public abstract class AbstractDecoder implements Decoder {
 		 * タイミング表示される、この場合にはフレームがドロップすることはないらしい。
 		 * でも#releaseOutputBuffer(int,long)へ調整したptsを渡すだけではだめで自前でウエイトを入れないとだめっぽい
 		 */
-		private static final long VSYNC2 = 33330000;		// 33.33ミリ秒, approx. 2 frames @ 60fps
-		private long mOffsetPtsNs = -1L;
-		private long mOffsetSysTimeNs = -1L;
+		protected static final long VSYNC2 = 33330000;		// 33.33ミリ秒, approx. 2 frames @ 60fps
+		/**
+		 * 1回で待機する最大時間[ナノ秒]
+		 * 一時停止中は描画予定時刻が決まらないので定期的に再計算するため
+		 */
+		private static final long MAX_WAIT_NS = 100000000L;	// 100ミリ秒
+
+		/**
+		 * 描画予定時刻のどれだけ前に#adjustPresentationTimeから戻るか[ナノ秒]
+		 * デフォルトは0
+		 * @return
+		 */
+		protected long getRenderAheadNs() {
+			return 0;
+		}
 
 		/**
-		 * 最初のフレームのpresentationTimeUsとシステム時間を保存しておいて
-		 * 現在のフレームのpresentationTimeUsと現在時刻から描画予定時刻を計算して
-		 * そのフレームの描画予定時刻まで待機する
+		 * マスタークロックから現在のフレームの描画予定時刻を計算して
+		 * 描画予定時刻(から#getRenderAheadNsを引いた時刻)まで待機する
+		 * 待機は描画予定時刻までの1回だけ(一時停止中またはクロックが補正されたときを除く)
 		 * @param presentationTimeUs
+		 * @return 描画予定時刻[ナノ秒], 遅れすぎていてフレームを破棄すべきとき・デコード終了時・フラッシュ要求時は-1
 		 */
 		protected long adjustPresentationTime(
 			final long presentationTimeUs) {
 
-			final long presentationTimeNs = presentationTimeUs * 1000L;
-			if (mOffsetSysTimeNs <= 0) {
-				// 初回
-				mOffsetSysTimeNs = System.nanoTime();
-				mOffsetPtsNs = mOffsetSysTimeNs - presentationTimeNs;
-				return mOffsetSysTimeNs + VSYNC2;
-			} else {
-				// 2回目以降
-				// 現在のptsから最初のptsを引いたのが再生位置、そこから最初のシステム時間と現在システム時間の差を引いたのが待ち時間
-				final long base = mOffsetPtsNs + presentationTimeNs - VSYNC2;
-				for (long t = base - System.nanoTime();
-					isRunning() && (t > 0); t = base - System.nanoTime()) {
-
-					if (t > 20000000) t >>= 1;	// 20ミリ以上なら1/2にする
-					synchronized (mSync) {
-						try {
-							mSync.wait(t / 1000000, (int)(t % 1000000));
-						} catch (final InterruptedException e) {
-							// ignore
-						}
+			final MediaClock clock = mClock;
+			if (clock.checkLate(presentationTimeUs)) {
+				if (DEBUG) Log.v(TAG, "adjustPresentationTime:drop late frame,pts=" + presentationTimeUs);
+				return -1L;
+			}
+			final long aheadNs = getRenderAheadNs();
+			long targetNs = clock.getSystemTimeNs(presentationTimeUs);
+			for (long t = targetNs - aheadNs - System.nanoTime();
+				isRunning() && !mFlushRequested && (t > 0); t = targetNs - aheadNs - System.nanoTime()) {
+
+				if (t > MAX_WAIT_NS) t = MAX_WAIT_NS;
+				synchronized (mSync) {
+					try {
+						mSync.wait(t / 1000000, (int)(t % 1000000));
+					} catch (final InterruptedException e) {
+						// ignore
 					}
 				}
-				return System.nanoTime() + VSYNC2;
+				// 一時停止・シーク・音声の再生位置による補正で描画予定時刻が変わることがあるので再計算する
+				targetNs = clock.getSystemTimeNs(presentationTimeUs);
 			}
+			// フラッシュ要求があればシーク前のフレームなので破棄する
+			return isRunning() && !mFlushRequested ? targetNs : -1L;
 		}
 	}
 
@@ -0,0 +1,88 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * IPcmStageの基本実装
+ * 入出力フォーマットの保持を行う
+ */
+public abstract class AbstractPcmStage implements IPcmStage {
+	@Nullable
+	private PcmFormat mInputFormat;
+	@Nullable
+	private PcmFormat mOutputFormat;
+
+	@NonNull
+	@Override
+	public final PcmFormat prepare(@NonNull final PcmFormat input) throws IllegalArgumentException {
+		final PcmFormat output = onPrepare(input);
+		mInputFormat = input;
+		mOutputFormat = output;
+		reset();
+		return output;
+	}
+
+	@NonNull
+	@Override
+	public PcmFormat getOutputFormat() throws IllegalStateException {
+		if (mOutputFormat == null) {
+			throw new IllegalStateException("not prepared yet");
+		}
+		return mOutputFormat;
+	}
+
+	/**
+	 * 入力フォーマットを取得する
+	 * #prepareを呼び出す前はIllegalStateExceptionを投げる
+	 * @return
+	 * @throws IllegalStateException
+	 */
+	@NonNull
+	public PcmFormat getInputFormat() throws IllegalStateException {
+		if (mInputFormat == null) {
+			throw new IllegalStateException("not prepared yet");
+		}
+		return mInputFormat;
+	}
+
+	@Override
+	public int getMaxOutputBytes(final int inputBytes) {
+		final PcmFormat input = getInputFormat();
+		final PcmFormat output = getOutputFormat();
+		final int frames = inputBytes / input.bytesPerFrame();
+		return Math.max(inputBytes, frames * output.bytesPerFrame());
+	}
+
+	@Override
+	public void reset() {
+	}
+
+	/**
+	 * #prepareの実処理
+	 * @param input
+	 * @return 出力フォーマット
+	 * @throws IllegalArgumentException
+	 */
+	@NonNull
+	protected abstract PcmFormat onPrepare(@NonNull final PcmFormat input)
+		throws IllegalArgumentException;
+}
@@ -18,6 +18,7 @@ package com.serenegiant.media;
  *  limitations under the License.
 */
 
+import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.media.AudioFormat;
 import android.media.AudioManager;
@@ -25,6 +26,7 @@ import android.media.AudioTrack;
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.media.PlaybackParams;
 import android.os.Build;
 import android.util.Log;
 
@@ -43,6 +45,16 @@ public abstract class AudioDecoder extends AbstractDecoder {
 	private static final boolean DEBUG = false;	// set false on production
 	private static final String TAG = AudioDecoder.class.getSimpleName();
 
+	/**
+	 * AudioTrackで時間伸縮して再生できる再生速度の最小値
+	 */
+	public static final float MIN_STRETCH_SPEED = 0.5f;
+	/**
+	 * AudioTrackで時間伸縮して再生できる再生速度の最大値
+	 * これより速いときは聞き取れないので音声を再生しない
+	 */
+	public static final float MAX_STRETCH_SPEED = 2.0f;
+
 	/**
 	 * インスタンス生成用のヘルパーメソッド
 	 * @param listener
@@ -63,6 +75,12 @@ public abstract class AudioDecoder extends AbstractDecoder {
 	@Nullable
 	protected AudioTrack mAudioTrack;
 	protected int mAudioInputBufSize;
+	private int mSampleRate;
+	private int mFrameBytes;
+	/**
+	 * AudioTrackへ書き込んだフレーム数
+	 */
+	private long mWrittenFrames;
 
 	/**
 	 * コンストラクタ
@@ -86,6 +104,9 @@ public abstract class AudioDecoder extends AbstractDecoder {
 		if (mAudioInputBufSize > max_input_size) mAudioInputBufSize = max_input_size;
 		final int frameSizeInBytes = audioChannels * 2;
 		mAudioInputBufSize = (mAudioInputBufSize / frameSizeInBytes) * frameSizeInBytes;
+		mSampleRate = audioSampleRate;
+		mFrameBytes = frameSizeInBytes;
+		mWrittenFrames = 0;
 		if (DEBUG) Log.v(TAG, String.format("getMinBufferSize=%d,max_input_size=%d,mAudioInputBufSize=%d",
 			min_buf_size, max_input_size, mAudioInputBufSize));
 		//
@@ -121,7 +142,113 @@ public abstract class AudioDecoder extends AbstractDecoder {
 		return codec;
 	}
 
+	/**
+	 * 再生速度を設定する
+	 * API>=23ならAudioTrackのPlaybackParamsで音程を保ったまま時間伸縮して再生する
+	 * @param speed 1なら等速
+	 * @return 指定した再生速度で音声を再生できるならtrue,
+	 * 			API<23またはMIN_STRETCH_SPEEDからMAX_STRETCH_SPEEDの範囲外でfalseを返したときは音声を再生しないこと
+	 */
+	@SuppressLint("NewApi")
+	public boolean setPlaybackSpeed(final float speed) {
+		final AudioTrack audioTrack = mAudioTrack;
+		if (audioTrack == null) return false;
+		final boolean normal = (speed == 1.0f);
+		if (BuildCheck.isAPI23()) {
+			if (!normal && ((speed < MIN_STRETCH_SPEED) || (speed > MAX_STRETCH_SPEED))) {
+				return false;
+			}
+			try {
+				final PlaybackParams params = audioTrack.getPlaybackParams();	// API>=23
+				if (params.getSpeed() != speed) {
+					audioTrack.setPlaybackParams(params.setSpeed(speed));		// API>=23
+				}
+				return true;
+			} catch (final IllegalArgumentException | IllegalStateException e) {
+				Log.w(TAG, e);
+				return normal;
+			}
+		}
+		return normal;
+	}
+
+	/**
+	 * 音声の再生位置をマスタークロックにするかどうか
+	 * マスタークロックがMODE_AUDIOでAudioTrackで再生中の時はAudioTrack#writeのブロッキングで
+	 * 再生タイミングが決まるので自前での待機はしない
+	 * @return
+	 */
+	protected boolean isAudioMaster() {
+		return (mAudioTrack != null) && (getClock().getMode() == MediaClock.MODE_AUDIO);
+	}
+
+	/**
+	 * AudioTrackへ書き込んだ後に呼び出して実際に再生されている位置をマスタークロックへ通知する
+	 * 再生位置 = 最後に書き込んだデータの終端のPTS - AudioTrack内に残っているフレーム数分の時間
+	 * @param presentationTimeUs 書き込んだデータの先頭のPTS
+	 * @param bytes 書き込んだバイト数
+	 */
+	protected void updateAudioClock(final long presentationTimeUs, final int bytes) {
+		final AudioTrack audioTrack = mAudioTrack;
+		if ((audioTrack == null) || (bytes <= 0)) return;
+		final int frames = bytes / mFrameBytes;
+		mWrittenFrames += frames;
+		if (isAudioMaster()) {
+			final long writtenEndPtsUs = presentationTimeUs + frames * 1000000L / mSampleRate;
+			final long played = audioTrack.getPlaybackHeadPosition() & 0xffffffffL;
+			final long pending = Math.max(mWrittenFrames - played, 0);
+			getClock().updateAudioPosition(
+				writtenEndPtsUs - pending * 1000000L / mSampleRate, System.nanoTime());
+		}
+	}
+
+	/**
+	 * AudioTrackへ書き込み済みで未再生のデータを破棄して書き込んだフレーム数をリセットする
+	 * AudioTrack#flushで再生位置も0に戻るのでマスタークロックへ通知する再生位置と整合する
+	 */
+	protected void flushAudioTrack() {
+		final AudioTrack audioTrack = mAudioTrack;
+		if (audioTrack != null) {
+			try {
+				// AudioTrack#flushは一時停止中・停止中でないと何もしないので一時停止してからフラッシュする
+				final boolean playing = audioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING;
+				if (playing) {
+					audioTrack.pause();
+				}
+				audioTrack.flush();
+				if (playing) {
+					audioTrack.play();
+				}
+			} catch (final IllegalStateException e) {
+				Log.w(TAG, e);
+			}
+		}
+		mWrittenFrames = 0;
+	}
+
+	/**
+	 * シーク時にシーク前の位置の音声を再生しないようにAudioTrackもフラッシュする
+	 * @param decoder
+	 */
+	@Override
+	protected void onFlush(@NonNull final MediaCodec decoder) {
+		flushAudioTrack();
+	}
+
+	/**
+	 * PCMデータのバイト数を再生時間へ変換する
+	 * @param bytes
+	 * @return [マイクロ秒]
+	 */
+	protected long bytesToUs(final int bytes) {
+		return mSampleRate > 0 ? (bytes / mFrameBytes) * 1000000L / mSampleRate : 0;
+	}
+
 //--------------------------------------------------------------------------------
+	/**
+	 * API<21用
+	 * API<21のAudioTrackはbyte[]からしか書き込めないので出力バッファをコピーして書き込む
+	 */
 	private static class AudioDecoderAPI16 extends AudioDecoder {
 		private static final String TAG = AudioDecoderAPI16.class.getSimpleName();
 		@Nullable
@@ -166,7 +293,7 @@ public abstract class AudioDecoder extends AbstractDecoder {
 			return new OutputTask(trackIndex) {
 				@Override
 				protected void handleOutput(@NonNull final MediaCodec decoder) {
-					while (isRunning() && !mOutputDone) {
+					while (isRunning() && !mOutputDone && !isFlushRequested()) {
 						final int decoderStatus = decoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
 						if (decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
 							return;
@@ -191,11 +318,15 @@ public abstract class AudioDecoder extends AbstractDecoder {
 								buffer.position(0);
 								buffer.get(mAudioOutTempBuf, 0, size);
 								buffer.clear();
-								if (mAudioTrack != null) {
-									mAudioTrack.write(mAudioOutTempBuf, 0, size);
+								boolean doRender = !checkSkip(mBufferInfo.presentationTimeUs);
+								if (doRender && !onFrameAvailable(mBufferInfo.presentationTimeUs)
+									&& !isAudioMaster()) {
+									// 遅れすぎているときは再生せずに破棄する
+									doRender = adjustPresentationTime(mBufferInfo.presentationTimeUs) >= 0;
 								}
-								if (!onFrameAvailable(mBufferInfo.presentationTimeUs)) {
-									adjustPresentationTime(mBufferInfo.presentationTimeUs);
+								if (doRender && (mAudioTrack != null)) {
+									mAudioTrack.write(mAudioOutTempBuf, 0, size);
+									updateAudioClock(mBufferInfo.presentationTimeUs, size);
 								}
 							}
 							decoder.releaseOutputBuffer(decoderStatus, false);
@@ -214,9 +345,55 @@ public abstract class AudioDecoder extends AbstractDecoder {
 
 	}
 
+	/**
+	 * API>=21用
+	 * MediaCodecの出力ByteBufferから直接AudioTrackへノンブロッキングで書き込む
+	 * (API16用のようにbyte[]へコピーしない)
+	 * AudioTrackのバッファが一杯で書き込みきれなかった出力バッファは
+	 * 書き込み待ちキューに入れて、AudioTrackが空くまでの間もデコーダーからの出力を受け取る
+	 * 出力バッファは全て書き込み終わってからデコーダーへ返却する
+	 */
 	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
 	private static class AudioDecoderAPI21 extends AudioDecoder {
 		private static final String TAG = AudioDecoderAPI21.class.getSimpleName();
+		/**
+		 * 書き込み待ちキューに保持する出力バッファの最大数
+		 * デコーダーの出力バッファを長く握ったままだとデコーダーが止まるので少なめにする
+		 */
+		private static final int MAX_PENDING = 4;
+		/**
+		 * 書き込み待ちがあるときのdequeueOutputBufferのタイムアウト[マイクロ秒]
+		 * AudioTrackの空き具合を頻繁に確認するために短くする
+		 */
+		private static final long PENDING_TIMEOUT_USEC = 2000;	// 2ミリ秒
+		/**
+		 * 書き込み待ちキューが一杯の時にAudioTrackの空き待ちをする最大時間[ミリ秒]
+		 */
+		private static final long MAX_DRAIN_WAIT_MS = 10;
+
+		/**
+		 * 書き込み待ちキュー(リングバッファ)
+		 * フレーム毎のオブジェクト生成を避けるために配列で保持する
+		 */
+		private final int[] mPendingIndex = new int[MAX_PENDING];
+		private final ByteBuffer[] mPendingBuffer = new ByteBuffer[MAX_PENDING];
+		private final long[] mPendingPtsUs = new long[MAX_PENDING];
+		/**
+		 * 書き込み待ちキューの各出力バッファの内で書き込み済みのバイト数
+		 */
+		private final int[] mPendingWritten = new int[MAX_PENDING];
+		private int mPendingHead;
+		private int mPendingCount;
+		/**
+		 * 書き込み待ちキューの出力バッファを取得したデコーダー
+		 */
+		@Nullable
+		private MediaCodec mPendingDecoder;
+		/**
+		 * 終端フラグ付きの出力バッファを受け取ったが書き込み待ちが残っているかどうか
+		 */
+		private boolean mEosPending;
+
 		/**
 		 * コンストラクタ
 		 * 直接のインスタンス生成を防止するためにprivateにする
@@ -236,11 +413,35 @@ public abstract class AudioDecoder extends AbstractDecoder {
 
 		@Override
 		protected OutputTask createOutputTask(final int trackIndex) {
+			// 前回の出力スレッドの書き込み待ちが残っていれば返却する
+			clearPending();
 			return new OutputTask(trackIndex) {
+				@Override
+				public void run() {
+					try {
+						super.run();
+					} finally {
+						// 出力スレッド終了時に書き込み待ちの出力バッファを返却する
+						clearPending();
+						if (!isRunning()) {
+							// 停止したときは書き込み済みの音声も破棄する
+							flushAudioTrack();
+						}
+					}
+				}
+
 				@Override
 				protected void handleOutput(@NonNull final MediaCodec decoder) {
-					while (isRunning() && !mOutputDone) {
-						final int decoderStatus = decoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+					while (isRunning() && !mOutputDone && !isFlushRequested()) {
+						drainPending(decoder);
+						if (mOutputDone) break;
+						if (mPendingCount >= MAX_PENDING) {
+							// 書き込み待ちキューが一杯なのでAudioTrackが空くのを待つ
+							waitDrain();
+							continue;
+						}
+						final int decoderStatus = decoder.dequeueOutputBuffer(mBufferInfo,
+							mPendingCount > 0 ? PENDING_TIMEOUT_USEC : TIMEOUT_USEC);
 						if (decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
 							return;
 						} else if (decoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
@@ -256,28 +457,146 @@ public abstract class AudioDecoder extends AbstractDecoder {
 								"unexpected result from audio decoder.dequeueOutputBuffer: " + decoderStatus);
 						} else { // decoderStatus >= 0
 							final int size = mBufferInfo.size;
-							if (size > 0) {
+							final long pts = mBufferInfo.presentationTimeUs;
+							final boolean eos = (mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+							boolean doRender = (size > 0) && !checkSkip(pts);
+							if (doRender && !onFrameAvailable(pts) && !isAudioMaster()) {
+								// 遅れすぎているときは再生せずに破棄する
+								doRender = adjustPresentationTime(pts) >= 0;
+							}
+							if (doRender && (mAudioTrack != null)) {
 								final ByteBuffer out = decoder.getOutputBuffer(decoderStatus);	// API>=21
-								out.clear();
-								if (mAudioTrack != null) {
-									mAudioTrack.write(out, size, AudioTrack.WRITE_BLOCKING);	// API>=21
-								}
-								if (!onFrameAvailable(mBufferInfo.presentationTimeUs)) {
-									adjustPresentationTime(mBufferInfo.presentationTimeUs);
-								}
+								out.limit(mBufferInfo.offset + size);
+								out.position(mBufferInfo.offset);
+								mPendingDecoder = decoder;
+								addPending(decoderStatus, out, pts);
+								// 書き込み待ちが無ければすぐに書き込まれる
+								drainPending(decoder);
+							} else {
+								decoder.releaseOutputBuffer(decoderStatus, false);
 							}
-							decoder.releaseOutputBuffer(decoderStatus, false);
-							if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+							if (eos) {
 								if (DEBUG) Log.d(TAG, "audio:output EOS");
-								synchronized (mSync) {
-									mOutputDone = true;
-									mSync.notifyAll();
-								}
+								mEosPending = true;
+								drainPending(decoder);
 							}
 						}
 					}
 				}
 			};
 		}
+
+		/**
+		 * シーク時は書き込み待ちキューの出力バッファを返却してからフラッシュする
+		 * (シーク前の位置の音声がAudioTrackへ書き込まれないようにする)
+		 * @param decoder
+		 */
+		@Override
+		protected void onFlush(@NonNull final MediaCodec decoder) {
+			clearPending();
+			super.onFlush(decoder);
+		}
+
+		/**
+		 * 書き込み待ちキューの出力バッファを全てデコーダーへ返却して
+		 * 書き込み待ちキューと書き込み済みバイト数をクリアする
+		 */
+		private void clearPending() {
+			final MediaCodec decoder = mPendingDecoder;
+			for (; mPendingCount > 0; mPendingCount--) {
+				final int head = mPendingHead;
+				if (decoder != null) {
+					try {
+						decoder.releaseOutputBuffer(mPendingIndex[head], false);
+					} catch (final IllegalStateException e) {
+						// デコーダーが既に停止・破棄されているとき
+						if (DEBUG) Log.w(TAG, e);
+					}
+				}
+				mPendingBuffer[head] = null;
+				mPendingWritten[head] = 0;
+				mPendingHead = (head + 1) % MAX_PENDING;
+			}
+			mPendingHead = 0;
+			mPendingDecoder = null;
+			mEosPending = false;
+		}
+
+		/**
+		 * 書き込み待ちキューへ出力バッファを追加する
+		 * @param index
+		 * @param buffer positionとlimitを書き込む範囲に設定した出力バッファ
+		 * @param presentationTimeUs
+		 */
+		private void addPending(final int index,
+			@NonNull final ByteBuffer buffer, final long presentationTimeUs) {
+
+			final int tail = (mPendingHead + mPendingCount) % MAX_PENDING;
+			mPendingIndex[tail] = index;
+			mPendingBuffer[tail] = buffer;
+			mPendingPtsUs[tail] = presentationTimeUs;
+			mPendingWritten[tail] = 0;
+			mPendingCount++;
+		}
+
+		/**
+		 * 書き込み待ちキューの先頭から順にAudioTrackへノンブロッキングで書き込む
+		 * 書き込み終わった出力バッファはデコーダーへ返却する
+		 * AudioTrackが一杯になればその時点で戻る
+		 * 終端フラグを受け取っていて書き込み待ちが無くなれば出力終了にする
+		 * @param decoder
+		 */
+		private void drainPending(@NonNull final MediaCodec decoder) {
+			final AudioTrack audioTrack = mAudioTrack;
+			while (mPendingCount > 0) {
+				final int head = mPendingHead;
+				final ByteBuffer buffer = mPendingBuffer[head];
+				final int remaining = buffer.remaining();
+				final int written = (audioTrack != null) && (remaining > 0)
+					? audioTrack.write(buffer, remaining, AudioTrack.WRITE_NON_BLOCKING)	// API>=21
+					: remaining;
+				if (written < 0) {
+					// AudioTrackのエラーの時は残りを捨てる
+					Log.w(TAG, "drainPending:failed to write to AudioTrack," + written);
+				} else if (written > 0) {
+					updateAudioClock(mPendingPtsUs[head] + bytesToUs(mPendingWritten[head]), written);
+					mPendingWritten[head] += written;
+				}
+				if ((written >= 0) && (written < remaining)) {
+					// AudioTrackが一杯
+					break;
+				}
+				decoder.releaseOutputBuffer(mPendingIndex[head], false);
+				mPendingBuffer[head] = null;
+				mPendingHead = (head + 1) % MAX_PENDING;
+				mPendingCount--;
+			}
+			if (mEosPending && (mPendingCount == 0)) {
+				mEosPending = false;
+				synchronized (mSync) {
+					mOutputDone = true;
+					mSync.notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * AudioTrackのバッファが空くのを待機する
+		 * 停止要求時はすぐに戻る
+		 */
+		private void waitDrain() {
+			// AudioTrackのバッファの1/4程度が再生されるまで待つ
+			final long waitMs = Math.min(Math.max(
+				bytesToUs(mAudioInputBufSize) / 4000L, 1L), MAX_DRAIN_WAIT_MS);
+			synchronized (mSync) {
+				if (isRunning()) {
+					try {
+						mSync.wait(waitMs);
+					} catch (final InterruptedException e) {
+						// ignore
+					}
+				}
+			}
+		}
 	}
 }
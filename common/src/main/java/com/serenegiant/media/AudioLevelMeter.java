@@ -0,0 +1,306 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 音声データのチャネル毎のRMS・ピーク・クリップ数を計測するIPcmStage実装
+ * 音声データは変更しない
+ * IAudioSampler#setPcmStage(またはPcmStageChainの一部として)設定すると
+ * サンプラーのコールバックスレッド上で音声データのコピーなしに計測する
+ * 計測結果は一定時間(ウインドウ)毎に公開され、任意のスレッドから#getLevelで
+ * ロックなしに取得できるのでUIでのレベルメーター表示や無音検出に使える
+ * (SoundCheckのように別スレッドや音声データのコピーは不要)
+ */
+public class AudioLevelMeter extends AbstractPcmStage {
+	/**
+	 * デフォルトの計測ウインドウ[ミリ秒]
+	 */
+	public static final int DEFAULT_WINDOW_MS = 50;
+	/**
+	 * デフォルトの無音判定閾値[dBFS]
+	 */
+	public static final float DEFAULT_SILENCE_THRESHOLD_DB = -50.0f;
+
+	private static final int MAX_CHANNELS = 2;
+	// 公開用配列のレイアウト
+	private static final int IX_RMS = 0;
+	private static final int IX_PEAK = IX_RMS + MAX_CHANNELS;
+	private static final int IX_CLIP = IX_PEAK + MAX_CHANNELS;
+	private static final int IX_SILENT_FRAMES = IX_CLIP + MAX_CHANNELS;
+	private static final int IX_WINDOWS = IX_SILENT_FRAMES + 1;
+	private static final int NUM_PUBLISHED = IX_WINDOWS + 1;
+
+	/**
+	 * 計測結果のスナップショットを保持するためのホルダークラス
+	 * 呼び出し側で生成して使いまわせば#getLevelでのオブジェクト生成はない
+	 */
+	public static class Level {
+		/**
+		 * チャネル数
+		 */
+		public int channels;
+		/**
+		 * チャネル毎のRMS値, 0.0〜1.0(フルスケール)
+		 */
+		@NonNull
+		public final float[] rms = new float[MAX_CHANNELS];
+		/**
+		 * チャネル毎のピーク値, 0.0〜1.0(フルスケール)
+		 */
+		@NonNull
+		public final float[] peak = new float[MAX_CHANNELS];
+		/**
+		 * チャネル毎の計測開始からの累積クリップ数(フルスケールに達したサンプル数)
+		 */
+		@NonNull
+		public final long[] clipCount = new long[MAX_CHANNELS];
+		/**
+		 * 連続して無音判定閾値を下回っているフレーム数
+		 */
+		public long silentFrames;
+		/**
+		 * 計測開始から公開したウインドウ数, 0なら未計測
+		 */
+		public long windows;
+		/**
+		 * サンプリングレート
+		 */
+		public int samplingRate;
+
+		/**
+		 * 指定したチャネルのRMS値をdBFSで取得する
+		 * @param ch
+		 * @return 無音のときはFloat.NEGATIVE_INFINITY
+		 */
+		public float rmsDb(final int ch) {
+			return toDb(rms[ch]);
+		}
+
+		/**
+		 * 指定したチャネルのピーク値をdBFSで取得する
+		 * @param ch
+		 * @return 無音のときはFloat.NEGATIVE_INFINITY
+		 */
+		public float peakDb(final int ch) {
+			return toDb(peak[ch]);
+		}
+
+		/**
+		 * 連続した無音の継続時間[ミリ秒]を取得する
+		 * @return
+		 */
+		public long silentDurationMs() {
+			return samplingRate > 0 ? silentFrames * 1000L / samplingRate : 0;
+		}
+	}
+
+	/**
+	 * リニア値をdBFSへ変換する
+	 * @param value
+	 * @return
+	 */
+	public static float toDb(final float value) {
+		return value > 0 ? (float)(20.0 * Math.log10(value)) : Float.NEGATIVE_INFINITY;
+	}
+
+	private final int mWindowMs;
+	private volatile float mSilenceThreshold;
+	// 以下はサンプラーのコールバックスレッドのみからアクセスする
+	@NonNull
+	private final double[] mSumSquare = new double[MAX_CHANNELS];
+	@NonNull
+	private final float[] mPeak = new float[MAX_CHANNELS];
+	@NonNull
+	private final long[] mClipCount = new long[MAX_CHANNELS];
+	private int mWindowFrames;
+	private int mFrames;
+	private long mSilentFrames;
+	private long mWindows;
+	// 公開用, シーケンスロックで一貫性を保証する
+	@NonNull
+	private final AtomicLong mSeq = new AtomicLong();
+	@NonNull
+	private final AtomicLongArray mPublished = new AtomicLongArray(NUM_PUBLISHED);
+
+	/**
+	 * コンストラクタ
+	 * 計測ウインドウはDEFAULT_WINDOW_MS, 無音判定閾値はDEFAULT_SILENCE_THRESHOLD_DB
+	 */
+	public AudioLevelMeter() {
+		this(DEFAULT_WINDOW_MS, DEFAULT_SILENCE_THRESHOLD_DB);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param windowMs 計測結果を公開する間隔[ミリ秒]
+	 * @param silenceThresholdDb 無音判定閾値[dBFS], RMS値が全チャネルでこれを下回ると無音とみなす
+	 */
+	public AudioLevelMeter(final int windowMs, final float silenceThresholdDb) {
+		mWindowMs = windowMs > 0 ? windowMs : DEFAULT_WINDOW_MS;
+		setSilenceThreshold(silenceThresholdDb);
+	}
+
+	/**
+	 * 無音判定閾値を設定する
+	 * @param thresholdDb [dBFS]
+	 */
+	public void setSilenceThreshold(final float thresholdDb) {
+		mSilenceThreshold = (float)Math.pow(10.0, thresholdDb / 20.0);
+	}
+
+	@NonNull
+	@Override
+	protected PcmFormat onPrepare(@NonNull final PcmFormat input) {
+		mWindowFrames = Math.max(1, input.samplingRate * mWindowMs / 1000);
+		return input;
+	}
+
+	@Override
+	public void reset() {
+		for (int ch = 0; ch < MAX_CHANNELS; ch++) {
+			mSumSquare[ch] = 0;
+			mPeak[ch] = 0;
+			mClipCount[ch] = 0;
+		}
+		mFrames = 0;
+		mSilentFrames = 0;
+		mWindows = 0;
+		mSeq.incrementAndGet();
+		for (int i = 0; i < NUM_PUBLISHED; i++) {
+			mPublished.set(i, 0);
+		}
+		mSeq.incrementAndGet();
+	}
+
+	@Override
+	public int process(@NonNull final ByteBuffer buffer, final int size) {
+		final PcmFormat format = getInputFormat();
+		final int channels = format.channels;
+		final int frames = size / format.bytesPerFrame();
+		final boolean isFloat = format.isFloat();
+		int frame = 0;
+		while (frame < frames) {
+			// ウインドウの境界までを一括処理する
+			final int n = Math.min(frames - frame, mWindowFrames - mFrames);
+			for (int ch = 0; ch < channels; ch++) {
+				double sum = mSumSquare[ch];
+				float peak = mPeak[ch];
+				long clip = mClipCount[ch];
+				if (isFloat) {
+					for (int i = 0; i < n; i++) {
+						final float v = buffer.getFloat(((frame + i) * channels + ch) << 2);
+						final float a = v < 0 ? -v : v;
+						sum += v * v;
+						if (a > peak) peak = a;
+						if (a >= 1.0f) clip++;
+					}
+				} else {
+					for (int i = 0; i < n; i++) {
+						final int v = buffer.getShort(((frame + i) * channels + ch) << 1);
+						final int a = v < 0 ? -v : v;
+						sum += v * v;
+						final float p = a / 32768.0f;
+						if (p > peak) peak = p;
+						if (a >= Short.MAX_VALUE) clip++;
+					}
+				}
+				mSumSquare[ch] = sum;
+				mPeak[ch] = peak;
+				mClipCount[ch] = clip;
+			}
+			frame += n;
+			mFrames += n;
+			if (mFrames >= mWindowFrames) {
+				publish(channels, isFloat);
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * 1ウインドウ分の計測結果を公開する
+	 * @param channels
+	 * @param isFloat
+	 */
+	private void publish(final int channels, final boolean isFloat) {
+		final double scale = isFloat ? 1.0 : 1.0 / (32768.0 * 32768.0);
+		boolean silent = true;
+		final float threshold = mSilenceThreshold;
+		mWindows++;
+		mSeq.incrementAndGet();
+		for (int ch = 0; ch < channels; ch++) {
+			final float rms = (float)Math.sqrt(mSumSquare[ch] * scale / mFrames);
+			if (rms >= threshold) {
+				silent = false;
+			}
+			mPublished.set(IX_RMS + ch, Float.floatToIntBits(rms));
+			mPublished.set(IX_PEAK + ch, Float.floatToIntBits(mPeak[ch]));
+			mPublished.set(IX_CLIP + ch, mClipCount[ch]);
+			mSumSquare[ch] = 0;
+			mPeak[ch] = 0;
+		}
+		mSilentFrames = silent ? mSilentFrames + mFrames : 0;
+		mPublished.set(IX_SILENT_FRAMES, mSilentFrames);
+		mPublished.set(IX_WINDOWS, mWindows);
+		mSeq.incrementAndGet();
+		mFrames = 0;
+	}
+
+	/**
+	 * 最新の計測結果を取得する
+	 * 任意のスレッドから呼び出し可能
+	 * @param level 計測結果の書き込み先
+	 * @return 引数のlevel
+	 */
+	@NonNull
+	public Level getLevel(@NonNull final Level level) {
+		final PcmFormat format = getInputFormat();
+		long seq;
+		do {
+			seq = mSeq.get();
+			for (int ch = 0; ch < MAX_CHANNELS; ch++) {
+				level.rms[ch] = Float.intBitsToFloat((int)mPublished.get(IX_RMS + ch));
+				level.peak[ch] = Float.intBitsToFloat((int)mPublished.get(IX_PEAK + ch));
+				level.clipCount[ch] = mPublished.get(IX_CLIP + ch);
+			}
+			level.silentFrames = mPublished.get(IX_SILENT_FRAMES);
+			level.windows = mPublished.get(IX_WINDOWS);
+		} while (((seq & 1) != 0) || (seq != mSeq.get()));
+		level.channels = format.channels;
+		level.samplingRate = format.samplingRate;
+		return level;
+	}
+
+	/**
+	 * 指定した時間以上無音が継続しているかどうか
+	 * 任意のスレッドから呼び出し可能
+	 * @param durationMs
+	 * @return
+	 */
+	public boolean isSilent(final long durationMs) {
+		final long silentFrames = mPublished.get(IX_SILENT_FRAMES);
+		return silentFrames * 1000L >= durationMs * getInputFormat().samplingRate;
+	}
+}
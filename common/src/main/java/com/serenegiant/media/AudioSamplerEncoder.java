@@ -74,8 +74,9 @@ public class AudioSamplerEncoder extends AbstractAudioEncoder {
 		@NonNull final EncoderListener2 listener,
 		@Nullable IAudioSampler sampler) {
 
+		// PCM処理ステージでチャネル数・サンプリングレートが変わる場合があるので適用後の値を使う
 		super(recorder, listener, sampler.getAudioSource(),
-			sampler.getChannels(), sampler.getSamplingFrequency(),
+			sampler.getOutputChannels(), sampler.getOutputSamplingFrequency(),
 			DEFAULT_BIT_RATE);
 //		if (DEBUG) Log.v(TAG, "コンストラクタ:");
 		mSampler = sampler;
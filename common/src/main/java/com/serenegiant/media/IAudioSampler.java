@@ -30,6 +30,7 @@ import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.TimeUnit;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresPermission;
 
 public abstract class IAudioSampler {
@@ -97,6 +98,11 @@ public abstract class IAudioSampler {
 	private final Set<SoundSamplerCallback> mCallbacks
 		= new CopyOnWriteArraySet<SoundSamplerCallback>();
 	private volatile boolean mIsCapturing;
+	/**
+	 * コールバック呼び出し前に適用するPCM処理ステージ
+	 */
+	@Nullable
+	private volatile IPcmStage mPcmStage;
 
 	public IAudioSampler() {
 		mAudioQueue = new MemMediaQueue(MAX_POOL_SIZE, MAX_POOL_SIZE, MAX_QUEUE_SIZE);
@@ -173,6 +179,62 @@ public abstract class IAudioSampler {
 		}
 	}
 
+	/**
+	 * コールバック呼び出し前に音声データへ適用するPCM処理ステージを設定する
+	 * #startを呼び出す前に設定すること
+	 * PCM処理ステージはコールバックスレッド上で音声データバッファに対してインプレースで実行される
+	 * チャネル数・サンプリングレート等を変更するステージを設定したときは
+	 * コールバック側では#getOutputChannels等で変更後の値を取得すること
+	 * @param stage nullならPCM処理ステージを適用しない
+	 * @throws IllegalArgumentException このサンプラーのフォーマットに対応していないとき
+	 */
+	public void setPcmStage(@Nullable final IPcmStage stage) throws IllegalArgumentException {
+		if (stage != null) {
+			stage.prepare(new PcmFormat(getChannels(), getSamplingFrequency(), getAudioFormat()));
+		}
+		mPcmStage = stage;
+	}
+
+	/**
+	 * 設定されているPCM処理ステージを取得する
+	 * @return
+	 */
+	@Nullable
+	public IPcmStage getPcmStage() {
+		return mPcmStage;
+	}
+
+	/**
+	 * PCM処理ステージ適用後のチャネル数を返す
+	 * PCM処理ステージが設定されていなければ#getChannelsと同じ
+	 * @return
+	 */
+	public int getOutputChannels() {
+		final IPcmStage stage = mPcmStage;
+		return stage != null ? stage.getOutputFormat().channels : getChannels();
+	}
+
+	/**
+	 * PCM処理ステージ適用後のサンプリング周波数を返す
+	 * PCM処理ステージが設定されていなければ#getSamplingFrequencyと同じ
+	 * @return
+	 */
+	public int getOutputSamplingFrequency() {
+		final IPcmStage stage = mPcmStage;
+		return stage != null ? stage.getOutputFormat().samplingRate : getSamplingFrequency();
+	}
+
+	/**
+	 * PCM処理ステージ適用後の音声フォーマットを返す
+	 * PCM処理ステージが設定されていなければ#getAudioFormatと同じ
+	 * @return
+	 */
+	@AudioRecordCompat.AudioFormats
+	public int getOutputAudioFormat() {
+		final IPcmStage stage = mPcmStage;
+		return stage != null ? stage.getOutputFormat().encoding : getAudioFormat();
+	}
+
 	protected void setIsCapturing(final boolean isCapturing) {
 		mIsCapturing = isCapturing;
 	}
@@ -288,7 +350,7 @@ public abstract class IAudioSampler {
 	protected int mDefaultBufferSize = 1024;
 	protected void init_pool(final int default_buffer_size) {
 		mDefaultBufferSize = default_buffer_size;
-		mAudioQueue.init(default_buffer_size);
+		mAudioQueue.init(getRequiredBufferBytes(default_buffer_size));
 	}
 
 	/**
@@ -299,7 +361,37 @@ public abstract class IAudioSampler {
 	 */
 	protected RecycleMediaData obtain(final int bufferBytes) {
 //		if (DEBUG) Log.v(TAG, "obtain:" + mPool.size() + ",mBufferNum=" + mBufferNum);
-		return mAudioQueue.obtain(bufferBytes);
+		return mAudioQueue.obtain(getRequiredBufferBytes(bufferBytes));
+	}
+
+	/**
+	 * PCM処理ステージをインプレースで適用できるように必要なバッファサイズを計算する
+	 * @param bufferBytes
+	 * @return
+	 */
+	private int getRequiredBufferBytes(final int bufferBytes) {
+		final IPcmStage stage = mPcmStage;
+		return stage != null ? stage.getMaxOutputBytes(bufferBytes) : bufferBytes;
+	}
+
+	/**
+	 * PCM処理ステージが設定されていれば音声データへ適用する
+	 * @param data
+	 * @return false: バッファ容量不足等で適用できなかった
+	 */
+	private boolean applyPcmStage(@NonNull final MediaData data) {
+		final IPcmStage stage = mPcmStage;
+		if ((stage != null) && (data.size() > 0)) {
+			final ByteBuffer buf = data.getRaw();
+			if ((buf == null) || (buf.capacity() < stage.getMaxOutputBytes(data.size()))) {
+				Log.w(TAG, "applyPcmStage:buffer too small");
+				return false;
+			}
+			// 絶対位置指定での書き込みはlimitまでしかできないのでclearしておく
+			buf.clear();
+			data.size(stage.process(buf, data.size()));
+		}
+		return true;
 	}
 
 	protected boolean addMediaData(@NonNull final RecycleMediaData data) {
@@ -350,7 +442,9 @@ public abstract class IAudioSampler {
 					break;
 				}
     			if (data != null) {
-    				callOnData(data);
+    				if (applyPcmStage(data)) {
+    					callOnData(data);
+    				}
     				// 使用済みのバッファをプールに戻して再利用する
     				data.recycle();
     			}
@@ -0,0 +1,72 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.nio.ByteBuffer;
+
+import androidx.annotation.NonNull;
+
+/**
+ * PCM音声データをByteBuffer上でインプレース処理するための処理ステージのインターフェース
+ * IAudioSampler#setPcmStageで設定するとコールバック呼び出し前に
+ * サンプラーのコールバックスレッド上で実行される
+ * フレーム毎のオブジェクト生成を避けるためにバッファへは絶対位置指定でアクセスすること
+ */
+public interface IPcmStage {
+	/**
+	 * 入力フォーマットを指定して初期化する
+	 * #processを呼び出す前に1度だけ呼び出される
+	 * @param input 入力フォーマット
+	 * @return 出力フォーマット
+	 * @throws IllegalArgumentException 未対応の入力フォーマットのとき
+	 */
+	@NonNull
+	public PcmFormat prepare(@NonNull final PcmFormat input) throws IllegalArgumentException;
+
+	/**
+	 * 出力フォーマットを取得する
+	 * #prepareを呼び出す前はIllegalStateExceptionを投げる
+	 * @return
+	 * @throws IllegalStateException
+	 */
+	@NonNull
+	public PcmFormat getOutputFormat() throws IllegalStateException;
+
+	/**
+	 * 指定したバイト数の入力を処理したときに必要となる最大のバッファサイズを取得する
+	 * @param inputBytes
+	 * @return
+	 */
+	public int getMaxOutputBytes(final int inputBytes);
+
+	/**
+	 * bufferの先頭からsizeバイトのPCMデータを処理して結果をbufferの先頭から書き込む
+	 * bufferへは絶対位置指定でアクセスするのでpositionは変更しない
+	 * bufferのlimitは#getMaxOutputBytes(size)以上であること
+	 * @param buffer ネイティブオーダーのByteBuffer
+	 * @param size 入力データのバイト数
+	 * @return 処理後のデータのバイト数
+	 */
+	public int process(@NonNull final ByteBuffer buffer, final int size);
+
+	/**
+	 * 内部状態(リサンプリングの位相等)をリセットする
+	 */
+	public void reset();
+}
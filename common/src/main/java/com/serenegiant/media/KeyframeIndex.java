@@ -0,0 +1,373 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+/**
+ * 動画ファイルの映像トラックの全サンプルのPTSとキーフレーム(同期サンプル)かどうかを保持するインデックス
+ * MediaPlayerでのシーク時に正確なフレームまでのデコードや最寄りのキーフレームへのシークに使う
+ * 動画ファイルと同じディレクトリへキャッシュファイルとして保存して、
+ * 次回以降はコンテナを再スキャンせずに読み込む
+ * (動画ファイルのサイズと更新日時が変わったときは無効になる)
+ */
+public class KeyframeIndex {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = KeyframeIndex.class.getSimpleName();
+
+	/**
+	 * キャッシュファイルの拡張子
+	 */
+	public static final String CACHE_EXT = ".kfidx";
+	private static final int MAGIC = 0x4b464958;	// 'KFIX'
+	private static final int VERSION = 1;
+	/**
+	 * キャッシュファイルのヘッダーのバイト数
+	 * (MAGIC, VERSION, 動画ファイルのサイズ, 更新日時, フレーム数)
+	 */
+	private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 4;
+
+	/**
+	 * 映像トラックの全サンプルのPTS[マイクロ秒], 昇順
+	 */
+	@NonNull
+	private final long[] mPtsUs;
+	/**
+	 * キーフレームのmPtsUs内のインデックス, 昇順
+	 */
+	@NonNull
+	private final int[] mKeyframes;
+
+	/**
+	 * コンストラクタ
+	 * @param entries (PTS << 1) | (キーフレームなら1)をPTSの昇順に並べた配列
+	 */
+	private KeyframeIndex(@NonNull final long[] entries) {
+		final int n = entries.length;
+		mPtsUs = new long[n];
+		int numKeyframes = 0;
+		for (int i = 0; i < n; i++) {
+			mPtsUs[i] = entries[i] >> 1;
+			if ((entries[i] & 1) != 0) {
+				numKeyframes++;
+			}
+		}
+		mKeyframes = new int[numKeyframes];
+		for (int i = 0, j = 0; i < n; i++) {
+			if ((entries[i] & 1) != 0) {
+				mKeyframes[j++] = i;
+			}
+		}
+	}
+
+	/**
+	 * フレーム数を取得
+	 * @return
+	 */
+	public int getFrameCount() {
+		return mPtsUs.length;
+	}
+
+	/**
+	 * キーフレーム数を取得
+	 * @return
+	 */
+	public int getKeyframeCount() {
+		return mKeyframes.length;
+	}
+
+	/**
+	 * 指定したフレームのPTSを取得
+	 * @param index 0以上#getFrameCount未満
+	 * @return [マイクロ秒]
+	 */
+	public long getFramePtsUs(final int index) {
+		return mPtsUs[index];
+	}
+
+	/**
+	 * 指定したキーフレームのPTSを取得
+	 * @param index 0以上#getKeyframeCount未満
+	 * @return [マイクロ秒]
+	 */
+	public long getKeyframePtsUs(final int index) {
+		return mPtsUs[mKeyframes[index]];
+	}
+
+	/**
+	 * 指定したPTSを表示するときに表示されるフレーム
+	 * (PTSが指定した値以下で最大のフレーム)のインデックスを取得
+	 * @param ptsUs [マイクロ秒]
+	 * @return フレームのインデックス, 最初のフレームより前なら0, フレームが無ければ-1
+	 */
+	public int findFrame(final long ptsUs) {
+		if (mPtsUs.length == 0) return -1;
+		final int ix = Arrays.binarySearch(mPtsUs, ptsUs);
+		return ix >= 0 ? ix : Math.max(-ix - 2, 0);
+	}
+
+	/**
+	 * 指定したPTS以前で最も近いキーフレームのPTSを取得
+	 * 指定したPTSのフレームを正確にデコードするにはこのキーフレームからデコードする
+	 * @param ptsUs [マイクロ秒]
+	 * @return [マイクロ秒], キーフレームが無ければ指定したPTSをそのまま返す
+	 */
+	public long findKeyframeBefore(final long ptsUs) {
+		final int k = findKeyframe(ptsUs);
+		return k >= 0 ? mPtsUs[mKeyframes[k]] : ptsUs;
+	}
+
+	/**
+	 * 指定したPTSに最も近いキーフレームのPTSを取得
+	 * @param ptsUs [マイクロ秒]
+	 * @return [マイクロ秒], キーフレームが無ければ指定したPTSをそのまま返す
+	 */
+	public long findNearestKeyframe(final long ptsUs) {
+		final int k = findKeyframe(ptsUs);
+		if (k < 0) return ptsUs;
+		final long prev = mPtsUs[mKeyframes[k]];
+		if ((k + 1 < mKeyframes.length) && (prev < ptsUs)) {
+			final long next = mPtsUs[mKeyframes[k + 1]];
+			return (next - ptsUs < ptsUs - prev) ? next : prev;
+		}
+		return prev;
+	}
+
+	/**
+	 * 指定したPTSより後で最も近いキーフレームのPTSを取得
+	 * 高速再生時にキーフレームだけをデコードするときに次にデコードするキーフレームを探すのに使う
+	 * @param ptsUs [マイクロ秒]
+	 * @return [マイクロ秒], 指定したPTSより後にキーフレームが無ければ-1
+	 */
+	public long findKeyframeAfter(final long ptsUs) {
+		final int k = findKeyframe(ptsUs);
+		if (k < 0) return -1L;
+		final long pts = mPtsUs[mKeyframes[k]];
+		if (pts > ptsUs) {
+			// 最初のキーフレームより前
+			return pts;
+		}
+		return k + 1 < mKeyframes.length ? mPtsUs[mKeyframes[k + 1]] : -1L;
+	}
+
+	/**
+	 * 指定したPTS以前で最も近いキーフレームのmKeyframes内のインデックス
+	 * @param ptsUs
+	 * @return 最初のキーフレームより前なら0, キーフレームが無ければ-1
+	 */
+	private int findKeyframe(final long ptsUs) {
+		if (mKeyframes.length == 0) return -1;
+		int lo = 0, hi = mKeyframes.length - 1;
+		while (lo < hi) {
+			final int mid = (lo + hi + 1) >>> 1;
+			if (mPtsUs[mKeyframes[mid]] <= ptsUs) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * 指定した動画ファイルのキャッシュファイルを取得
+	 * @param path
+	 * @return
+	 */
+	@NonNull
+	public static File getCacheFile(@NonNull final String path) {
+		return new File(path + CACHE_EXT);
+	}
+
+	/**
+	 * キャッシュファイルがあれば読み込み、無ければ動画ファイルをスキャンして生成する
+	 * 生成したときは動画ファイルと同じディレクトリへキャッシュファイルを書き込む
+	 * (書き込めないときは保存しない)
+	 * スキャン中に呼び出しスレッドへ割り込みされるとnullを返す
+	 * @param path 動画ファイルのパス
+	 * @return
+	 */
+	@WorkerThread
+	@Nullable
+	public static KeyframeIndex loadOrBuild(@NonNull final String path) {
+		final File src = new File(path);
+		final File cache = getCacheFile(path);
+		KeyframeIndex result = load(cache, src);
+		if (result == null) {
+			try {
+				result = build(path);
+			} catch (final IOException e) {
+				Log.w(TAG, e);
+			}
+			if (result != null) {
+				save(result, cache, src);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 動画ファイルの映像トラックをスキャンしてインデックスを生成する
+	 * サンプルデータは読み込まずにPTSとフラグだけを取得する
+	 * @param path
+	 * @return 映像トラックが無いとき・スキャン中に割り込みされたときはnull
+	 * @throws IOException
+	 */
+	@WorkerThread
+	@Nullable
+	public static KeyframeIndex build(@NonNull final String path) throws IOException {
+		if (DEBUG) Log.v(TAG, "build:" + path);
+		final MediaExtractor extractor = new MediaExtractor();
+		try {
+			extractor.setDataSource(path);
+			int trackIndex = -1;
+			final int n = extractor.getTrackCount();
+			for (int i = 0; i < n; i++) {
+				final String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+				if ((mime != null) && mime.startsWith("video/")) {
+					trackIndex = i;
+					break;
+				}
+			}
+			if (trackIndex < 0) return null;
+			extractor.selectTrack(trackIndex);
+			long[] entries = new long[1024];
+			int count = 0;
+			for (long pts = extractor.getSampleTime(); pts >= 0; pts = extractor.getSampleTime()) {
+				if (Thread.interrupted()) {
+					if (DEBUG) Log.v(TAG, "build:interrupted");
+					return null;
+				}
+				if (count == entries.length) {
+					entries = Arrays.copyOf(entries, count * 2);
+				}
+				final boolean isKeyframe
+					= (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+				entries[count++] = (pts << 1) | (isKeyframe ? 1 : 0);
+				if (!extractor.advance()) break;
+			}
+			// Bフレームがあるとデコード順とPTS順が一致しないのでPTS順に並べ替える
+			entries = Arrays.copyOf(entries, count);
+			Arrays.sort(entries);
+			if (DEBUG) Log.v(TAG, "build:frames=" + count);
+			return new KeyframeIndex(entries);
+		} finally {
+			extractor.release();
+		}
+	}
+
+	/**
+	 * キャッシュファイルを読み込む
+	 * @param cache
+	 * @param src 動画ファイル, サイズと更新日時がキャッシュファイル作成時と異なれば無効とする
+	 * @return 読み込めなかったときはnull
+	 */
+	@Nullable
+	public static KeyframeIndex load(@NonNull final File cache, @NonNull final File src) {
+		if (!cache.canRead()) return null;
+		try {
+			final DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(cache)));
+			try {
+				if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)
+					|| (in.readLong() != src.length())
+					|| (in.readLong() != src.lastModified())) {
+					if (DEBUG) Log.v(TAG, "load:cache is stale," + cache);
+					return null;
+				}
+				final int count = in.readInt();
+				// 壊れたキャッシュファイルで巨大な配列を確保しないように
+				// ファイルの残りのバイト数で読み込めるフレーム数を超えていれば無効とする
+				if ((count < 0) || (count > (cache.length() - HEADER_BYTES) / 8)) {
+					if (DEBUG) Log.v(TAG, "load:cache is broken," + cache);
+					return null;
+				}
+				final long[] entries = new long[count];
+				for (int i = 0; i < count; i++) {
+					entries[i] = in.readLong();
+				}
+				return new KeyframeIndex(entries);
+			} finally {
+				in.close();
+			}
+		} catch (final IOException e) {
+			if (DEBUG) Log.w(TAG, e);
+		}
+		return null;
+	}
+
+	/**
+	 * キャッシュファイルへ書き込む
+	 * 一時ファイルへ書き込んでからリネームする
+	 * @param index
+	 * @param cache
+	 * @param src
+	 * @return 書き込めればtrue
+	 */
+	public static boolean save(
+		@NonNull final KeyframeIndex index,
+		@NonNull final File cache, @NonNull final File src) {
+
+		final File tmp = new File(cache.getPath() + ".tmp");
+		try {
+			final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(src.length());
+				out.writeLong(src.lastModified());
+				final int count = index.mPtsUs.length;
+				out.writeInt(count);
+				for (int i = 0, k = 0; i < count; i++) {
+					final boolean isKeyframe
+						= (k < index.mKeyframes.length) && (index.mKeyframes[k] == i);
+					if (isKeyframe) k++;
+					out.writeLong((index.mPtsUs[i] << 1) | (isKeyframe ? 1 : 0));
+				}
+			} finally {
+				out.close();
+			}
+		} catch (final IOException e) {
+			// 動画ファイルと同じディレクトリに書き込めないときはキャッシュしない
+			if (DEBUG) Log.w(TAG, e);
+			//noinspection ResultOfMethodCallIgnored
+			tmp.delete();
+			return false;
+		}
+		return tmp.renameTo(cache);
+	}
+}
@@ -0,0 +1,312 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+
+/**
+ * 映像・音声デコーダーで共有する再生位置のマスタークロック
+ * 最初のフレームのPTSとシステム時刻を基準(アンカー)として
+ * PTSとシステム時刻を相互に変換する
+ * MODE_AUDIOのときは音声デコーダーから#updateAudioPositionで実際に再生されている
+ * 位置を受け取ってアンカーを補正する(ずれが小さい時は少しずつ、大きいときは一気に補正する)
+ * 音声の再生位置が届かない間はシステム時刻で進む
+ * #setSpeedで再生速度を設定するとシステム時刻の経過に対して再生位置が再生速度倍で進む
+ */
+public class MediaClock {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = MediaClock.class.getSimpleName();
+
+	/**
+	 * システム時刻をマスターにする
+	 */
+	public static final int MODE_SYSTEM = 0;
+	/**
+	 * 音声の再生位置をマスターにする
+	 */
+	public static final int MODE_AUDIO = 1;
+
+	@IntDef({
+		MODE_SYSTEM,
+		MODE_AUDIO,
+	})
+	@Retention(RetentionPolicy.SOURCE)
+	public @interface ClockMode {}
+
+	/**
+	 * デフォルトのフレーム破棄の閾値[マイクロ秒]
+	 * 描画予定時刻からこれ以上遅れたフレームは破棄する
+	 */
+	public static final long DEFAULT_DROP_THRESHOLD_US = 50000L;
+	/**
+	 * 音声の再生位置とのずれがこれ以上あれば一気に補正する[マイクロ秒]
+	 */
+	private static final long RESYNC_THRESHOLD_US = 100000L;
+	/**
+	 * 音声の再生位置とのずれが小さい時に1回で補正する割合(1/2^DRIFT_CORRECTION_SHIFT)
+	 */
+	private static final int DRIFT_CORRECTION_SHIFT = 3;
+	/**
+	 * 再生速度の最小値
+	 */
+	public static final float MIN_SPEED = 0.1f;
+	/**
+	 * 再生速度の最大値
+	 */
+	public static final float MAX_SPEED = 64.0f;
+
+	@NonNull
+	private final Object mSync = new Object();
+	@ClockMode
+	private int mMode;
+	private long mDropThresholdUs = DEFAULT_DROP_THRESHOLD_US;
+	private boolean mAnchored;
+	private long mAnchorPtsUs;
+	private long mAnchorSysNs;
+	private boolean mPaused;
+	private long mPausedPtsUs;
+	private long mDroppedFrames;
+	/**
+	 * 再生速度, 1なら等速
+	 */
+	private float mSpeed = 1.0f;
+
+	/**
+	 * コンストラクタ
+	 * MODE_SYSTEMで初期化する
+	 */
+	public MediaClock() {
+		this(MODE_SYSTEM);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param mode
+	 */
+	public MediaClock(@ClockMode final int mode) {
+		mMode = mode;
+	}
+
+	/**
+	 * クロックのモードを設定
+	 * @param mode
+	 */
+	public void setMode(@ClockMode final int mode) {
+		synchronized (mSync) {
+			mMode = mode;
+		}
+	}
+
+	/**
+	 * クロックのモードを取得
+	 * @return
+	 */
+	@ClockMode
+	public int getMode() {
+		synchronized (mSync) {
+			return mMode;
+		}
+	}
+
+	/**
+	 * フレーム破棄の閾値を設定
+	 * @param thresholdUs [マイクロ秒]
+	 */
+	public void setDropThresholdUs(final long thresholdUs) {
+		synchronized (mSync) {
+			mDropThresholdUs = thresholdUs;
+		}
+	}
+
+	/**
+	 * 再生速度を設定する
+	 * 再生中なら現在の再生位置でアンカーを再設定してから再生速度を変更する
+	 * @param speed 1なら等速, MIN_SPEEDからMAX_SPEEDの範囲に丸める
+	 */
+	public void setSpeed(final float speed) {
+		final float newSpeed = Math.max(MIN_SPEED, Math.min(speed, MAX_SPEED));
+		synchronized (mSync) {
+			if (mAnchored && !mPaused) {
+				final long now = System.nanoTime();
+				anchorLocked(currentPtsUsLocked(now), now);
+			}
+			mSpeed = newSpeed;
+		}
+	}
+
+	/**
+	 * 再生速度を取得
+	 * @return
+	 */
+	public float getSpeed() {
+		synchronized (mSync) {
+			return mSpeed;
+		}
+	}
+
+	/**
+	 * アンカーをクリアする
+	 * シーク時等に呼び出すと次のフレームを基準にしてアンカーを再設定する
+	 */
+	public void reset() {
+		synchronized (mSync) {
+			mAnchored = false;
+			mPaused = false;
+		}
+	}
+
+	/**
+	 * 一時停止する
+	 * 一時停止中は再生位置が進まない
+	 */
+	public void pause() {
+		synchronized (mSync) {
+			if (!mPaused) {
+				mPausedPtsUs = mAnchored ? currentPtsUsLocked(System.nanoTime()) : -1L;
+				mPaused = true;
+			}
+		}
+	}
+
+	/**
+	 * 一時停止を解除する
+	 */
+	public void resume() {
+		synchronized (mSync) {
+			if (mPaused) {
+				mPaused = false;
+				if (mPausedPtsUs >= 0) {
+					anchorLocked(mPausedPtsUs, System.nanoTime());
+				}
+			}
+		}
+	}
+
+	/**
+	 * 一時停止中かどうか
+	 * @return
+	 */
+	public boolean isPaused() {
+		synchronized (mSync) {
+			return mPaused;
+		}
+	}
+
+	/**
+	 * 現在の再生位置を取得
+	 * @return [マイクロ秒], アンカーが未設定なら-1
+	 */
+	public long getCurrentPtsUs() {
+		synchronized (mSync) {
+			if (!mAnchored) return -1L;
+			return mPaused ? mPausedPtsUs : currentPtsUsLocked(System.nanoTime());
+		}
+	}
+
+	/**
+	 * 指定したPTSを再生すべきシステム時刻を取得
+	 * アンカーが未設定なら指定したPTSと現在時刻でアンカーを設定する
+	 * @param ptsUs [マイクロ秒]
+	 * @return System#nanoTimeと同じ基準のシステム時刻[ナノ秒], 一時停止中ならLong.MAX_VALUE
+	 */
+	public long getSystemTimeNs(final long ptsUs) {
+		synchronized (mSync) {
+			if (mPaused) return Long.MAX_VALUE;
+			if (!mAnchored) {
+				anchorLocked(ptsUs, System.nanoTime());
+			}
+			return mAnchorSysNs + (long)((ptsUs - mAnchorPtsUs) * 1000.0 / mSpeed);
+		}
+	}
+
+	/**
+	 * 指定したPTSのフレームが破棄すべきほど遅れているかどうか
+	 * 遅れている場合は破棄したフレーム数を加算する
+	 * @param ptsUs [マイクロ秒]
+	 * @return
+	 */
+	public boolean checkLate(final long ptsUs) {
+		final long targetNs = getSystemTimeNs(ptsUs);
+		synchronized (mSync) {
+			if ((targetNs != Long.MAX_VALUE)
+				&& ((System.nanoTime() - targetNs) / 1000L > mDropThresholdUs)) {
+				mDroppedFrames++;
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * 遅れすぎて破棄したフレーム数を取得
+	 * @return
+	 */
+	public long getDroppedFrames() {
+		synchronized (mSync) {
+			return mDroppedFrames;
+		}
+	}
+
+	/**
+	 * 音声デコーダーから実際に再生されている位置を受け取ってアンカーを補正する
+	 * MODE_AUDIO以外の時は何もしない
+	 * @param ptsUs 実際に再生されている位置[マイクロ秒]
+	 * @param sysTimeNs ptsUsを取得したときのシステム時刻[ナノ秒]
+	 */
+	public void updateAudioPosition(final long ptsUs, final long sysTimeNs) {
+		synchronized (mSync) {
+			if ((mMode != MODE_AUDIO) || mPaused) return;
+			if (!mAnchored) {
+				anchorLocked(ptsUs, sysTimeNs);
+				return;
+			}
+			final long errorUs = ptsUs - currentPtsUsLocked(sysTimeNs);
+			if (Math.abs(errorUs) > RESYNC_THRESHOLD_US) {
+				anchorLocked(ptsUs, sysTimeNs);
+			} else {
+				// 再生位置の取得粒度によるジッターを吸収するために少しずつ補正する
+				mAnchorPtsUs += errorUs >> DRIFT_CORRECTION_SHIFT;
+			}
+		}
+	}
+
+	/**
+	 * mSyncをロックした状態で呼び出すこと
+	 * @param ptsUs
+	 * @param sysTimeNs
+	 */
+	private void anchorLocked(final long ptsUs, final long sysTimeNs) {
+		mAnchorPtsUs = ptsUs;
+		mAnchorSysNs = sysTimeNs;
+		mAnchored = true;
+	}
+
+	/**
+	 * mSyncをロックした状態で呼び出すこと
+	 * @param sysTimeNs
+	 * @return
+	 */
+	private long currentPtsUsLocked(final long sysTimeNs) {
+		return mAnchorPtsUs + (long)((sysTimeNs - mAnchorSysNs) / 1000.0 * mSpeed);
+	}
+}
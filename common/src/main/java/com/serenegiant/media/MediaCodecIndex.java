@@ -0,0 +1,457 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.content.Context;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+/**
+ * MediaCodecListから取得したコーデック情報のインデックス
+ * MediaCodecInfo#getCapabilitiesForTypeがすごく遅い機種があるので
+ * コーデック名・対応MIME・カラーフォーマットの一覧を一度だけ構築して
+ * Build.FINGERPRINTをキーとしてディスクへ保存し次回以降はそれを読み込む
+ * 端末のシステムアップデートでFINGERPRINTが変わったときは自動的に再構築する
+ *
+ * #initでキャッシュファイルの保存先を設定しておかなければ
+ * ディスクへは保存せずにプロセス内でのみキャッシュする
+ */
+public final class MediaCodecIndex {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = MediaCodecIndex.class.getSimpleName();
+
+	/**
+	 * 保存ファイルのフォーマットバージョン
+	 * 保存内容を変更したときはインクリメントすること
+	 */
+	private static final int INDEX_VERSION = 1;
+	private static final String INDEX_FILE_NAME = ".mediaCodecIndex.json";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String KEY_VERSION = "version";
+	private static final String KEY_FINGERPRINT = "fingerprint";
+	private static final String KEY_CODECS = "codecs";
+	private static final String KEY_NAME = "name";
+	private static final String KEY_ENCODER = "encoder";
+	private static final String KEY_TYPES = "types";
+	private static final String KEY_TYPE = "type";
+	private static final String KEY_COLOR_FORMATS = "colorFormats";
+
+	/**
+	 * 1つのコーデックについての情報を保持するためのホルダークラス
+	 */
+	public static class CodecEntry {
+		@NonNull
+		public final String name;
+		public final boolean isEncoder;
+		/**
+		 * 対応するMIMEの一覧, MediaCodecInfo#getSupportedTypesと同じ順
+		 */
+		@NonNull
+		public final String[] types;
+		/**
+		 * ビデオエンコーダーのときのみ, MIME(小文字) => 対応カラーフォーマット一覧
+		 */
+		@NonNull
+		private final Map<String, int[]> mColorFormats;
+
+		private CodecEntry(@NonNull final String name, final boolean isEncoder,
+			@NonNull final String[] types, @NonNull final Map<String, int[]> colorFormats) {
+
+			this.name = name;
+			this.isEncoder = isEncoder;
+			this.types = types;
+			mColorFormats = colorFormats;
+		}
+
+		/**
+		 * 指定したMIMEに対応しているかどうか
+		 * @param mimeType
+		 * @return
+		 */
+		public boolean supports(@NonNull final String mimeType) {
+			for (final String type: types) {
+				if (type.equalsIgnoreCase(mimeType)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * 指定したMIMEで対応しているカラーフォーマット一覧を取得する
+		 * ビデオエンコーダー以外または未対応のMIMEならnull
+		 * @param mimeType
+		 * @return
+		 */
+		@Nullable
+		public int[] getColorFormats(@NonNull final String mimeType) {
+			return mColorFormats.get(mimeType.toLowerCase(Locale.US));
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return "CodecEntry{" +
+				"name='" + name + '\'' +
+				", isEncoder=" + isEncoder +
+				", types=" + java.util.Arrays.toString(types) +
+				'}';
+		}
+	}
+
+	private static final Object sSync = new Object();
+	@Nullable
+	private static File sIndexFile;
+	@Nullable
+	private static volatile List<CodecEntry> sEntries;
+	/**
+	 * コーデック名 => CodecEntry
+	 */
+	@NonNull
+	private static final Map<String, CodecEntry> sEntryMap = new HashMap<>();
+
+	private MediaCodecIndex() {
+		// インスタンス化をエラーとするためにデフォルトコンストラクタをprivateに
+	}
+
+	/**
+	 * インデックスの保存先を設定する
+	 * インデックスの構築・読み込みは最初にアクセスしたときに行う(遅延読み込み)
+	 * @param context
+	 */
+	public static void init(@NonNull final Context context) {
+		synchronized (sSync) {
+			sIndexFile = new File(context.getCacheDir(), INDEX_FILE_NAME);
+		}
+	}
+
+	/**
+	 * インデックスを構築/読み込み済みかどうか
+	 * @return
+	 */
+	public static boolean isLoaded() {
+		return sEntries != null;
+	}
+
+	/**
+	 * インデックスを事前に読み込む
+	 * 録画開始処理等から時間のかかる処理を追い出すためにワーカースレッドから呼び出す
+	 */
+	@WorkerThread
+	public static void preload() {
+		getEntries();
+	}
+
+	/**
+	 * メモリ上のインデックスと保存したインデックスファイルを破棄する
+	 * 次にアクセスしたときに再構築される
+	 */
+	public static void invalidate() {
+		synchronized (sSync) {
+			sEntries = null;
+			sEntryMap.clear();
+			if ((sIndexFile != null) && sIndexFile.exists()) {
+				//noinspection ResultOfMethodCallIgnored
+				sIndexFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * 全てのコーデック情報を取得する
+	 * 未構築であればディスクからの読み込みまたはMediaCodecListからの構築を行う
+	 * @return
+	 */
+	@NonNull
+	public static List<CodecEntry> getEntries() {
+		List<CodecEntry> result = sEntries;
+		if (result == null) {
+			synchronized (sSync) {
+				result = sEntries;
+				if (result == null) {
+					result = load(sIndexFile);
+					if (result == null) {
+						result = build();
+						save(sIndexFile, result);
+					}
+					for (final CodecEntry entry: result) {
+						sEntryMap.put(entry.name, entry);
+					}
+					sEntries = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 指定したコーデック名に対応するCodecEntryを取得する
+	 * @param name
+	 * @return
+	 */
+	@Nullable
+	public static CodecEntry find(@NonNull final String name) {
+		getEntries();
+		synchronized (sSync) {
+			return sEntryMap.get(name);
+		}
+	}
+
+	/**
+	 * 指定したMIMEに対応するエンコーダーの一覧を取得する
+	 * @param mimeType
+	 * @return
+	 */
+	@NonNull
+	public static List<CodecEntry> getEncoders(@NonNull final String mimeType) {
+		final List<CodecEntry> result = new ArrayList<>();
+		for (final CodecEntry entry: getEntries()) {
+			if (entry.isEncoder && entry.supports(mimeType)) {
+				result.add(entry);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 指定したMIMEに対応するデコーダーの一覧を取得する
+	 * @param mimeType
+	 * @return
+	 */
+	@NonNull
+	public static List<CodecEntry> getDecoders(@NonNull final String mimeType) {
+		final List<CodecEntry> result = new ArrayList<>();
+		for (final CodecEntry entry: getEntries()) {
+			if (!entry.isEncoder && entry.supports(mimeType)) {
+				result.add(entry);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 指定したコーデック名・MIMEに対応するカラーフォーマット一覧を取得する
+	 * インデックスに含まれていなければnull
+	 * @param name
+	 * @param mimeType
+	 * @return
+	 */
+	@Nullable
+	public static int[] getColorFormats(@NonNull final String name, @NonNull final String mimeType) {
+		final CodecEntry entry = find(name);
+		return entry != null ? entry.getColorFormats(mimeType) : null;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * MediaCodecListからインデックスを構築する
+	 * ビデオエンコーダーについてはカラーフォーマットも取得する
+	 * @return
+	 */
+	@NonNull
+	private static List<CodecEntry> build() {
+		if (DEBUG) Log.v(TAG, "build:");
+		final long start = System.currentTimeMillis();
+		final List<CodecEntry> result = new ArrayList<>();
+		final int n = MediaCodecList.getCodecCount();
+		for (int i = 0; i < n; i++) {
+			final MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+			final String[] types = info.getSupportedTypes();
+			final Map<String, int[]> colorFormats = new HashMap<>();
+			if (info.isEncoder()) {
+				for (final String type: types) {
+					if (type.toLowerCase(Locale.US).startsWith("video/")) {
+						try {
+							final MediaCodecInfo.CodecCapabilities caps
+								= MediaCodecUtils.getCodecCapabilities(info, type);
+							final int[] formats = caps != null ? caps.colorFormats : null;
+							colorFormats.put(type.toLowerCase(Locale.US),
+								formats != null ? formats.clone() : new int[0]);
+						} catch (final Exception e) {
+							// 機種によってはgetCapabilitiesForTypeが例外生成する
+							Log.w(TAG, e);
+						}
+					}
+				}
+			}
+			result.add(new CodecEntry(info.getName(), info.isEncoder(), types.clone(), colorFormats));
+		}
+		if (DEBUG) Log.v(TAG, "build:finished,num=" + result.size()
+			+ ",elapsed=" + (System.currentTimeMillis() - start) + "ms");
+		return Collections.unmodifiableList(result);
+	}
+
+	/**
+	 * 保存したインデックスファイルを読み込む
+	 * ファイルが存在しない、FINGERPRINTやバージョンが一致しない、
+	 * 読み込みに失敗したときはnullを返す
+	 * @param file
+	 * @return
+	 */
+	@Nullable
+	private static List<CodecEntry> load(@Nullable final File file) {
+		if ((file == null) || !file.canRead()) {
+			return null;
+		}
+		try {
+			final JSONObject root = new JSONObject(readText(file));
+			if ((root.optInt(KEY_VERSION, -1) != INDEX_VERSION)
+				|| !Build.FINGERPRINT.equals(root.optString(KEY_FINGERPRINT))) {
+
+				if (DEBUG) Log.v(TAG, "load:index is stale");
+				return null;
+			}
+			final JSONArray codecs = root.getJSONArray(KEY_CODECS);
+			final int n = codecs.length();
+			final List<CodecEntry> result = new ArrayList<>(n);
+			for (int i = 0; i < n; i++) {
+				final JSONObject codec = codecs.getJSONObject(i);
+				final JSONArray typesArray = codec.getJSONArray(KEY_TYPES);
+				final String[] types = new String[typesArray.length()];
+				for (int j = 0; j < types.length; j++) {
+					types[j] = typesArray.getString(j);
+				}
+				final Map<String, int[]> colorFormats = new HashMap<>();
+				final JSONArray formatsArray = codec.optJSONArray(KEY_COLOR_FORMATS);
+				final int m = formatsArray != null ? formatsArray.length() : 0;
+				for (int j = 0; j < m; j++) {
+					final JSONObject item = formatsArray.getJSONObject(j);
+					final JSONArray values = item.getJSONArray(KEY_COLOR_FORMATS);
+					final int[] formats = new int[values.length()];
+					for (int k = 0; k < formats.length; k++) {
+						formats[k] = values.getInt(k);
+					}
+					colorFormats.put(item.getString(KEY_TYPE), formats);
+				}
+				result.add(new CodecEntry(
+					codec.getString(KEY_NAME), codec.getBoolean(KEY_ENCODER),
+					types, colorFormats));
+			}
+			if (DEBUG) Log.v(TAG, "load:num=" + result.size());
+			return Collections.unmodifiableList(result);
+		} catch (final IOException | JSONException e) {
+			Log.w(TAG, e);
+		}
+		return null;
+	}
+
+	/**
+	 * インデックスをファイルへ保存する
+	 * 書き込み途中のファイルを読み込まないように一時ファイルへ書き込んでからリネームする
+	 * @param file
+	 * @param entries
+	 */
+	private static void save(@Nullable final File file, @NonNull final List<CodecEntry> entries) {
+		if (file == null) {
+			return;
+		}
+		final File temp = new File(file.getPath() + ".tmp");
+		try {
+			final JSONObject root = new JSONObject();
+			root.put(KEY_VERSION, INDEX_VERSION);
+			root.put(KEY_FINGERPRINT, Build.FINGERPRINT);
+			final JSONArray codecs = new JSONArray();
+			for (final CodecEntry entry: entries) {
+				final JSONObject codec = new JSONObject();
+				codec.put(KEY_NAME, entry.name);
+				codec.put(KEY_ENCODER, entry.isEncoder);
+				final JSONArray types = new JSONArray();
+				for (final String type: entry.types) {
+					types.put(type);
+				}
+				codec.put(KEY_TYPES, types);
+				if (!entry.mColorFormats.isEmpty()) {
+					final JSONArray formatsArray = new JSONArray();
+					for (final Map.Entry<String, int[]> e: entry.mColorFormats.entrySet()) {
+						final JSONObject item = new JSONObject();
+						item.put(KEY_TYPE, e.getKey());
+						final JSONArray values = new JSONArray();
+						for (final int format: e.getValue()) {
+							values.put(format);
+						}
+						item.put(KEY_COLOR_FORMATS, values);
+						formatsArray.put(item);
+					}
+					codec.put(KEY_COLOR_FORMATS, formatsArray);
+				}
+				codecs.put(codec);
+			}
+			root.put(KEY_CODECS, codecs);
+			final OutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(root.toString().getBytes(UTF8));
+				out.flush();
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(file)) {
+				Log.w(TAG, "save:failed to rename index file");
+			}
+		} catch (final IOException | JSONException e) {
+			Log.w(TAG, e);
+		} finally {
+			if (temp.exists()) {
+				//noinspection ResultOfMethodCallIgnored
+				temp.delete();
+			}
+		}
+	}
+
+	@NonNull
+	private static String readText(@NonNull final File file) throws IOException {
+		final InputStream in = new FileInputStream(file);
+		try {
+			final byte[] bytes = new byte[(int)file.length()];
+			int offset = 0;
+			while (offset < bytes.length) {
+				final int read = in.read(bytes, offset, bytes.length - offset);
+				if (read < 0) break;
+				offset += read;
+			}
+			return new String(bytes, 0, offset, UTF8);
+		} finally {
+			in.close();
+		}
+	}
+}
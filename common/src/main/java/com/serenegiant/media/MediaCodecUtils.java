@@ -832,55 +832,48 @@ public final class MediaCodecUtils {
 	}
 
 //--------------------------------------------------------------------------------
+	/**
+	 * コーデック名 => MediaCodecInfo
+	 * MediaCodecIndexから取得したコーデック名をMediaCodecInfoへ変換するために使う
+	 */
+	@NonNull
+	private static final HashMap<String, MediaCodecInfo> sCodecMap = new HashMap<>();
+
+	/**
+	 * 指定したコーデック名に対応するMediaCodecInfoを取得する
+	 * @param name
+	 * @return
+	 */
+	@Nullable
+	public static MediaCodecInfo findCodecInfo(@NonNull final String name) {
+		synchronized (sCodecMap) {
+			if (sCodecMap.isEmpty()) {
+				for (final MediaCodecInfo info: getCodecs()) {
+					sCodecMap.put(info.getName(), info);
+				}
+			}
+			return sCodecMap.get(name);
+		}
+	}
+
 	/**
 	 * 指定したMIMEで使用可能がcodecの一覧の中から先頭のものを取得する
 	 * もし使用可能なのがなければnullを返す
+	 * MediaCodecIndexを使うのでMediaCodecListの列挙や
+	 * MediaCodecInfo#getCapabilitiesForTypeの呼び出しは初回のみ
 	 * @param mimeType
 	 */
 	@Nullable
 	public static MediaCodecInfo selectVideoEncoder(final String mimeType) {
-		// コーデックの一覧を取得
-		final int numCodecs = getCodecCount();
-		for (int i = 0; i < numCodecs; i++) {
-			final MediaCodecInfo codecInfo = getCodecInfoAt(i);
-
-			if (!codecInfo.isEncoder()) {	// エンコーダーでない(=デコーダー)はスキップする
-				continue;
-			}
-			// エンコーダーの一覧からMIMEが一致してカラーフォーマットが使用可能なものを選択する
-/*			// こっちの方法で選択すると
-			// W/OMXCodec(20608): Failed to set standard component role 'video_encoder.avc'.
-			// って表示されて、OMX.Nvidia.mp4.encoder
-			// が選択される
-			final MediaCodecInfo.CodecCapabilities caps;
-			Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
-			try {
-				caps = getCodecCapabilities(codecInfo, mimeType);
-			} finally {
-				Thread.currentThread().setPriority(Thread.NORM_PRIORITY);
-			}
-			final int[] colorFormats = caps.colorFormats;
-			final int n = colorFormats != null ? colorFormats.length : 0;
-			int colorFormat;
-			for (int j = 0; j < n; j++) {
-				colorFormat = colorFormats[j];
-				if (isRecognizedVideoFormat(colorFormat)) {
-					mColorFormat = colorFormat;
+		// XXX カラーフォーマットから選択するとOMX.Nvidia.mp4.encoderが選択されてしまう機種があるので
+		//     MIMEが一致するものの中から使用可能なカラーフォーマットを持つものを選択する
+		//     (こっちで選択すると、xxx.h264.encoderが選択される)
+		for (final MediaCodecIndex.CodecEntry entry: MediaCodecIndex.getEncoders(mimeType)) {
+			if (selectColorFormat(entry.getColorFormats(mimeType)) > 0) {
+				final MediaCodecInfo codecInfo = findCodecInfo(entry.name);
+				if (codecInfo != null) {
 					return codecInfo;
 				}
-			} */
-// こっちで選択すると、xxx.h264.encoderが選択される
-			final String[] types = codecInfo.getSupportedTypes();
-			final int n = types.length;
-			int format;
-			for (int j = 0; j < n; j++) {
-				if (types[j].equalsIgnoreCase(mimeType)) {
-//                	if (DEBUG) Log.i(TAG, "codec:" + codecInfo.getName() + ",MIME=" + types[j]);
-					format = selectColorFormat(codecInfo, mimeType);
-					if (format > 0) {
-						return codecInfo;
-					}
-				}
 			}
 		}
 		return null;
@@ -894,47 +887,12 @@ public final class MediaCodecUtils {
 	@NonNull
 	public static List<MediaCodecInfo> getVideoEncoderInfos(final String mimeType) {
 		final List<MediaCodecInfo> result = new ArrayList<>();
-		// コーデックの一覧を取得
-		final int numCodecs = getCodecCount();
-		for (int i = 0; i < numCodecs; i++) {
-			final MediaCodecInfo codecInfo = getCodecInfoAt(i);
-
-			if (!codecInfo.isEncoder()) {	// エンコーダーでない(=デコーダー)はスキップする
-				continue;
-			}
-			// エンコーダーの一覧からMIMEが一致してカラーフォーマットが使用可能なものを選択する
-/*			// こっちの方法で選択すると
-			// W/OMXCodec(20608): Failed to set standard component role 'video_encoder.avc'.
-			// って表示されて、OMX.Nvidia.mp4.encoder
-			// が選択される
-			final MediaCodecInfo.CodecCapabilities caps;
-			Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
-			try {
-				caps = getCodecCapabilities(codecInfo, mimeType);
-			} finally {
-				Thread.currentThread().setPriority(Thread.NORM_PRIORITY);
-			}
-			final int[] colorFormats = caps.colorFormats;
-			final int n = colorFormats != null ? colorFormats.length : 0;
-			int colorFormat;
-			for (int j = 0; j < n; j++) {
-				colorFormat = colorFormats[j];
-				if (isRecognizedVideoFormat(colorFormat)) {
+		for (final MediaCodecIndex.CodecEntry entry: MediaCodecIndex.getEncoders(mimeType)) {
+			if (selectColorFormat(entry.getColorFormats(mimeType)) > 0) {
+				final MediaCodecInfo codecInfo = findCodecInfo(entry.name);
+				if (codecInfo != null) {
 					result.add(codecInfo);
 				}
-			} */
-// こっちで選択すると、xxx.h264.encoderが選択される
-			final String[] types = codecInfo.getSupportedTypes();
-			final int n = types.length;
-			int format;
-			for (int j = 0; j < n; j++) {
-				if (types[j].equalsIgnoreCase(mimeType)) {
-//                	if (DEBUG) Log.i(TAG, "codec:" + codecInfo.getName() + ",MIME=" + types[j]);
-					format = selectColorFormat(codecInfo, mimeType);
-					if (format > 0) {
-						result.add(codecInfo);
-					}
-				}
 			}
 		}
 		return result;
@@ -973,10 +931,24 @@ public final class MediaCodecUtils {
 	 * 使用可能なものが無ければ0を返す
 	 */
 	public static int selectColorFormat(final MediaCodecInfo codecInfo, final String mimeType) {
+		int[] colorFormats = MediaCodecIndex.getColorFormats(codecInfo.getName(), mimeType);
+		if (colorFormats == null) {
+			// インデックスに含まれていないとき(デコーダー等)はCodecCapabilitiesから取得する
+			final MediaCodecInfo.CodecCapabilities capabilities = getCodecCapabilities(codecInfo, mimeType);
+			colorFormats = capabilities.colorFormats;
+		}
+		return selectColorFormat(colorFormats);
+	}
+
+	/**
+	 * 指定したカラーフォーマット一覧の中から最初に使用可能なものを選択して返す
+	 * 使用可能なものが無ければ0を返す
+	 * @param colorFormats
+	 * @return
+	 */
+	private static int selectColorFormat(@Nullable final int[] colorFormats) {
 		int result = 0;
-		final MediaCodecInfo.CodecCapabilities capabilities = getCodecCapabilities(codecInfo, mimeType);
-		final int[] colorFormats = capabilities.colorFormats;
-		final int n = colorFormats.length;
+		final int n = colorFormats != null ? colorFormats.length : 0;
 		int colorFormat;
 		for (int i = 0; i < n; i++) {
 			colorFormat = colorFormats[i];
@@ -1080,24 +1052,13 @@ public final class MediaCodecUtils {
 	public static MediaCodecInfo selectAudioEncoder(final String mimeType) {
 //    	if (DEBUG) Log.v(TAG, "selectAudioCodec:");
 
- 		MediaCodecInfo result = null;
- 		// コーデックの一覧を取得
-		final int numCodecs = getCodecCount();
-LOOP:	for (int i = 0; i < numCodecs; i++) {
-     	final MediaCodecInfo codecInfo = getCodecInfoAt(i);
-			if (!codecInfo.isEncoder()) {	// エンコーダーでない(=デコーダー)はスキップする
-				continue;
-			}
-			final String[] types = codecInfo.getSupportedTypes();
-			for (int j = 0; j < types.length; j++) {
-//				if (DEBUG) Log.i(TAG, "supportedType:" + codecInfo.getName() + ",MIME=" + types[j]);
-				if (types[j].equalsIgnoreCase(mimeType)) {
-					result = codecInfo;
-					break LOOP;
-				}
+		for (final MediaCodecIndex.CodecEntry entry: MediaCodecIndex.getEncoders(mimeType)) {
+			final MediaCodecInfo codecInfo = findCodecInfo(entry.name);
+			if (codecInfo != null) {
+				return codecInfo;
 			}
 		}
-		return result;
+		return null;
 	}
 
 	/**
@@ -1108,20 +1069,10 @@ LOOP:	for (int i = 0; i < numCodecs; i++) {
 	@NonNull
 	public static List<MediaCodecInfo> getAudioEncoderInfos(final String mimeType) {
 		final List<MediaCodecInfo> result = new ArrayList<>();
-
-		// コーデックの一覧を取得
-		final int numCodecs = getCodecCount();
-LOOP:	for (int i = 0; i < numCodecs; i++) {
-			final MediaCodecInfo codecInfo = getCodecInfoAt(i);
-			if (!codecInfo.isEncoder()) {	// エンコーダーでない(=デコーダー)はスキップする
-				continue;
-			}
-			final String[] types = codecInfo.getSupportedTypes();
-			for (int j = 0; j < types.length; j++) {
-//				if (DEBUG) Log.i(TAG, "supportedType:" + codecInfo.getName() + ",MIME=" + types[j]);
-				if (types[j].equalsIgnoreCase(mimeType)) {
-					result.add(codecInfo);
-				}
+		for (final MediaCodecIndex.CodecEntry entry: MediaCodecIndex.getEncoders(mimeType)) {
+			final MediaCodecInfo codecInfo = findCodecInfo(entry.name);
+			if (codecInfo != null) {
+				result.add(codecInfo);
 			}
 		}
 		return result;
@@ -96,6 +96,12 @@ public abstract class MediaEncoder implements Encoder {
 	 */
 	@Nullable
 	private MediaReaper mReaper;
+	/**
+	 * PCMデータを複数まとめてMediaCodecへ送るためのPcmInputAggregator
+	 * 音声エンコーダーの時のみ
+	 */
+	@Nullable
+	private PcmInputAggregator mAggregator;
 
 	/**
 	 * コンストラクタ
@@ -136,6 +142,10 @@ public abstract class MediaEncoder implements Encoder {
 			}
 		}
 		mIsEncoding = false;
+		if (mAggregator != null) {
+			mAggregator.release();
+			mAggregator = null;
+		}
 		if (mMediaCodec != null) {
 			try {
 				if (DEBUG) Log.v(TAG, "release: call MediaCodec#stop");
@@ -163,6 +173,7 @@ public abstract class MediaEncoder implements Encoder {
 		@NonNull final Encoder encoder = internalPrepare(getReaperListener());
 		mMediaCodec = encoder.mediaCodec;
 		mReaper = encoder.reaper;
+		mAggregator = createInputAggregator(encoder.mediaCodec);
 		final boolean mayFail = encoder.mayFail;
 		final Surface surface = (this instanceof ISurfaceEncoder) ?
 			((ISurfaceEncoder) this).getInputSurface() : null;
@@ -176,6 +187,18 @@ public abstract class MediaEncoder implements Encoder {
 	@NonNull
 	protected abstract MediaReaper.ReaperListener getReaperListener();
 
+	/**
+	 * #encodeで受け取ったPCMデータを複数まとめてMediaCodecへ送るための
+	 * PcmInputAggregatorを生成する
+	 * デフォルトはnullを返すので#encode呼び出し毎に入力バッファを1つ使う
+	 * @param mediaCodec start済みのMediaCodec
+	 * @return
+	 */
+	@Nullable
+	protected PcmInputAggregator createInputAggregator(@NonNull final MediaCodec mediaCodec) {
+		return null;
+	}
+
 	/**
 	 * MediaCodecのエンコーダーとMediaReaperを初期化する
 	 *
@@ -229,6 +252,11 @@ public abstract class MediaEncoder implements Encoder {
 			mRequestStop = true;    // 新規のフレームを受けないようにする
 			mSync.notifyAll();
 		}
+		final PcmInputAggregator aggregator = mAggregator;
+		if (aggregator != null) {
+			// まとめるために保持しているPCMデータをMediaCodecへ送る
+			aggregator.flush(TIMEOUT_USEC);
+		}
 		// 本当のところいつ終了するのかはわからないので、呼び出し元スレッドを遅延させないために終了待ちせずに直ぐに返る
 	}
 
@@ -298,10 +326,23 @@ public abstract class MediaEncoder implements Encoder {
 	@Override
 	public void encode(final ByteBuffer buffer, final long presentationTimeUs) {
 		final MediaCodec encoder;
+		final PcmInputAggregator aggregator;
 		synchronized (mSync) {
 			if (!mIsEncoding || mRequestStop) return;
 			if (mMediaCodec == null) return;
 			encoder = mMediaCodec;
+			aggregator = mAggregator;
+		}
+		if (aggregator != null) {
+			if ((buffer != null) && (buffer.remaining() > 0)) {
+				// 複数まとめて入力バッファへ書き込む, 入力バッファを取得できなくてもブロックしない
+				if (!aggregator.offer(buffer, presentationTimeUs)) {
+					frameAvailableSoon();    // drainが詰まってると予想されるのでdrain要求をする
+				}
+				return;
+			}
+			// EOSを送る前に保持しているPCMデータを送る
+			aggregator.flush(TIMEOUT_USEC);
 		}
 		if (BuildCheck.isAPI21()) {
 			encodeApi21(encoder, buffer, presentationTimeUs);
@@ -482,6 +523,17 @@ public abstract class MediaEncoder implements Encoder {
 			return new Encoder(mediaCodec, reaper, false);
 		}
 
+		/**
+		 * PCMデータを複数まとめてMediaCodecの入力バッファへ送るためにPcmInputAggregatorを生成する
+		 * @param mediaCodec
+		 * @return
+		 */
+		@Nullable
+		@Override
+		protected PcmInputAggregator createInputAggregator(@NonNull final MediaCodec mediaCodec) {
+			return new PcmInputAggregator(mediaCodec, mSampleRate, mChannelCount);
+		}
+
 	}
 
 	/**
@@ -47,6 +47,10 @@ public class MediaPlayer {
     private static final String TAG = MediaPlayer.class.getSimpleName();
 
 	private static final int TIMEOUT_USEC = 10000;	// 10msec
+	/**
+	 * フレームレートがわからないときのフレーム間隔[マイクロ秒]
+	 */
+	private static final long DEFAULT_FRAME_INTERVAL_US = 33333L;
 
 	/*
 	 * STATE_STOP => [prepare] => STATE_PREPARED [start]
@@ -69,6 +73,23 @@ public class MediaPlayer {
 	private static final int REQ_RESUME = 6;
 	private static final int REQ_QUIT = 9;
 
+	/**
+	 * シークモード: 指定した位置のフレームを正確に表示する
+	 * 指定位置以前のキーフレームからデコードして指定位置より前のフレームは表示しない
+	 */
+	public static final int SEEK_EXACT = 0;
+	/**
+	 * シークモード: 指定した位置に最も近いキーフレームへシークする
+	 * デコードを進める必要がないのでスクラブ(ドラッグ)中の高速なシーク用
+	 */
+	public static final int SEEK_NEAREST_KEYFRAME = 1;
+
+	/**
+	 * 再生速度がこれ以上の時はキーフレームだけをデコードする
+	 * これ未満で等速より速いときは非参照フレームを再生速度に応じて間引いてデコードする
+	 */
+	public static final float KEYFRAME_ONLY_SPEED = 4.0f;
+
 	@NonNull
 	private final Object mSync = new Object();
 	@Nullable
@@ -90,12 +111,28 @@ public class MediaPlayer {
 	private Object mSource;
 	private int mRequest;
 	private long mRequestTime;
+	private int mRequestSeekMode;
 	@NonNull
 	private final MediaExtractor mExtractor;
 	/**
 	 * ループ再生が有効かどうか
 	 */
 	private volatile boolean mLoopEnabled;
+	/**
+	 * ループ再生で先頭へ戻る度にデコーダーへ入力するPTSへ加算するオフセット[マイクロ秒]
+	 * 前のループの続きのPTSにしてマスタークロックを連続させる
+	 */
+	private volatile long mLoopOffsetUs;
+	/**
+	 * 1つ前のループのオフセット[マイクロ秒]
+	 * 先頭へ戻った直後はデコーダー内に残っていた前のループのフレームが再生されるので
+	 * 再生位置の計算に使う
+	 */
+	private volatile long mPrevLoopOffsetUs;
+	/**
+	 * 現在のループで読み込んだサンプルの最大のPTS[マイクロ秒]
+	 */
+	private long mMaxSampleTimeUs;
 	// for video playback
 	@Nullable
 	private VideoDecoder mVideoDecoder;
@@ -104,6 +141,37 @@ public class MediaPlayer {
 	@Nullable
 	private AudioDecoder mAudioDecoder;
 	private int mAudioTrackIndex;
+	/**
+	 * 映像と音声のデコーダーで共有するマスタークロック
+	 */
+	@NonNull
+	private final MediaClock mClock = new MediaClock();
+	/**
+	 * シーク用のキーフレームインデックス, 生成中・生成できなかったときはnull
+	 */
+	@Nullable
+	private volatile KeyframeIndex mKeyframeIndex;
+	/**
+	 * キーフレームインデックス生成用スレッド
+	 */
+	@Nullable
+	private Thread mIndexThread;
+	/**
+	 * 再生速度, 1なら等速
+	 */
+	private volatile float mPlaybackSpeed = 1.0f;
+	/**
+	 * 再生速度が変更されて未適用かどうか
+	 */
+	private volatile boolean mSpeedChanged;
+	/**
+	 * 再生速度が音声を再生できない範囲なので音声のデコードをしないかどうか
+	 */
+	private boolean mAudioMuted;
+	/**
+	 * キーフレームだけをデコードするかどうか
+	 */
+	private boolean mKeyframeOnly;
 
 	/**
 	 * コンストラクタ
@@ -189,6 +257,70 @@ public class MediaPlayer {
     	return mAudioEnabled && (mAudioDecoder != null);
     }
 
+	/**
+	 * 現在の再生位置を取得
+	 * @return [マイクロ秒], 再生開始前は-1
+	 */
+	public long getCurrentPositionUs() {
+		final long ptsUs = mClock.getCurrentPtsUs();
+		if (ptsUs < 0) return ptsUs;
+		// ループ再生中はオフセットを加算したPTSなのでファイル内の位置へ戻す
+		final long offsetUs = mLoopOffsetUs;
+		return ptsUs >= offsetUs ? ptsUs - offsetUs : Math.max(ptsUs - mPrevLoopOffsetUs, 0);
+	}
+
+	/**
+	 * シーク用のキーフレームインデックスを取得
+	 * #prepareで指定したのがファイルパスの時にバックグラウンドで生成する
+	 * @return 生成中・生成できなかったときはnull
+	 */
+	@Nullable
+	public KeyframeIndex getKeyframeIndex() {
+		return mKeyframeIndex;
+	}
+
+	/**
+	 * 再生が遅れたために破棄したフレーム数を取得
+	 * @return
+	 */
+	public long getDroppedFrames() {
+		return mClock.getDroppedFrames();
+	}
+
+	/**
+	 * 再生速度を設定する
+	 * 等速より速いときは映像の非参照フレームを間引いてデコードし、
+	 * KEYFRAME_ONLY_SPEED以上ならキーフレームだけをデコードする
+	 * 音声はAPI>=23かつAudioDecoder#MAX_STRETCH_SPEED以下なら時間伸縮して再生し、
+	 * それ以外は再生しない(その間はシステム時刻をマスタークロックにする)
+	 * @param speed 1なら等速, MediaClock#MIN_SPEEDからMediaClock#MAX_SPEEDの範囲に丸める
+	 */
+	public void setPlaybackSpeed(final float speed) {
+		if (DEBUG) Log.v(TAG, "setPlaybackSpeed:" + speed);
+		synchronized (mSync) {
+			mPlaybackSpeed = Math.max(MediaClock.MIN_SPEED, Math.min(speed, MediaClock.MAX_SPEED));
+			mSpeedChanged = true;
+			mSync.notifyAll();
+		}
+	}
+
+	/**
+	 * 再生速度を取得
+	 * @return
+	 */
+	public float getPlaybackSpeed() {
+		return mPlaybackSpeed;
+	}
+
+	/**
+	 * 高速再生時に間引いてデコードしなかった映像のフレーム数を取得
+	 * @return
+	 */
+	public long getSkippedFrames() {
+		final VideoDecoder decoder = mVideoDecoder;
+		return decoder != null ? decoder.getSkippedInputFrames() : 0;
+	}
+
 	/**
 	 * get currently playing or not
 	 * @return
@@ -267,18 +399,29 @@ public class MediaPlayer {
 
     /**
      * request to seek to specifc timed frame<br>
-     * if the frame is not a key frame, frame image will be broken
+     * same as seek(newTime, SEEK_EXACT)
      * @param newTime seek to new time[usec]
      */
     public void seek(final long newTime) {
-    	if (DEBUG) Log.v(TAG, "seek");
-    	synchronized (mSync) {
-    		mRequest = REQ_SEEK;
-    		mRequestTime = newTime;
-    		mSync.notifyAll();
-    	}
+    	seek(newTime, SEEK_EXACT);
     }
 
+	/**
+	 * request to seek to specifc timed frame<br>
+	 * キーフレームインデックスが生成済みならキーフレームの検索にインデックスを使う
+	 * @param newTime seek to new time[usec]
+	 * @param seekMode SEEK_EXACT or SEEK_NEAREST_KEYFRAME
+	 */
+	public void seek(final long newTime, final int seekMode) {
+		if (DEBUG) Log.v(TAG, "seek:" + newTime + ",mode=" + seekMode);
+		synchronized (mSync) {
+			mRequest = REQ_SEEK;
+			mRequestTime = newTime;
+			mRequestSeekMode = seekMode;
+			mSync.notifyAll();
+		}
+	}
+
     /**
      * request stop playing
      */
@@ -332,6 +475,10 @@ public class MediaPlayer {
     	if (DEBUG) Log.v(TAG, "release:");
     	stop();
     	synchronized (mSync) {
+			if (mIndexThread != null) {
+				mIndexThread.interrupt();
+				mIndexThread = null;
+			}
     		mRequest = REQ_QUIT;
     		mSync.notifyAll();
     	}
@@ -478,7 +625,7 @@ public class MediaPlayer {
 		case REQ_RESUME:
 			throw new IllegalStateException("invalid state:" + mState);
 		case REQ_SEEK:
-			handleSeek(mRequestTime);
+			handleSeek(mRequestTime, mRequestSeekMode);
 			break;
 		case REQ_STOP:
 			handleStop();
@@ -512,7 +659,7 @@ public class MediaPlayer {
 		case REQ_START:
 			throw new IllegalStateException("invalid state:" + mState);
 		case REQ_SEEK:
-			handleSeek(mRequestTime);
+			handleSeek(mRequestTime, mRequestSeekMode);
 			break;
 		case REQ_STOP:
 			handleStop();
@@ -572,18 +719,25 @@ public class MediaPlayer {
 			throw new IllegalArgumentException("unknown source type:source=" + source);
 		}
 		updateInfo(mMetadata);
+		if ((source instanceof String) && (mOutputSurface != null)) {
+			startKeyframeIndex((String)source);
+		}
 		if ((mOutputSurface != null) && mVideoDecoder == null) {
 			mVideoDecoder = VideoDecoder.createDecoder(mOutputSurface, mListener);
+			mVideoDecoder.setClock(mClock);
 			mVideoTrackIndex = mVideoDecoder.prepare(mExtractor);
 		} else {
 			mVideoTrackIndex = -100;
 		}
 		if (mAudioEnabled && (mAudioDecoder == null)) {
 			mAudioDecoder = AudioDecoder.createDecoder(mListener);
+			mAudioDecoder.setClock(mClock);
 			mAudioTrackIndex = mAudioDecoder.prepare(mExtractor);
 		} else {
 			mAudioTrackIndex = -100;
 		}
+		// 音声を再生するときは音声の再生位置を、そうでなければシステム時刻をマスターにする
+		mClock.setMode(mAudioTrackIndex >= 0 ? MediaClock.MODE_AUDIO : MediaClock.MODE_SYSTEM);
 		synchronized (mSync) {
 			mState = STATE_PREPARED;
 		}
@@ -604,8 +758,10 @@ public class MediaPlayer {
 			}
 			mState = STATE_PLAYING;
 		}
+		mClock.reset();
+		setLoopOffset(0, 0);
         if (mRequestTime > 0) {
-        	handleSeek(mRequestTime);
+        	handleSeek(mRequestTime, mRequestSeekMode);
         }
         if (mVideoDecoder != null) {
         	mVideoDecoder.start();
@@ -613,32 +769,186 @@ public class MediaPlayer {
 		if (mAudioDecoder != null) {
 			mAudioDecoder.start();
 		}
+		applyPlaybackSpeed();
+	}
+
+	/**
+	 * 再生速度をマスタークロックとデコーダーへ適用する
+	 */
+	@WorkerThread
+	private void applyPlaybackSpeed() {
+		mSpeedChanged = false;
+		final float speed = mPlaybackSpeed;
+		if (DEBUG) Log.v(TAG, "applyPlaybackSpeed:" + speed);
+		mClock.setSpeed(speed);
+		final boolean audioPlayable = (mAudioDecoder != null) && (mAudioTrackIndex >= 0)
+			&& mAudioDecoder.setPlaybackSpeed(speed);
+		mAudioMuted = !audioPlayable;
+		// 音声を再生しないときはシステム時刻をマスターにする
+		mClock.setMode(audioPlayable ? MediaClock.MODE_AUDIO : MediaClock.MODE_SYSTEM);
+		mKeyframeOnly = speed >= KEYFRAME_ONLY_SPEED;
+		if (mVideoDecoder != null) {
+			// 例えば2倍速なら非参照フレームの半分を間引く
+			mVideoDecoder.setNonReferenceKeepRatio(speed > 1.0f ? 1.0f / speed : 1.0f);
+		}
+	}
+
+	/**
+	 * キーフレームだけをデコードするときに次にデコードするキーフレームへシークする
+	 * 現在の再生位置より後の最初のキーフレームへ直接シークするので
+	 * 間のサンプルはコンテナからの読み込みも行わない
+	 * @param ptsUs 今デコーダーへ入力したキーフレームのPTS
+	 * @return シークしたときはtrue, キーフレームインデックスが無いときや次のキーフレームが無いときはfalse
+	 */
+	@WorkerThread
+	private boolean seekToNextKeyframe(final long ptsUs) {
+		final KeyframeIndex index = mKeyframeIndex;
+		if (index == null) return false;
+		final long nextUs = index.findKeyframeAfter(Math.max(ptsUs, getCurrentPositionUs()));
+		if (nextUs <= ptsUs) return false;
+		mExtractor.seekTo(nextUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+		return true;
+	}
+
+	/**
+	 * キーフレームインデックスをバックグラウンドで生成する
+	 * キャッシュファイルがあればそれを読み込む
+	 * @param path
+	 */
+	private void startKeyframeIndex(@NonNull final String path) {
+		synchronized (mSync) {
+			if (mIndexThread != null) {
+				mIndexThread.interrupt();
+			}
+			mKeyframeIndex = null;
+			mIndexThread = new Thread(new Runnable() {
+				@WorkerThread
+				@Override
+				public void run() {
+					final KeyframeIndex index = KeyframeIndex.loadOrBuild(path);
+					synchronized (mSync) {
+						if (mIndexThread == Thread.currentThread()) {
+							mKeyframeIndex = index;
+							mIndexThread = null;
+						}
+					}
+					if (DEBUG) Log.v(TAG, "startKeyframeIndex:finished,"
+						+ (index != null ? index.getFrameCount() : 0) + " frames");
+				}
+			}, "KeyframeIndex");
+			mIndexThread.start();
+		}
 	}
 
 	/**
 	 * シーク処理
 	 * @param newTimeUs
+	 * @param seekMode SEEK_EXACT or SEEK_NEAREST_KEYFRAME
 	 */
 	@WorkerThread
-	private void handleSeek(final long newTimeUs) {
-        if (DEBUG) Log.d(TAG, "handleSeek");
+	private void handleSeek(final long newTimeUs, final int seekMode) {
+        if (DEBUG) Log.d(TAG, "handleSeek:" + newTimeUs + ",mode=" + seekMode);
 		if (newTimeUs < 0) return;
 
 		if (mExtractor != null) {
-			mExtractor.seekTo(newTimeUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
-			mExtractor.advance();
+			// シーク前の位置のフレームが出力されてマスタークロックのアンカーにならないように
+			// デコーダー内に残っているフレームを破棄する
+			if (mVideoDecoder != null) {
+				mVideoDecoder.flush();
+			}
+			if (mAudioDecoder != null) {
+				mAudioDecoder.flush();
+			}
+			// デコーダー内のフレームを破棄してマスタークロックも再設定するのでループ再生のオフセットも不要
+			setLoopOffset(0, 0);
+			final KeyframeIndex index = mKeyframeIndex;
+			final long skipUntilUs;
+			if (seekMode == SEEK_NEAREST_KEYFRAME) {
+				if (index != null) {
+					// インデックスで見つけたキーフレームのPTSへ直接シークする
+					mExtractor.seekTo(index.findNearestKeyframe(newTimeUs), MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+				} else {
+					mExtractor.seekTo(newTimeUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+				}
+				skipUntilUs = -1L;
+			} else {
+				// 指定位置以前のキーフレームからデコードして指定位置のフレームより前は出力しない
+				mExtractor.seekTo(newTimeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+				if (index != null) {
+					final int frame = index.findFrame(newTimeUs);
+					skipUntilUs = frame >= 0 ? index.getFramePtsUs(frame) : newTimeUs;
+				} else {
+					skipUntilUs = newTimeUs;
+				}
+			}
+			if (mVideoDecoder != null) {
+				mVideoDecoder.setSkipUntil(skipUntilUs);
+			}
+			if (mAudioDecoder != null) {
+				mAudioDecoder.setSkipUntil(skipUntilUs);
+			}
 		}
+		// シーク後の最初のフレームでマスタークロックのアンカーを再設定する
+		mClock.reset();
         mRequestTime = -1;
 	}
 
+	/**
+	 * ループ再生で終端に達したときに先頭へ戻す
+	 * シークと違ってデコーダー内に残っている最後のフレームも再生するのでフラッシュせず、
+	 * マスタークロックも再設定せずに次のループのPTSを前のループの続きにする
+	 */
+	@WorkerThread
+	private void handleRewind() {
+		if (DEBUG) Log.d(TAG, "handleRewind:");
+		final long frameUs = mFrameRate > 0 ? (long)(1000000L / mFrameRate) : DEFAULT_FRAME_INTERVAL_US;
+		final long offsetUs = mLoopOffsetUs;
+		setLoopOffset(offsetUs + Math.max(mDuration, mMaxSampleTimeUs + frameUs), offsetUs);
+		mMaxSampleTimeUs = 0;
+		mExtractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+	}
+
+	/**
+	 * ループ再生のオフセットを設定してデコーダーへ適用する
+	 * @param offsetUs
+	 * @param prevOffsetUs
+	 */
+	@WorkerThread
+	private void setLoopOffset(final long offsetUs, final long prevOffsetUs) {
+		mPrevLoopOffsetUs = prevOffsetUs;
+		mLoopOffsetUs = offsetUs;
+		if (mVideoDecoder != null) {
+			mVideoDecoder.setPresentationTimeOffset(offsetUs);
+		}
+		if (mAudioDecoder != null) {
+			mAudioDecoder.setPresentationTimeOffset(offsetUs);
+		}
+	}
+
 	@WorkerThread
 	private void handleLoop(final IFrameCallback frameCallback) {
 //		if (DEBUG) Log.d(TAG, "handleLoop");
+		if (mSpeedChanged) {
+			applyPlaybackSpeed();
+		}
 		if (mExtractor != null) {
 			final int trackIndex = mExtractor.getSampleTrackIndex();
+			final long sampleTimeUs = mExtractor.getSampleTime();
+			if (sampleTimeUs > mMaxSampleTimeUs) {
+				mMaxSampleTimeUs = sampleTimeUs;
+			}
 			if (trackIndex == mVideoTrackIndex) {
-				mVideoDecoder.decode(mExtractor);
-			} else if (trackIndex == mAudioTrackIndex) {
+				if (!mKeyframeOnly) {
+					mVideoDecoder.decode(mExtractor);
+				} else if ((mExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+					// キーフレームだけをデコードする
+					final long ptsUs = mExtractor.getSampleTime();
+					mVideoDecoder.decode(mExtractor);
+					if (seekToNextKeyframe(ptsUs)) {
+						return;
+					}
+				}
+			} else if ((trackIndex == mAudioTrackIndex) && !mAudioMuted) {
 				mAudioDecoder.decode(mExtractor);
 			}
 			if (!mExtractor.advance()) {
@@ -646,7 +956,7 @@ public class MediaPlayer {
 				// ループ再生のチェック
 				if (mLoopEnabled) {
 					// 先頭へ戻す
-					handleSeek(0);
+					handleRewind();
 				} else {
 					// データが無くなった時
 					if (mVideoDecoder != null) {
@@ -0,0 +1,394 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.Manifest;
+import android.media.AudioFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresPermission;
+
+/**
+ * 複数のIAudioSamplerからの音声データをミキシングして
+ * 1つのIAudioSamplerとして扱うためのIAudioSampler実装
+ * (マイク音声とアプリ内音声を同時に録音する等)
+ *
+ * 各音声ソースからの音声データはそれぞれのコールバックスレッド上でPcmRingBufferへ書き込み
+ * 先頭の音声ソース(プライマリー)の音声データを受け取ったときに
+ * presentationTimeUsで位置合わせしながら1パスでミキシングする
+ * プライマリー以外の音声ソースの音声データが足りないときは無音として扱い、
+ * 最大遅延時間より古い音声データは破棄するので遅延は一定範囲内に収まる
+ * 全ての音声ソースのPCM処理ステージ適用後のフォーマットが
+ * 同じチャネル数・サンプリングレートの16ビット整数PCMでなければならない
+ */
+public class MixAudioSampler extends IAudioSampler {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = MixAudioSampler.class.getSimpleName();
+
+	/**
+	 * デフォルトの最大遅延時間[マイクロ秒]
+	 */
+	public static final long DEFAULT_MAX_LATENCY_US = 200000L;
+	/**
+	 * ゲインの固定小数点の小数部ビット数
+	 */
+	private static final int GAIN_SHIFT = 12;
+	private static final int GAIN_ONE = 1 << GAIN_SHIFT;
+	/**
+	 * ソフトクリップを開始する振幅
+	 */
+	private static final int KNEE = 28672;	// 32767 x 0.875
+	private static final int HEAD_ROOM = Short.MAX_VALUE - KNEE;
+
+	/**
+	 * 音声ソース毎の情報を保持するホルダークラス
+	 */
+	private class Source implements SoundSamplerCallback {
+		@NonNull
+		private final IAudioSampler sampler;
+		@NonNull
+		private final PcmRingBuffer ring;
+		private final boolean isPrimary;
+		private volatile int gain = GAIN_ONE;
+		private boolean startedBySelf;
+
+		private Source(@NonNull final IAudioSampler sampler, final boolean isPrimary) {
+			this.sampler = sampler;
+			this.isPrimary = isPrimary;
+			ring = new PcmRingBuffer(mChannels, mSamplingRate,
+				(int)(mMaxLatencyUs * mSamplingRate / 1000000L) * 2);
+		}
+
+		@Override
+		public void onData(@NonNull final ByteBuffer buffer, final long presentationTimeUs) {
+			ring.write(buffer, buffer.remaining(), presentationTimeUs);
+			if (isPrimary) {
+				mix();
+			}
+		}
+
+		@Override
+		public void onError(@NonNull final Throwable t) {
+			callOnError(t);
+		}
+	}
+
+	@NonNull
+	private final Source[] mSources;
+	private final int mChannels;
+	private final int mSamplingRate;
+	private final long mMaxLatencyUs;
+	/**
+	 * 1回のミキシングで出力する最大フレーム数
+	 */
+	private final int mFramesPerChunk;
+	/**
+	 * ミキシング時に各音声ソースの有効データの開始/終了位置(サンプル数)を保持するための作業用配列
+	 */
+	@NonNull
+	private final int[] mStart;
+	@NonNull
+	private final int[] mEnd;
+	/**
+	 * ミキシング中に各音声ソースのリングバッファ情報を保持するための作業用配列
+	 */
+	@NonNull
+	private final short[][] mArrays;
+	@NonNull
+	private final int[] mMasks;
+	@NonNull
+	private final long[] mBase;
+	@NonNull
+	private final int[] mGains;
+
+	/**
+	 * コンストラクタ
+	 * 最大遅延時間はDEFAULT_MAX_LATENCY_US
+	 * @param primary プライマリー音声ソース, 出力タイミングとpresentationTimeUsの基準となる
+	 * @param others その他の音声ソース
+	 * @throws IllegalArgumentException 音声ソースのフォーマットが一致しないとき
+	 */
+	public MixAudioSampler(@NonNull final IAudioSampler primary,
+		@NonNull final IAudioSampler... others) throws IllegalArgumentException {
+
+		this(DEFAULT_MAX_LATENCY_US, primary, others);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param maxLatencyUs 最大遅延時間[マイクロ秒]
+	 * @param primary プライマリー音声ソース, 出力タイミングとpresentationTimeUsの基準となる
+	 * @param others その他の音声ソース
+	 * @throws IllegalArgumentException 音声ソースのフォーマットが一致しないとき
+	 */
+	public MixAudioSampler(final long maxLatencyUs,
+		@NonNull final IAudioSampler primary,
+		@NonNull final IAudioSampler... others) throws IllegalArgumentException {
+
+		super();
+		mChannels = primary.getOutputChannels();
+		mSamplingRate = primary.getOutputSamplingFrequency();
+		mMaxLatencyUs = maxLatencyUs > 0 ? maxLatencyUs : DEFAULT_MAX_LATENCY_US;
+		final List<IAudioSampler> samplers = new ArrayList<>();
+		samplers.add(primary);
+		samplers.addAll(Arrays.asList(others));
+		mSources = new Source[samplers.size()];
+		for (int i = 0; i < mSources.length; i++) {
+			final IAudioSampler sampler = samplers.get(i);
+			if ((sampler.getOutputAudioFormat() != AudioFormat.ENCODING_PCM_16BIT)
+				|| (sampler.getOutputChannels() != mChannels)
+				|| (sampler.getOutputSamplingFrequency() != mSamplingRate)) {
+				throw new IllegalArgumentException("audio format mismatch," + sampler);
+			}
+			mSources[i] = new Source(sampler, i == 0);
+		}
+		mFramesPerChunk = Math.max(1, primary.getBufferSize() / (2 * mChannels));
+		mStart = new int[mSources.length];
+		mEnd = new int[mSources.length];
+		mArrays = new short[mSources.length][];
+		mMasks = new int[mSources.length];
+		mBase = new long[mSources.length];
+		mGains = new int[mSources.length];
+	}
+
+	/**
+	 * 音声ソースのゲインを設定する
+	 * @param index 0がプライマリー, 以降はコンストラクタへ引き渡した順
+	 * @param gain 0.0f〜4.0f, 1.0fなら無変換
+	 */
+	public void setGain(final int index, final float gain) {
+		final float g = Math.max(0.0f, Math.min(4.0f, gain));
+		mSources[index].gain = (int)(g * GAIN_ONE);
+	}
+
+	/**
+	 * 音声ソースのゲインを取得する
+	 * @param index
+	 * @return
+	 */
+	public float getGain(final int index) {
+		return mSources[index].gain / (float)GAIN_ONE;
+	}
+
+	/**
+	 * 音声ソースの数を取得する
+	 * @return
+	 */
+	public int getSourceCount() {
+		return mSources.length;
+	}
+
+	/**
+	 * 指定した音声ソースで遅延超過・空き容量不足により破棄したフレーム数を取得する
+	 * @param index
+	 * @return
+	 */
+	public long getDroppedFrames(final int index) {
+		return mSources[index].ring.getDroppedFrames();
+	}
+
+	@RequiresPermission(Manifest.permission.RECORD_AUDIO)
+	@Override
+	public synchronized void start() {
+		if (DEBUG) Log.v(TAG, "start:isStarted=" + isStarted());
+		super.start();
+		init_pool(getBufferSize());
+		for (final Source source: mSources) {
+			source.ring.clear();
+			source.sampler.addCallback(source);
+			if (!source.sampler.isStarted()) {
+				source.startedBySelf = true;
+				source.sampler.start();
+			}
+		}
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (DEBUG) Log.v(TAG, "stop:isStarted=" + isStarted());
+		for (final Source source: mSources) {
+			source.sampler.removeCallback(source);
+			if (source.startedBySelf) {
+				source.startedBySelf = false;
+				source.sampler.stop();
+			}
+		}
+		super.stop();
+	}
+
+	@Override
+	public int getBufferSize() {
+		return mFramesPerChunk * mChannels * 2;
+	}
+
+	@AudioRecordCompat.AudioFormats
+	@Override
+	public int getAudioFormat() {
+		return AudioFormat.ENCODING_PCM_16BIT;
+	}
+
+	@Override
+	public int getAudioSource() {
+		return mSources[0].sampler.getAudioSource();
+	}
+
+	@Override
+	public int getChannels() {
+		return mChannels;
+	}
+
+	@Override
+	public int getSamplingFrequency() {
+		return mSamplingRate;
+	}
+
+	@Override
+	public int getBitResolution() {
+		return 16;	// AudioFormat.ENCODING_PCM_16BIT
+	}
+
+	@Override
+	public int getAudioSessionId() {
+		return mSources[0].sampler.getAudioSessionId();
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * プライマリー音声ソースのコールバックスレッド上で呼び出されて
+	 * 読み込み可能なプライマリーの音声データを全てミキシングして出力する
+	 */
+	private void mix() {
+		final PcmRingBuffer primary = mSources[0].ring;
+		for (int frames = Math.min(primary.available(), mFramesPerChunk);
+			isStarted() && (frames > 0);
+			frames = Math.min(primary.available(), mFramesPerChunk)) {
+
+			final long ptsUs = primary.readPtsUs();
+			final int bytes = frames * mChannels * 2;
+			align(frames, ptsUs);
+			final RecycleMediaData data = obtain(bytes);
+			if (data != null) {
+				final ByteBuffer buf = data.getRaw();
+				if ((buf != null) && (buf.capacity() >= bytes)) {
+					buf.clear();
+					mixChunk(buf, frames);
+					data.presentationTimeUs(ptsUs).size(bytes);
+					if (!addMediaData(data)) {
+						data.recycle();
+					}
+				} else {
+					data.recycle();
+				}
+			}
+			// 出力できなかったときも音声ソースの読み込み位置は進める
+			primary.skip(frames);
+			for (int k = 1; k < mSources.length; k++) {
+				mSources[k].ring.skip((mEnd[k] - mStart[k]) / mChannels);
+			}
+		}
+	}
+
+	/**
+	 * プライマリー以外の音声ソースについてpresentationTimeUsから
+	 * 出力先での有効データの開始/終了位置を計算する
+	 * 先行している分は無音、遅延している分と最大遅延時間を超えた分は破棄する
+	 * @param frames 出力するフレーム数
+	 * @param ptsUs 出力するチャンク先頭のpresentationTimeUs
+	 */
+	private void align(final int frames, final long ptsUs) {
+		final int n = frames * mChannels;
+		final int maxFrames = (int)(mMaxLatencyUs * mSamplingRate / 1000000L);
+		mStart[0] = 0;
+		mEnd[0] = n;
+		for (int k = 1; k < mSources.length; k++) {
+			final PcmRingBuffer ring = mSources[k].ring;
+			final long srcPtsUs = ring.readPtsUs();
+			int start = 0;
+			if ((srcPtsUs >= 0) && (ptsUs >= 0)) {
+				final long diffFrames = (srcPtsUs - ptsUs) * mSamplingRate / 1000000L;
+				if (diffFrames > 0) {
+					// 音声ソースが先行しているので先頭側を無音にする
+					start = (int)Math.min(diffFrames, frames) * mChannels;
+				} else if (diffFrames < 0) {
+					// 音声ソースが遅延しているので古いデータを破棄する
+					ring.skip((int)Math.min(-diffFrames, Integer.MAX_VALUE));
+				}
+			}
+			// 最大遅延時間を超えて溜まっている分も破棄する
+			final int excess = ring.available() - maxFrames - frames;
+			if (excess > 0) {
+				ring.skip(excess);
+			}
+			mStart[k] = start;
+			mEnd[k] = Math.min(n, start + ring.available() * mChannels);
+		}
+	}
+
+	/**
+	 * 1チャンク分のミキシング処理
+	 * 全音声ソースを1パスで加算してソフトクリップしながら書き込む
+	 * @param buf 出力先
+	 * @param frames 出力するフレーム数
+	 */
+	private void mixChunk(@NonNull final ByteBuffer buf, final int frames) {
+		final int n = frames * mChannels;
+		final int numSources = mSources.length;
+		for (int k = 0; k < numSources; k++) {
+			final PcmRingBuffer ring = mSources[k].ring;
+			mArrays[k] = ring.array();
+			mMasks[k] = ring.mask();
+			mBase[k] = ring.readIndex() - mStart[k];
+			mGains[k] = mSources[k].gain;
+		}
+		for (int i = 0; i < n; i++) {
+			int sum = 0;
+			for (int k = 0; k < numSources; k++) {
+				if ((i >= mStart[k]) && (i < mEnd[k])) {
+					sum += (mArrays[k][(int)((mBase[k] + i) & mMasks[k])] * mGains[k]) >> GAIN_SHIFT;
+				}
+			}
+			buf.putShort(i << 1, softClip(sum));
+		}
+	}
+
+	/**
+	 * KNEEを超える振幅を圧縮して16ビットの範囲へ収める
+	 * 振幅が大きくなるほどShort.MAX_VALUEへ漸近するので
+	 * ハードクリップによる波形の折れ曲がりが生じにくい
+	 * @param v
+	 * @return
+	 */
+	private static short softClip(final int v) {
+		if (v > KNEE) {
+			final long over = v - KNEE;
+			return (short)(KNEE + (over * HEAD_ROOM) / (over + HEAD_ROOM));
+		} else if (v < -KNEE) {
+			final long over = -v - KNEE;
+			return (short)-(KNEE + (over * HEAD_ROOM) / (over + HEAD_ROOM));
+		}
+		return (short)v;
+	}
+}
@@ -0,0 +1,94 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.nio.ByteBuffer;
+
+import androidx.annotation.NonNull;
+
+/**
+ * モノラル/ステレオ間のダウンミックス/アップミックスを行うIPcmStage実装
+ * ステレオ→モノラルは左右の平均値、モノラル→ステレオは同じ値を左右へ複製する
+ * アップミックス時はデータサイズが2倍になるので後ろから処理してインプレースで変換する
+ */
+public class PcmChannelMixStage extends AbstractPcmStage {
+	private final int mOutputChannels;
+
+	/**
+	 * コンストラクタ
+	 * @param outputChannels 出力チャネル数, 1 or 2
+	 * @throws IllegalArgumentException
+	 */
+	public PcmChannelMixStage(final int outputChannels) throws IllegalArgumentException {
+		if ((outputChannels != 1) && (outputChannels != 2)) {
+			throw new IllegalArgumentException("unsupported channel count," + outputChannels);
+		}
+		mOutputChannels = outputChannels;
+	}
+
+	@NonNull
+	@Override
+	protected PcmFormat onPrepare(@NonNull final PcmFormat input) {
+		return input.withChannels(mOutputChannels);
+	}
+
+	@Override
+	public int process(@NonNull final ByteBuffer buffer, final int size) {
+		final PcmFormat input = getInputFormat();
+		if (input.channels == mOutputChannels) {
+			return size;
+		}
+		final int frames = size / input.bytesPerFrame();
+		if (mOutputChannels == 1) {
+			// ステレオ→モノラル, 書き込み位置が読み込み位置を追い越さないので前から処理する
+			if (input.isFloat()) {
+				for (int i = 0; i < frames; i++) {
+					final int src = i << 3;
+					buffer.putFloat(i << 2,
+						(buffer.getFloat(src) + buffer.getFloat(src + 4)) * 0.5f);
+				}
+			} else {
+				for (int i = 0; i < frames; i++) {
+					final int src = i << 2;
+					buffer.putShort(i << 1,
+						(short)((buffer.getShort(src) + buffer.getShort(src + 2)) >> 1));
+				}
+			}
+			return frames * input.bytesPerSample();
+		} else {
+			// モノラル→ステレオ, 未処理のデータを上書きしないように後ろから処理する
+			if (input.isFloat()) {
+				for (int i = frames - 1; i >= 0; i--) {
+					final float v = buffer.getFloat(i << 2);
+					final int dst = i << 3;
+					buffer.putFloat(dst, v);
+					buffer.putFloat(dst + 4, v);
+				}
+			} else {
+				for (int i = frames - 1; i >= 0; i--) {
+					final short v = buffer.getShort(i << 1);
+					final int dst = i << 2;
+					buffer.putShort(dst, v);
+					buffer.putShort(dst + 2, v);
+				}
+			}
+			return frames * input.bytesPerSample() * 2;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.AudioFormat;
+
+import java.nio.ByteBuffer;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 16ビット整数PCMと浮動小数点PCMを相互変換するIPcmStage実装
+ * 浮動小数点は-1.0〜+1.0の範囲で、16ビット整数へ変換するときは飽和演算する
+ * 16ビット整数→浮動小数点はデータサイズが2倍になるので後ろから処理してインプレースで変換する
+ */
+public class PcmEncodingStage extends AbstractPcmStage {
+	private static final float SCALE_TO_FLOAT = 1.0f / 32768.0f;
+
+	@AudioRecordCompat.AudioFormats
+	private final int mOutputEncoding;
+
+	/**
+	 * コンストラクタ
+	 * @param outputEncoding ENCODING_PCM_16BIT or ENCODING_PCM_FLOAT
+	 * @throws IllegalArgumentException
+	 */
+	public PcmEncodingStage(@AudioRecordCompat.AudioFormats final int outputEncoding)
+		throws IllegalArgumentException {
+
+		if ((outputEncoding != AudioFormat.ENCODING_PCM_16BIT)
+			&& (outputEncoding != AudioFormat.ENCODING_PCM_FLOAT)) {
+			throw new IllegalArgumentException("unsupported encoding," + outputEncoding);
+		}
+		mOutputEncoding = outputEncoding;
+	}
+
+	@NonNull
+	@Override
+	protected PcmFormat onPrepare(@NonNull final PcmFormat input) {
+		return input.withEncoding(mOutputEncoding);
+	}
+
+	@Override
+	public int process(@NonNull final ByteBuffer buffer, final int size) {
+		final PcmFormat input = getInputFormat();
+		if (input.encoding == mOutputEncoding) {
+			return size;
+		}
+		if (input.isFloat()) {
+			// 浮動小数点→16ビット整数, 前から処理する
+			final int n = size >> 2;
+			for (int i = 0; i < n; i++) {
+				int v = (int)(buffer.getFloat(i << 2) * 32768.0f);
+				if (v > Short.MAX_VALUE) v = Short.MAX_VALUE;
+				else if (v < Short.MIN_VALUE) v = Short.MIN_VALUE;
+				buffer.putShort(i << 1, (short)v);
+			}
+			return n << 1;
+		} else {
+			// 16ビット整数→浮動小数点, 後ろから処理する
+			final int n = size >> 1;
+			for (int i = n - 1; i >= 0; i--) {
+				buffer.putFloat(i << 2, buffer.getShort(i << 1) * SCALE_TO_FLOAT);
+			}
+			return n << 2;
+		}
+	}
+}
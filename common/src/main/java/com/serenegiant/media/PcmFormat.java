@@ -0,0 +1,152 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.AudioFormat;
+
+import androidx.annotation.NonNull;
+
+/**
+ * IPcmStageで処理するPCM音声データのフォーマットを保持するホルダークラス
+ * 対応しているのは16ビット整数(ENCODING_PCM_16BIT)と
+ * 32ビット浮動小数点(ENCODING_PCM_FLOAT)のインターリーブ形式のみ
+ * バイトオーダーはネイティブオーダー(MediaDataのデフォルト)
+ */
+public final class PcmFormat {
+	/**
+	 * 音声チャネル数, 1 or 2
+	 */
+	public final int channels;
+	/**
+	 * サンプリングレート[Hz]
+	 */
+	public final int samplingRate;
+	/**
+	 * ENCODING_PCM_16BIT or ENCODING_PCM_FLOAT
+	 */
+	@AudioRecordCompat.AudioFormats
+	public final int encoding;
+
+	/**
+	 * コンストラクタ
+	 * @param channels 音声チャネル数, 1 or 2
+	 * @param samplingRate サンプリングレート
+	 * @param encoding ENCODING_PCM_16BIT or ENCODING_PCM_FLOAT
+	 * @throws IllegalArgumentException
+	 */
+	public PcmFormat(final int channels, final int samplingRate,
+		@AudioRecordCompat.AudioFormats final int encoding) throws IllegalArgumentException {
+
+		if ((channels != 1) && (channels != 2)) {
+			throw new IllegalArgumentException("unsupported channel count," + channels);
+		}
+		if (samplingRate <= 0) {
+			throw new IllegalArgumentException("wrong sampling rate," + samplingRate);
+		}
+		if ((encoding != AudioFormat.ENCODING_PCM_16BIT)
+			&& (encoding != AudioFormat.ENCODING_PCM_FLOAT)) {
+			throw new IllegalArgumentException("unsupported encoding," + encoding);
+		}
+		this.channels = channels;
+		this.samplingRate = samplingRate;
+		this.encoding = encoding;
+	}
+
+	/**
+	 * 1サンプルあたりのバイト数
+	 * @return
+	 */
+	public int bytesPerSample() {
+		return encoding == AudioFormat.ENCODING_PCM_FLOAT ? 4 : 2;
+	}
+
+	/**
+	 * 1フレーム(全チャネル分の1サンプル)あたりのバイト数
+	 * @return
+	 */
+	public int bytesPerFrame() {
+		return bytesPerSample() * channels;
+	}
+
+	/**
+	 * 浮動小数点フォーマットかどうか
+	 * @return
+	 */
+	public boolean isFloat() {
+		return encoding == AudioFormat.ENCODING_PCM_FLOAT;
+	}
+
+	/**
+	 * チャネル数を変更したPcmFormatを生成する
+	 * @param channels
+	 * @return
+	 */
+	@NonNull
+	public PcmFormat withChannels(final int channels) {
+		return new PcmFormat(channels, samplingRate, encoding);
+	}
+
+	/**
+	 * サンプリングレートを変更したPcmFormatを生成する
+	 * @param samplingRate
+	 * @return
+	 */
+	@NonNull
+	public PcmFormat withSamplingRate(final int samplingRate) {
+		return new PcmFormat(channels, samplingRate, encoding);
+	}
+
+	/**
+	 * エンコーディングを変更したPcmFormatを生成する
+	 * @param encoding
+	 * @return
+	 */
+	@NonNull
+	public PcmFormat withEncoding(@AudioRecordCompat.AudioFormats final int encoding) {
+		return new PcmFormat(channels, samplingRate, encoding);
+	}
+
+	@Override
+	public boolean equals(final Object o) {
+		if (this == o) return true;
+		if (!(o instanceof PcmFormat)) return false;
+		final PcmFormat other = (PcmFormat) o;
+		return (channels == other.channels)
+			&& (samplingRate == other.samplingRate)
+			&& (encoding == other.encoding);
+	}
+
+	@Override
+	public int hashCode() {
+		int result = channels;
+		result = 31 * result + samplingRate;
+		result = 31 * result + encoding;
+		return result;
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		return "PcmFormat{" +
+			"channels=" + channels +
+			", samplingRate=" + samplingRate +
+			", encoding=" + encoding +
+			'}';
+	}
+}
@@ -0,0 +1,82 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.nio.ByteBuffer;
+
+import androidx.annotation.NonNull;
+
+/**
+ * PCM音声データへゲインを適用するIPcmStage実装
+ * フォーマットは変更しない
+ * 16ビット整数の場合は飽和演算(クリッピング)する
+ */
+public class PcmGainStage extends AbstractPcmStage {
+	private volatile float mGain;
+
+	/**
+	 * コンストラクタ
+	 * @param gain 倍率, 1.0fなら無変換
+	 */
+	public PcmGainStage(final float gain) {
+		mGain = gain;
+	}
+
+	/**
+	 * ゲインを変更する
+	 * 任意のスレッドから呼び出し可能で次の#processから有効になる
+	 * @param gain
+	 */
+	public void setGain(final float gain) {
+		mGain = gain;
+	}
+
+	public float getGain() {
+		return mGain;
+	}
+
+	@NonNull
+	@Override
+	protected PcmFormat onPrepare(@NonNull final PcmFormat input) {
+		return input;
+	}
+
+	@Override
+	public int process(@NonNull final ByteBuffer buffer, final int size) {
+		final float gain = mGain;
+		if (gain == 1.0f) {
+			return size;
+		}
+		if (getInputFormat().isFloat()) {
+			final int n = size & ~3;
+			for (int i = 0; i < n; i += 4) {
+				buffer.putFloat(i, buffer.getFloat(i) * gain);
+			}
+		} else {
+			final int n = size & ~1;
+			for (int i = 0; i < n; i += 2) {
+				int v = (int)(buffer.getShort(i) * gain);
+				if (v > Short.MAX_VALUE) v = Short.MAX_VALUE;
+				else if (v < Short.MIN_VALUE) v = Short.MIN_VALUE;
+				buffer.putShort(i, (short)v);
+			}
+		}
+		return size;
+	}
+}
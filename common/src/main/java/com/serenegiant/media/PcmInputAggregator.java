@@ -0,0 +1,387 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.util.Log;
+
+import com.serenegiant.system.BuildCheck;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 音声サンプラーから受け取ったPCMデータ(16ビット整数, インターリーブ)を
+ * 複数チャンク分まとめてMediaCodecの1つの入力バッファへ詰め込むためのヘルパークラス
+ * ・入力バッファは常にタイムアウト0でdequeueするのでサンプラーのスレッドをブロックしない
+ * ・入力バッファを取得できなかったときは内部のステージングバッファへ一時的に保持して
+ *   次回以降に入力バッファへ書き込む(ステージングバッファが溢れたときは破棄する)
+ * ・入力バッファへ書き込んだ先頭のPTSは連続区間の先頭PTSとそれ以降のサンプル数から計算する
+ * 入力バッファが一杯になったとき、または保持しているデータの長さが
+ * 最大パック時間を超えたときにMediaCodecへ送る
+ */
+public class PcmInputAggregator {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = PcmInputAggregator.class.getSimpleName();
+
+	/**
+	 * デフォルトの最大パック時間[マイクロ秒]
+	 */
+	public static final long DEFAULT_MAX_PACK_DURATION_US = 100000L;
+	/**
+	 * デフォルトのステージングバッファの長さ[ミリ秒]
+	 */
+	public static final int DEFAULT_STAGING_DURATION_MS = 500;
+	/**
+	 * 受け取ったPTSが連続区間から計算したPTSよりもこれ以上進んでいれば
+	 * 連続区間を切り直す[マイクロ秒]
+	 */
+	private static final long RESYNC_THRESHOLD_US = 40000L;
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final MediaCodec mCodec;
+	private final int mSampleRate;
+	private final int mBytesPerFrame;
+	private final long mMaxPackDurationUs;
+	/**
+	 * 入力バッファを取得できなかったときにPCMデータを一時的に保持するバッファ
+	 * 常に書き込みモード(position=保持しているバイト数)
+	 */
+	@NonNull
+	private final ByteBuffer mStaging;
+	/**
+	 * API<21の時の入力バッファ配列
+	 */
+	@Nullable
+	private final ByteBuffer[] mInputBuffers;
+	/**
+	 * 現在保持している入力バッファのインデックス, 保持していなければ-1
+	 */
+	private int mInputIndex = -1;
+	/**
+	 * 現在保持している入力バッファ, position=書き込み済みのバイト数
+	 */
+	@Nullable
+	private ByteBuffer mInput;
+	/**
+	 * 連続区間の先頭PTS[マイクロ秒], 未設定なら負
+	 */
+	private long mBasePtsUs = -1;
+	/**
+	 * 連続区間の先頭のフレーム番号
+	 */
+	private long mBaseFrames;
+	/**
+	 * 受け取ったフレーム数(入力バッファへ書き込んだ分+ステージングバッファ内の分)
+	 */
+	private long mAcceptedFrames;
+	/**
+	 * MediaCodecへ送ったフレーム数
+	 */
+	private long mQueuedFrames;
+	/**
+	 * MediaCodecへ送った入力バッファ数
+	 */
+	private long mQueuedBuffers;
+	/**
+	 * ステージングバッファが溢れて破棄したフレーム数
+	 */
+	private long mDroppedFrames;
+	private boolean mReleased;
+
+	/**
+	 * コンストラクタ
+	 * 最大パック時間とステージングバッファの長さはデフォルト値を使う
+	 * @param codec start済みのMediaCodec
+	 * @param sampleRate サンプリングレート
+	 * @param channels チャネル数
+	 */
+	public PcmInputAggregator(
+		@NonNull final MediaCodec codec,
+		final int sampleRate, final int channels) {
+
+		this(codec, sampleRate, channels,
+			DEFAULT_MAX_PACK_DURATION_US, DEFAULT_STAGING_DURATION_MS);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param codec start済みのMediaCodec
+	 * @param sampleRate サンプリングレート
+	 * @param channels チャネル数
+	 * @param maxPackDurationUs 1つの入力バッファへ詰め込む最大の長さ[マイクロ秒]
+	 * @param stagingDurationMs ステージングバッファの長さ[ミリ秒]
+	 * @throws IllegalArgumentException
+	 */
+	@SuppressLint("NewApi")
+	public PcmInputAggregator(
+		@NonNull final MediaCodec codec,
+		final int sampleRate, final int channels,
+		final long maxPackDurationUs, final int stagingDurationMs)
+			throws IllegalArgumentException {
+
+		if ((sampleRate <= 0) || (channels <= 0)
+			|| (maxPackDurationUs <= 0) || (stagingDurationMs <= 0)) {
+			throw new IllegalArgumentException("wrong parameters");
+		}
+		mCodec = codec;
+		mSampleRate = sampleRate;
+		mBytesPerFrame = channels * 2;
+		mMaxPackDurationUs = maxPackDurationUs;
+		final int stagingFrames = (int)((long)sampleRate * stagingDurationMs / 1000L);
+		mStaging = ByteBuffer.allocateDirect(Math.max(stagingFrames, 1) * mBytesPerFrame)
+			.order(ByteOrder.nativeOrder());
+		mInputBuffers = BuildCheck.isAPI21() ? null : codec.getInputBuffers();
+	}
+
+	/**
+	 * 関係するリソースを破棄する
+	 * 保持しているデータは破棄される。MediaCodecの破棄はしない
+	 */
+	public void release() {
+		synchronized (mSync) {
+			mReleased = true;
+			mInput = null;
+			mInputIndex = -1;
+			mStaging.clear();
+		}
+	}
+
+	/**
+	 * PCMデータを追加する
+	 * 入力バッファを取得できなかったときでもブロックしない
+	 * @param buffer PCMデータ, position〜limitまでを読み込む
+	 * @param presentationTimeUs 先頭のPTS[マイクロ秒]
+	 * @return 全てMediaCodecの入力バッファへ書き込めればtrue,
+	 * 		ステージングバッファへ保持したか破棄したときはfalse
+	 */
+	public boolean offer(@NonNull final ByteBuffer buffer, final long presentationTimeUs) {
+		synchronized (mSync) {
+			if (mReleased) return false;
+			final int length = buffer.remaining() / mBytesPerFrame * mBytesPerFrame;
+			if (length <= 0) return true;
+			if (!hasPending()
+				&& ((mBasePtsUs < 0) || (presentationTimeUs > expectedPtsUs() + RESYNC_THRESHOLD_US))) {
+				// 保持しているデータが無いときに限って連続区間を切り直す
+				// (PTSが逆行しないように後ろへずれる場合だけ)
+				mBasePtsUs = presentationTimeUs;
+				mBaseFrames = mAcceptedFrames;
+			}
+			final int limit = buffer.limit();
+			buffer.limit(buffer.position() + length);
+			try {
+				boolean result = drainStaging(0);
+				if (mStaging.position() == 0) {
+					// ステージングバッファが空なら入力バッファへ直接書き込む
+					while (buffer.hasRemaining() && ensureInput(0)) {
+						write(buffer);
+					}
+				}
+				if (buffer.hasRemaining()) {
+					result = false;
+					final int remaining = buffer.remaining();
+					if (mStaging.remaining() >= remaining) {
+						mStaging.put(buffer);
+						mAcceptedFrames += remaining / mBytesPerFrame;
+					} else {
+						// ステージングバッファが溢れたので破棄する
+						mDroppedFrames += remaining / mBytesPerFrame;
+						if (DEBUG) Log.w(TAG, "offer:dropped " + remaining + " bytes");
+						buffer.position(buffer.limit());
+					}
+				}
+				if ((mInput != null) && (framesToUs(mInput.position() / mBytesPerFrame) >= mMaxPackDurationUs)) {
+					queueInput(0);
+				}
+				return result;
+			} finally {
+				// フレーム単位にならない端数も含めて全て読み込んだことにする
+				buffer.limit(limit);
+				buffer.position(limit);
+			}
+		}
+	}
+
+	/**
+	 * 保持しているデータを全てMediaCodecへ送る
+	 * 入力バッファを取得できるまでtimeoutUsずつ待機するのでサンプラーのスレッドからは呼ばないこと
+	 * @param timeoutUs 入力バッファ1つあたりの最大待機時間[マイクロ秒]
+	 * @return 全て送ることができればtrue
+	 */
+	public boolean flush(final long timeoutUs) {
+		synchronized (mSync) {
+			if (mReleased) return false;
+			final boolean result = drainStaging(timeoutUs);
+			if ((mInput != null) && (mInput.position() > 0)) {
+				queueInput(0);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * MediaCodecへ送った入力バッファ数を取得
+	 * @return
+	 */
+	public long getQueuedBufferCount() {
+		synchronized (mSync) {
+			return mQueuedBuffers;
+		}
+	}
+
+	/**
+	 * MediaCodecへ送ったフレーム数を取得
+	 * @return
+	 */
+	public long getQueuedFrames() {
+		synchronized (mSync) {
+			return mQueuedFrames;
+		}
+	}
+
+	/**
+	 * ステージングバッファが溢れて破棄したフレーム数を取得
+	 * @return
+	 */
+	public long getDroppedFrames() {
+		synchronized (mSync) {
+			return mDroppedFrames;
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * まだMediaCodecへ送っていないデータを保持しているかどうか
+	 * mSyncをロックした状態で呼び出すこと
+	 * @return
+	 */
+	private boolean hasPending() {
+		return ((mInput != null) && (mInput.position() > 0)) || (mStaging.position() > 0);
+	}
+
+	/**
+	 * 次に受け取るデータの連続区間から計算したPTS
+	 * mSyncをロックした状態で呼び出すこと
+	 * @return
+	 */
+	private long expectedPtsUs() {
+		return mBasePtsUs + framesToUs(mAcceptedFrames - mBaseFrames);
+	}
+
+	private long framesToUs(final long frames) {
+		return frames * 1000000L / mSampleRate;
+	}
+
+	/**
+	 * ステージングバッファのデータを入力バッファへ書き込む
+	 * mSyncをロックした状態で呼び出すこと
+	 * @param timeoutUs
+	 * @return ステージングバッファが空になればtrue
+	 */
+	private boolean drainStaging(final long timeoutUs) {
+		if (mStaging.position() == 0) return true;
+		mStaging.flip();
+		try {
+			// ステージングバッファ内のデータは受け取り済みなのでmAcceptedFramesは変更しない
+			while (mStaging.hasRemaining() && ensureInput(timeoutUs)) {
+				copy(mStaging);
+			}
+		} finally {
+			mStaging.compact();
+		}
+		return mStaging.position() == 0;
+	}
+
+	/**
+	 * 入力バッファへ書き込めるだけ書き込む, 入力バッファが一杯になればMediaCodecへ送る
+	 * mSyncをロックした状態で呼び出すこと
+	 * @param src
+	 */
+	private void write(@NonNull final ByteBuffer src) {
+		final int pos = src.position();
+		copy(src);
+		mAcceptedFrames += (src.position() - pos) / mBytesPerFrame;
+	}
+
+	/**
+	 * 入力バッファへフレーム単位でコピーする, 入力バッファが一杯になればMediaCodecへ送る
+	 * mSyncをロックした状態で呼び出すこと
+	 * @param src
+	 */
+	private void copy(@NonNull final ByteBuffer src) {
+		final ByteBuffer input = mInput;
+		final int n = Math.min(src.remaining(), input.remaining() / mBytesPerFrame * mBytesPerFrame);
+		if (n > 0) {
+			final int limit = src.limit();
+			src.limit(src.position() + n);
+			input.put(src);
+			src.limit(limit);
+		}
+		if (input.remaining() < mBytesPerFrame) {
+			queueInput(0);
+		}
+	}
+
+	/**
+	 * 入力バッファを保持していなければMediaCodecから取得する
+	 * mSyncをロックした状態で呼び出すこと
+	 * @param timeoutUs
+	 * @return 入力バッファを保持していればtrue
+	 */
+	@SuppressLint("NewApi")
+	private boolean ensureInput(final long timeoutUs) {
+		if (mInput == null) {
+			final int ix = mCodec.dequeueInputBuffer(timeoutUs);
+			if (ix >= 0) {
+				final ByteBuffer input = mInputBuffers != null
+					? mInputBuffers[ix] : mCodec.getInputBuffer(ix);
+				if (input != null) {
+					input.clear();
+					mInput = input;
+					mInputIndex = ix;
+				}
+			}
+		}
+		return mInput != null;
+	}
+
+	/**
+	 * 保持している入力バッファをMediaCodecへ送る
+	 * mSyncをロックした状態で呼び出すこと
+	 * @param flags
+	 */
+	private void queueInput(final int flags) {
+		final ByteBuffer input = mInput;
+		if (input != null) {
+			final int size = input.position();
+			final long ptsUs = mBasePtsUs + framesToUs(mQueuedFrames - mBaseFrames);
+			mInput = null;
+			mCodec.queueInputBuffer(mInputIndex, 0, size, ptsUs, flags);
+			mInputIndex = -1;
+			mQueuedFrames += size / mBytesPerFrame;
+			mQueuedBuffers++;
+		}
+	}
+}
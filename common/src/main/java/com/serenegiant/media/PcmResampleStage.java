@@ -0,0 +1,139 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.nio.ByteBuffer;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 線形補間でサンプリングレート変換を行うIPcmStage実装
+ * 位相は出力サンプリングレート単位の整数で保持するので
+ * 44100Hz→48000Hzのように割り切れない変換比でも累積誤差は生じない
+ * フレーム境界をまたいだ補間のために直前のフレームの最後のサンプルを保持する
+ * 作業用配列は必要なサイズが増えたときのみ再生成する
+ */
+public class PcmResampleStage extends AbstractPcmStage {
+	private final int mOutputRate;
+	/**
+	 * 作業用配列, 先頭の1フレーム分は直前の入力の最後のフレーム
+	 */
+	@NonNull
+	private float[] mWork = new float[0];
+	/**
+	 * 次の出力サンプルの位置(作業用配列のフレーム位置 x 出力サンプリングレート)
+	 */
+	private long mPhase;
+	private boolean mPrimed;
+
+	/**
+	 * コンストラクタ
+	 * @param outputRate 出力サンプリングレート
+	 * @throws IllegalArgumentException
+	 */
+	public PcmResampleStage(final int outputRate) throws IllegalArgumentException {
+		if (outputRate <= 0) {
+			throw new IllegalArgumentException("wrong sampling rate," + outputRate);
+		}
+		mOutputRate = outputRate;
+	}
+
+	@NonNull
+	@Override
+	protected PcmFormat onPrepare(@NonNull final PcmFormat input) {
+		return input.withSamplingRate(mOutputRate);
+	}
+
+	@Override
+	public void reset() {
+		mPhase = 0;
+		mPrimed = false;
+	}
+
+	@Override
+	public int getMaxOutputBytes(final int inputBytes) {
+		final PcmFormat input = getInputFormat();
+		final long frames = inputBytes / input.bytesPerFrame();
+		final long outFrames = (frames * mOutputRate + input.samplingRate - 1) / input.samplingRate + 1;
+		return (int)Math.max(inputBytes, outFrames * input.bytesPerFrame());
+	}
+
+	@Override
+	public int process(@NonNull final ByteBuffer buffer, final int size) {
+		final PcmFormat input = getInputFormat();
+		final int inRate = input.samplingRate;
+		if (inRate == mOutputRate) {
+			return size;
+		}
+		final int ch = input.channels;
+		final boolean isFloat = input.isFloat();
+		final int bytesPerSample = input.bytesPerSample();
+		final int inFrames = size / input.bytesPerFrame();
+		if (inFrames <= 0) {
+			return 0;
+		}
+		final int required = (inFrames + 1) * ch;
+		if (mWork.length < required) {
+			final float[] work = new float[required];
+			System.arraycopy(mWork, 0, work, 0, Math.min(mWork.length, ch));
+			mWork = work;
+		}
+		final float[] work = mWork;
+		// 入力データを作業用配列の2フレーム目以降へ読み込む
+		final int n = inFrames * ch;
+		if (isFloat) {
+			for (int i = 0; i < n; i++) {
+				work[ch + i] = buffer.getFloat(i << 2);
+			}
+		} else {
+			for (int i = 0; i < n; i++) {
+				work[ch + i] = buffer.getShort(i << 1);
+			}
+		}
+		if (!mPrimed) {
+			// 初回は直前のフレームが無いので先頭フレームで代用する
+			System.arraycopy(work, ch, work, 0, ch);
+			mPrimed = true;
+		}
+		// 線形補間しながら出力する
+		final long end = (long)inFrames * mOutputRate;
+		final float scale = 1.0f / mOutputRate;
+		long pos = mPhase;
+		int dst = 0;
+		while (pos < end) {
+			final int ix = (int)(pos / mOutputRate) * ch;
+			final float frac = (pos % mOutputRate) * scale;
+			for (int c = 0; c < ch; c++) {
+				final float a = work[ix + c];
+				final float v = a + (work[ix + ch + c] - a) * frac;
+				if (isFloat) {
+					buffer.putFloat(dst, v);
+				} else {
+					buffer.putShort(dst, (short)v);
+				}
+				dst += bytesPerSample;
+			}
+			pos += inRate;
+		}
+		mPhase = pos - end;
+		// 最後のフレームを次回の補間用に先頭へ移動
+		System.arraycopy(work, n, work, 0, ch);
+		return dst;
+	}
+}
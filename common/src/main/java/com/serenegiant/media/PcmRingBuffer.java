@@ -0,0 +1,224 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 16ビット整数PCM音声データ用のロックフリーなリングバッファ
+ * 書き込みスレッド1つ・読み込みスレッド1つ(SPSC)での使用を前提とする
+ * 書き込んだ音声データのpresentationTimeUsも保持するので
+ * 次に読み込むフレームのpresentationTimeUsを取得できる
+ * 書き込み時に空き容量が足りないときはあふれた分を破棄する
+ */
+public class PcmRingBuffer {
+	@NonNull
+	private final short[] mBuffer;
+	private final int mMask;
+	private final int mChannels;
+	private final int mSamplingRate;
+	/**
+	 * 書き込み位置(サンプル数), 書き込みスレッドのみが更新する
+	 */
+	@NonNull
+	private final AtomicLong mWriteIx = new AtomicLong();
+	/**
+	 * 読み込み位置(サンプル数), 読み込みスレッドのみが更新する
+	 */
+	@NonNull
+	private final AtomicLong mReadIx = new AtomicLong();
+	/**
+	 * mBaseIx/mBasePtsUsを読み書きするためのシーケンスロック用カウンタ
+	 * 奇数のときは書き込み中
+	 */
+	@NonNull
+	private final AtomicLong mSeq = new AtomicLong();
+	/**
+	 * 最後に書き込んだ音声データの先頭サンプル位置
+	 */
+	private volatile long mBaseIx;
+	/**
+	 * 最後に書き込んだ音声データのpresentationTimeUs
+	 */
+	private volatile long mBasePtsUs = -1;
+	/**
+	 * 空き容量不足で破棄したサンプル数
+	 */
+	private volatile long mDroppedSamples;
+
+	/**
+	 * コンストラクタ
+	 * @param channels 音声チャネル数
+	 * @param samplingRate サンプリングレート
+	 * @param minCapacityFrames 最低限保持できるフレーム数
+	 *                          実際の容量はサンプル数が2のべき乗になるように切り上げる
+	 */
+	public PcmRingBuffer(final int channels, final int samplingRate, final int minCapacityFrames) {
+		if ((channels <= 0) || (samplingRate <= 0) || (minCapacityFrames <= 0)) {
+			throw new IllegalArgumentException();
+		}
+		int capacity = 1;
+		while (capacity < minCapacityFrames * channels) {
+			capacity <<= 1;
+		}
+		mBuffer = new short[capacity];
+		mMask = capacity - 1;
+		mChannels = channels;
+		mSamplingRate = samplingRate;
+	}
+
+	public int getChannels() {
+		return mChannels;
+	}
+
+	public int getSamplingRate() {
+		return mSamplingRate;
+	}
+
+	/**
+	 * 保持できる最大フレーム数
+	 * @return
+	 */
+	public int capacityFrames() {
+		return mBuffer.length / mChannels;
+	}
+
+	/**
+	 * 空き容量不足で破棄したフレーム数
+	 * @return
+	 */
+	public long getDroppedFrames() {
+		return mDroppedSamples / mChannels;
+	}
+
+	/**
+	 * 内容をクリアする
+	 * 書き込み・読み込みスレッドのいずれも動作していないときに呼び出すこと
+	 */
+	public void clear() {
+		mReadIx.set(mWriteIx.get());
+		mSeq.incrementAndGet();
+		mBasePtsUs = -1;
+		mSeq.incrementAndGet();
+		mDroppedSamples = 0;
+	}
+
+//--------------------------------------------------------------------------------
+// 書き込みスレッドから呼び出すメソッド
+	/**
+	 * ネイティブオーダーのByteBufferから16ビット整数PCMデータを書き込む
+	 * 書き込みスレッドからのみ呼び出すこと
+	 * @param src 絶対位置指定で先頭から読み込む
+	 * @param bytes
+	 * @param presentationTimeUs
+	 * @return 書き込んだフレーム数
+	 */
+	public int write(@NonNull final ByteBuffer src, final int bytes, final long presentationTimeUs) {
+		final int samples = (bytes / 2 / mChannels) * mChannels;
+		final long writeIx = mWriteIx.get();
+		final int free = mBuffer.length - (int)(writeIx - mReadIx.get());
+		final int n = Math.min(samples, free - free % mChannels);
+		for (int i = 0; i < n; i++) {
+			mBuffer[(int)((writeIx + i) & mMask)] = src.getShort(i << 1);
+		}
+		if (n < samples) {
+			mDroppedSamples += samples - n;
+		}
+		if (n > 0) {
+			// presentationTimeUsを更新してから書き込み位置を公開する
+			mSeq.incrementAndGet();
+			mBaseIx = writeIx;
+			mBasePtsUs = presentationTimeUs;
+			mSeq.incrementAndGet();
+			mWriteIx.set(writeIx + n);
+		}
+		return n / mChannels;
+	}
+
+//--------------------------------------------------------------------------------
+// 読み込みスレッドから呼び出すメソッド
+	/**
+	 * 読み込み可能なフレーム数を取得する
+	 * @return
+	 */
+	public int available() {
+		return (int)(mWriteIx.get() - mReadIx.get()) / mChannels;
+	}
+
+	/**
+	 * 次に読み込むフレームのpresentationTimeUsを取得する
+	 * まだ何も書き込まれていないときは-1
+	 * @return
+	 */
+	public long readPtsUs() {
+		long seq, baseIx, basePtsUs;
+		do {
+			seq = mSeq.get();
+			baseIx = mBaseIx;
+			basePtsUs = mBasePtsUs;
+		} while (((seq & 1) != 0) || (seq != mSeq.get()));
+		if (basePtsUs < 0) {
+			return -1;
+		}
+		final long frames = (mReadIx.get() - baseIx) / mChannels;
+		return basePtsUs + frames * 1000000L / mSamplingRate;
+	}
+
+	/**
+	 * 読み込み位置から指定したオフセットのサンプル値を取得する
+	 * 読み込み位置は変更しない
+	 * @param offsetSamples 読み込み可能なサンプル数未満であること
+	 * @return
+	 */
+	public short peek(final int offsetSamples) {
+		return mBuffer[(int)((mReadIx.get() + offsetSamples) & mMask)];
+	}
+
+	/**
+	 * 読み込み位置を指定したフレーム数だけ進める
+	 * @param frames
+	 * @return 実際に進めたフレーム数
+	 */
+	public int skip(final int frames) {
+		final int n = Math.max(0, Math.min(frames, available()));
+		mReadIx.addAndGet((long)n * mChannels);
+		return n;
+	}
+
+	/**
+	 * 内部配列を取得する, 一括処理で#peekを呼び出すオーバーヘッドを避けるため
+	 * インデックスは(#readIndex + offset) & #mask()で計算する
+	 * @return
+	 */
+	@NonNull
+	/*package*/ short[] array() {
+		return mBuffer;
+	}
+
+	/*package*/ int mask() {
+		return mMask;
+	}
+
+	/*package*/ long readIndex() {
+		return mReadIx.get();
+	}
+}
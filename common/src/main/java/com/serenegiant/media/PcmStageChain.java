@@ -0,0 +1,101 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 複数のIPcmStageを順に適用するIPcmStage実装
+ */
+public class PcmStageChain extends AbstractPcmStage {
+	@NonNull
+	private final IPcmStage[] mStages;
+
+	/**
+	 * コンストラクタ
+	 * @param stages 適用する順に並べたIPcmStage
+	 */
+	public PcmStageChain(@NonNull final IPcmStage... stages) {
+		mStages = stages.clone();
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param stages 適用する順に並べたIPcmStage
+	 */
+	public PcmStageChain(@NonNull final List<IPcmStage> stages) {
+		mStages = stages.toArray(new IPcmStage[0]);
+	}
+
+	/**
+	 * 保持しているIPcmStageの一覧を取得する
+	 * @return
+	 */
+	@NonNull
+	public List<IPcmStage> getStages() {
+		return new ArrayList<>(Arrays.asList(mStages));
+	}
+
+	@NonNull
+	@Override
+	protected PcmFormat onPrepare(@NonNull final PcmFormat input) {
+		PcmFormat format = input;
+		for (final IPcmStage stage: mStages) {
+			format = stage.prepare(format);
+		}
+		return format;
+	}
+
+	@Override
+	public void reset() {
+		for (final IPcmStage stage: mStages) {
+			stage.reset();
+		}
+	}
+
+	/**
+	 * 途中のステージでサイズが大きくなる場合があるので全ステージ中の最大値を返す
+	 * @param inputBytes
+	 * @return
+	 */
+	@Override
+	public int getMaxOutputBytes(final int inputBytes) {
+		int result = inputBytes;
+		int bytes = inputBytes;
+		for (final IPcmStage stage: mStages) {
+			bytes = stage.getMaxOutputBytes(bytes);
+			result = Math.max(result, bytes);
+		}
+		return result;
+	}
+
+	@Override
+	public int process(@NonNull final ByteBuffer buffer, final int size) {
+		int bytes = size;
+		for (final IPcmStage stage: mStages) {
+			bytes = stage.process(buffer, bytes);
+		}
+		return bytes;
+	}
+}
@@ -26,6 +26,8 @@ import androidx.annotation.Nullable;
 
 /**
  * 音量取得のためのヘルパークラス
+ * 音声データをコピーして専用スレッドで音量を計算するので、
+ * IAudioSampler#setPcmStageへAudioLevelMeterを設定できる場合はそちらを使うこと
  */
 public class SoundCheck {
 
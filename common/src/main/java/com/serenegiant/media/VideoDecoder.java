@@ -63,6 +63,10 @@ public abstract class VideoDecoder extends AbstractDecoder {
 
 //--------------------------------------------------------------------------------
 	private final Surface mOutputSurface;
+	/**
+	 * H.264/AVCかどうか, 非参照フレームの判定に使う
+	 */
+	private volatile boolean mIsAvc;
 
 	/**
 	 * コンストラクタ
@@ -79,6 +83,42 @@ public abstract class VideoDecoder extends AbstractDecoder {
 
 	@Override
 	protected void internalPrepare(final int trackIndex, @NonNull final MediaFormat format) {
+		mIsAvc = MediaCodecUtils.MIME_VIDEO_AVC.equals(format.getString(MediaFormat.KEY_MIME));
+	}
+
+	/**
+	 * H.264/AVCの時はNALユニットヘッダーのnal_ref_idcで非参照フレームかどうかを判定する
+	 * @param buffer
+	 * @param size
+	 * @return
+	 */
+	@Override
+	protected boolean isNonReferenceFrame(@NonNull final ByteBuffer buffer, final int size) {
+		return mIsAvc && isNonReferenceAvc(buffer, size);
+	}
+
+	/**
+	 * H.264/AVCのサンプルが非参照フレームかどうかを判定する
+	 * MediaExtractorはスタートコード(00 00 01)区切りでサンプルを返すので
+	 * 最初のスライス(nal_unit_typeが1-5)のNALユニットヘッダーのnal_ref_idcが0なら非参照フレーム
+	 * バッファのposition/limitは変更しない
+	 * @param buffer サンプルデータ, 先頭から読み込む
+	 * @param size サンプルデータのバイト数
+	 * @return スライスが見つからないときはfalse
+	 */
+	/*package*/ static boolean isNonReferenceAvc(@NonNull final ByteBuffer buffer, final int size) {
+		final int n = Math.min(size, buffer.capacity()) - 3;
+		for (int i = 0; i < n; i++) {
+			if ((buffer.get(i) == 0) && (buffer.get(i + 1) == 0) && (buffer.get(i + 2) == 1)) {
+				final int header = buffer.get(i + 3) & 0xff;
+				final int type = header & 0x1f;
+				if ((type >= 1) && (type <= 5)) {
+					return (header & 0x60) == 0;
+				}
+				i += 2;
+			}
+		}
+		return false;
 	}
 
 	@Override
@@ -139,7 +179,7 @@ public abstract class VideoDecoder extends AbstractDecoder {
 			return new OutputTask(trackIndex) {
 				@Override
 				protected void handleOutput(@NonNull final MediaCodec decoder) {
-					while (isRunning() && !mOutputDone) {
+					while (isRunning() && !mOutputDone && !isFlushRequested()) {
 						final int decoderStatus = decoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
 						if (decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
 							return;
@@ -152,10 +192,12 @@ public abstract class VideoDecoder extends AbstractDecoder {
 							throw new RuntimeException(
 								"unexpected result from video decoder.dequeueOutputBuffer: " + decoderStatus);
 						} else { // decoderStatus >= 0
-							boolean doRender = (mBufferInfo.size > 0);
+							boolean doRender = (mBufferInfo.size > 0)
+								&& !checkSkip(mBufferInfo.presentationTimeUs);
 							if (doRender) {
 								if (!onFrameAvailable(mBufferInfo.presentationTimeUs)) {
-									adjustPresentationTime(mBufferInfo.presentationTimeUs);
+									// 遅れすぎているときは描画せずに破棄する
+									doRender = adjustPresentationTime(mBufferInfo.presentationTimeUs) >= 0;
 								}
 							}
 							decoder.releaseOutputBuffer(decoderStatus, doRender);
@@ -198,9 +240,19 @@ public abstract class VideoDecoder extends AbstractDecoder {
 		@Override
 		protected OutputTask createOutputTask(final int trackIndex) {
 			return new OutputTask(trackIndex) {
+				/**
+				 * MediaCodec#releaseOutputBuffer(int,long)へ描画予定時刻を渡すので
+				 * vsync x 2だけ早めに戻る
+				 * @return
+				 */
+				@Override
+				protected long getRenderAheadNs() {
+					return VSYNC2;
+				}
+
 				@Override
 				protected void handleOutput(@NonNull final MediaCodec decoder) {
-					while (isRunning() && !mOutputDone) {
+					while (isRunning() && !mOutputDone && !isFlushRequested()) {
 						final int decoderStatus = decoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
 						if (decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
 							return;
@@ -213,8 +265,19 @@ public abstract class VideoDecoder extends AbstractDecoder {
 							throw new RuntimeException(
 								"unexpected result from video decoder.dequeueOutputBuffer: " + decoderStatus);
 						} else { // decoderStatus >= 0
-							decoder.releaseOutputBuffer(decoderStatus,						// API>=21
-								adjustPresentationTime(mBufferInfo.presentationTimeUs));
+							if ((mBufferInfo.size <= 0) || checkSkip(mBufferInfo.presentationTimeUs)) {
+								decoder.releaseOutputBuffer(decoderStatus, false);
+							} else if (onFrameAvailable(mBufferInfo.presentationTimeUs)) {
+								decoder.releaseOutputBuffer(decoderStatus, true);
+							} else {
+								final long renderTimeNs = adjustPresentationTime(mBufferInfo.presentationTimeUs);
+								if (renderTimeNs >= 0) {
+									decoder.releaseOutputBuffer(decoderStatus, renderTimeNs);	// API>=21
+								} else {
+									// 遅れすぎているときは描画せずに破棄する
+									decoder.releaseOutputBuffer(decoderStatus, false);
+								}
+							}
 							if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
 								if (DEBUG) Log.d(TAG, "video:output EOS");
 								synchronized (mSync) {
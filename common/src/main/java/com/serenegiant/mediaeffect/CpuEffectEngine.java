@@ -0,0 +1,331 @@
+package com.serenegiant.mediaeffect;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+import java.nio.IntBuffer;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * ICpuEffectを複数のスレッドで並列に適用するためのヘルパークラス
+ * 映像を一定の行数毎のタイルに分割して、ワーカースレッドと呼び出し元スレッドが
+ * 未処理のタイルを1つずつ取り合いながら処理する(fork)、全てのタイルの処理が終わるまで
+ * 呼び出し元スレッドで待機する(join)
+ * タイルを先取りする方式なのでタイル毎の負荷に偏りがあってもスレッド間で自動的に均される
+ * java.util.concurrent.ForkJoinPoolはAPI21以降なので固定サイズのスレッドプールで実装している
+ * 近傍の画素を参照する映像効果を連続して適用するときは映像効果毎にjoinする
+ */
+public class CpuEffectEngine {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = CpuEffectEngine.class.getSimpleName();
+
+	/**
+	 * デフォルトのタイルの行数
+	 */
+	public static final int DEFAULT_TILE_ROWS = 16;
+
+	@Nullable
+	private ExecutorService mExecutor;
+	private final int mParallelism;
+	private final int mTileRows;
+	/**
+	 * 映像効果を連続して適用するときの作業用バッファ
+	 */
+	@Nullable
+	private int[] mWork;
+
+	/**
+	 * コンストラクタ
+	 * CPUのコア数と同じ数のスレッドで処理する
+	 */
+	public CpuEffectEngine() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_TILE_ROWS);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param parallelism 同時に処理するスレッド数(呼び出し元スレッドを含む), 1なら呼び出し元スレッドだけで処理する
+	 * @param tileRows タイルの行数
+	 * @throws IllegalArgumentException
+	 */
+	public CpuEffectEngine(final int parallelism, final int tileRows)
+		throws IllegalArgumentException {
+
+		if ((parallelism < 1) || (tileRows < 1)) {
+			throw new IllegalArgumentException("parallelism and tileRows should be positive");
+		}
+		mParallelism = parallelism;
+		mTileRows = tileRows;
+		mExecutor = parallelism > 1
+			? Executors.newFixedThreadPool(parallelism - 1, new WorkerThreadFactory())
+			: null;
+	}
+
+	/**
+	 * 関連するリソースを破棄する
+	 * 処理中のタイルがあればその処理が終わった後にワーカースレッドが終了する
+	 */
+	public synchronized void release() {
+		if (mExecutor != null) {
+			mExecutor.shutdown();
+			mExecutor = null;
+		}
+		mWork = null;
+	}
+
+	public int getParallelism() {
+		return mParallelism;
+	}
+
+	public int getTileRows() {
+		return mTileRows;
+	}
+
+	/**
+	 * 映像効果を適用する
+	 * 映像効果が無効なときは入力映像をそのまま出力映像へコピーする
+	 * @param effect
+	 * @param src 入力映像, ARGB_8888, width x height
+	 * @param dst 出力映像, ARGB_8888, width x height, srcと同じ配列は不可
+	 * @param width
+	 * @param height
+	 * @throws IllegalArgumentException
+	 */
+	public void apply(@NonNull final ICpuEffect effect,
+		@NonNull final int[] src, @NonNull final int[] dst,
+		final int width, final int height) throws IllegalArgumentException {
+
+		checkBuffer(src, dst, width, height);
+		if (effect.enabled()) {
+			execute(effect, src, dst, width, height);
+		} else {
+			System.arraycopy(src, 0, dst, 0, width * height);
+		}
+	}
+
+	/**
+	 * 複数の映像効果を順に適用する
+	 * 無効な映像効果はスキップする
+	 * @param effects
+	 * @param src 入力映像, ARGB_8888, width x height, 内容は変更しない
+	 * @param dst 出力映像, ARGB_8888, width x height, srcと同じ配列は不可
+	 * @param width
+	 * @param height
+	 * @throws IllegalArgumentException
+	 */
+	public synchronized void apply(@NonNull final List<? extends ICpuEffect> effects,
+		@NonNull final int[] src, @NonNull final int[] dst,
+		final int width, final int height) throws IllegalArgumentException {
+
+		checkBuffer(src, dst, width, height);
+		int enabled = 0;
+		for (final ICpuEffect effect: effects) {
+			if (effect.enabled()) {
+				enabled++;
+			}
+		}
+		if (enabled == 0) {
+			System.arraycopy(src, 0, dst, 0, width * height);
+			return;
+		}
+		final int n = width * height;
+		if ((enabled > 1) && ((mWork == null) || (mWork.length < n))) {
+			mWork = new int[n];
+		}
+		// 最後の映像効果がdstへ書き込むように作業用バッファとdstを交互に使う
+		int[] in = src;
+		int[] out = (enabled % 2) == 0 ? mWork : dst;
+		for (final ICpuEffect effect: effects) {
+			if (effect.enabled()) {
+				//noinspection ConstantConditions
+				execute(effect, in, out, width, height);
+				in = out;
+				out = (out == dst) ? mWork : dst;
+			}
+		}
+	}
+
+	/**
+	 * 映像効果を適用する
+	 * IntBufferがint配列を持っていればコピーせずに処理する
+	 * @param effect
+	 * @param src 入力映像, position/limitは変更しない
+	 * @param dst 出力映像, position/limitは変更しない
+	 * @param width
+	 * @param height
+	 * @throws IllegalArgumentException
+	 */
+	public void apply(@NonNull final ICpuEffect effect,
+		@NonNull final IntBuffer src, @NonNull final IntBuffer dst,
+		final int width, final int height) throws IllegalArgumentException {
+
+		final int n = width * height;
+		if ((src.capacity() < n) || (dst.capacity() < n)) {
+			throw new IllegalArgumentException("buffer is too small");
+		}
+		final boolean srcArray = src.hasArray() && (src.arrayOffset() == 0);
+		final boolean dstArray = dst.hasArray() && (dst.arrayOffset() == 0) && !dst.isReadOnly();
+		final int[] s;
+		if (srcArray) {
+			s = src.array();
+		} else {
+			s = new int[n];
+			final IntBuffer dup = src.duplicate();
+			dup.clear();
+			dup.get(s, 0, n);
+		}
+		final int[] d = dstArray ? dst.array() : new int[n];
+		apply(effect, s, d, width, height);
+		if (!dstArray) {
+			final IntBuffer dup = dst.duplicate();
+			dup.clear();
+			dup.put(d, 0, n);
+		}
+	}
+
+	/**
+	 * タイルに分割して並列に処理する
+	 * @param effect
+	 * @param src
+	 * @param dst
+	 * @param width
+	 * @param height
+	 */
+	private void execute(@NonNull final ICpuEffect effect,
+		@NonNull final int[] src, @NonNull final int[] dst,
+		final int width, final int height) {
+
+		final int numTiles = (height + mTileRows - 1) / mTileRows;
+		final ExecutorService executor;
+		synchronized (this) {
+			executor = mExecutor;
+		}
+		final int numWorkers = executor != null ? Math.min(mParallelism, numTiles) - 1 : 0;
+		if (numWorkers <= 0) {
+			effect.apply(src, dst, width, height, 0, height);
+			return;
+		}
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		final CountDownLatch latch = new CountDownLatch(numWorkers);
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					processTiles(effect, src, dst, width, height, numTiles, next, error);
+				} finally {
+					latch.countDown();
+				}
+			}
+		};
+		int submitted = 0;
+		try {
+			for (; submitted < numWorkers; submitted++) {
+				executor.execute(task);
+			}
+		} catch (final RejectedExecutionException e) {
+			// 破棄された後は投入できた分と呼び出し元スレッドだけで処理する
+			for (int i = submitted; i < numWorkers; i++) {
+				latch.countDown();
+			}
+		}
+		// 呼び出し元スレッドも未処理のタイルを処理する
+		processTiles(effect, src, dst, width, height, numTiles, next, error);
+		boolean interrupted = false;
+		for ( ; ; ) {
+			try {
+				latch.await();
+				break;
+			} catch (final InterruptedException e) {
+				// 処理途中の出力映像を返さないように全てのタイルの処理が終わるまで待つ
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		final Throwable t = error.get();
+		if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		} else if (t instanceof Error) {
+			throw (Error) t;
+		} else if (t != null) {
+			throw new RuntimeException(t);
+		}
+	}
+
+	/**
+	 * 未処理のタイルが無くなるまでタイルを取り出して処理する
+	 * 他のスレッドで例外が発生したときは残りのタイルを処理しない
+	 */
+	private void processTiles(@NonNull final ICpuEffect effect,
+		@NonNull final int[] src, @NonNull final int[] dst,
+		final int width, final int height, final int numTiles,
+		@NonNull final AtomicInteger next, @NonNull final AtomicReference<Throwable> error) {
+
+		try {
+			for (int tile = next.getAndIncrement();
+				(tile < numTiles) && (error.get() == null);
+				tile = next.getAndIncrement()) {
+
+				final int startY = tile * mTileRows;
+				effect.apply(src, dst, width, height, startY, Math.min(startY + mTileRows, height));
+			}
+		} catch (final Throwable t) {
+			error.compareAndSet(null, t);
+		}
+	}
+
+	private static void checkBuffer(@NonNull final int[] src, @NonNull final int[] dst,
+		final int width, final int height) throws IllegalArgumentException {
+
+		if ((width <= 0) || (height <= 0)) {
+			throw new IllegalArgumentException("wrong size," + width + "x" + height);
+		}
+		if ((src.length < width * height) || (dst.length < width * height)) {
+			throw new IllegalArgumentException("buffer is too small");
+		}
+		if (src == dst) {
+			throw new IllegalArgumentException("src and dst should be different");
+		}
+	}
+
+	/**
+	 * ワーカースレッド生成用のThreadFactory
+	 * アプリの終了を妨げないようにデーモンスレッドにする
+	 */
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger mCount = new AtomicInteger();
+
+		@Override
+		public Thread newThread(@NonNull final Runnable r) {
+			final Thread t = new Thread(r, TAG + "-" + mCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
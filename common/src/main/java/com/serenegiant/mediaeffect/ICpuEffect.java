@@ -0,0 +1,46 @@
+package com.serenegiant.mediaeffect;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+import androidx.annotation.NonNull;
+
+/**
+ * EGL/GLコンテキスト無しでCPU上で適用する映像効果のインターフェース
+ * 映像はARGB_8888(Bitmap#getPixelsと同じ並び)のint配列で受け渡す
+ * CpuEffectEngineが映像を複数の行ブロックに分割して複数のスレッドから同時に
+ * #applyを呼び出すので、#apply内で状態を書き換えないこと
+ */
+public interface ICpuEffect {
+	/**
+	 * 指定した範囲の行に映像効果を適用する
+	 * @param src 入力映像, width x height
+	 * @param dst 出力映像, width x height, srcと同じ配列は不可
+	 * @param width
+	 * @param height
+	 * @param startY 処理する最初の行(この行を含む)
+	 * @param endY 処理する最後の行(この行を含まない)
+	 */
+	public void apply(@NonNull final int[] src, @NonNull final int[] dst,
+		final int width, final int height, final int startY, final int endY);
+
+	/**
+	 * 映像効果が有効かどうか
+	 * @return falseならCpuEffectEngineは何もせずに入力映像をそのまま出力する
+	 */
+	public boolean enabled();
+}
@@ -0,0 +1,50 @@
+package com.serenegiant.mediaeffect;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 近傍の画素を参照せずに画素毎に独立して色を変換する映像効果
+ * MediaEffectCompilerで連続するIPointwiseEffectを1つのフラグメントシェーダーへまとめて
+ * 1回の描画で適用できるようにするためのインターフェース
+ */
+public interface IPointwiseEffect extends IEffect {
+	/**
+	 * 色を変換するGLSLの文を取得
+	 * highp vec4 colorを読み書きする、パラメータ(uniform float)は%1$sで参照する
+	 * 例: "color.rgb += vec3(%1$s);\n"
+	 * @return
+	 */
+	@NonNull
+	public String getPointwiseSnippet();
+
+	/**
+	 * #getPointwiseSnippetで使う関数等の定義を取得
+	 * @return 不要ならnull
+	 */
+	@Nullable
+	public String getPointwiseFunctions();
+
+	/**
+	 * #getPointwiseSnippetの%1$sへ渡すパラメータの現在値を取得
+	 * @return
+	 */
+	public float getPointwiseParam();
+}
@@ -58,6 +58,12 @@ public class MediaEffectColorAdjustDrawer
 		}
 	}
 
+	public float getColorAdjust() {
+		synchronized (mSync) {
+			return mColorAdjust;
+		}
+	}
+
 	@Override
 	protected void preDraw(@NonNull final int[] tex_ids,
 		final float[] tex_matrix, final int offset) {
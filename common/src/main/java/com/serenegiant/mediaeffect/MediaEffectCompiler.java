@@ -0,0 +1,84 @@
+package com.serenegiant.mediaeffect;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+
+/**
+ * IEffectの一覧のうち連続するIPointwiseEffectを1つのMediaEffectGLFusedへまとめるヘルパークラス
+ * 映像効果毎の全画面描画とオフスクリーンの入れ替えを1回にまとめる
+ * 近傍の画素を参照する映像効果(カーネル・膨張・収縮等)はそのまま別々に適用する
+ * GLに依存しないのでローカルユニットテストでテストできる
+ */
+public class MediaEffectCompiler {
+	private MediaEffectCompiler() {
+		// インスタンス化をエラーにするためにデフォルトコンストラクタをprivateにする
+	}
+
+	/**
+	 * 連続するIPointwiseEffectをMediaEffectGLFusedへまとめたIEffectの一覧を返す
+	 * 1つだけのIPointwiseEffectはそのまま返す
+	 * まとめたIPointwiseEffectはMediaEffectGLFusedの破棄時に一緒に破棄される
+	 * @param effects
+	 * @return
+	 */
+	@NonNull
+	public static List<IEffect> compile(@NonNull final List<? extends IEffect> effects) {
+		return compile(false, effects);
+	}
+
+	/**
+	 * 連続するIPointwiseEffectをMediaEffectGLFusedへまとめたIEffectの一覧を返す
+	 * 1つだけのIPointwiseEffectはそのまま返す
+	 * まとめたIPointwiseEffectはMediaEffectGLFusedの破棄時に一緒に破棄される
+	 * @param isOES
+	 * @param effects
+	 * @return
+	 */
+	@NonNull
+	public static List<IEffect> compile(final boolean isOES,
+		@NonNull final List<? extends IEffect> effects) {
+
+		final List<IEffect> result = new ArrayList<>(effects.size());
+		final List<IPointwiseEffect> run = new ArrayList<>();
+		for (final IEffect effect: effects) {
+			if (effect instanceof IPointwiseEffect) {
+				run.add((IPointwiseEffect) effect);
+			} else {
+				flush(isOES, run, result);
+				result.add(effect);
+			}
+		}
+		flush(isOES, run, result);
+		return result;
+	}
+
+	private static void flush(final boolean isOES,
+		@NonNull final List<IPointwiseEffect> run, @NonNull final List<IEffect> result) {
+
+		if (run.size() > 1) {
+			result.add(new MediaEffectGLFused(isOES, run));
+		} else if (run.size() == 1) {
+			result.add(run.get(0));
+		}
+		run.clear();
+	}
+}
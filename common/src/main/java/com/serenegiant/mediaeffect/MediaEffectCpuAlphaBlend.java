@@ -0,0 +1,90 @@
+package com.serenegiant.mediaeffect;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 2つの映像をアルファブレンドする映像効果のCPU実装
+ * MediaEffectGLAlphaBlendと同じく入力映像(sTexture)へ
+ * 重ねる映像(sTexture2)をそのアルファ値 x mixRateの割合で合成し、アルファ値は入力映像の値にする
+ */
+public class MediaEffectCpuAlphaBlend extends MediaEffectCpuBase {
+	private static final boolean DEBUG = false;
+	private static final String TAG = "MediaEffectCpuAlphaBlend";
+
+	private float mMixRate;
+	@Nullable
+	private int[] mOverlay;
+
+	public MediaEffectCpuAlphaBlend() {
+		this(0.5f);
+	}
+
+	public MediaEffectCpuAlphaBlend(final float mixRate) {
+		setParameter(mixRate);
+	}
+
+	/**
+	 * 合成比率をセット
+	 * 映像効果を適用中に呼び出さないこと
+	 * @param mixRate
+	 * @return
+	 */
+	public MediaEffectCpuAlphaBlend setParameter(final float mixRate) {
+		mMixRate = mixRate;
+		return this;
+	}
+
+	/**
+	 * 重ねる映像をセット
+	 * 映像効果を適用中に呼び出さないこと
+	 * @param overlay ARGB_8888, 入力映像と同じサイズ, nullなら入力映像をそのまま出力する
+	 */
+	public MediaEffectCpuAlphaBlend setOverlay(@Nullable final int[] overlay) {
+		mOverlay = overlay;
+		return this;
+	}
+
+	@Override
+	public void apply(@NonNull final int[] src, @NonNull final int[] dst,
+		final int width, final int height, final int startY, final int endY) {
+
+		final int[] overlay = mOverlay;
+		final int start = startY * width;
+		final int end = endY * width;
+		if ((overlay == null) || (overlay.length < width * height)) {
+			System.arraycopy(src, start, dst, start, end - start);
+			return;
+		}
+		final float mixRate = mMixRate;
+		for (int i = start; i < end; i++) {
+			final int c1 = src[i];
+			final int c2 = overlay[i];
+			final float rate = (c2 >>> 24) * INV_255 * mixRate;
+			final float r1 = ((c1 >> 16) & 0xff) * INV_255;
+			final float g1 = ((c1 >> 8) & 0xff) * INV_255;
+			final float b1 = (c1 & 0xff) * INV_255;
+			dst[i] = (c1 & 0xff000000)
+				| (toByte(r1 + (((c2 >> 16) & 0xff) * INV_255 - r1) * rate) << 16)
+				| (toByte(g1 + (((c2 >> 8) & 0xff) * INV_255 - g1) * rate) << 8)
+				| toByte(b1 + ((c2 & 0xff) * INV_255 - b1) * rate);
+		}
+	}
+}
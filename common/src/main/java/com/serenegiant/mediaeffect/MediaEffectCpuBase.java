@@ -0,0 +1,91 @@
+package com.serenegiant.mediaeffect;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+import androidx.annotation.NonNull;
+
+/**
+ * ICpuEffect実装の基本クラス
+ * 画素の取り出し・組み立て等の共通処理を提供する
+ * GLの映像効果と同じ結果になるように、色は0-255を0.0-1.0へ正規化した
+ * float値で計算し、範囲外の座標はGL_CLAMP_TO_EDGEと同様に端の画素を参照する
+ */
+public abstract class MediaEffectCpuBase implements ICpuEffect {
+	private static final boolean DEBUG = false;
+	private static final String TAG = "MediaEffectCpuBase";
+
+	protected static final float INV_255 = 1.0f / 255.0f;
+
+	private volatile boolean mEnabled = true;
+
+	@Override
+	public boolean enabled() {
+		return mEnabled;
+	}
+
+	public MediaEffectCpuBase setEnable(final boolean enable) {
+		mEnabled = enable;
+		return this;
+	}
+
+	/**
+	 * 0.0-1.0の値を0-255へ変換する, 範囲外の値は切り詰める
+	 * @param v
+	 * @return
+	 */
+	protected static int toByte(final float v) {
+		if (v <= 0.0f) {
+			return 0;
+		} else if (v >= 1.0f) {
+			return 255;
+		} else {
+			return (int)(v * 255.0f + 0.5f);
+		}
+	}
+
+	/**
+	 * 0.0-1.0のRGBAからARGBの画素値を組み立てる
+	 * @param r
+	 * @param g
+	 * @param b
+	 * @param a
+	 * @return
+	 */
+	protected static int argb(final float r, final float g, final float b, final float a) {
+		return (toByte(a) << 24) | (toByte(r) << 16) | (toByte(g) << 8) | toByte(b);
+	}
+
+	protected static int clamp(final int v, final int size) {
+		return v < 0 ? 0 : (v >= size ? size - 1 : v);
+	}
+
+	/**
+	 * 端の画素を繰り返して指定した位置の画素を取得する
+	 * @param src
+	 * @param width
+	 * @param height
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	protected static int pixel(@NonNull final int[] src,
+		final int width, final int height, final int x, final int y) {
+
+		return src[clamp(y, height) * width + clamp(x, width)];
+	}
+}
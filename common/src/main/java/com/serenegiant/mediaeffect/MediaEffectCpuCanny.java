@@ -0,0 +1,103 @@
+package com.serenegiant.mediaeffect;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+import androidx.annotation.NonNull;
+
+/**
+ * Cannyエッジ検出の非極大値抑制とヒステリシス処理のCPU実装
+ * MediaEffectGLCannyと同じく入力映像の赤成分を勾配の大きさ、
+ * 緑・青成分を勾配の方向((方向 + 1) / 2)として扱う
+ * 勾配方向の隣接画素はGL_LINEARと同様にバイリニア補間して取得する
+ * MediaEffectGLCannyと同じくしきい値は固定値でsetParameterの値は使っていない
+ */
+public class MediaEffectCpuCanny extends MediaEffectCpuBase {
+	private static final boolean DEBUG = false;
+	private static final String TAG = "MediaEffectCpuCanny";
+
+	private static final float LOWER_THRESHOLD = 0.4f;
+	private static final float UPPER_THRESHOLD = 0.8f;
+
+	private float mThreshold;
+
+	public MediaEffectCpuCanny() {
+		this(0.0f);
+	}
+
+	public MediaEffectCpuCanny(final float threshold) {
+		setParameter(threshold);
+	}
+
+	public MediaEffectCpuCanny setParameter(final float threshold) {
+		mThreshold = threshold;
+		return this;
+	}
+
+	@Override
+	public void apply(@NonNull final int[] src, @NonNull final int[] dst,
+		final int width, final int height, final int startY, final int endY) {
+
+		for (int y = startY; y < endY; y++) {
+			for (int x = 0; x < width; x++) {
+				final int c = src[y * width + x];
+				final float mag = ((c >> 16) & 0xff) * INV_255;
+				final float dx = ((c >> 8) & 0xff) * INV_255 * 2.0f - 1.0f;
+				final float dy = (c & 0xff) * INV_255 * 2.0f - 1.0f;
+				final float first = sampleRed(src, width, height, x + dx, y + dy);
+				final float second = sampleRed(src, width, height, x - dx, y - dy);
+				float multiplier = (mag >= first) && (mag >= second) ? 1.0f : 0.0f;
+				multiplier *= smoothstep(LOWER_THRESHOLD, UPPER_THRESHOLD, mag);
+				final int v = toByte(multiplier);
+				dst[y * width + x] = 0xff000000 | (v << 16) | (v << 8) | v;
+			}
+		}
+	}
+
+	/**
+	 * 指定した位置の赤成分をバイリニア補間して取得する
+	 * @param src
+	 * @param width
+	 * @param height
+	 * @param x
+	 * @param y
+	 * @return 0.0-1.0
+	 */
+	private static float sampleRed(@NonNull final int[] src,
+		final int width, final int height, final float x, final float y) {
+
+		final int x0 = (int)Math.floor(x);
+		final int y0 = (int)Math.floor(y);
+		final float fx = x - x0;
+		final float fy = y - y0;
+		final float c00 = (pixel(src, width, height, x0, y0) >> 16) & 0xff;
+		final float c10 = (pixel(src, width, height, x0 + 1, y0) >> 16) & 0xff;
+		final float c01 = (pixel(src, width, height, x0, y0 + 1) >> 16) & 0xff;
+		final float c11 = (pixel(src, width, height, x0 + 1, y0 + 1) >> 16) & 0xff;
+		final float top = c00 + (c10 - c00) * fx;
+		final float bottom = c01 + (c11 - c01) * fx;
+		return (top + (bottom - top) * fy) * INV_255;
+	}
+
+	/**
+	 * GLSLのsmoothstepと同じ
+	 */
+	private static float smoothstep(final float edge0, final float edge1, final float x) {
+		final float t = Math.max(0.0f, Math.min(1.0f, (x - edge0) / (edge1 - edge0)));
+		return t * t * (3.0f - 2.0f * t);
+	}
+}
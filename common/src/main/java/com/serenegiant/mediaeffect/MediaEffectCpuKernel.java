@@ -0,0 +1,94 @@
+package com.serenegiant.mediaeffect;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+import androidx.annotation.NonNull;
+
+/**
+ * 3x3のカーネル関数(畳み込み)を適用する映像効果のCPU実装
+ * MediaEffectGLKernel/MediaEffectKernel3x3Drawerと同じ計算をする
+ * カーネル関数はMediaEffectKernel3x3Drawer#KERNEL_XXXと同じ並び(左上から行毎)で指定する
+ * GLと同様にアルファ値にもカーネル関数とcolorAdjustを適用する
+ */
+public class MediaEffectCpuKernel extends MediaEffectCpuBase {
+	private static final boolean DEBUG = false;
+	private static final String TAG = "MediaEffectCpuKernel";
+
+	public static final int KERNEL_SIZE = 9;
+
+	private final float[] mKernel = new float[KERNEL_SIZE];
+	private float mColorAdjust;
+
+	/**
+	 * コンストラクタ
+	 * @param kernel
+	 * @param colorAdjust
+	 * @throws IllegalArgumentException
+	 */
+	public MediaEffectCpuKernel(@NonNull final float[] kernel, final float colorAdjust)
+		throws IllegalArgumentException {
+
+		setParameter(kernel, colorAdjust);
+	}
+
+	/**
+	 * カーネル関数をセット
+	 * 映像効果を適用中に呼び出さないこと
+	 * @param kernel
+	 * @param colorAdjust
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	public MediaEffectCpuKernel setParameter(@NonNull final float[] kernel, final float colorAdjust)
+		throws IllegalArgumentException {
+
+		if (kernel.length < KERNEL_SIZE) {
+			throw new IllegalArgumentException("Kernel size is " + kernel.length + " vs. " + KERNEL_SIZE);
+		}
+		System.arraycopy(kernel, 0, mKernel, 0, KERNEL_SIZE);
+		mColorAdjust = colorAdjust;
+		return this;
+	}
+
+	@Override
+	public void apply(@NonNull final int[] src, @NonNull final int[] dst,
+		final int width, final int height, final int startY, final int endY) {
+
+		final float[] k = mKernel;
+		final float adj = mColorAdjust;
+		for (int y = startY; y < endY; y++) {
+			for (int x = 0; x < width; x++) {
+				float r = 0, g = 0, b = 0, a = 0;
+				for (int j = 0; j < 3; j++) {
+					for (int i = 0; i < 3; i++) {
+						final float w = k[j * 3 + i];
+						if (w != 0.0f) {
+							final int c = pixel(src, width, height, x + i - 1, y + j - 1);
+							a += (c >>> 24) * w;
+							r += ((c >> 16) & 0xff) * w;
+							g += ((c >> 8) & 0xff) * w;
+							b += (c & 0xff) * w;
+						}
+					}
+				}
+				dst[y * width + x] = argb(
+					r * INV_255 + adj, g * INV_255 + adj, b * INV_255 + adj, a * INV_255 + adj);
+			}
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package com.serenegiant.mediaeffect;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+import androidx.annotation.NonNull;
+
+/**
+ * Dilation(膨張)/Erosion(収縮)フィルタのCPU実装
+ * MediaEffectGLDilation/MediaEffectGLErosionと同じく
+ * 中心からのマンハッタン距離がradius以内の菱形の近傍で
+ * 色成分毎の最大値/最小値を求めてアルファ値は1.0にする
+ */
+public class MediaEffectCpuMorphology extends MediaEffectCpuBase {
+	private static final boolean DEBUG = false;
+	private static final String TAG = "MediaEffectCpuMorphology";
+
+	/**
+	 * GLの実装と同じく半径は最大4
+	 */
+	public static final int MAX_RADIUS = 4;
+
+	private final boolean mDilation;
+	private final int mRadius;
+
+	/**
+	 * コンストラクタ
+	 * @param mode SeparableKernel.MODE_DILATIONまたはSeparableKernel.MODE_EROSION
+	 * @param radius 1未満なら1, MAX_RADIUSより大きければMAX_RADIUSとして扱う
+	 * @throws IllegalArgumentException
+	 */
+	public MediaEffectCpuMorphology(@SeparableKernel.Mode final int mode, final int radius)
+		throws IllegalArgumentException {
+
+		if ((mode != SeparableKernel.MODE_DILATION) && (mode != SeparableKernel.MODE_EROSION)) {
+			throw new IllegalArgumentException("Unsupported mode," + mode);
+		}
+		mDilation = mode == SeparableKernel.MODE_DILATION;
+		mRadius = Math.max(1, Math.min(radius, MAX_RADIUS));
+	}
+
+	public int getRadius() {
+		return mRadius;
+	}
+
+	@Override
+	public void apply(@NonNull final int[] src, @NonNull final int[] dst,
+		final int width, final int height, final int startY, final int endY) {
+
+		final int radius = mRadius;
+		for (int y = startY; y < endY; y++) {
+			for (int x = 0; x < width; x++) {
+				int r = mDilation ? 0 : 255;
+				int g = r, b = r;
+				for (int j = -radius; j <= radius; j++) {
+					final int rx = radius - Math.abs(j);
+					for (int i = -rx; i <= rx; i++) {
+						final int c = pixel(src, width, height, x + i, y + j);
+						if (mDilation) {
+							r = Math.max(r, (c >> 16) & 0xff);
+							g = Math.max(g, (c >> 8) & 0xff);
+							b = Math.max(b, c & 0xff);
+						} else {
+							r = Math.min(r, (c >> 16) & 0xff);
+							g = Math.min(g, (c >> 8) & 0xff);
+							b = Math.min(b, c & 0xff);
+						}
+					}
+				}
+				dst[y * width + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+			}
+		}
+	}
+}
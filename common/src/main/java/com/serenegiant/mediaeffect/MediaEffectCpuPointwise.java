@@ -0,0 +1,258 @@
+package com.serenegiant.mediaeffect;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 画素毎に独立して色を変換する映像効果のCPU実装
+ * 明るさ(MediaEffectGLBrightness)、露出(MediaEffectGLExposure)、
+ * 彩度(MediaEffectGLSaturate)、ポスタライズ(MediaEffectGLPosterize)と同じ計算をする
+ * パラメータはIPointwiseEffect#getPointwiseParamと同じ値(シェーダーへ渡すuniform変数の値)で保持するので
+ * #fromでGLの映像効果と同じ設定のCPU実装を生成できる
+ * 明るさ・露出・ポスタライズは色成分毎に独立しているので256要素の変換テーブルを使う
+ */
+public class MediaEffectCpuPointwise extends MediaEffectCpuBase {
+	private static final boolean DEBUG = false;
+	private static final String TAG = "MediaEffectCpuPointwise";
+
+	public static final int TYPE_BRIGHTNESS = 0;
+	public static final int TYPE_EXPOSURE = 1;
+	public static final int TYPE_SATURATE = 2;
+	public static final int TYPE_POSTERIZE = 3;
+
+	@IntDef({
+		TYPE_BRIGHTNESS,
+		TYPE_EXPOSURE,
+		TYPE_SATURATE,
+		TYPE_POSTERIZE,
+	})
+	@Retention(RetentionPolicy.SOURCE)
+	public @interface Type {}
+
+	/**
+	 * ShaderConst#FUNC_GET_INTENSITYと同じ輝度の係数
+	 */
+	private static final float LUMINANCE_R = 0.2125f;
+	private static final float LUMINANCE_G = 0.7154f;
+	private static final float LUMINANCE_B = 0.0721f;
+
+	/**
+	 * 明るさ調整
+	 * MediaEffectGLBrightness#setParameterと同じ
+	 * @param brightness
+	 * @return
+	 */
+	@NonNull
+	public static MediaEffectCpuPointwise brightness(final float brightness) {
+		final MediaEffectCpuPointwise result
+			= new MediaEffectCpuPointwise(TYPE_BRIGHTNESS, brightness);
+		result.setEnable(brightness != 0.0f);
+		return result;
+	}
+
+	/**
+	 * 露出調整
+	 * MediaEffectGLExposure#setParameterと同じ
+	 * @param exposure
+	 * @return
+	 */
+	@NonNull
+	public static MediaEffectCpuPointwise exposure(final float exposure) {
+		final MediaEffectCpuPointwise result
+			= new MediaEffectCpuPointwise(TYPE_EXPOSURE, exposure);
+		result.setEnable(exposure != 0.0f);
+		return result;
+	}
+
+	/**
+	 * 彩度調整
+	 * MediaEffectGLSaturate#setParameterと同じ
+	 * @param saturation -1.0fならグレースケール, 0.0fなら変化なし
+	 * @return
+	 */
+	@NonNull
+	public static MediaEffectCpuPointwise saturate(final float saturation) {
+		return new MediaEffectCpuPointwise(TYPE_SATURATE, saturation + 1.0f);
+	}
+
+	/**
+	 * ポスタライズ
+	 * MediaEffectGLPosterize#setParameterと同じ
+	 * @param posterize 階調数
+	 * @return
+	 */
+	@NonNull
+	public static MediaEffectCpuPointwise posterize(final float posterize) {
+		return new MediaEffectCpuPointwise(TYPE_POSTERIZE, posterize);
+	}
+
+	/**
+	 * GLの映像効果と同じ設定のCPU実装を生成する
+	 * @param effect
+	 * @return 対応していない映像効果ならnull
+	 */
+	@Nullable
+	public static MediaEffectCpuPointwise from(@NonNull final IPointwiseEffect effect) {
+		final MediaEffectCpuPointwise result
+			= create(effect.getPointwiseSnippet(), effect.getPointwiseParam());
+		if (result != null) {
+			result.setEnable(effect.enabled());
+		}
+		return result;
+	}
+
+	/**
+	 * IPointwiseEffect#getPointwiseSnippetとIPointwiseEffect#getPointwiseParamの値から生成する
+	 * @param snippet
+	 * @param param
+	 * @return 対応していない映像効果ならnull
+	 */
+	@Nullable
+	public static MediaEffectCpuPointwise create(@NonNull final String snippet, final float param) {
+		switch (snippet) {
+		case MediaEffectGLBrightness.POINTWISE_SNIPPET:
+			return new MediaEffectCpuPointwise(TYPE_BRIGHTNESS, param);
+		case MediaEffectGLExposure.POINTWISE_SNIPPET:
+			return new MediaEffectCpuPointwise(TYPE_EXPOSURE, param);
+		case MediaEffectGLSaturate.POINTWISE_SNIPPET:
+			return new MediaEffectCpuPointwise(TYPE_SATURATE, param);
+		case MediaEffectGLPosterize.POINTWISE_SNIPPET:
+			return new MediaEffectCpuPointwise(TYPE_POSTERIZE, param);
+		default:
+			return null;
+		}
+	}
+
+	@Type
+	private final int mType;
+	private volatile float mParam;
+	/**
+	 * 色成分毎の変換テーブル, 彩度調整のときはnull
+	 */
+	@Nullable
+	private volatile int[] mTable;
+
+	/**
+	 * コンストラクタ
+	 * @param type
+	 * @param param シェーダーへ渡すuniform変数の値(IPointwiseEffect#getPointwiseParamと同じ)
+	 * @throws IllegalArgumentException
+	 */
+	public MediaEffectCpuPointwise(@Type final int type, final float param)
+		throws IllegalArgumentException {
+
+		switch (type) {
+		case TYPE_BRIGHTNESS:
+		case TYPE_EXPOSURE:
+		case TYPE_SATURATE:
+		case TYPE_POSTERIZE:
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown type," + type);
+		}
+		mType = type;
+		setParam(param);
+	}
+
+	@Type
+	public int getType() {
+		return mType;
+	}
+
+	public float getParam() {
+		return mParam;
+	}
+
+	/**
+	 * シェーダーへ渡すuniform変数の値と同じ値でパラメータをセットする
+	 * 映像効果を適用中に呼び出さないこと
+	 * @param param
+	 */
+	public void setParam(final float param) {
+		mParam = param;
+		if (mType != TYPE_SATURATE) {
+			final int[] table = new int[256];
+			for (int i = 0; i < 256; i++) {
+				table[i] = toByte(convert(mType, param, i * INV_255));
+			}
+			mTable = table;
+		} else {
+			mTable = null;
+		}
+	}
+
+	@Override
+	public void apply(@NonNull final int[] src, @NonNull final int[] dst,
+		final int width, final int height, final int startY, final int endY) {
+
+		final int[] table = mTable;
+		final int end = endY * width;
+		if (table != null) {
+			// ポスタライズはアルファ値も変換する
+			final boolean alpha = mType == TYPE_POSTERIZE;
+			for (int i = startY * width; i < end; i++) {
+				final int c = src[i];
+				final int a = alpha ? table[c >>> 24] : (c >>> 24);
+				dst[i] = (a << 24)
+					| (table[(c >> 16) & 0xff] << 16)
+					| (table[(c >> 8) & 0xff] << 8)
+					| table[c & 0xff];
+			}
+		} else {
+			final float s = mParam;
+			for (int i = startY * width; i < end; i++) {
+				final int c = src[i];
+				final float r = ((c >> 16) & 0xff) * INV_255;
+				final float g = ((c >> 8) & 0xff) * INV_255;
+				final float b = (c & 0xff) * INV_255;
+				final float intensity = r * LUMINANCE_R + g * LUMINANCE_G + b * LUMINANCE_B;
+				dst[i] = (c & 0xff000000)
+					| (toByte(intensity + (r - intensity) * s) << 16)
+					| (toByte(intensity + (g - intensity) * s) << 8)
+					| toByte(intensity + (b - intensity) * s);
+			}
+		}
+	}
+
+	/**
+	 * 色成分毎に独立している映像効果の変換処理
+	 * @param type
+	 * @param param
+	 * @param v 0.0-1.0
+	 * @return
+	 */
+	private static float convert(@Type final int type, final float param, final float v) {
+		switch (type) {
+		case TYPE_BRIGHTNESS:
+			return v + param;
+		case TYPE_EXPOSURE:
+			return v * (float)Math.pow(2.0, param);
+		case TYPE_POSTERIZE:
+			// 0除算になるときは変換しない
+			return param != 0.0f ? (float)Math.floor(v * param + 0.5f) / param : v;
+		default:
+			return v;
+		}
+	}
+}
@@ -22,7 +22,7 @@ import android.opengl.GLES20;
 import android.opengl.Matrix;
 import androidx.annotation.NonNull;
 
-import com.serenegiant.gl.GLUtils;
+import com.serenegiant.gl.ShaderProgramCache;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -135,6 +135,10 @@ public class MediaEffectDrawer {
 	protected final int[] muTexLoc;
 	protected final float[] mMvpMatrix = new float[16];
 	protected int hProgram;
+	/**
+	 * ShaderProgramCacheから取得したシェーダープログラム
+	 */
+	private ShaderProgramCache.Program mCachedProgram;
 
 	protected MediaEffectDrawer() {
 		this(1, false, VERTEX_SHADER_ES2, FRAGMENT_SHADER_ES2);
@@ -183,7 +187,9 @@ public class MediaEffectDrawer {
 
 		// テクスチャ用のロケーションは最低でも1つは確保する
 		muTexLoc = new int[numTex > 0 ? numTex : 1];
-		hProgram = GLUtils.loadShader(vss, fss);
+		// 同じ映像効果のシェーダープログラムはShaderProgramCacheで共有する
+		mCachedProgram = ShaderProgramCache.getInstance().acquire(vss, fss);
+		hProgram = mCachedProgram != null ? mCachedProgram.getProgram() : 0;
 		GLES20.glUseProgram(hProgram);
 		final int maPositionLoc = GLES20.glGetAttribLocation(hProgram, "aPosition");
 		final int maTextureCoordLoc = GLES20.glGetAttribLocation(hProgram, "aTextureCoord");
@@ -216,7 +222,11 @@ public class MediaEffectDrawer {
 
 	public void release() {
 		GLES20.glUseProgram(0);
-		if (hProgram >= 0) {
+		if (mCachedProgram != null) {
+			// 参照カウンタが0になった時に破棄される
+			ShaderProgramCache.getInstance().release(mCachedProgram);
+			mCachedProgram = null;
+		} else if (hProgram > 0) {
 			GLES20.glDeleteProgram(hProgram);
 		}
 		hProgram = -1;
@@ -18,10 +18,14 @@ package com.serenegiant.mediaeffect;
  *  limitations under the License.
 */
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
 import static com.serenegiant.gl.ShaderConst.*;
 
 /** 明るさ調整([-1.0f,+1.0f], RGB各成分に単純加算), 0だと無調整 */
-public class MediaEffectGLBrightness extends MediaEffectGLBase {
+public class MediaEffectGLBrightness extends MediaEffectGLBase
+	implements IPointwiseEffect {
 	private static final boolean DEBUG = false;
 	private static final String TAG = "MediaEffectGLBrightness";
 
@@ -40,6 +44,11 @@ public class MediaEffectGLBrightness extends MediaEffectGLBase {
 	private static final String FRAGMENT_SHADER_EXT
 		= String.format(FRAGMENT_SHADER_BASE, HEADER_OES_ES2, SAMPLER_OES);
 
+	/**
+	 * MediaEffectGLFusedでまとめて適用するときの変換, IPointwiseEffect#getPointwiseSnippet参照
+	 */
+	public static final String POINTWISE_SNIPPET = "color.rgb += vec3(%1$s);\n";
+
 	public MediaEffectGLBrightness() {
 		this(0.0f);
 	}
@@ -59,4 +68,21 @@ public class MediaEffectGLBrightness extends MediaEffectGLBase {
 		((MediaEffectColorAdjustDrawer)mDrawer).setColorAdjust(brightness);
 		return this;
 	}
+
+	@NonNull
+	@Override
+	public String getPointwiseSnippet() {
+		return POINTWISE_SNIPPET;
+	}
+
+	@Nullable
+	@Override
+	public String getPointwiseFunctions() {
+		return null;
+	}
+
+	@Override
+	public float getPointwiseParam() {
+		return ((MediaEffectColorAdjustDrawer)mDrawer).getColorAdjust();
+	}
 }
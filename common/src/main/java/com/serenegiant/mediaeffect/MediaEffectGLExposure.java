@@ -20,10 +20,14 @@ package com.serenegiant.mediaeffect;
 
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
 import static com.serenegiant.gl.ShaderConst.*;
 
 /** 露出調整, -10〜+10, 0だと無調整 */
-public class MediaEffectGLExposure extends MediaEffectGLBase {
+public class MediaEffectGLExposure extends MediaEffectGLBase
+	implements IPointwiseEffect {
 	private static final boolean DEBUG = false;
 	private static final String TAG = "MediaEffectGLExposure";
 
@@ -42,6 +46,11 @@ public class MediaEffectGLExposure extends MediaEffectGLBase {
 	private static final String FRAGMENT_SHADER_EXT
 		= String.format(FRAGMENT_SHADER_BASE, HEADER_OES_ES2, SAMPLER_OES);
 
+	/**
+	 * MediaEffectGLFusedでまとめて適用するときの変換, IPointwiseEffect#getPointwiseSnippet参照
+	 */
+	public static final String POINTWISE_SNIPPET = "color.rgb *= pow(2.0, %1$s);\n";
+
 	public MediaEffectGLExposure() {
 		super(new MediaEffectColorAdjustDrawer(FRAGMENT_SHADER));
 		if (DEBUG) Log.v(TAG, "コンストラクタ:");
@@ -63,4 +72,20 @@ public class MediaEffectGLExposure extends MediaEffectGLBase {
 		return this;
 	}
 
+	@NonNull
+	@Override
+	public String getPointwiseSnippet() {
+		return POINTWISE_SNIPPET;
+	}
+
+	@Nullable
+	@Override
+	public String getPointwiseFunctions() {
+		return null;
+	}
+
+	@Override
+	public float getPointwiseParam() {
+		return ((MediaEffectColorAdjustDrawer)mDrawer).getColorAdjust();
+	}
 }
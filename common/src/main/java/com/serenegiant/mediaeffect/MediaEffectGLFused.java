@@ -0,0 +1,257 @@
+package com.serenegiant.mediaeffect;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+import android.opengl.GLES20;
+import android.util.Log;
+
+import com.serenegiant.gl.GLSurface;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+
+import static com.serenegiant.gl.ShaderConst.*;
+
+/**
+ * 連続するIPointwiseEffectを1つのフラグメントシェーダーへまとめて
+ * 1回の描画(オフスクリーンの入れ替え1回)で適用する映像効果
+ * 有効なIPointwiseEffectの組み合わせが変わったときはapply時にシェーダーを生成し直す
+ * (同じ組み合わせのシェーダープログラムはShaderProgramCacheで共有される)
+ * 保持しているIPointwiseEffectはこのオブジェクトの破棄時に一緒に破棄する
+ */
+public class MediaEffectGLFused implements IEffect {
+	private static final boolean DEBUG = false;
+	private static final String TAG = "MediaEffectGLFused";
+
+	/**
+	 * まとめたパラメータをuniform float配列で渡すDrawer
+	 */
+	private static class FusedDrawer extends MediaEffectDrawer.MediaEffectSingleDrawer {
+		private final int muParamsLoc;
+		@NonNull
+		private final float[] mParams;
+
+		private FusedDrawer(final boolean isOES, final String fss, final int numParams) {
+			super(isOES, VERTEX_SHADER_ES2, fss);
+			muParamsLoc = GLES20.glGetUniformLocation(getProgram(),
+				PointwiseShaderGenerator.UNIFORM_NAME);
+			mParams = new float[numParams];
+		}
+
+		private void setParams(@NonNull final List<IPointwiseEffect> effects) {
+			synchronized (mSync) {
+				for (int i = 0; i < mParams.length; i++) {
+					mParams[i] = effects.get(i).getPointwiseParam();
+				}
+			}
+		}
+
+		@Override
+		protected void preDraw(@NonNull final int[] tex_ids,
+			final float[] tex_matrix, final int offset) {
+
+			super.preDraw(tex_ids, tex_matrix, offset);
+			if (muParamsLoc >= 0) {
+				GLES20.glUniform1fv(muParamsLoc, mParams.length, mParams, 0);
+			}
+		}
+	}
+
+	@NonNull
+	private final List<IPointwiseEffect> mEffects;
+	private final boolean mIsOES;
+	/**
+	 * 現在のシェーダーで適用している(有効な)IPointwiseEffect
+	 */
+	@NonNull
+	private final List<IPointwiseEffect> mActive = new ArrayList<>();
+	@NonNull
+	private final List<IPointwiseEffect> mWork = new ArrayList<>();
+	private FusedDrawer mDrawer;
+	private GLSurface mOutputOffscreen;
+	private volatile boolean mEnabled = true;
+	private int mWidth, mHeight;
+
+	/**
+	 * コンストラクタ
+	 * GLコンテキストは不要(シェーダーはapply時に生成する)
+	 * @param effects
+	 */
+	public MediaEffectGLFused(@NonNull final List<? extends IPointwiseEffect> effects) {
+		this(false, effects);
+	}
+
+	/**
+	 * コンストラクタ
+	 * GLコンテキストは不要(シェーダーはapply時に生成する)
+	 * @param isOES
+	 * @param effects
+	 */
+	public MediaEffectGLFused(final boolean isOES,
+		@NonNull final List<? extends IPointwiseEffect> effects) {
+
+		mIsOES = isOES;
+		mEffects = Collections.unmodifiableList(new ArrayList<IPointwiseEffect>(effects));
+	}
+
+	/**
+	 * まとめたIPointwiseEffectの一覧を取得
+	 * @return
+	 */
+	@NonNull
+	public List<IPointwiseEffect> getEffects() {
+		return mEffects;
+	}
+
+	@Override
+	public void release() {
+		if (DEBUG) Log.v(TAG, "release:");
+		releaseDrawer();
+		if (mOutputOffscreen != null) {
+			mOutputOffscreen.release();
+			mOutputOffscreen = null;
+		}
+		for (final IPointwiseEffect effect: mEffects) {
+			effect.release();
+		}
+	}
+
+	@Override
+	public MediaEffectGLFused resize(final int width, final int height) {
+		mWidth = width;
+		mHeight = height;
+		for (final IPointwiseEffect effect: mEffects) {
+			effect.resize(width, height);
+		}
+		if (mDrawer != null) {
+			mDrawer.setTexSize(width, height);
+		}
+		return this;
+	}
+
+	/**
+	 * 自分自身が有効で、まとめたIPointwiseEffectのうち1つ以上が有効ならtrue
+	 * @return
+	 */
+	@Override
+	public boolean enabled() {
+		if (mEnabled) {
+			for (final IPointwiseEffect effect: mEffects) {
+				if (effect.enabled()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public IEffect setEnable(final boolean enable) {
+		mEnabled = enable;
+		return this;
+	}
+
+	@Override
+	public void apply(@NonNull final int [] src_tex_ids,
+		final int width, final int height, final int out_tex_id) {
+
+		if (!prepare()) return;
+		if (mOutputOffscreen == null) {
+			mOutputOffscreen = GLSurface.newInstance(false, GLES20.GL_TEXTURE0, width, height, false);
+		}
+		if ((out_tex_id != mOutputOffscreen.getTexId())
+			|| (width != mOutputOffscreen.getWidth())
+			|| (height != mOutputOffscreen.getHeight())) {
+			mOutputOffscreen.assignTexture(out_tex_id, width, height);
+		}
+		mOutputOffscreen.makeCurrent();
+		try {
+			mDrawer.apply(src_tex_ids, mOutputOffscreen.copyTexMatrix(), 0);
+		} finally {
+			mOutputOffscreen.swap();
+		}
+	}
+
+	@Override
+	public void apply(@NonNull final int [] src_tex_ids,
+		@NonNull final GLSurface output) {
+
+		if (!prepare()) return;
+		output.makeCurrent();
+		try {
+			mDrawer.apply(src_tex_ids, output.copyTexMatrix(), 0);
+		} finally {
+			output.swap();
+		}
+	}
+
+	@Override
+	public void apply(final ISource src) {
+		if (!prepare()) return;
+		final GLSurface output_tex = src.getOutputTexture();
+		final int[] src_tex_ids = src.getSourceTexId();
+		output_tex.makeCurrent();
+		try {
+			mDrawer.apply(src_tex_ids, output_tex.copyTexMatrix(), 0);
+		} finally {
+			output_tex.swap();
+		}
+	}
+
+	/**
+	 * 有効なIPointwiseEffectの組み合わせが変わっていればシェーダーを生成し直して
+	 * パラメータを更新する
+	 * GLコンテキスト内で呼び出すこと
+	 * @return 適用する映像効果が無ければfalse
+	 */
+	private boolean prepare() {
+		if (!mEnabled) return false;
+		mWork.clear();
+		for (final IPointwiseEffect effect: mEffects) {
+			if (effect.enabled()) {
+				mWork.add(effect);
+			}
+		}
+		if (mWork.isEmpty()) {
+			return false;
+		}
+		if ((mDrawer == null) || !mWork.equals(mActive)) {
+			releaseDrawer();
+			mActive.addAll(mWork);
+			final String fss = PointwiseShaderGenerator.generate(mIsOES, mActive);
+			if (DEBUG) Log.v(TAG, "prepare:" + mActive.size() + " effects\n" + fss);
+			mDrawer = new FusedDrawer(mIsOES, fss, mActive.size());
+			if ((mWidth > 0) && (mHeight > 0)) {
+				mDrawer.setTexSize(mWidth, mHeight);
+			}
+		}
+		mDrawer.setParams(mActive);
+		return true;
+	}
+
+	private void releaseDrawer() {
+		if (mDrawer != null) {
+			mDrawer.release();
+			mDrawer = null;
+		}
+		mActive.clear();
+	}
+}
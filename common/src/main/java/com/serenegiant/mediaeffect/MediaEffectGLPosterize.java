@@ -18,12 +18,16 @@ package com.serenegiant.mediaeffect;
  *  limitations under the License.
 */
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
 import static com.serenegiant.gl.ShaderConst.*;
 
 /**
  * FIXME ポスタライズ, うまく動かない
  */
-public class MediaEffectGLPosterize extends MediaEffectGLBase {
+public class MediaEffectGLPosterize extends MediaEffectGLBase
+	implements IPointwiseEffect {
 	private static final boolean DEBUG = false;
 	private static final String TAG = "MediaEffectGLBrightness";
 
@@ -42,6 +46,11 @@ public class MediaEffectGLPosterize extends MediaEffectGLBase {
 	private static final String FRAGMENT_SHADER_EXT
 		= String.format(FRAGMENT_SHADER_BASE, HEADER_OES_ES2, SAMPLER_OES);
 
+	/**
+	 * MediaEffectGLFusedでまとめて適用するときの変換, IPointwiseEffect#getPointwiseSnippet参照
+	 */
+	public static final String POINTWISE_SNIPPET = "color = floor((color * %1$s) + vec4(0.5)) / %1$s;\n";
+
 	public MediaEffectGLPosterize() {
 		this(10.0f);
 	}
@@ -60,4 +69,21 @@ public class MediaEffectGLPosterize extends MediaEffectGLBase {
 		((MediaEffectColorAdjustDrawer)mDrawer).setColorAdjust(posterize);
 		return this;
 	}
+
+	@NonNull
+	@Override
+	public String getPointwiseSnippet() {
+		return POINTWISE_SNIPPET;
+	}
+
+	@Nullable
+	@Override
+	public String getPointwiseFunctions() {
+		return null;
+	}
+
+	@Override
+	public float getPointwiseParam() {
+		return ((MediaEffectColorAdjustDrawer)mDrawer).getColorAdjust();
+	}
 }
@@ -18,10 +18,14 @@ package com.serenegiant.mediaeffect;
  *  limitations under the License.
 */
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
 import static com.serenegiant.gl.ShaderConst.*;
 
 /** 彩度調整([-1.0f,+1.0f]), 0だと無調整 */
-public class MediaEffectGLSaturate extends MediaEffectGLBase {
+public class MediaEffectGLSaturate extends MediaEffectGLBase
+	implements IPointwiseEffect {
 	private static final boolean DEBUG = false;
 	private static final String TAG = "MediaEffectGLBrightness";
 
@@ -43,6 +47,11 @@ public class MediaEffectGLSaturate extends MediaEffectGLBase {
 	private static final String FRAGMENT_SHADER_EXT
 		= String.format(FRAGMENT_SHADER_BASE, HEADER_OES_ES2, SAMPLER_OES);
 
+	/**
+	 * MediaEffectGLFusedでまとめて適用するときの変換, IPointwiseEffect#getPointwiseSnippet参照
+	 */
+	public static final String POINTWISE_SNIPPET = "color.rgb = mix(vec3(getIntensity(color.rgb)), color.rgb, %1$s);\n";
+
 	public MediaEffectGLSaturate() {
 		this(0.0f);
 	}
@@ -61,4 +70,21 @@ public class MediaEffectGLSaturate extends MediaEffectGLBase {
 		((MediaEffectColorAdjustDrawer)mDrawer).setColorAdjust(saturation + 1.0f);
 		return this;
 	}
+
+	@NonNull
+	@Override
+	public String getPointwiseSnippet() {
+		return POINTWISE_SNIPPET;
+	}
+
+	@Nullable
+	@Override
+	public String getPointwiseFunctions() {
+		return FUNC_GET_INTENSITY;
+	}
+
+	@Override
+	public float getPointwiseParam() {
+		return ((MediaEffectColorAdjustDrawer)mDrawer).getColorAdjust();
+	}
 }
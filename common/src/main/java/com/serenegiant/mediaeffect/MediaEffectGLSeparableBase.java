@@ -0,0 +1,115 @@
+package com.serenegiant.mediaeffect;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+import android.opengl.GLES20;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static com.serenegiant.gl.ShaderConst.*;
+
+/**
+ * 水平方向→垂直方向の2パスに分離して処理する映像効果の基本クラス
+ * 同じシェーダーでパス毎にサンプリング方向を切り替える
+ * 生成するフラグメントシェーダーとCPUでの参照実装はSeparableKernel参照
+ */
+public class MediaEffectGLSeparableBase extends MediaEffectGLTwoPassBase {
+	private static final boolean DEBUG = false;
+	private static final String TAG = "MediaEffectGLSeparableBase";
+
+	/**
+	 * サンプリング方向と重みをuniform変数で渡すDrawer
+	 */
+	protected static class SeparableDrawer
+		extends MediaEffectDrawer.MediaEffectSingleDrawer {
+
+		private final int muTexOffsetLoc;
+		private final int muWeightsLoc;
+		private final float[] mTexOffset = new float[2];
+		@Nullable
+		private final float[] mWeights;
+
+		protected SeparableDrawer(@SeparableKernel.Mode final int mode,
+			final int radius, @Nullable final float[] weights) {
+
+			super(false, VERTEX_SHADER_ES2, SeparableKernel.fragmentShader(mode, radius));
+			muTexOffsetLoc = GLES20.glGetUniformLocation(getProgram(), "uTexOffset");
+			muWeightsLoc = GLES20.glGetUniformLocation(getProgram(), "uWeights");
+			mWeights = weights != null ? weights.clone() : null;
+		}
+
+		/**
+		 * サンプリング方向の1ステップ分のテクスチャ座標の差分をセット
+		 * @param dx
+		 * @param dy
+		 */
+		protected void setTexOffset(final float dx, final float dy) {
+			synchronized (mSync) {
+				mTexOffset[0] = dx;
+				mTexOffset[1] = dy;
+			}
+		}
+
+		@Override
+		protected void preDraw(@NonNull final int[] tex_ids,
+			final float[] tex_matrix, final int offset) {
+
+			super.preDraw(tex_ids, tex_matrix, offset);
+			if (muTexOffsetLoc >= 0) {
+				GLES20.glUniform2fv(muTexOffsetLoc, 1, mTexOffset, 0);
+			}
+			if ((muWeightsLoc >= 0) && (mWeights != null)) {
+				GLES20.glUniform1fv(muWeightsLoc, mWeights.length, mWeights, 0);
+			}
+		}
+	}
+
+	/**
+	 * パス1(水平方向)で何画素おきにサンプリングするか
+	 */
+	private final int mStep;
+
+	/**
+	 * コンストラクタ
+	 * @param mode SeparableKernel.MODE_XXX
+	 * @param radius サンプリングする半径(タップ数は2*radius+1)
+	 * @param weights MODE_CONVOLUTIONのときの2*radius+1個の重み
+	 * @param downsample パス1の出力の縮小率(1, 2, 4), 縮小したときはパス1もdownsample画素おきにサンプリングする
+	 */
+	protected MediaEffectGLSeparableBase(@SeparableKernel.Mode final int mode,
+		final int radius, @Nullable final float[] weights, final int downsample) {
+
+		super(new SeparableDrawer(mode, radius, weights));
+		setDownsample(downsample);
+		mStep = downsample;
+	}
+
+	@Override
+	protected void onPreparePass(final int pass, final int srcWidth, final int srcHeight) {
+		super.onPreparePass(pass, srcWidth, srcHeight);
+		final SeparableDrawer drawer = (SeparableDrawer) mDrawer;
+		if (pass == 1) {
+			// パス1: 入力映像を水平方向にサンプリング
+			drawer.setTexOffset(mStep / (float)srcWidth, 0.0f);
+		} else {
+			// パス2: パス1の出力を垂直方向にサンプリング
+			drawer.setTexOffset(0.0f, 1.0f / srcHeight);
+		}
+	}
+}
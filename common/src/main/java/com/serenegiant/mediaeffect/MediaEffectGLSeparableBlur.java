@@ -0,0 +1,56 @@
+package com.serenegiant.mediaeffect;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+/**
+ * 水平方向→垂直方向の2パスに分離したガウシアン/移動平均ぼかしフィルタ
+ * downsampleに2または4を指定するとパス1を1/2または1/4の解像度で処理して
+ * パス2でバイリニア補間しながら拡大するので、大きな半径でも描画負荷を抑えられる
+ */
+public class MediaEffectGLSeparableBlur extends MediaEffectGLSeparableBase {
+	private static final boolean DEBUG = false;
+	private static final String TAG = "MediaEffectGLSeparableBlur";
+
+	public MediaEffectGLSeparableBlur() {
+		this(2, false, 1);
+	}
+
+	/**
+	 * ぼかす半径を指定して生成
+	 * @param radius 入力映像の画素単位の半径, downsampleで割った値が[1, SeparableKernel.MAX_RADIUS]
+	 * @param box trueなら移動平均、falseならガウシアン
+	 * @param downsample 1(等倍), 2(1/2), 4(1/4)
+	 */
+	public MediaEffectGLSeparableBlur(final int radius, final boolean box, final int downsample) {
+		super(SeparableKernel.MODE_CONVOLUTION, getTaps(radius, downsample),
+			box ? SeparableKernel.box(getTaps(radius, downsample))
+				: SeparableKernel.gaussian(getTaps(radius, downsample), 0.0f),
+			downsample);
+	}
+
+	/**
+	 * 縮小したときは縮小後の画素単位でサンプリングするので
+	 * 入力映像の画素単位の半径を縮小後の画素単位の半径に変換する
+	 * @param radius
+	 * @param downsample
+	 * @return
+	 */
+	private static int getTaps(final int radius, final int downsample) {
+		return Math.max(1, (radius + downsample - 1) / Math.max(1, downsample));
+	}
+}
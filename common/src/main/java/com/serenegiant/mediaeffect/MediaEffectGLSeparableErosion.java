@@ -0,0 +1,40 @@
+package com.serenegiant.mediaeffect;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+/**
+ * 水平方向→垂直方向の2パスに分離したErosion(収縮)フィルタ
+ * MediaEffectGLErosionは菱形の近傍で半径4までだが、こちらは(2r+1)x(2r+1)の正方形の近傍で
+ * 1画素あたりのサンプリング数は2(2r+1)なので大きな半径でも負荷が増えにくい
+ */
+public class MediaEffectGLSeparableErosion extends MediaEffectGLSeparableBase {
+	private static final boolean DEBUG = false;
+	private static final String TAG = "MediaEffectGLSeparableErosion";
+
+	public MediaEffectGLSeparableErosion() {
+		this(1);
+	}
+
+	/**
+	 * 収縮範囲を指定して生成
+	 * @param radius [1, SeparableKernel.MAX_RADIUS]
+	 */
+	public MediaEffectGLSeparableErosion(final int radius) {
+		super(SeparableKernel.MODE_EROSION, radius, null, 1);
+	}
+}
@@ -28,6 +28,20 @@ public class MediaEffectGLTwoPassBase extends MediaEffectGLBase {
 
 	protected final MediaEffectKernel3x3Drawer mDrawer2;
 	protected GLSurface mOutputOffscreen2;
+	/**
+	 * パス1の出力(パス2の入力)の縮小率, 1なら等倍
+	 */
+	private int mDownsample = 1;
+
+	/**
+	 * コンストラクタ
+	 * パス1とパス2で同じMediaEffectDrawerを使う
+	 * @param drawer
+	 */
+	public MediaEffectGLTwoPassBase(@NonNull final MediaEffectDrawer drawer) {
+		super(drawer);
+		mDrawer2 = null;
+	}
 
 	public MediaEffectGLTwoPassBase(final int numTex,
 									final boolean isOES, final String fss) {
@@ -105,11 +119,8 @@ public class MediaEffectGLTwoPassBase extends MediaEffectGLBase {
 
 		if (!mEnabled) return;
 		// パス1
-		if (mOutputOffscreen == null) {
-			mOutputOffscreen = GLSurface.newInstance(
-				false, GLES20.GL_TEXTURE0,
-				width, height, false);
-		}
+		prepareIntermediate(width, height);
+		onPreparePass(1, width, height);
 		mOutputOffscreen.makeCurrent();
 		try {
 			mDrawer.apply(src_tex_ids, mOutputOffscreen.copyTexMatrix(), 0);
@@ -130,6 +141,7 @@ public class MediaEffectGLTwoPassBase extends MediaEffectGLBase {
 		}
 		mOutputOffscreen2.makeCurrent();
 		final int[] ids = new int[] { mOutputOffscreen.getTexId() };
+		onPreparePass(2, mOutputOffscreen.getWidth(), mOutputOffscreen.getHeight());
 		try {
 			if (mDrawer2 != null) {
 				mDrawer2.apply(ids, mOutputOffscreen2.copyTexMatrix(), 0);
@@ -148,11 +160,8 @@ public class MediaEffectGLTwoPassBase extends MediaEffectGLBase {
 
 		if (!mEnabled) return;
 		// パス1
-		if (mOutputOffscreen == null) {
-			mOutputOffscreen = GLSurface.newInstance(
-				false, GLES20.GL_TEXTURE0,
-				output.getWidth(), output.getHeight(), false);
-		}
+		prepareIntermediate(output.getWidth(), output.getHeight());
+		onPreparePass(1, output.getWidth(), output.getHeight());
 		mOutputOffscreen.makeCurrent();
 		try {
 			mDrawer.apply(src_tex_ids, mOutputOffscreen.copyTexMatrix(), 0);
@@ -162,6 +171,7 @@ public class MediaEffectGLTwoPassBase extends MediaEffectGLBase {
 		// パス2
 		output.makeCurrent();
 		final int[] ids = new int[] { mOutputOffscreen.getTexId() };
+		onPreparePass(2, mOutputOffscreen.getWidth(), mOutputOffscreen.getHeight());
 		try {
 			if (mDrawer2 != null) {
 				mDrawer2.apply(ids, output.copyTexMatrix(), 0);
@@ -181,11 +191,8 @@ public class MediaEffectGLTwoPassBase extends MediaEffectGLBase {
 		final int width = src.getWidth();
 		final int height = src.getHeight();
 		// パス1
-		if (mOutputOffscreen == null) {
-			mOutputOffscreen = GLSurface.newInstance(
-				false, GLES20.GL_TEXTURE0,
-				width, height, false);
-		}
+		prepareIntermediate(width, height);
+		onPreparePass(1, width, height);
 		mOutputOffscreen.makeCurrent();
 		try {
 			mDrawer.apply(src_tex_ids, mOutputOffscreen.copyTexMatrix(), 0);
@@ -195,6 +202,7 @@ public class MediaEffectGLTwoPassBase extends MediaEffectGLBase {
 		// パス2
 		output_tex.makeCurrent();
 		final int[] ids = new int[] { mOutputOffscreen.getTexId() };
+		onPreparePass(2, mOutputOffscreen.getWidth(), mOutputOffscreen.getHeight());
 		try {
 			if (mDrawer2 != null) {
 				mDrawer2.apply(ids, output_tex.copyTexMatrix(), 0);
@@ -205,4 +213,59 @@ public class MediaEffectGLTwoPassBase extends MediaEffectGLBase {
 			output_tex.swap();
 		}
 	}
+
+	/**
+	 * パス1の出力(パス2の入力)を入力映像の何分の1の解像度で処理するかを設定
+	 * ぼかし等の低周波成分だけが残る映像効果ならパス1を低解像度で処理して
+	 * パス2でバイリニア補間しながら拡大することで描画負荷を下げることができる
+	 * 膨張・収縮等の画素値を保持する必要がある映像効果では使わないこと
+	 * @param downsample 1(等倍), 2(1/2), 4(1/4)
+	 * @throws IllegalArgumentException
+	 */
+	protected void setDownsample(final int downsample) throws IllegalArgumentException {
+		if ((downsample != 1) && (downsample != 2) && (downsample != 4)) {
+			throw new IllegalArgumentException("downsample should be 1, 2 or 4," + downsample);
+		}
+		mDownsample = downsample;
+	}
+
+	/**
+	 * パス1の出力(パス2の入力)を入力映像の何分の1の解像度で処理するかを取得
+	 * @return
+	 */
+	public int getDownsample() {
+		return mDownsample;
+	}
+
+	/**
+	 * 各パスの描画直前の処理
+	 * パス毎にサンプリング方向等を変更する場合は下位クラスでオーバーライドする
+	 * このクラスでは何もしない
+	 * @param pass 1または2
+	 * @param srcWidth そのパスの入力テクスチャの幅
+	 * @param srcHeight そのパスの入力テクスチャの高さ
+	 */
+	protected void onPreparePass(final int pass, final int srcWidth, final int srcHeight) {
+	}
+
+	/**
+	 * パス1の出力用オフスクリーンを準備する
+	 * 未生成またはサイズが変わったときは生成し直す
+	 * @param width 入力映像の幅
+	 * @param height 入力映像の高さ
+	 */
+	private void prepareIntermediate(final int width, final int height) {
+		final int w = Math.max(1, width / mDownsample);
+		final int h = Math.max(1, height / mDownsample);
+		if ((mOutputOffscreen != null)
+			&& ((mOutputOffscreen.getWidth() != w) || (mOutputOffscreen.getHeight() != h))) {
+			mOutputOffscreen.release();
+			mOutputOffscreen = null;
+		}
+		if (mOutputOffscreen == null) {
+			mOutputOffscreen = GLSurface.newInstance(
+				false, GLES20.GL_TEXTURE0,
+				w, h, false);
+		}
+	}
 }
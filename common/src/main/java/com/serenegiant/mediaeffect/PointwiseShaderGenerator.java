@@ -0,0 +1,120 @@
+package com.serenegiant.mediaeffect;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static com.serenegiant.gl.ShaderConst.*;
+
+/**
+ * 連続するIPointwiseEffectの変換を順に適用するフラグメントシェーダーを生成するヘルパークラス
+ * 各映像効果のパラメータはuniform float配列(uColorAdjust)へまとめる
+ * 映像効果毎に描画するときは描画先へ書き込む際に0〜1へ丸められるので
+ * まとめたときも同じ結果になるように各変換の後に0〜1へ丸める
+ * GLに依存しないのでローカルユニットテストで生成結果をテストできる
+ */
+public class PointwiseShaderGenerator {
+	private PointwiseShaderGenerator() {
+		// インスタンス化をエラーにするためにデフォルトコンストラクタをprivateにする
+	}
+
+	/**
+	 * パラメータをまとめたuniform変数の名前
+	 */
+	public static final String UNIFORM_NAME = "uColorAdjust";
+	/**
+	 * 各変換の後に色を0〜1へ丸めるGLSLの文
+	 */
+	public static final String CLAMP_SNIPPET = "color = clamp(color, 0.0, 1.0);\n";
+
+	/**
+	 * 指定したIPointwiseEffectを順に適用するフラグメントシェーダーを生成する
+	 * @param isOES
+	 * @param effects
+	 * @return
+	 */
+	@NonNull
+	public static String generate(final boolean isOES,
+		@NonNull final List<? extends IPointwiseEffect> effects) {
+
+		final int n = effects.size();
+		final String[] snippets = new String[n];
+		final String[] functions = new String[n];
+		for (int i = 0; i < n; i++) {
+			final IPointwiseEffect effect = effects.get(i);
+			snippets[i] = effect.getPointwiseSnippet();
+			functions[i] = effect.getPointwiseFunctions();
+		}
+		return generate(isOES, snippets, functions);
+	}
+
+	/**
+	 * 指定した変換を順に適用するフラグメントシェーダーを生成する
+	 * @param isOES
+	 * @param snippets 色を変換するGLSLの文, IPointwiseEffect#getPointwiseSnippet参照
+	 * @param functions snippetsで使う関数等の定義, 同じ定義は1回だけ出力する, nullの要素は無視する
+	 * @return
+	 * @throws IllegalArgumentException snippetsが空のとき
+	 */
+	@NonNull
+	public static String generate(final boolean isOES,
+		@NonNull final String[] snippets, @Nullable final String[] functions)
+			throws IllegalArgumentException {
+
+		if (snippets.length == 0) {
+			throw new IllegalArgumentException("snippets should not be empty");
+		}
+		final StringBuilder sb = new StringBuilder();
+		sb.append(SHADER_VERSION_ES2)
+			.append(isOES ? HEADER_OES_ES2 : HEADER_2D)
+			.append("precision highp float;\n")
+			.append("varying       vec2 vTextureCoord;\n")
+			.append("uniform ").append(isOES ? SAMPLER_OES : SAMPLER_2D).append("    sTexture;\n")
+			.append("uniform float ").append(UNIFORM_NAME)
+				.append('[').append(snippets.length).append("];\n");
+		if (functions != null) {
+			final Set<String> defined = new LinkedHashSet<>();
+			for (final String func: functions) {
+				if ((func != null) && defined.add(func)) {
+					sb.append(func);
+				}
+			}
+		}
+		sb.append("void main() {\n")
+			.append("    highp vec4 color = texture2D(sTexture, vTextureCoord);\n");
+		for (int i = 0; i < snippets.length; i++) {
+			final String param = String.format(Locale.US, "%s[%d]", UNIFORM_NAME, i);
+			final String code = String.format(Locale.US, snippets[i], param);
+			for (final String line: code.split("\n")) {
+				if (!line.trim().isEmpty()) {
+					sb.append("    ").append(line.trim()).append('\n');
+				}
+			}
+			sb.append("    ").append(CLAMP_SNIPPET);
+		}
+		sb.append("    gl_FragColor = color;\n")
+			.append("}\n");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,231 @@
+package com.serenegiant.mediaeffect;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Locale;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static com.serenegiant.gl.ShaderConst.*;
+
+/**
+ * 2パス(水平方向→垂直方向)に分離して処理する映像効果用のヘルパークラス
+ * ・各パスのフラグメントシェーダーを生成する
+ * ・ガウシアン/移動平均の1次元カーネルを生成する
+ * ・GLの処理結果を検証するためのCPUでの参照実装
+ * 正方形の近傍に対する畳み込み(カーネルが縦横の積で表せるもの)・最大値(膨張)・最小値(収縮)は
+ * 水平方向と垂直方向の2パスに分離できるので、半径rのとき1画素あたりのサンプリング数が
+ * (2r+1)^2から2(2r+1)に減る
+ * GLに依存しないのでローカルユニットテストでテストできる
+ */
+public class SeparableKernel {
+	private SeparableKernel() {
+		// インスタンス化をエラーにするためにデフォルトコンストラクタをprivateにする
+	}
+
+	/**
+	 * 1次元カーネルによる畳み込み
+	 */
+	public static final int MODE_CONVOLUTION = 0;
+	/**
+	 * 最大値(膨張)
+	 */
+	public static final int MODE_DILATION = 1;
+	/**
+	 * 最小値(収縮)
+	 */
+	public static final int MODE_EROSION = 2;
+
+	@IntDef({
+		MODE_CONVOLUTION,
+		MODE_DILATION,
+		MODE_EROSION,
+	})
+	@Retention(RetentionPolicy.SOURCE)
+	public @interface Mode {}
+
+	/**
+	 * 対応する最大半径
+	 */
+	public static final int MAX_RADIUS = 16;
+
+	/**
+	 * 1次元のガウシアンカーネルを生成する
+	 * @param radius 半径[1, MAX_RADIUS]
+	 * @param sigma 標準偏差, 0以下ならradius/2
+	 * @return 合計が1になるように正規化した2*radius+1個の重み
+	 * @throws IllegalArgumentException
+	 */
+	@NonNull
+	public static float[] gaussian(final int radius, final float sigma)
+		throws IllegalArgumentException {
+
+		checkRadius(radius);
+		final double s = sigma > 0 ? sigma : radius / 2.0;
+		final float[] result = new float[radius * 2 + 1];
+		double sum = 0;
+		for (int i = -radius; i <= radius; i++) {
+			final double w = Math.exp(-(i * i) / (2 * s * s));
+			result[i + radius] = (float)w;
+			sum += w;
+		}
+		for (int i = 0; i < result.length; i++) {
+			result[i] = (float)(result[i] / sum);
+		}
+		return result;
+	}
+
+	/**
+	 * 1次元の移動平均カーネルを生成する
+	 * @param radius 半径[1, MAX_RADIUS]
+	 * @return 2*radius+1個の重み
+	 * @throws IllegalArgumentException
+	 */
+	@NonNull
+	public static float[] box(final int radius) throws IllegalArgumentException {
+		checkRadius(radius);
+		final float[] result = new float[radius * 2 + 1];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = 1.0f / result.length;
+		}
+		return result;
+	}
+
+	/**
+	 * 1パス分のフラグメントシェーダーを生成する
+	 * uTexOffsetへサンプリング方向の1ステップ分のテクスチャ座標の差分、
+	 * MODE_CONVOLUTIONのときはuWeightsへ2*radius+1個の重みを渡す
+	 * @param mode
+	 * @param radius 半径[1, MAX_RADIUS]
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	@NonNull
+	public static String fragmentShader(@Mode final int mode, final int radius)
+		throws IllegalArgumentException {
+
+		checkRadius(radius);
+		final StringBuilder sb = new StringBuilder();
+		sb.append(SHADER_VERSION_ES2)
+			.append("precision highp float;\n")
+			.append("varying       vec2 vTextureCoord;\n")
+			.append("uniform sampler2D sTexture;\n")
+			.append("uniform vec2  uTexOffset;\n");
+		if (mode == MODE_CONVOLUTION) {
+			sb.append(String.format(Locale.US, "uniform float uWeights[%d];\n", radius * 2 + 1));
+		}
+		sb.append("void main() {\n");
+		switch (mode) {
+		case MODE_CONVOLUTION:
+			sb.append("    vec4 sum = vec4(0.0);\n");
+			for (int i = -radius; i <= radius; i++) {
+				sb.append(String.format(Locale.US,
+					"    sum += texture2D(sTexture, vTextureCoord + uTexOffset * %d.0) * uWeights[%d];\n",
+					i, i + radius));
+			}
+			sb.append("    gl_FragColor = sum;\n");
+			break;
+		case MODE_DILATION:
+		case MODE_EROSION:
+		{
+			final String func = mode == MODE_DILATION ? "max" : "min";
+			sb.append("    vec4 value = texture2D(sTexture, vTextureCoord);\n");
+			for (int i = -radius; i <= radius; i++) {
+				if (i != 0) {
+					sb.append(String.format(Locale.US,
+						"    value = %s(value, texture2D(sTexture, vTextureCoord + uTexOffset * %d.0));\n",
+						func, i));
+				}
+			}
+			sb.append("    gl_FragColor = vec4(value.rgb, 1.0);\n");
+			break;
+		}
+		default:
+			throw new IllegalArgumentException("Unknown mode," + mode);
+		}
+		sb.append("}\n");
+		return sb.toString();
+	}
+
+	/**
+	 * CPUでの参照実装, フラグメントシェーダー1パス分の処理を1チャネルの画像に適用する
+	 * 画像の端はGL_CLAMP_TO_EDGEと同様に端の画素を繰り返す
+	 * @param mode
+	 * @param src 入力画像, width x height
+	 * @param dst 出力画像, width x height, srcと同じ配列は不可
+	 * @param width
+	 * @param height
+	 * @param horizontal trueなら水平方向、falseなら垂直方向
+	 * @param radius 半径[1, MAX_RADIUS]
+	 * @param weights MODE_CONVOLUTIONのときの2*radius+1個の重み
+	 * @throws IllegalArgumentException
+	 */
+	public static void apply(@Mode final int mode,
+		@NonNull final float[] src, @NonNull final float[] dst,
+		final int width, final int height,
+		final boolean horizontal, final int radius, @Nullable final float[] weights)
+			throws IllegalArgumentException {
+
+		checkRadius(radius);
+		if ((src.length < width * height) || (dst.length < width * height) || (src == dst)) {
+			throw new IllegalArgumentException("wrong buffer");
+		}
+		if ((mode == MODE_CONVOLUTION)
+			&& ((weights == null) || (weights.length < radius * 2 + 1))) {
+			throw new IllegalArgumentException("weights should have " + (radius * 2 + 1) + " values");
+		}
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				float value = mode == MODE_DILATION ? -Float.MAX_VALUE
+					: (mode == MODE_EROSION ? Float.MAX_VALUE : 0.0f);
+				for (int i = -radius; i <= radius; i++) {
+					final int sx = horizontal ? clamp(x + i, width) : x;
+					final int sy = horizontal ? y : clamp(y + i, height);
+					final float v = src[sy * width + sx];
+					switch (mode) {
+					case MODE_DILATION:
+						value = Math.max(value, v);
+						break;
+					case MODE_EROSION:
+						value = Math.min(value, v);
+						break;
+					default:
+						//noinspection ConstantConditions
+						value += v * weights[i + radius];
+						break;
+					}
+				}
+				dst[y * width + x] = value;
+			}
+		}
+	}
+
+	private static int clamp(final int v, final int size) {
+		return v < 0 ? 0 : (v >= size ? size - 1 : v);
+	}
+
+	private static void checkRadius(final int radius) throws IllegalArgumentException {
+		if ((radius < 1) || (radius > MAX_RADIUS)) {
+			throw new IllegalArgumentException("radius should be in [1," + MAX_RADIUS + "]," + radius);
+		}
+	}
+}
@@ -0,0 +1,461 @@
+package com.serenegiant.mediastore;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMetadataRetriever;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.serenegiant.media.KeyframeIndex;
+import com.serenegiant.media.MediaCodecIndex;
+import com.serenegiant.media.MediaCodecUtils;
+import com.serenegiant.system.BuildCheck;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+/**
+ * 動画のタイムライン表示用に等間隔のN枚のサムネイルを生成するためのヘルパークラス
+ * ・等間隔のN個の時刻に最も近いキーフレーム(同期サンプル)だけをデコードする
+ * ・端末のデコーダーの最大インスタンス数とCPUコア数の範囲で複数のデコーダーで並列に処理する
+ * ・デコードしたフレームは1回だけ縮小してThumbnailCacheへ追加し、
+ *   生成できた順にコールバックする
+ * 動画ファイルのキーフレームインデックス(KeyframeIndex)のキャッシュファイルがあれば
+ * それを使ってキーフレームのPTSを求め、同じキーフレームは1回だけデコードする
+ */
+public class ThumbnailStripExtractor {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = ThumbnailStripExtractor.class.getSimpleName();
+
+	/**
+	 * 並列に使うデコーダーの最大数
+	 */
+	private static final int MAX_DECODERS = 4;
+
+	/**
+	 * サムネイル生成時のコールバックリスナー
+	 * 全てワーカースレッド上で呼ばれる
+	 */
+	public interface Callback {
+		/**
+		 * サムネイルを生成したときの処理
+		 * キャッシュ済みのときも呼ばれる, 呼ばれる順番はインデックス順とは限らない
+		 * @param index 0以上count未満
+		 * @param timeUs サムネイルを要求した時刻[マイクロ秒]
+		 * @param thumbnail
+		 */
+		@WorkerThread
+		public void onThumbnail(final int index, final long timeUs, @NonNull final Bitmap thumbnail);
+
+		/**
+		 * 全てのサムネイルの生成処理が終了したときの処理
+		 * @param canceled #cancelで中断したときはtrue
+		 */
+		@WorkerThread
+		public void onFinished(final boolean canceled);
+
+		/**
+		 * エラー発生時の処理
+		 * @param t
+		 */
+		@WorkerThread
+		public void onError(@NonNull final Throwable t);
+	}
+
+	/**
+	 * デコード対象のキーフレーム
+	 * 同じキーフレームに対応するサムネイルのインデックスを保持する
+	 */
+	private static class Target {
+		private final long timeUs;
+		@NonNull
+		private final List<Integer> indices = new ArrayList<>();
+
+		private Target(final long timeUs) {
+			this.timeUs = timeUs;
+		}
+	}
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final Context mContext;
+	@NonNull
+	private final ThumbnailCache mCache;
+	@NonNull
+	private final MediaInfo mInfo;
+	private final int mCount;
+	private final int mWidth;
+	private final int mHeight;
+	@NonNull
+	private final Callback mCallback;
+	private volatile boolean mCanceled;
+	private boolean mStarted;
+	/**
+	 * 動画の長さ[マイクロ秒], ワーカースレッドを起床する前に設定する
+	 */
+	private long mDurationUs;
+
+	/**
+	 * コンストラクタ
+	 * @param context
+	 * @param cache 生成したサムネイルを保持するThumbnailCache
+	 * @param info 動画のMediaInfo
+	 * @param count 生成するサムネイルの数
+	 * @param width サムネイルの最大幅
+	 * @param height サムネイルの最大高さ
+	 * @param callback
+	 * @throws IllegalArgumentException
+	 */
+	public ThumbnailStripExtractor(
+		@NonNull final Context context,
+		@NonNull final ThumbnailCache cache,
+		@NonNull final MediaInfo info,
+		final int count, final int width, final int height,
+		@NonNull final Callback callback) throws IllegalArgumentException {
+
+		if ((count <= 0) || (width <= 0) || (height <= 0)) {
+			throw new IllegalArgumentException("wrong parameters");
+		}
+		mContext = context.getApplicationContext();
+		mCache = cache;
+		mInfo = new MediaInfo(info);
+		mCount = count;
+		mWidth = width;
+		mHeight = height;
+		mCallback = callback;
+	}
+
+	/**
+	 * サムネイルの生成を開始する
+	 * 2回目以降の呼び出しは無視する
+	 */
+	public void start() {
+		synchronized (mSync) {
+			if (mStarted) return;
+			mStarted = true;
+		}
+		new Thread(mCoordinatorTask, TAG).start();
+	}
+
+	/**
+	 * サムネイルの生成を中断する
+	 * デコード中のフレームの処理が終わった時点で中断する
+	 */
+	public void cancel() {
+		mCanceled = true;
+	}
+
+	/**
+	 * 指定したインデックスのサムネイルをキャッシュから取得する
+	 * @param index
+	 * @return キャッシュに無ければnull
+	 */
+	@Nullable
+	public Bitmap getCached(final int index) {
+		return mCache.get(getKey(index));
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * 対象とするキーフレームを求めてワーカースレッドを起床し、全てのワーカーの終了を待つ
+	 */
+	private final Runnable mCoordinatorTask = new Runnable() {
+		@WorkerThread
+		@Override
+		public void run() {
+			final MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+			try {
+				retriever.setDataSource(mContext, mInfo.getUri());
+				final String duration = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+				mDurationUs = TextUtils.isEmpty(duration) ? 0 : Long.parseLong(duration) * 1000L;
+				final List<Target> targets = createTargets();
+				final AtomicInteger next = new AtomicInteger();
+				// コンテナのMIMEではなく映像トラックのコーデックのMIMEでデコーダーを探す
+				final int n = Math.min(getMaxDecoders(getVideoMime()), targets.size());
+				if (DEBUG) Log.v(TAG, "run:targets=" + targets.size() + ",decoders=" + n);
+				final List<Thread> workers = new ArrayList<>();
+				for (int i = 1; i < n; i++) {
+					final Thread worker = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							final MediaMetadataRetriever r = new MediaMetadataRetriever();
+							try {
+								r.setDataSource(mContext, mInfo.getUri());
+								process(r, targets, next);
+							} catch (final Exception e) {
+								handleError(e);
+							} finally {
+								release(r);
+							}
+						}
+					}, TAG + "-" + i);
+					worker.start();
+					workers.add(worker);
+				}
+				// このスレッドもワーカーとして処理する
+				process(retriever, targets, next);
+				for (final Thread worker: workers) {
+					worker.join();
+				}
+			} catch (final InterruptedException e) {
+				mCanceled = true;
+			} catch (final Exception e) {
+				handleError(e);
+			} finally {
+				release(retriever);
+			}
+			try {
+				mCallback.onFinished(mCanceled);
+			} catch (final Exception e) {
+				Log.w(TAG, e);
+			}
+		}
+	};
+
+	/**
+	 * 等間隔のサムネイルの時刻から対象とするキーフレームの一覧を生成する
+	 * キーフレームインデックスがあれば最寄りのキーフレームのPTSへ置き換えて
+	 * 同じキーフレームになるものをまとめる
+	 * @return
+	 */
+	@NonNull
+	private List<Target> createTargets() {
+		final KeyframeIndex index = !TextUtils.isEmpty(mInfo.data)
+			? KeyframeIndex.load(KeyframeIndex.getCacheFile(mInfo.data), new File(mInfo.data))
+			: null;
+		final List<Target> result = new ArrayList<>();
+		Target last = null;
+		for (int i = 0; i < mCount; i++) {
+			final long t = timeOf(i);
+			final long timeUs = index != null ? index.findNearestKeyframe(t) : t;
+			if ((last == null) || (last.timeUs != timeUs)) {
+				last = new Target(timeUs);
+				result.add(last);
+			}
+			last.indices.add(i);
+		}
+		return result;
+	}
+
+	/**
+	 * 未処理のキーフレームが無くなるまでデコードする
+	 * @param retriever
+	 * @param targets
+	 * @param next
+	 */
+	@WorkerThread
+	private void process(
+		@NonNull final MediaMetadataRetriever retriever,
+		@NonNull final List<Target> targets,
+		@NonNull final AtomicInteger next) {
+
+		for (int i = next.getAndIncrement(); !mCanceled && (i < targets.size()); i = next.getAndIncrement()) {
+			final Target target = targets.get(i);
+			// キャッシュ済みならデコードしない
+			Bitmap thumbnail = mCache.get(getKey(target.indices.get(0)));
+			if (thumbnail == null) {
+				thumbnail = decode(retriever, target.timeUs);
+				if (thumbnail == null) {
+					if (DEBUG) Log.w(TAG, "process:failed to decode frame at " + target.timeUs);
+					continue;
+				}
+				for (final int index: target.indices) {
+					mCache.put(getKey(index), thumbnail, true);
+				}
+			}
+			for (final int index: target.indices) {
+				if (mCanceled) break;
+				try {
+					mCallback.onThumbnail(index, timeOf(index), thumbnail);
+				} catch (final Exception e) {
+					Log.w(TAG, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 指定した時刻に最も近いキーフレームをデコードしてサムネイルサイズへ縮小する
+	 * 縮小は1回だけ行う(API>=27ならデコード時に縮小する)
+	 * @param retriever
+	 * @param timeUs
+	 * @return
+	 */
+	@SuppressLint("NewApi")
+	@Nullable
+	private Bitmap decode(
+		@NonNull final MediaMetadataRetriever retriever, final long timeUs) {
+
+		if (BuildCheck.isAPI27()) {
+			return retriever.getScaledFrameAtTime(timeUs,
+				MediaMetadataRetriever.OPTION_CLOSEST_SYNC, mWidth, mHeight);	// API>=27
+		}
+		final Bitmap frame = retriever.getFrameAtTime(timeUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+		if (frame == null) return null;
+		final int w = frame.getWidth();
+		final int h = frame.getHeight();
+		// アスペクト比を維持して指定サイズに収まるように縮小する
+		final float scale = Math.min(mWidth / (float)w, mHeight / (float)h);
+		if (scale >= 1.0f) return frame;
+		final Bitmap result = Bitmap.createScaledBitmap(frame,
+			Math.max(Math.round(w * scale), 1), Math.max(Math.round(h * scale), 1), true);
+		if (result != frame) {
+			frame.recycle();
+		}
+		return result;
+	}
+
+	/**
+	 * 指定したインデックスのサムネイルを要求した時刻
+	 * @param index
+	 * @return [マイクロ秒]
+	 */
+	private long timeOf(final int index) {
+		return mDurationUs * (2 * index + 1) / (2L * mCount);
+	}
+
+	private void handleError(@NonNull final Throwable t) {
+		if (DEBUG) Log.w(TAG, t);
+		try {
+			mCallback.onError(t);
+		} catch (final Exception e) {
+			Log.w(TAG, e);
+		}
+	}
+
+	private static void release(@NonNull final MediaMetadataRetriever retriever) {
+		try {
+			retriever.release();
+		} catch (final Exception e) {
+			// ignore
+		}
+	}
+
+	/**
+	 * キャッシュエントリー用のキー文字列生成
+	 * @param index
+	 * @return
+	 */
+	@NonNull
+	private String getKey(final int index) {
+		return String.format(Locale.US, "%x@strip%d_%d_%dx%d",
+			mInfo.id, mCount, index, mWidth, mHeight);
+	}
+
+	/**
+	 * 動画ファイルの映像トラックのコーデックのMIMEを取得する
+	 * @return 取得できなければnull
+	 */
+	@Nullable
+	private String getVideoMime() {
+		final MediaExtractor extractor = new MediaExtractor();
+		try {
+			extractor.setDataSource(mContext, mInfo.getUri(), null);
+			final int n = extractor.getTrackCount();
+			final String[] mimes = new String[n];
+			for (int i = 0; i < n; i++) {
+				mimes[i] = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+			}
+			return selectVideoMime(mimes);
+		} catch (final Exception e) {
+			if (DEBUG) Log.w(TAG, e);
+		} finally {
+			extractor.release();
+		}
+		return null;
+	}
+
+	/**
+	 * トラック毎のMIMEの一覧から最初の映像トラックのMIMEを選択する
+	 * @param mimes
+	 * @return 映像トラックが無ければnull
+	 */
+	@Nullable
+	public static String selectVideoMime(@NonNull final String[] mimes) {
+		for (final String mime: mimes) {
+			if ((mime != null) && mime.toLowerCase(Locale.US).startsWith("video/")) {
+				return mime;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 並列に使うデコーダーの数を取得する
+	 * API>=23なら指定したMIMEに対応するデコーダーの最大インスタンス数の半分
+	 * (動画再生等の他の用途のために残しておく)とCPUコア数、MAX_DECODERSの最小値
+	 * デコーダーはMediaCodecIndexから探して、CodecCapabilitiesは
+	 * MediaCodecUtilsでキャッシュしたものを使う
+	 * @param mime 映像トラックのコーデックのMIME(video/avc等)
+	 * @return 1以上
+	 */
+	@SuppressLint("NewApi")
+	public static int getMaxDecoders(@Nullable final String mime) {
+		int maxInstances = 0;
+		if (BuildCheck.isAPI23() && !TextUtils.isEmpty(mime)) {
+			for (final MediaCodecIndex.CodecEntry entry: MediaCodecIndex.getDecoders(mime)) {
+				final MediaCodecInfo info = MediaCodecUtils.findCodecInfo(entry.name);
+				if (info == null) continue;
+				for (final String type: entry.types) {
+					if (type.equalsIgnoreCase(mime)) {
+						try {
+							final MediaCodecInfo.CodecCapabilities caps
+								= MediaCodecUtils.getCodecCapabilities(info, type);
+							if (caps != null) {
+								maxInstances = Math.max(maxInstances,
+									caps.getMaxSupportedInstances());	// API>=23
+							}
+						} catch (final Exception e) {
+							if (DEBUG) Log.w(TAG, e);
+						}
+					}
+				}
+			}
+		}
+		return getMaxDecoders(Runtime.getRuntime().availableProcessors(), maxInstances);
+	}
+
+	/**
+	 * 並列に使うデコーダーの数を計算する
+	 * @param numCpus CPUコア数
+	 * @param maxInstances デコーダーの最大インスタンス数, 0以下なら不明
+	 * @return 1以上
+	 */
+	public static int getMaxDecoders(final int numCpus, final int maxInstances) {
+		int result = Math.min(numCpus, MAX_DECODERS);
+		if (maxInstances > 0) {
+			result = Math.min(result, maxInstances / 2);
+		}
+		return Math.max(result, 1);
+	}
+}
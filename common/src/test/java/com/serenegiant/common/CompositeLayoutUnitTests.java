@@ -0,0 +1,225 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.glutils.CompositeLayout;
+import com.serenegiant.math.Fraction;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.glutils.CompositeLayout用のローカルユニットテストクラス
+ * 重ね順・座標変換・再合成が必要かどうかの判定と合成用シェーダーの生成をテストする
+ */
+public class CompositeLayoutUnitTests {
+
+	private static final float EPS = 1e-6f;
+	private static final long FRAME_NS = 33333333L;	// 30fps
+
+	/**
+	 * 表示する映像入力を重ね順(同じならインデックス順)に並べて
+	 * 左上原点の表示位置をGLの座標系へ変換するかどうか
+	 */
+	@Test
+	public void order() {
+		final CompositeLayout layout = new CompositeLayout(4);
+		final CompositeLayout.Composition c = new CompositeLayout.Composition();
+		// フレームを受け取っていない映像入力は合成しない
+		assertTrue(layout.poll(c));
+		assertEquals(0, c.getCount());
+		for (int i = 0; i < 4; i++) {
+			layout.onFrameAvailable(i, 0);
+		}
+		assertEquals(0x0f, layout.pollNewFrames());
+		layout.setZOrder(0, 5);
+		layout.setZOrder(2, 1);	// 映像入力1と同じ重ね順
+		layout.setVisible(3, false);
+		layout.setAlpha(1, 2.0f);	// 1へ丸める
+		layout.setRect(2, 0.5f, 0.0f, 1.0f, 0.25f);
+		assertTrue(layout.poll(c));
+		assertEquals(3, c.getCount());
+		assertEquals(1, c.getInput(0));
+		assertEquals(2, c.getInput(1));
+		assertEquals(0, c.getInput(2));
+		assertEquals(1.0f, c.getAlpha(0), EPS);
+		assertArrayEquals(new float[] {0.5f, 0.75f, 1.0f, 1.0f},
+			c.getRect(1, new float[4]), EPS);
+		assertArrayEquals(new float[] {0.0f, 0.0f, 1.0f, 1.0f},
+			c.getRect(2, new float[4]), EPS);
+		// 透明・空の表示位置の映像入力も合成しない
+		layout.setAlpha(1, 0.0f);
+		layout.setRect(0, 0.5f, 0.5f, 0.5f, 1.0f);
+		assertTrue(layout.poll(c));
+		assertEquals(1, c.getCount());
+		assertEquals(2, c.getInput(0));
+		try {
+			layout.setZOrder(4, 0);
+			fail("should throw IllegalArgumentException");
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * 新しいフレームかレイアウトの変更があったときだけ再合成が必要になって、
+	 * 最大フレームレートを超えるフレームや非表示の映像入力のフレームでは再合成しないかどうか
+	 */
+	@Test
+	public void dirty() {
+		final CompositeLayout layout = new CompositeLayout(2);
+		final CompositeLayout.Composition c = new CompositeLayout.Composition();
+		layout.setMaxFps(1, new Fraction(10));
+		layout.onFrameAvailable(0, 0);
+		layout.onFrameAvailable(1, 0);
+		assertEquals(0x03, layout.pollNewFrames());
+		assertTrue(layout.poll(c));
+		assertEquals(2, c.getCount());
+		// 変更がなければ再合成しない
+		assertEquals(0, layout.pollNewFrames());
+		assertFalse(layout.poll(c));
+		assertFalse(layout.setZOrder(1, 1));
+		assertFalse(layout.poll(c));
+		assertEquals(1, layout.getComposedCount());
+		assertEquals(2, layout.getSkippedCount());
+		// 30fpsの映像入力1を10fpsに間引くと3フレームに1回だけ再合成する
+		int composed = 0;
+		for (int i = 1; i <= 30; i++) {
+			layout.onFrameAvailable(1, i * FRAME_NS);
+			// 間引いたフレームでも取り込みは必要
+			assertEquals(0x02, layout.pollNewFrames());
+			if (layout.poll(c)) {
+				composed++;
+			}
+		}
+		assertEquals(10, composed);
+		assertEquals(0, layout.pollNewFrames());
+		// 非表示の映像入力のフレームでは再合成しない
+		assertFalse(layout.poll(c));
+		layout.setVisible(0, false);
+		assertTrue(layout.poll(c));
+		assertFalse(layout.onFrameAvailable(0, 0));
+		assertEquals(0x01, layout.pollNewFrames());
+		assertFalse(layout.poll(c));
+		// 制限なしの映像入力は毎フレーム再合成する
+		layout.setVisible(0, true);
+		assertTrue(layout.poll(c));
+		assertTrue(layout.onFrameAvailable(0, FRAME_NS));
+		// フレームを取り込むまでは再合成しない
+		assertFalse(layout.isDirty());
+		assertEquals(0x01, layout.pollNewFrames());
+		assertTrue(layout.poll(c));
+		layout.invalidate();
+		assertTrue(layout.isDirty());
+		assertTrue(layout.poll(c));
+	}
+
+	/**
+	 * #pollNewFrames(フレームの取り込み)と#pollの間に最初のフレームを受け取った映像入力は
+	 * テクスチャの内容が不定なのでその#pollでは合成せずに、次にフレームを取り込んだときに再合成するかどうか
+	 */
+	@Test
+	public void latch() {
+		final CompositeLayout layout = new CompositeLayout(2);
+		final CompositeLayout.Composition c = new CompositeLayout.Composition();
+		layout.onFrameAvailable(0, 0);
+		assertEquals(0x01, layout.pollNewFrames());
+		// 映像入力1の最初のフレームを取り込む前に合成する
+		assertTrue(layout.onFrameAvailable(1, 0));
+		assertTrue(layout.poll(c));
+		assertEquals(1, c.getCount());
+		assertEquals(0, c.getInput(0));
+		assertFalse(layout.poll(c));
+		// 取り込めば映像入力1も合成する
+		assertEquals(0x02, layout.pollNewFrames());
+		assertTrue(layout.isDirty());
+		assertTrue(layout.poll(c));
+		assertEquals(2, c.getCount());
+		assertEquals(1, c.getInput(1));
+	}
+
+	/**
+	 * 合成用シェーダーへ引き渡すuniformの値を映像入力毎のテクスチャ変換行列と組み合わせて生成するかどうか
+	 */
+	@Test
+	public void uniforms() {
+		final CompositeLayout layout = new CompositeLayout(2);
+		final CompositeLayout.Composition c = new CompositeLayout.Composition();
+		layout.onFrameAvailable(0, 0);
+		layout.onFrameAvailable(1, 0);
+		assertEquals(0x03, layout.pollNewFrames());
+		layout.setZOrder(0, 2);
+		layout.setAlpha(0, 0.5f);
+		layout.setRect(0, 0.75f, 0.0f, 1.0f, 0.5f);
+		assertTrue(layout.poll(c));
+		final float[][] texMatrices = new float[2][];
+		// 映像入力0は上下反転, 映像入力1は単位行列
+		texMatrices[0] = new float[] {
+			1, 0, 0, 0,
+			0, -1, 0, 0,
+			0, 0, 1, 0,
+			0, 1, 0, 1,
+		};
+		texMatrices[1] = new float[] {
+			1, 0, 0, 0,
+			0, 1, 0, 0,
+			0, 0, 1, 0,
+			0, 0, 0, 1,
+		};
+		final float[] rects = new float[8];
+		final float[] tex = new float[8];
+		final float[] params = new float[8];
+		c.getUniforms(texMatrices, rects, tex, params);
+		assertArrayEquals(new float[] {
+			0.0f, 0.0f, 1.0f, 1.0f,
+			0.75f, 0.5f, 4.0f, 2.0f}, rects, EPS);
+		assertArrayEquals(new float[] {
+			1.0f, 0.0f, 0.0f, 1.0f,
+			1.0f, 0.0f, 0.0f, -1.0f}, tex, EPS);
+		assertArrayEquals(new float[] {
+			0.0f, 0.0f, 1.0f, 0.0f,
+			0.0f, 1.0f, 0.5f, 0.0f}, params, EPS);
+	}
+
+	/**
+	 * 重ね順の数だけサンプラーを宣言した合成用シェーダーを生成するかどうか
+	 */
+	@Test
+	public void shader() {
+		final String es2 = CompositeLayout.createFragmentShader(3, false);
+		assertTrue(es2.startsWith("#version 100\n"));
+		assertTrue(es2.contains("uniform samplerExternalOES sTexture2;"));
+		assertFalse(es2.contains("sTexture3"));
+		assertTrue(es2.contains("uniform vec4 uRect[3];"));
+		assertTrue(es2.contains("texture2D(sTexture0,"));
+		assertTrue(es2.contains("gl_FragColor"));
+		final String es3 = CompositeLayout.createFragmentShader(CompositeLayout.MAX_INPUTS, true);
+		assertTrue(es3.startsWith("#version 300 es\n"));
+		assertTrue(es3.contains("GL_OES_EGL_image_external_essl3"));
+		assertTrue(es3.contains("texture(sTexture7,"));
+		assertTrue(es3.contains("o_FragColor"));
+		try {
+			CompositeLayout.createFragmentShader(CompositeLayout.MAX_INPUTS + 1, false);
+			fail("should throw IllegalArgumentException");
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.mediaeffect.CpuEffectEngine;
+import com.serenegiant.mediaeffect.ICpuEffect;
+import com.serenegiant.mediaeffect.MediaEffectCpuAlphaBlend;
+import com.serenegiant.mediaeffect.MediaEffectCpuCanny;
+import com.serenegiant.mediaeffect.MediaEffectCpuKernel;
+import com.serenegiant.mediaeffect.MediaEffectCpuMorphology;
+import com.serenegiant.mediaeffect.MediaEffectCpuPointwise;
+import com.serenegiant.mediaeffect.MediaEffectGLBrightness;
+import com.serenegiant.mediaeffect.MediaEffectGLSaturate;
+import com.serenegiant.mediaeffect.SeparableKernel;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import androidx.annotation.NonNull;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.mediaeffect.CpuEffectEngineとICpuEffect実装用のローカルユニットテストクラス
+ */
+public class CpuEffectEngineUnitTests {
+
+	private static final int W = 37;
+	private static final int H = 29;
+
+	private static int[] createImage(final long seed) {
+		final Random random = new Random(seed);
+		final int[] result = new int[W * H];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = random.nextInt();
+		}
+		return result;
+	}
+
+	@NonNull
+	private static List<ICpuEffect> createEffects() {
+		return Arrays.<ICpuEffect>asList(
+			MediaEffectCpuPointwise.brightness(0.2f),
+			MediaEffectCpuPointwise.exposure(-0.5f),
+			MediaEffectCpuPointwise.saturate(0.5f),
+			MediaEffectCpuPointwise.posterize(4.0f),
+			new MediaEffectCpuKernel(new float[] {-1f, -1f, -1f, -1f, 8f, -1f, -1f, -1f, -1f}, 0.0f),
+			new MediaEffectCpuMorphology(SeparableKernel.MODE_DILATION, 2),
+			new MediaEffectCpuMorphology(SeparableKernel.MODE_EROSION, 3),
+			new MediaEffectCpuCanny(),
+			new MediaEffectCpuAlphaBlend(0.7f).setOverlay(createImage(2)));
+	}
+
+	/**
+	 * タイルに分割して複数スレッドで処理した結果が1スレッドで処理した結果と一致するかどうか
+	 */
+	@Test
+	public void parallelMatchesSerial() {
+		final int[] src = createImage(1);
+		final CpuEffectEngine serial = new CpuEffectEngine(1, H);
+		final CpuEffectEngine parallel = new CpuEffectEngine(4, 3);
+		try {
+			for (final ICpuEffect effect: createEffects()) {
+				final int[] expected = new int[W * H];
+				final int[] actual = new int[W * H];
+				serial.apply(effect, src, expected, W, H);
+				parallel.apply(effect, src, actual, W, H);
+				assertArrayEquals(effect.getClass().getSimpleName(), expected, actual);
+			}
+		} finally {
+			serial.release();
+			parallel.release();
+		}
+	}
+
+	/**
+	 * 画素毎の映像効果がシェーダーと同じ計算をするかどうか
+	 */
+	@Test
+	public void pointwise() {
+		final int[] src = {0x80102030, 0xff000000, 0x00ffffff};
+		final int[] dst = new int[src.length];
+		MediaEffectCpuPointwise.brightness(0.5f).apply(src, dst, 3, 1, 0, 1);
+		// アルファ値はそのままでRGBに0.5(127.5)を加算する
+		assertArrayEquals(new int[] {0x8090a0b0, 0xff808080, 0x00ffffff}, dst);
+		MediaEffectCpuPointwise.saturate(-1.0f).apply(src, dst, 3, 1, 0, 1);
+		// グレースケール
+		for (final int c: dst) {
+			assertEquals((c >> 16) & 0xff, c & 0xff);
+			assertEquals((c >> 8) & 0xff, c & 0xff);
+		}
+		assertEquals(0x80ffffff & src[2], dst[2]);
+		MediaEffectCpuPointwise.posterize(1.0f).apply(src, dst, 3, 1, 0, 1);
+		// 1階調なら0.5以上が1.0、未満が0.0になる, アルファ値も変換する
+		assertArrayEquals(new int[] {0xff000000, 0xff000000, 0x00ffffff}, dst);
+		// 明るさ・露出は0なら無効
+		assertFalse(MediaEffectCpuPointwise.brightness(0.0f).enabled());
+		assertFalse(MediaEffectCpuPointwise.exposure(0.0f).enabled());
+		// GLの映像効果と同じパラメータで生成できる
+		final MediaEffectCpuPointwise saturate
+			= MediaEffectCpuPointwise.create(MediaEffectGLSaturate.POINTWISE_SNIPPET, 0.3f);
+		assertNotNull(saturate);
+		assertEquals(MediaEffectCpuPointwise.TYPE_SATURATE, saturate.getType());
+		assertEquals(0.3f, saturate.getParam(), 0.0f);
+		assertEquals(MediaEffectCpuPointwise.TYPE_BRIGHTNESS,
+			MediaEffectCpuPointwise.create(MediaEffectGLBrightness.POINTWISE_SNIPPET, 0.1f).getType());
+		assertNull(MediaEffectCpuPointwise.create("color.rgb = vec3(0.0);\n", 0.0f));
+	}
+
+	/**
+	 * 恒等カーネルなら入力映像と一致し、Dilation/Erosionは菱形の近傍の最大値/最小値になるかどうか
+	 */
+	@Test
+	public void neighbourhood() {
+		final int[] src = createImage(3);
+		final int[] dst = new int[W * H];
+		final CpuEffectEngine engine = new CpuEffectEngine(3, 4);
+		try {
+			engine.apply(new MediaEffectCpuKernel(
+				new float[] {0f, 0f, 0f, 0f, 1f, 0f, 0f, 0f, 0f}, 0.0f), src, dst, W, H);
+			assertArrayEquals(src, dst);
+			final int radius = 2;
+			engine.apply(new MediaEffectCpuMorphology(SeparableKernel.MODE_DILATION, radius),
+				src, dst, W, H);
+			for (int y = 0; y < H; y++) {
+				for (int x = 0; x < W; x++) {
+					int g = 0;
+					for (int j = -radius; j <= radius; j++) {
+						for (int i = -radius; i <= radius; i++) {
+							if (Math.abs(i) + Math.abs(j) <= radius) {
+								final int sx = Math.max(0, Math.min(W - 1, x + i));
+								final int sy = Math.max(0, Math.min(H - 1, y + j));
+								g = Math.max(g, (src[sy * W + sx] >> 8) & 0xff);
+							}
+						}
+					}
+					assertEquals(g, (dst[y * W + x] >> 8) & 0xff);
+					assertEquals(0xff, dst[y * W + x] >>> 24);
+				}
+			}
+		} finally {
+			engine.release();
+		}
+	}
+
+	/**
+	 * 複数の映像効果を順に適用した結果が1つずつ適用した結果と一致し、無効な映像効果はスキップするかどうか
+	 */
+	@Test
+	public void chain() {
+		final int[] src = createImage(4);
+		final int[] copy = src.clone();
+		final List<ICpuEffect> effects = createEffects();
+		final CpuEffectEngine engine = new CpuEffectEngine(4, 5);
+		try {
+			for (int n = 1; n <= effects.size(); n++) {
+				final List<ICpuEffect> list = effects.subList(0, n);
+				int[] expected = src;
+				for (final ICpuEffect effect: list) {
+					final int[] out = new int[W * H];
+					engine.apply(effect, expected, out, W, H);
+					expected = out;
+				}
+				final int[] actual = new int[W * H];
+				engine.apply(list, src, actual, W, H);
+				assertArrayEquals("n=" + n, expected, actual);
+				assertArrayEquals(copy, src);
+			}
+			// 全て無効なら入力映像をそのままコピーする
+			final int[] actual = new int[W * H];
+			engine.apply(Arrays.<ICpuEffect>asList(
+				MediaEffectCpuPointwise.brightness(0.0f),
+				new MediaEffectCpuCanny().setEnable(false)), src, actual, W, H);
+			assertArrayEquals(src, actual);
+		} finally {
+			engine.release();
+		}
+	}
+
+	/**
+	 * int配列を持たないIntBufferでも処理できるかどうか
+	 */
+	@Test
+	public void intBuffer() {
+		final int[] src = createImage(5);
+		final int[] expected = new int[W * H];
+		final ICpuEffect effect = MediaEffectCpuPointwise.exposure(0.5f);
+		final CpuEffectEngine engine = new CpuEffectEngine();
+		try {
+			engine.apply(effect, src, expected, W, H);
+			final IntBuffer in = ByteBuffer.allocateDirect(W * H * 4)
+				.order(ByteOrder.nativeOrder()).asIntBuffer();
+			in.put(src).flip();
+			final IntBuffer out = ByteBuffer.allocateDirect(W * H * 4)
+				.order(ByteOrder.nativeOrder()).asIntBuffer();
+			engine.apply(effect, in, out, W, H);
+			final int[] actual = new int[W * H];
+			out.get(actual);
+			assertArrayEquals(expected, actual);
+			final int[] wrapped = new int[W * H];
+			engine.apply(effect, IntBuffer.wrap(src), IntBuffer.wrap(wrapped), W, H);
+			assertArrayEquals(expected, wrapped);
+		} finally {
+			engine.release();
+		}
+	}
+
+	/**
+	 * ワーカースレッドで発生した例外を呼び出し元スレッドへ投げるかどうか
+	 */
+	@Test
+	public void error() {
+		final CpuEffectEngine engine = new CpuEffectEngine(4, 1);
+		try {
+			engine.apply(new ICpuEffect() {
+				@Override
+				public void apply(@NonNull final int[] src, @NonNull final int[] dst,
+					final int width, final int height, final int startY, final int endY) {
+					if (startY == H / 2) {
+						throw new IllegalStateException("test");
+					}
+				}
+
+				@Override
+				public boolean enabled() {
+					return true;
+				}
+			}, new int[W * H], new int[W * H], W, H);
+			fail("should throw IllegalStateException");
+		} catch (final IllegalStateException e) {
+			assertEquals("test", e.getMessage());
+		} finally {
+			engine.release();
+		}
+		try {
+			new CpuEffectEngine(1, 1).apply(MediaEffectCpuPointwise.posterize(2.0f),
+				new int[W * H], new int[W * H - 1], W, H);
+			fail("should throw IllegalArgumentException");
+		} catch (final IllegalArgumentException e) {
+			// ignore
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+
+import com.serenegiant.glutils.FramePacingScheduler;
+import com.serenegiant.math.Fraction;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.glutils.FramePacingScheduler用のローカルユニットテストクラス
+ */
+public class FramePacingSchedulerUnitTests {
+
+	private static final long NANOS_PER_SEC = 1000000000L;
+	private static final long SRC_INTERVAL_NS = NANOS_PER_SEC / 30;
+
+	/**
+	 * 30fpsの映像ソースを指定したフレーム数だけ流して描画したフレーム数を返す
+	 * @param scheduler
+	 * @param id
+	 * @param frames
+	 * @param jitterNs 0以外ならフレーム毎に±jitterNsの揺らぎを加える
+	 * @return
+	 */
+	private static int run(final FramePacingScheduler scheduler, final int id,
+		final int frames, final long jitterNs) {
+
+		int drawn = 0;
+		for (int i = 0; i < frames; i++) {
+			final long jitter = jitterNs != 0 ? ((i % 2 == 0) ? jitterNs : -jitterNs) : 0;
+			scheduler.onFrame(i * SRC_INTERVAL_NS + jitter);
+			if (scheduler.isDue(id)) {
+				drawn++;
+			}
+		}
+		return drawn;
+	}
+
+	/**
+	 * 30fps→15fpsなら1フレームおきに描画するかどうか
+	 */
+	@Test
+	public void halfRate() {
+		final FramePacingScheduler scheduler = new FramePacingScheduler();
+		scheduler.add(1, new Fraction(15));
+		assertEquals(150, run(scheduler, 1, 300, 0));
+		assertEquals(150, scheduler.getDrawnFrames(1));
+		assertEquals(150, scheduler.getSkippedFrames(1));
+		assertEquals(15.0f, scheduler.getFps(1), 0.1f);
+	}
+
+	/**
+	 * 30fps→12.5fpsのような整数比でない間引きでも誤差が蓄積しないかどうか
+	 */
+	@Test
+	public void fractionalRate() {
+		final FramePacingScheduler scheduler = new FramePacingScheduler();
+		scheduler.add(1, new Fraction(25, 2));
+		// 12フレーム毎に5フレーム描画する
+		assertEquals(5, run(scheduler, 1, 12, 0));
+		final FramePacingScheduler scheduler2 = new FramePacingScheduler();
+		scheduler2.add(1, new Fraction(25, 2));
+		// 1時間分でも誤差なし(ティックの基準を進めてもずれない)
+		assertEquals(30 * 3600 * 5 / 12, run(scheduler2, 1, 30 * 3600, 0));
+		assertEquals(12.5f, scheduler2.getFps(1), 0.1f);
+	}
+
+	/**
+	 * タイムスタンプに揺らぎがあっても描画フレーム数が変わらないかどうか
+	 */
+	@Test
+	public void jitter() {
+		final FramePacingScheduler scheduler = new FramePacingScheduler();
+		scheduler.add(1, new Fraction(15));
+		// フレーム間隔の1/4の揺らぎ
+		assertEquals(1500, run(scheduler, 1, 3000, SRC_INTERVAL_NS / 4));
+		final FramePacingScheduler scheduler2 = new FramePacingScheduler();
+		scheduler2.add(1, new Fraction(25, 2));
+		assertEquals(1250, run(scheduler2, 1, 3000, SRC_INTERVAL_NS / 4));
+	}
+
+	/**
+	 * 最大フレームレートの制限なし・映像ソースより高いフレームレート・未追加のid
+	 * なら全てのフレームを描画するかどうか
+	 */
+	@Test
+	public void unlimited() {
+		final FramePacingScheduler scheduler = new FramePacingScheduler();
+		scheduler.add(1, null);
+		scheduler.add(2, new Fraction(60));
+		assertEquals(300, run(scheduler, 1, 300, 0));
+		scheduler.clear();
+		scheduler.add(2, new Fraction(60));
+		assertEquals(300, run(scheduler, 2, 300, 0));
+		assertEquals(0, scheduler.getSkippedFrames(2));
+		assertEquals(300, run(scheduler, 3, 300, 0));
+		scheduler.remove(2);
+		assertEquals(0, scheduler.getDrawnFrames(2));
+	}
+
+	/**
+	 * ループ再生やシークでタイムスタンプが戻ったり大きく飛んだときも
+	 * 描画が止まらずに同じ間引き方で描画し続けるかどうか
+	 */
+	@Test
+	public void discontinuity() {
+		final FramePacingScheduler scheduler = new FramePacingScheduler();
+		scheduler.add(1, new Fraction(15));
+		assertEquals(150, run(scheduler, 1, 300, 0));
+		// 先頭へ戻った(ループ再生)
+		assertEquals(150, run(scheduler, 1, 300, 0));
+		// 途中へ戻った(シーク)
+		int drawn = 0;
+		for (int i = 0; i < 100; i++) {
+			scheduler.onFrame((100 + i) * SRC_INTERVAL_NS);
+			if (scheduler.isDue(1)) {
+				drawn++;
+			}
+		}
+		assertEquals(50, drawn);
+		// 大きく先へ飛んだ
+		drawn = 0;
+		for (int i = 0; i < 100; i++) {
+			scheduler.onFrame(3600 * NANOS_PER_SEC + i * SRC_INTERVAL_NS);
+			if (scheduler.isDue(1)) {
+				drawn++;
+			}
+		}
+		assertEquals(50, drawn);
+		assertEquals(400, scheduler.getDrawnFrames(1));
+		assertEquals(15.0f, scheduler.getFps(1), 0.1f);
+	}
+
+	/**
+	 * 分配描画先毎に独立してスケジュールするかどうか
+	 */
+	@Test
+	public void multiTargets() {
+		final FramePacingScheduler scheduler = new FramePacingScheduler();
+		scheduler.add(1, new Fraction(15));
+		scheduler.add(2, new Fraction(10));
+		scheduler.add(3, new Fraction(25, 2));
+		for (int i = 0; i < 300; i++) {
+			scheduler.onFrame(i * SRC_INTERVAL_NS);
+			for (int id = 1; id <= 3; id++) {
+				scheduler.isDue(id);
+			}
+		}
+		assertEquals(150, scheduler.getDrawnFrames(1));
+		assertEquals(100, scheduler.getDrawnFrames(2));
+		assertEquals(125, scheduler.getDrawnFrames(3));
+	}
+}
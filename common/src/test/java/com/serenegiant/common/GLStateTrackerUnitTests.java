@@ -0,0 +1,212 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.gl.GLStateTracker;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.gl.GLStateTracker用のローカルユニットテストクラス
+ * GLの代わりにFakeBackendを使って冗長な呼び出しをスキップするかどうかをテストする
+ */
+public class GLStateTrackerUnitTests {
+
+	private static final int GL_TEXTURE0 = 0x84C0;
+	private static final int GL_TEXTURE_2D = 0x0DE1;
+	private static final int GL_TEXTURE_EXTERNAL_OES = 0x8D65;
+	private static final float[] IDENTITY = {
+		1, 0, 0, 0,
+		0, 1, 0, 0,
+		0, 0, 1, 0,
+		0, 0, 0, 1,
+	};
+
+	/**
+	 * 呼び出されたGL|ESの関数を記録するだけのBackend
+	 */
+	private static class FakeBackend implements GLStateTracker.Backend {
+		private final List<String> calls = new ArrayList<>();
+
+		@Override
+		public void useProgram(final int program) {
+			calls.add("useProgram:" + program);
+		}
+
+		@Override
+		public void activeTexture(final int texUnit) {
+			calls.add("activeTexture:" + (texUnit - GL_TEXTURE0));
+		}
+
+		@Override
+		public void bindTexture(final int target, final int texId) {
+			calls.add("bindTexture:" + (target == GL_TEXTURE_2D ? "2D:" : "OES:") + texId);
+		}
+
+		@Override
+		public void uniform1i(final int location, final int value) {
+			calls.add("uniform1i:" + location);
+		}
+
+		@Override
+		public void uniformMatrix4fv(final int location,
+			@NonNull final float[] matrix, final int offset) {
+
+			calls.add("uniformMatrix4fv:" + location);
+		}
+	}
+
+	/**
+	 * GLDrawer2D#drawと同じ順で呼び出す
+	 */
+	private static void draw(@NonNull final GLStateTracker tracker,
+		final int program, final int texId, @NonNull final float[] mvp) {
+
+		tracker.useProgram(program);
+		tracker.uniformMatrix4fv(1, IDENTITY, 0);
+		tracker.uniformMatrix4fv(2, mvp, 0);
+		tracker.bindTexture(GL_TEXTURE0, GL_TEXTURE_2D, texId);
+		tracker.uniform1i(3, 0);
+		if (!tracker.isValidated()) {
+			tracker.setValidated();
+		}
+		tracker.finishDraw(GL_TEXTURE_2D);
+	}
+
+	/**
+	 * バッチ外ではキャッシュせずに全ての呼び出しをそのまま行うかどうか
+	 */
+	@Test
+	public void passThrough() {
+		final FakeBackend backend = new FakeBackend();
+		final GLStateTracker tracker = new GLStateTracker(backend);
+		draw(tracker, 5, 7, IDENTITY);
+		draw(tracker, 5, 7, IDENTITY);
+		final List<String> expected = Arrays.asList(
+			"useProgram:5", "uniformMatrix4fv:1", "uniformMatrix4fv:2",
+			"activeTexture:0", "bindTexture:2D:7", "uniform1i:3",
+			"bindTexture:2D:0", "useProgram:0");
+		final List<String> twice = new ArrayList<>(expected);
+		twice.addAll(expected);
+		assertEquals(twice, backend.calls);
+		assertEquals(0, tracker.getAvoidedCount());
+		assertFalse(tracker.isBatching());
+	}
+
+	/**
+	 * バッチ中は同じシェーダープログラム・テクスチャ・ユニフォーム変数を
+	 * セットし直さずにバインド解除を最後に1回だけ行うかどうか
+	 */
+	@Test
+	public void batch() {
+		final FakeBackend backend = new FakeBackend();
+		final GLStateTracker tracker = new GLStateTracker(backend);
+		tracker.beginBatch();
+		draw(tracker, 5, 7, IDENTITY);
+		assertEquals(Arrays.asList(
+			"useProgram:5", "uniformMatrix4fv:1", "uniformMatrix4fv:2",
+			"activeTexture:0", "bindTexture:2D:7", "uniform1i:3"), backend.calls);
+		backend.calls.clear();
+		draw(tracker, 5, 7, IDENTITY);
+		draw(tracker, 5, 7, IDENTITY);
+		assertTrue(backend.calls.isEmpty());
+		// 値が変わったユニフォーム変数だけセットする
+		final float[] mvp = IDENTITY.clone();
+		mvp[0] = -1;
+		draw(tracker, 5, 7, mvp);
+		assertEquals(Arrays.asList("uniformMatrix4fv:2"), backend.calls);
+		backend.calls.clear();
+		tracker.endBatch();
+		assertEquals(Arrays.asList(
+			"activeTexture:0", "bindTexture:2D:0", "useProgram:0"), backend.calls);
+		assertEquals(3, tracker.getAvoidedPrograms());
+		assertEquals(6, tracker.getAvoidedTextures());
+		assertEquals(8, tracker.getAvoidedUniforms());
+		assertEquals(3, tracker.getAvoidedValidations());
+		assertEquals(8, tracker.getAvoidedUnbinds());
+		assertEquals(4, tracker.getBatchedDraws());
+		assertEquals(3 + 6 + 8 + 3 * 2 + 8, tracker.getAvoidedCount());
+		// 次のバッチではステートが不明なところから始める
+		backend.calls.clear();
+		tracker.beginBatch();
+		tracker.useProgram(5);
+		tracker.endBatch();
+		assertEquals(Arrays.asList("useProgram:5", "useProgram:0"), backend.calls);
+		tracker.resetStats();
+		assertEquals(0, tracker.getAvoidedCount());
+	}
+
+	/**
+	 * シェーダープログラム・テクスチャユニット・テクスチャターゲット毎にキャッシュするかどうか
+	 */
+	@Test
+	public void perProgramAndUnit() {
+		final FakeBackend backend = new FakeBackend();
+		final GLStateTracker tracker = new GLStateTracker(backend);
+		tracker.beginBatch();
+		tracker.useProgram(5);
+		tracker.uniformMatrix4fv(1, IDENTITY, 0);
+		tracker.useProgram(6);
+		tracker.uniformMatrix4fv(1, IDENTITY, 0);
+		// シェーダープログラム5のユニフォーム変数は変わっていない
+		tracker.useProgram(5);
+		tracker.uniformMatrix4fv(1, IDENTITY, 0);
+		assertEquals(Arrays.asList("useProgram:5", "uniformMatrix4fv:1",
+			"useProgram:6", "uniformMatrix4fv:1", "useProgram:5"), backend.calls);
+		// 破棄したシェーダープログラムのキャッシュは使わない
+		tracker.onProgramDeleted(5);
+		tracker.useProgram(5);
+		tracker.uniformMatrix4fv(1, IDENTITY, 0);
+		assertFalse(tracker.isValidated());
+		backend.calls.clear();
+		tracker.bindTexture(GL_TEXTURE0, GL_TEXTURE_2D, 7);
+		tracker.bindTexture(GL_TEXTURE0 + 1, GL_TEXTURE_EXTERNAL_OES, 8);
+		tracker.bindTexture(GL_TEXTURE0, GL_TEXTURE_2D, 7);
+		tracker.bindTexture(GL_TEXTURE0, GL_TEXTURE_EXTERNAL_OES, 8);
+		assertEquals(Arrays.asList(
+			"activeTexture:0", "bindTexture:2D:7",
+			"activeTexture:1", "bindTexture:OES:8",
+			"activeTexture:0",
+			"bindTexture:OES:8"), backend.calls);
+		// #invalidateの後は全てセットし直す
+		tracker.invalidate();
+		backend.calls.clear();
+		tracker.useProgram(5);
+		tracker.bindTexture(GL_TEXTURE0, GL_TEXTURE_2D, 7);
+		assertEquals(Arrays.asList(
+			"useProgram:5", "activeTexture:0", "bindTexture:2D:7"), backend.calls);
+		// ネストしたときは一番外側の#endBatchで終了する
+		tracker.beginBatch();
+		tracker.endBatch();
+		assertTrue(tracker.isBatching());
+		backend.calls.clear();
+		tracker.endBatch();
+		assertFalse(tracker.isBatching());
+		assertEquals(Arrays.asList(
+			"activeTexture:0", "bindTexture:2D:0", "useProgram:0"), backend.calls);
+	}
+}
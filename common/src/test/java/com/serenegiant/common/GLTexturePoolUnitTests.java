@@ -0,0 +1,249 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.gl.GLTexturePool;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.Nullable;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.gl.GLTexturePool用のローカルユニットテストクラス
+ * GLの代わりにFakeBackendを使ってプールのキー、LRUでの破棄、統計情報をテストする
+ */
+public class GLTexturePoolUnitTests {
+
+	private static final int GL_TEXTURE_2D = 0x0DE1;
+	private static final int GL_RGBA = 0x1908;
+	private static final int GL_LINEAR = 0x2601;
+	private static final int GL_NEAREST = 0x2600;
+	private static final int FBO = GLTexturePool.FLAG_FRAMEBUFFER;
+
+	/**
+	 * 破棄したテクスチャ等を記録するだけのBackend
+	 */
+	private static class FakeBackend implements GLTexturePool.Backend {
+		private Object context = "context1";
+		/**
+		 * EGLコンテキスト毎の次のテクスチャ等の名前
+		 */
+		private final Map<Object, Integer> nextNames = new HashMap<>();
+		private final List<Integer> deletedTextures = new ArrayList<>();
+		private final List<Integer> deletedFrameBuffers = new ArrayList<>();
+		private final List<Integer> deletedRenderBuffers = new ArrayList<>();
+
+		@Nullable
+		@Override
+		public Object getCurrentContext() {
+			return context;
+		}
+
+		@Override
+		public void deleteTexture(final int texId) {
+			deletedTextures.add(texId);
+		}
+
+		@Override
+		public void deleteFrameBuffer(final int frameBuffer) {
+			deletedFrameBuffers.add(frameBuffer);
+		}
+
+		@Override
+		public void deleteRenderBuffer(final int renderBuffer) {
+			deletedRenderBuffers.add(renderBuffer);
+		}
+
+		/**
+		 * 呼び出し元でテクスチャ等を生成したときの名前を割り当てる
+		 * 実際のGL|ESと同じくEGLコンテキスト毎に1からの連番なので
+		 * 別のEGLコンテキストでは同じ名前を再利用する
+		 * @return
+		 */
+		private int genName() {
+			final Integer next = nextNames.get(context);
+			final int result = next != null ? next : 1;
+			nextNames.put(context, result + 1);
+			return result;
+		}
+	}
+
+	/**
+	 * 条件が全て同じときだけ再利用するかどうか
+	 */
+	@Test
+	public void obtainAndRecycle() {
+		final FakeBackend backend = new FakeBackend();
+		final GLTexturePool pool = new GLTexturePool(backend);
+		assertNull(pool.obtain(GL_TEXTURE_2D, 64, 32, GL_RGBA, FBO, GL_LINEAR));
+		assertEquals(1, pool.getMissCount());
+		assertTrue(pool.recycle(GL_TEXTURE_2D, 64, 32, GL_RGBA, FBO, GL_LINEAR, 1, 2, -1));
+		assertEquals(64 * 32 * 4, pool.getBytesHeld());
+		assertEquals(1, pool.getPooledCount());
+		// サイズ・種類・補間方法が違えば再利用しない
+		assertNull(pool.obtain(GL_TEXTURE_2D, 32, 64, GL_RGBA, FBO, GL_LINEAR));
+		assertNull(pool.obtain(GL_TEXTURE_2D, 64, 32, GL_RGBA, 0, GL_LINEAR));
+		assertNull(pool.obtain(GL_TEXTURE_2D, 64, 32, GL_RGBA, FBO, GL_NEAREST));
+		assertNull(pool.obtain(GL_TEXTURE_2D, 64, 32, GL_RGBA,
+			FBO | GLTexturePool.FLAG_DEPTH, GL_LINEAR));
+		// 別のEGLコンテキストのものは再利用しない
+		backend.context = "context2";
+		assertNull(pool.obtain(GL_TEXTURE_2D, 64, 32, GL_RGBA, FBO, GL_LINEAR));
+		backend.context = "context1";
+		final GLTexturePool.Resource resource
+			= pool.obtain(GL_TEXTURE_2D, 64, 32, GL_RGBA, FBO, GL_LINEAR);
+		assertNotNull(resource);
+		assertEquals(1, resource.texId);
+		assertEquals(2, resource.frameBuffer);
+		assertEquals(-1, resource.depthBuffer);
+		assertEquals(1, pool.getHitCount());
+		assertEquals(6, pool.getMissCount());
+		assertEquals(0, pool.getBytesHeld());
+		assertEquals(0, pool.getPooledCount());
+		assertTrue(backend.deletedTextures.isEmpty());
+	}
+
+	/**
+	 * 上限を超えたときに最も長く使われていないものから破棄するかどうか
+	 */
+	@Test
+	public void lruEviction() {
+		final FakeBackend backend = new FakeBackend();
+		final GLTexturePool pool = new GLTexturePool(backend);
+		final int bytes = 16 * 16 * 4;
+		pool.setBudget(bytes * 3);
+		assertTrue(pool.recycle(GL_TEXTURE_2D, 16, 16, GL_RGBA, FBO, GL_LINEAR, 1, 11, -1));
+		assertTrue(pool.recycle(GL_TEXTURE_2D, 16, 16, GL_RGBA, 0, GL_LINEAR, 2, -1, -1));
+		assertTrue(pool.recycle(GL_TEXTURE_2D, 16, 16, GL_RGBA, FBO, GL_LINEAR, 3, 13, -1));
+		assertEquals(bytes * 3, pool.getBytesHeld());
+		// 同じキーなら最後に返却されたものを再利用する
+		assertEquals(3, pool.obtain(GL_TEXTURE_2D, 16, 16, GL_RGBA, FBO, GL_LINEAR).texId);
+		assertTrue(pool.recycle(GL_TEXTURE_2D, 16, 16, GL_RGBA, FBO, GL_LINEAR, 3, 13, -1));
+		// 4つ目で上限を超えるので最も古いテクスチャ1を破棄する
+		assertTrue(pool.recycle(GL_TEXTURE_2D, 16, 16, GL_RGBA, 0, GL_LINEAR, 4, -1, -1));
+		assertEquals(1, pool.getEvictedCount());
+		assertEquals(listOf(1), backend.deletedTextures);
+		assertEquals(listOf(11), backend.deletedFrameBuffers);
+		// 上限を下げると古いものから破棄する
+		pool.setBudget(bytes);
+		assertEquals(listOf(1, 2, 3), backend.deletedTextures);
+		assertEquals(bytes, pool.getBytesHeld());
+		assertEquals(1, pool.getPooledCount());
+		// 上限より大きいものはプールしない
+		assertFalse(pool.recycle(GL_TEXTURE_2D, 32, 32, GL_RGBA, 0, GL_LINEAR, 5, -1, -1));
+		// デプスバッファ付きは1ピクセルあたり2バイト多く数える
+		pool.setBudget(16 * 16 * 6);
+		assertTrue(pool.recycle(GL_TEXTURE_2D, 16, 16, GL_RGBA,
+			FBO | GLTexturePool.FLAG_DEPTH, GL_LINEAR, 6, 16, 26));
+		assertEquals(listOf(1, 2, 3, 4), backend.deletedTextures);
+		assertEquals(16 * 16 * 6, pool.getBytesHeld());
+		// デプスバッファとフレームバッファオブジェクトもテクスチャと一緒に破棄する
+		pool.trim();
+		assertEquals(0, pool.getBytesHeld());
+		assertEquals(0, pool.getPooledCount());
+		assertEquals(listOf(1, 2, 3, 4, 6), backend.deletedTextures);
+		assertEquals(listOf(11, 13, 16), backend.deletedFrameBuffers);
+		assertEquals(listOf(26), backend.deletedRenderBuffers);
+		assertEquals(5, pool.getEvictedCount());
+	}
+
+	/**
+	 * EGLコンテキストが無いときはプールせず、破棄したEGLコンテキストのものは
+	 * glDeleteXXXを呼ばずにプールから削除するかどうか
+	 */
+	@Test
+	public void perContext() {
+		final FakeBackend backend = new FakeBackend();
+		final GLTexturePool pool = new GLTexturePool(backend);
+		assertTrue(pool.recycle(GL_TEXTURE_2D, 8, 8, GL_RGBA, 0, GL_LINEAR, 1, -1, -1));
+		backend.context = "context2";
+		assertTrue(pool.recycle(GL_TEXTURE_2D, 8, 8, GL_RGBA, 0, GL_LINEAR, 2, -1, -1));
+		assertEquals(2, pool.getPooledCount());
+		pool.removeContext("context1");
+		assertEquals(1, pool.getPooledCount());
+		assertTrue(backend.deletedTextures.isEmpty());
+		assertEquals(2, pool.obtain(GL_TEXTURE_2D, 8, 8, GL_RGBA, 0, GL_LINEAR).texId);
+		backend.context = null;
+		assertFalse(pool.recycle(GL_TEXTURE_2D, 8, 8, GL_RGBA, 0, GL_LINEAR, 3, -1, -1));
+		assertNull(pool.obtain(GL_TEXTURE_2D, 8, 8, GL_RGBA, 0, GL_LINEAR));
+		// 上限0ならプールしない
+		backend.context = "context1";
+		pool.setBudget(0);
+		assertFalse(pool.recycle(GL_TEXTURE_2D, 8, 8, GL_RGBA, 0, GL_LINEAR, 4, -1, -1));
+		assertEquals(0, pool.getPooledCount());
+	}
+
+	/**
+	 * EGLコンテキストが破棄されて同じハンドルのEGLコンテキストが生成されたときに
+	 * テクスチャ等の名前が同じでも古いテクスチャ等を返さないかどうか
+	 * (EGLコンテキストのトークンが変わるのでプールに当たらない)
+	 */
+	@Test
+	public void staleContext() {
+		final FakeBackend backend = new FakeBackend();
+		final GLTexturePool pool = new GLTexturePool(backend);
+		final Object token1 = new Object();
+		backend.context = token1;
+		final int tex1 = backend.genName();
+		final int fbo1 = backend.genName();
+		assertTrue(pool.recycle(GL_TEXTURE_2D, 8, 8, GL_RGBA, FBO, GL_LINEAR, tex1, fbo1, -1));
+		assertTrue(pool.recycle(GL_TEXTURE_2D, 16, 16, GL_RGBA, 0, GL_LINEAR,
+			backend.genName(), -1, -1));
+		// EGLコンテキストが破棄されて同じハンドルで新しいEGLコンテキストが生成された
+		final Object token2 = new Object();
+		backend.context = token2;
+		// 新しいEGLコンテキストでは同じ名前が別のテクスチャ等に割り当てられる
+		final int tex2 = backend.genName();
+		final int fbo2 = backend.genName();
+		assertEquals(tex1, tex2);
+		assertEquals(fbo1, fbo2);
+		assertNull(pool.obtain(GL_TEXTURE_2D, 8, 8, GL_RGBA, FBO, GL_LINEAR));
+		assertNull(pool.obtain(GL_TEXTURE_2D, 16, 16, GL_RGBA, 0, GL_LINEAR));
+		assertEquals(0, pool.getHitCount());
+		assertEquals(2, pool.getMissCount());
+		// 破棄されたEGLコンテキストのプールを削除してもglDeleteXXXを呼ばない
+		// (新しいEGLコンテキストの同じ名前のテクスチャ等を破棄しない)
+		pool.removeContext(token1);
+		assertEquals(0, pool.getPooledCount());
+		assertTrue(backend.deletedTextures.isEmpty());
+		assertTrue(backend.deletedFrameBuffers.isEmpty());
+		// 新しいEGLコンテキストで返却したものは再利用する
+		assertTrue(pool.recycle(GL_TEXTURE_2D, 8, 8, GL_RGBA, FBO, GL_LINEAR, tex2, fbo2, -1));
+		final GLTexturePool.Resource resource
+			= pool.obtain(GL_TEXTURE_2D, 8, 8, GL_RGBA, FBO, GL_LINEAR);
+		assertNotNull(resource);
+		assertEquals(tex2, resource.texId);
+		assertEquals(1, pool.getHitCount());
+	}
+
+	private static List<Integer> listOf(final int... values) {
+		final List<Integer> result = new ArrayList<>();
+		for (final int v: values) {
+			result.add(v);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,173 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.AudioFormat;
+
+import com.serenegiant.media.PcmChannelMixStage;
+import com.serenegiant.media.PcmEncodingStage;
+import com.serenegiant.media.PcmFormat;
+import com.serenegiant.media.PcmGainStage;
+import com.serenegiant.media.PcmResampleStage;
+import com.serenegiant.media.PcmStageChain;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.media.IPcmStage実装用のローカルユニットテストクラス
+ */
+public class PcmStageUnitTests {
+
+	private static final float EPS = 1.0e-4f;
+
+	private static final PcmFormat MONO_16
+		= new PcmFormat(1, 48000, AudioFormat.ENCODING_PCM_16BIT);
+	private static final PcmFormat STEREO_16
+		= new PcmFormat(2, 48000, AudioFormat.ENCODING_PCM_16BIT);
+
+	private static ByteBuffer allocate(final int bytes) {
+		return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+	}
+
+	private static ByteBuffer shorts(final int capacity, final short... values) {
+		final ByteBuffer result = allocate(capacity);
+		for (int i = 0; i < values.length; i++) {
+			result.putShort(i * 2, values[i]);
+		}
+		return result;
+	}
+
+	private static short[] readShorts(final ByteBuffer buffer, final int bytes) {
+		final short[] result = new short[bytes / 2];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = buffer.getShort(i * 2);
+		}
+		return result;
+	}
+
+	/**
+	 * ゲイン適用と16ビット整数の飽和演算のテスト
+	 */
+	@Test
+	public void gain() {
+		final PcmGainStage stage = new PcmGainStage(2.0f);
+		assertEquals(MONO_16, stage.prepare(MONO_16));
+		final ByteBuffer buf = shorts(8, (short)100, (short)-100, (short)20000, (short)-20000);
+		assertEquals(8, stage.process(buf, 8));
+		assertArrayEquals(new short[] {200, -200, Short.MAX_VALUE, Short.MIN_VALUE},
+			readShorts(buf, 8));
+	}
+
+	/**
+	 * ステレオ→モノラル→ステレオ変換のテスト
+	 */
+	@Test
+	public void channelMix() {
+		final PcmChannelMixStage down = new PcmChannelMixStage(1);
+		assertEquals(MONO_16, down.prepare(STEREO_16));
+		final ByteBuffer buf = shorts(16, (short)100, (short)300, (short)-10, (short)-30);
+		final int monoBytes = down.process(buf, 8);
+		assertEquals(4, monoBytes);
+		assertArrayEquals(new short[] {200, -20}, readShorts(buf, monoBytes));
+
+		final PcmChannelMixStage up = new PcmChannelMixStage(2);
+		assertEquals(STEREO_16, up.prepare(MONO_16));
+		assertEquals(8, up.getMaxOutputBytes(4));
+		final int stereoBytes = up.process(buf, monoBytes);
+		assertEquals(8, stereoBytes);
+		assertArrayEquals(new short[] {200, 200, -20, -20}, readShorts(buf, stereoBytes));
+	}
+
+	/**
+	 * 16ビット整数⇔浮動小数点変換のテスト
+	 */
+	@Test
+	public void encoding() {
+		final PcmEncodingStage toFloat = new PcmEncodingStage(AudioFormat.ENCODING_PCM_FLOAT);
+		final PcmFormat floatFormat = toFloat.prepare(MONO_16);
+		assertTrue(floatFormat.isFloat());
+		final ByteBuffer buf = shorts(16, (short)16384, (short)-32768, (short)0, (short)32767);
+		final int floatBytes = toFloat.process(buf, 8);
+		assertEquals(16, floatBytes);
+		assertEquals(0.5f, buf.getFloat(0), EPS);
+		assertEquals(-1.0f, buf.getFloat(4), EPS);
+		assertEquals(0.0f, buf.getFloat(8), EPS);
+
+		final PcmEncodingStage toShort = new PcmEncodingStage(AudioFormat.ENCODING_PCM_16BIT);
+		assertEquals(MONO_16, toShort.prepare(floatFormat));
+		final int shortBytes = toShort.process(buf, floatBytes);
+		assertEquals(8, shortBytes);
+		assertArrayEquals(new short[] {16384, -32768, 0, 32767}, readShorts(buf, shortBytes));
+	}
+
+	/**
+	 * サンプリングレート変換のテスト
+	 * 割り切れない変換比でも出力サンプル数が累積しても正確なことを確認する
+	 */
+	@Test
+	public void resample() {
+		final PcmFormat in = new PcmFormat(1, 44100, AudioFormat.ENCODING_PCM_16BIT);
+		final PcmResampleStage stage = new PcmResampleStage(48000);
+		assertEquals(48000, stage.prepare(in).samplingRate);
+		final int frames = 1024;
+		final ByteBuffer buf = allocate(stage.getMaxOutputBytes(frames * 2));
+		long total = 0;
+		for (int n = 0; n < 441; n++) {
+			for (int i = 0; i < frames; i++) {
+				buf.putShort(i * 2, (short)1000);
+			}
+			final int bytes = stage.process(buf, frames * 2);
+			assertTrue(bytes <= buf.capacity());
+			// 直流成分は変換後も同じ値になる
+			for (int i = 0; i < bytes / 2; i++) {
+				assertEquals(1000, buf.getShort(i * 2));
+			}
+			total += bytes / 2;
+		}
+		// 441 x 1024サンプル@44100Hz = 10.24秒 → 491520サンプル@48000Hz
+		assertEquals(491520, total);
+	}
+
+	/**
+	 * 複数ステージを連結したときのテスト
+	 */
+	@Test
+	public void chain() {
+		final PcmStageChain chain = new PcmStageChain(
+			new PcmChannelMixStage(2),
+			new PcmGainStage(0.5f),
+			new PcmEncodingStage(AudioFormat.ENCODING_PCM_FLOAT));
+		final PcmFormat out = chain.prepare(MONO_16);
+		assertEquals(2, out.channels);
+		assertTrue(out.isFloat());
+		// モノラル16ビット2サンプル(4バイト)→ステレオ浮動小数点2フレーム(16バイト)
+		assertEquals(16, chain.getMaxOutputBytes(4));
+		final ByteBuffer buf = shorts(16, (short)16384, (short)-16384);
+		assertEquals(16, chain.process(buf, 4));
+		assertEquals(0.25f, buf.getFloat(0), EPS);
+		assertEquals(0.25f, buf.getFloat(4), EPS);
+		assertEquals(-0.25f, buf.getFloat(8), EPS);
+		assertEquals(-0.25f, buf.getFloat(12), EPS);
+	}
+}
@@ -0,0 +1,372 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.gl.PixelReadbackRing;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.gl.PixelReadbackRing用のローカルユニットテストクラス
+ * GLの代わりにFakeBackendを使ってリングバッファのスケジューリングとバッファの再利用をテストする
+ */
+public class PixelReadbackRingUnitTests {
+
+	/**
+	 * 読み取り時にフレーム番号(tag)をバッファの先頭へ書き込むだけのBackend
+	 */
+	private static class FakeBackend implements PixelReadbackRing.Backend {
+		private final Map<Integer, ByteBuffer> buffers = new HashMap<>();
+		private final Set<Integer> mappedHandles = new HashSet<>();
+		private int nextHandle;
+		private int created;
+		private int deleted;
+		private int mapped;
+		private boolean ready = true;
+		private int lastRead = -1;
+
+		@Override
+		public int createBuffer(final int bytes) {
+			final int handle = nextHandle++;
+			buffers.put(handle, ByteBuffer.allocate(bytes));
+			created++;
+			return handle;
+		}
+
+		@Override
+		public void deleteBuffer(final int handle) {
+			assertNotNull(buffers.remove(handle));
+			deleted++;
+		}
+
+		@Override
+		public void readPixels(final int handle, final int width, final int height) {
+			assertFalse("read into mapped buffer", mappedHandles.contains(handle));
+			final ByteBuffer buffer = buffers.get(handle);
+			assertTrue(buffer.capacity() >= width * height * PixelReadbackRing.PIXEL_BYTES);
+			buffer.putInt(0, lastRead);
+		}
+
+		@Override
+		public boolean isReady(final int handle) {
+			return ready;
+		}
+
+		@NonNull
+		@Override
+		public ByteBuffer map(final int handle, final int bytes) {
+			assertTrue("map without unmap", mappedHandles.add(handle));
+			mapped++;
+			return buffers.get(handle);
+		}
+
+		@Override
+		public void unmap(final int handle) {
+			assertTrue("unmap without map", mappedHandles.remove(handle));
+			mapped--;
+		}
+	}
+
+	/**
+	 * 受け取ったtagとバッファ先頭の値を記録するCallback
+	 */
+	private static class RecordingCallback implements PixelReadbackRing.Callback {
+		private final List<Integer> delivered = new ArrayList<>();
+		private final List<Integer> dropped = new ArrayList<>();
+
+		@Override
+		public void onPixelsAvailable(
+			@NonNull final ByteBuffer pixels,
+			final int width, final int height, @Nullable final Object tag) {
+
+			assertEquals(width * height * PixelReadbackRing.PIXEL_BYTES, pixels.remaining());
+			// 読み取り時に書き込んだ値と一致すれば別のフレームのバッファを引き渡していない
+			assertEquals(tag, pixels.getInt(0));
+			delivered.add((Integer)tag);
+		}
+
+		@Override
+		public void onPixelsDropped(@Nullable final Object tag) {
+			dropped.add((Integer)tag);
+		}
+	}
+
+	private static void read(
+		@NonNull final PixelReadbackRing ring, @NonNull final FakeBackend backend,
+		final int frame, final int width, final int height) {
+
+		backend.lastRead = frame;
+		ring.readPixels(width, height, frame);
+	}
+
+	/**
+	 * ダブルバッファ(レイテンシ1フレーム)で1フレーム遅れて引き渡されるかどうか
+	 */
+	@Test
+	public void doubleBuffered() {
+		final FakeBackend backend = new FakeBackend();
+		final RecordingCallback callback = new RecordingCallback();
+		final PixelReadbackRing ring = new PixelReadbackRing(backend, 2, 1, callback);
+		read(ring, backend, 0, 4, 4);
+		assertTrue(callback.delivered.isEmpty());
+		assertEquals(1, ring.getPendingCount());
+		for (int i = 1; i < 10; i++) {
+			read(ring, backend, i, 4, 4);
+			assertEquals(i, callback.delivered.size());
+			assertEquals(i - 1, (int)callback.delivered.get(i - 1));
+		}
+		assertEquals(1, ring.flush());
+		assertEquals(10, callback.delivered.size());
+		assertEquals(9, (int)callback.delivered.get(9));
+		// ピクセルバッファは2つだけを使い回す
+		assertEquals(2, backend.created);
+		assertEquals(2, ring.getAllocatedCount());
+		assertEquals(0, ring.getStallCount());
+		assertEquals(10, ring.getIssuedCount());
+		assertEquals(10, ring.getDeliveredCount());
+		assertEquals(0, backend.mapped);
+	}
+
+	/**
+	 * 読み取りが完了しないときは空きが無くなった時点で最も古いものを完了待ちして引き渡すかどうか
+	 */
+	@Test
+	public void stallWhenFull() {
+		final FakeBackend backend = new FakeBackend();
+		final RecordingCallback callback = new RecordingCallback();
+		final PixelReadbackRing ring = new PixelReadbackRing(backend, 3, 1, callback);
+		backend.ready = false;
+		read(ring, backend, 0, 2, 2);
+		read(ring, backend, 1, 2, 2);
+		read(ring, backend, 2, 2, 2);
+		assertTrue(callback.delivered.isEmpty());
+		assertEquals(3, ring.getPendingCount());
+		read(ring, backend, 3, 2, 2);
+		assertEquals(1, ring.getStallCount());
+		assertEquals(1, callback.delivered.size());
+		assertEquals(0, (int)callback.delivered.get(0));
+		// 完了すれば古い順にまとめて引き渡す(最新のフレームはまだレイテンシ分経過していない)
+		backend.ready = true;
+		assertEquals(2, ring.poll());
+		assertEquals(3, callback.delivered.size());
+		assertEquals(1, ring.flush());
+		assertEquals(4, callback.delivered.size());
+		for (int i = 0; i < 4; i++) {
+			assertEquals(i, (int)callback.delivered.get(i));
+		}
+		assertEquals(3, backend.created);
+	}
+
+	/**
+	 * レイテンシが0ならすぐに引き渡すかどうか(PBOが使えないときの同期読み取り)
+	 */
+	@Test
+	public void zeroLatency() {
+		final FakeBackend backend = new FakeBackend();
+		final RecordingCallback callback = new RecordingCallback();
+		final PixelReadbackRing ring = new PixelReadbackRing(backend, 1, 0, callback);
+		for (int i = 0; i < 5; i++) {
+			read(ring, backend, i, 8, 2);
+			assertEquals(i + 1, callback.delivered.size());
+			assertEquals(0, ring.getPendingCount());
+		}
+		assertEquals(1, backend.created);
+	}
+
+	/**
+	 * レイテンシ0で非同期読み取りするときに発行時点で完了していなくても
+	 * 完了すれば次の#readPixelsを待たずに#pollで引き渡すかどうか
+	 * (FaceDetectPipelineで間引いたフレームの間に呼び出す#poll)
+	 */
+	@Test
+	public void pollWhenReady() {
+		final FakeBackend backend = new FakeBackend();
+		final RecordingCallback callback = new RecordingCallback();
+		final PixelReadbackRing ring = new PixelReadbackRing(backend, 2, 0, callback);
+		backend.ready = false;
+		read(ring, backend, 0, 4, 4);
+		assertTrue(callback.delivered.isEmpty());
+		assertEquals(1, ring.getPendingCount());
+		// 完了していなければ引き渡さない
+		assertEquals(0, ring.poll());
+		backend.ready = true;
+		assertEquals(1, ring.poll());
+		assertEquals(1, callback.delivered.size());
+		assertEquals(0, (int)callback.delivered.get(0));
+		assertEquals(0, ring.getPendingCount());
+		assertEquals(1, ring.getIssuedCount());
+		assertEquals(0, ring.getStallCount());
+	}
+
+	/**
+	 * 映像サイズが大きくなったときだけピクセルバッファを再生成するかどうか
+	 */
+	@Test
+	public void resize() {
+		final FakeBackend backend = new FakeBackend();
+		final RecordingCallback callback = new RecordingCallback();
+		final PixelReadbackRing ring = new PixelReadbackRing(backend, 2, 1, callback);
+		read(ring, backend, 0, 4, 4);
+		read(ring, backend, 1, 4, 4);
+		assertEquals(2, backend.created);
+		// 小さくなったときは再利用する
+		read(ring, backend, 2, 2, 2);
+		read(ring, backend, 3, 2, 2);
+		assertEquals(2, backend.created);
+		assertEquals(0, backend.deleted);
+		// 大きくなったときはスロット毎に再生成する
+		read(ring, backend, 4, 8, 8);
+		assertEquals(3, backend.created);
+		assertEquals(1, backend.deleted);
+		read(ring, backend, 5, 8, 8);
+		assertEquals(4, backend.created);
+		assertEquals(2, backend.deleted);
+		ring.flush();
+		assertEquals(6, callback.delivered.size());
+	}
+
+	/**
+	 * #releaseで読み取り待ちのデータを破棄してピクセルバッファを全て削除するかどうか
+	 */
+	@Test
+	public void release() {
+		final FakeBackend backend = new FakeBackend();
+		final RecordingCallback callback = new RecordingCallback();
+		final PixelReadbackRing ring = new PixelReadbackRing(backend, 3, 2, callback);
+		read(ring, backend, 0, 4, 4);
+		read(ring, backend, 1, 4, 4);
+		read(ring, backend, 2, 4, 4);
+		assertEquals(1, callback.delivered.size());
+		ring.release();
+		assertEquals(2, callback.dropped.size());
+		assertEquals(1, (int)callback.dropped.get(0));
+		assertEquals(2, (int)callback.dropped.get(1));
+		assertEquals(0, ring.getPendingCount());
+		assertEquals(backend.created, backend.deleted);
+		assertTrue(backend.buffers.isEmpty());
+	}
+
+	/**
+	 * #retainPixelsで保持したピクセルデータは#releasePixelsを呼び出すまでマップしたままで、
+	 * 保持中のピクセルバッファを再利用するときは#releasePixelsが呼び出されるまで待つかどうか
+	 */
+	@Test
+	public void retainPixels() throws InterruptedException {
+		final FakeBackend backend = new FakeBackend();
+		final List<ByteBuffer> retained = new ArrayList<>();
+		final List<Integer> tokens = new ArrayList<>();
+		final PixelReadbackRing[] rings = new PixelReadbackRing[1];
+		final PixelReadbackRing ring = new PixelReadbackRing(backend, 2, 1,
+			new PixelReadbackRing.Callback() {
+				@Override
+				public void onPixelsAvailable(
+					@NonNull final ByteBuffer pixels,
+					final int width, final int height, @Nullable final Object tag) {
+
+					assertEquals(tag, pixels.getInt(0));
+					retained.add(pixels);
+					tokens.add(rings[0].retainPixels());
+				}
+
+				@Override
+				public void onPixelsDropped(@Nullable final Object tag) {
+				}
+			});
+		rings[0] = ring;
+		// 引き渡し中以外は保持できない
+		try {
+			ring.retainPixels();
+			fail();
+		} catch (final IllegalStateException e) {
+			// expected
+		}
+		read(ring, backend, 0, 4, 4);
+		read(ring, backend, 1, 4, 4);
+		assertEquals(1, retained.size());
+		assertEquals(1, backend.mapped);
+		assertEquals(1, ring.getRetainedCount());
+		// 保持中は呼び出し終了後もピクセルデータが有効
+		assertEquals(0, retained.get(0).getInt(0));
+		ring.releasePixels(tokens.get(0));
+		assertEquals(0, ring.getRetainedCount());
+		// 解放済みなら待たずにマップを解除して再利用する
+		read(ring, backend, 2, 4, 4);
+		assertEquals(2, retained.size());
+		assertEquals(1, backend.mapped);
+		assertEquals(0, ring.getStallCount());
+		// 解放されるまでは保持中のピクセルバッファを再利用しない
+		final Thread releaser = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (final InterruptedException e) {
+					// ignore
+				}
+				assertEquals(1, retained.get(1).getInt(0));
+				ring.releasePixels(tokens.get(1));
+			}
+		});
+		releaser.start();
+		read(ring, backend, 3, 4, 4);
+		releaser.join();
+		assertEquals(1, ring.getStallCount());
+		assertEquals(3, retained.size());
+		assertEquals(2, (int)retained.get(2).getInt(0));
+		// #releaseは保持中のピクセルデータが解放されるまで待ってからマップを解除する
+		ring.releasePixels(tokens.get(2));
+		ring.release();
+		assertEquals(0, backend.mapped);
+		assertEquals(backend.created, backend.deleted);
+	}
+
+	/**
+	 * 不正な引数でIllegalArgumentExceptionを投げるかどうか
+	 */
+	@Test
+	public void invalidArguments() {
+		final FakeBackend backend = new FakeBackend();
+		final RecordingCallback callback = new RecordingCallback();
+		try {
+			new PixelReadbackRing(backend, 0, 0, callback);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			new PixelReadbackRing(backend, 2, 2, callback);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
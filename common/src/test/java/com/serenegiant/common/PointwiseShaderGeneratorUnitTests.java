@@ -0,0 +1,240 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+
+import com.serenegiant.gl.GLSurface;
+import com.serenegiant.mediaeffect.IEffect;
+import com.serenegiant.mediaeffect.IPointwiseEffect;
+import com.serenegiant.mediaeffect.ISource;
+import com.serenegiant.mediaeffect.MediaEffectCompiler;
+import com.serenegiant.mediaeffect.MediaEffectGLBrightness;
+import com.serenegiant.mediaeffect.MediaEffectGLExposure;
+import com.serenegiant.mediaeffect.MediaEffectGLFused;
+import com.serenegiant.mediaeffect.MediaEffectGLPosterize;
+import com.serenegiant.mediaeffect.MediaEffectGLSaturate;
+import com.serenegiant.mediaeffect.PointwiseShaderGenerator;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static com.serenegiant.gl.ShaderConst.*;
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.mediaeffect.PointwiseShaderGenerator/MediaEffectCompiler用のローカルユニットテストクラス
+ */
+public class PointwiseShaderGeneratorUnitTests {
+
+	/**
+	 * GLを使わずに映像効果の一覧をまとめられるかどうかを確認するための映像効果
+	 */
+	private static class FakeEffect implements IEffect {
+		@Override
+		public void apply(@NonNull final int[] src_tex_ids,
+			final int width, final int height, final int out_tex_id) {
+		}
+
+		@Override
+		public void apply(@NonNull final int[] src_tex_ids, @NonNull final GLSurface output) {
+		}
+
+		@Override
+		public void apply(final ISource src) {
+		}
+
+		@Override
+		public void release() {
+		}
+
+		@Override
+		public IEffect resize(final int width, final int height) {
+			return this;
+		}
+
+		@Override
+		public boolean enabled() {
+			return true;
+		}
+
+		@Override
+		public IEffect setEnable(final boolean enable) {
+			return this;
+		}
+	}
+
+	private static class FakePointwiseEffect extends FakeEffect implements IPointwiseEffect {
+		@NonNull
+		@Override
+		public String getPointwiseSnippet() {
+			return MediaEffectGLBrightness.POINTWISE_SNIPPET;
+		}
+
+		@Nullable
+		@Override
+		public String getPointwiseFunctions() {
+			return null;
+		}
+
+		@Override
+		public float getPointwiseParam() {
+			return 0.5f;
+		}
+	}
+
+	/**
+	 * 明るさ→彩度→ポスタライズをまとめたフラグメントシェーダーが期待通りかどうか
+	 */
+	@Test
+	public void golden2D() {
+		final String fss = PointwiseShaderGenerator.generate(false,
+			new String[] {
+				MediaEffectGLBrightness.POINTWISE_SNIPPET,
+				MediaEffectGLSaturate.POINTWISE_SNIPPET,
+				MediaEffectGLPosterize.POINTWISE_SNIPPET,
+			},
+			new String[] {null, FUNC_GET_INTENSITY, null});
+		final String expected = "#version 100\n" +
+			"precision highp float;\n" +
+			"varying       vec2 vTextureCoord;\n" +
+			"uniform sampler2D    sTexture;\n" +
+			"uniform float uColorAdjust[3];\n" +
+			"const highp vec3 luminanceWeighting = vec3(0.2125, 0.7154, 0.0721);\n" +
+			"highp float getIntensity(vec3 c) {\n" +
+			"return dot(c.rgb, luminanceWeighting);\n" +
+			"}\n" +
+			"void main() {\n" +
+			"    highp vec4 color = texture2D(sTexture, vTextureCoord);\n" +
+			"    color.rgb += vec3(uColorAdjust[0]);\n" +
+			"    color = clamp(color, 0.0, 1.0);\n" +
+			"    color.rgb = mix(vec3(getIntensity(color.rgb)), color.rgb, uColorAdjust[1]);\n" +
+			"    color = clamp(color, 0.0, 1.0);\n" +
+			"    color = floor((color * uColorAdjust[2]) + vec4(0.5)) / uColorAdjust[2];\n" +
+			"    color = clamp(color, 0.0, 1.0);\n" +
+			"    gl_FragColor = color;\n" +
+			"}\n";
+		assertEquals(expected, fss);
+	}
+
+	/**
+	 * 外部テクスチャ用のフラグメントシェーダーで同じ関数定義が重複しないかどうか
+	 */
+	@Test
+	public void goldenOES() {
+		final String fss = PointwiseShaderGenerator.generate(true,
+			new String[] {
+				MediaEffectGLExposure.POINTWISE_SNIPPET,
+				MediaEffectGLSaturate.POINTWISE_SNIPPET,
+				MediaEffectGLSaturate.POINTWISE_SNIPPET,
+			},
+			new String[] {null, FUNC_GET_INTENSITY, FUNC_GET_INTENSITY});
+		final String expected = "#version 100\n" +
+			"#extension GL_OES_EGL_image_external : require\n" +
+			"precision highp float;\n" +
+			"varying       vec2 vTextureCoord;\n" +
+			"uniform samplerExternalOES    sTexture;\n" +
+			"uniform float uColorAdjust[3];\n" +
+			FUNC_GET_INTENSITY +
+			"void main() {\n" +
+			"    highp vec4 color = texture2D(sTexture, vTextureCoord);\n" +
+			"    color.rgb *= pow(2.0, uColorAdjust[0]);\n" +
+			"    color = clamp(color, 0.0, 1.0);\n" +
+			"    color.rgb = mix(vec3(getIntensity(color.rgb)), color.rgb, uColorAdjust[1]);\n" +
+			"    color = clamp(color, 0.0, 1.0);\n" +
+			"    color.rgb = mix(vec3(getIntensity(color.rgb)), color.rgb, uColorAdjust[2]);\n" +
+			"    color = clamp(color, 0.0, 1.0);\n" +
+			"    gl_FragColor = color;\n" +
+			"}\n";
+		assertEquals(expected, fss);
+	}
+
+	/**
+	 * 範囲外になる変換(明るさ→露出)をまとめたときに映像効果毎に描画したときと
+	 * 同じ結果になるかどうか
+	 * 生成したフラグメントシェーダーの文を順にJavaで評価して、
+	 * 描画先へ書き込む度に0〜1へ丸める映像効果毎の描画と比較する
+	 */
+	@Test
+	public void fusedMatchesPerStage() {
+		final float brightness = 0.5f;
+		final float exposure = -1.0f;
+		final float[] params = {brightness, exposure};
+		final String fss = PointwiseShaderGenerator.generate(false,
+			new String[] {
+				MediaEffectGLBrightness.POINTWISE_SNIPPET,
+				MediaEffectGLExposure.POINTWISE_SNIPPET,
+			}, null);
+		final String body = fss.substring(fss.indexOf("void main() {\n"));
+		for (float v = 0.0f; v <= 1.0f; v += 0.125f) {
+			// まとめたとき
+			float fused = v;
+			for (final String line: body.split("\n")) {
+				final String stmt = line.trim();
+				if (stmt.equals(String.format(MediaEffectGLBrightness.POINTWISE_SNIPPET.trim(), "uColorAdjust[0]"))) {
+					fused += params[0];
+				} else if (stmt.equals(String.format(MediaEffectGLExposure.POINTWISE_SNIPPET.trim(), "uColorAdjust[1]"))) {
+					fused *= (float)Math.pow(2.0, params[1]);
+				} else if (stmt.equals(PointwiseShaderGenerator.CLAMP_SNIPPET.trim())) {
+					fused = clamp(fused);
+				}
+			}
+			// 映像効果毎に描画したとき
+			final float perStage = clamp(clamp(v + brightness) * (float)Math.pow(2.0, exposure));
+			assertEquals("v=" + v, perStage, fused, 1e-6f);
+			if (v + brightness > 1.0f) {
+				// 丸めなければ結果が変わる範囲
+				assertTrue(Math.abs(perStage - clamp((v + brightness) * 0.5f)) > 1e-6f);
+			}
+		}
+	}
+
+	private static float clamp(final float v) {
+		return Math.min(Math.max(v, 0.0f), 1.0f);
+	}
+
+	/**
+	 * 連続するIPointwiseEffectだけがまとめられるかどうか
+	 */
+	@Test
+	public void compile() {
+		final FakeEffect kernel1 = new FakeEffect();
+		final FakeEffect kernel2 = new FakeEffect();
+		final FakePointwiseEffect p1 = new FakePointwiseEffect();
+		final FakePointwiseEffect p2 = new FakePointwiseEffect();
+		final FakePointwiseEffect p3 = new FakePointwiseEffect();
+		final FakePointwiseEffect p4 = new FakePointwiseEffect();
+		final List<IEffect> result = MediaEffectCompiler.compile(
+			Arrays.<IEffect>asList(p1, p2, kernel1, p3, kernel2, p4));
+		assertEquals(5, result.size());
+		assertTrue(result.get(0) instanceof MediaEffectGLFused);
+		assertEquals(Arrays.<IPointwiseEffect>asList(p1, p2),
+			((MediaEffectGLFused) result.get(0)).getEffects());
+		assertSame(kernel1, result.get(1));
+		// 1つだけならまとめない
+		assertSame(p3, result.get(2));
+		assertSame(kernel2, result.get(3));
+		assertSame(p4, result.get(4));
+		assertTrue(MediaEffectCompiler.compile(Arrays.<IEffect>asList()).isEmpty());
+	}
+}
@@ -0,0 +1,180 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.mediaeffect.SeparableKernel;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.mediaeffect.SeparableKernel用のローカルユニットテストクラス
+ * 水平方向→垂直方向の2パスに分離した結果が2次元の近傍で直接計算した結果と一致するかどうかを
+ * CPUでの参照実装を使ってテストする
+ */
+public class SeparableKernelUnitTests {
+
+	private static final int W = 23;
+	private static final int H = 17;
+
+	/**
+	 * テスト用のランダムな映像(1チャネル)を生成
+	 * @return
+	 */
+	private static float[] createImage() {
+		final Random random = new Random(12345);
+		final float[] result = new float[W * H];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = random.nextFloat();
+		}
+		return result;
+	}
+
+	private static int clamp(final int v, final int max) {
+		return v < 0 ? 0 : (v >= max ? max - 1 : v);
+	}
+
+	/**
+	 * 2パスで処理する
+	 */
+	private static float[] separable(@SeparableKernel.Mode final int mode,
+		final float[] src, final int radius, final float[] weights) {
+
+		final float[] tmp = new float[src.length];
+		final float[] dst = new float[src.length];
+		SeparableKernel.apply(mode, src, tmp, W, H, true, radius, weights);
+		SeparableKernel.apply(mode, tmp, dst, W, H, false, radius, weights);
+		return dst;
+	}
+
+	/**
+	 * 正方形の近傍の最大値/最小値と一致するかどうか
+	 */
+	@Test
+	public void dilationErosion() {
+		final float[] src = createImage();
+		for (int radius = 1; radius <= 4; radius++) {
+			final float[] dilated = separable(SeparableKernel.MODE_DILATION, src, radius, null);
+			final float[] eroded = separable(SeparableKernel.MODE_EROSION, src, radius, null);
+			for (int y = 0; y < H; y++) {
+				for (int x = 0; x < W; x++) {
+					float max = -Float.MAX_VALUE;
+					float min = Float.MAX_VALUE;
+					for (int j = -radius; j <= radius; j++) {
+						for (int i = -radius; i <= radius; i++) {
+							final float v = src[clamp(y + j, H) * W + clamp(x + i, W)];
+							max = Math.max(max, v);
+							min = Math.min(min, v);
+						}
+					}
+					assertEquals(max, dilated[y * W + x], 0.0f);
+					assertEquals(min, eroded[y * W + x], 0.0f);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 1次元のカーネルの外積による2次元の畳み込みと一致するかどうか
+	 */
+	@Test
+	public void convolution() {
+		final float[] src = createImage();
+		for (int radius = 1; radius <= 5; radius += 2) {
+			final float[] weights = SeparableKernel.gaussian(radius, 0.0f);
+			final float[] result = separable(SeparableKernel.MODE_CONVOLUTION, src, radius, weights);
+			for (int y = 0; y < H; y++) {
+				for (int x = 0; x < W; x++) {
+					double sum = 0;
+					for (int j = -radius; j <= radius; j++) {
+						for (int i = -radius; i <= radius; i++) {
+							sum += weights[j + radius] * weights[i + radius]
+								* src[clamp(y + j, H) * W + clamp(x + i, W)];
+						}
+					}
+					assertEquals(sum, result[y * W + x], 1e-5);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 重みの合計が1で左右対称かどうか
+	 */
+	@Test
+	public void weights() {
+		for (int radius = 1; radius <= SeparableKernel.MAX_RADIUS; radius++) {
+			final float[] g = SeparableKernel.gaussian(radius, 0.0f);
+			final float[] b = SeparableKernel.box(radius);
+			assertEquals(radius * 2 + 1, g.length);
+			assertEquals(radius * 2 + 1, b.length);
+			float sg = 0, sb = 0;
+			for (int i = 0; i < g.length; i++) {
+				sg += g[i];
+				sb += b[i];
+				assertEquals(g[i], g[g.length - 1 - i], 0.0f);
+				assertTrue(g[i] <= g[radius]);
+			}
+			assertEquals(1.0f, sg, 1e-5f);
+			assertEquals(1.0f, sb, 1e-5f);
+		}
+		try {
+			SeparableKernel.gaussian(0, 0.0f);
+			fail("should throw IllegalArgumentException");
+		} catch (final IllegalArgumentException e) {
+			// ignore
+		}
+		try {
+			SeparableKernel.box(SeparableKernel.MAX_RADIUS + 1);
+			fail("should throw IllegalArgumentException");
+		} catch (final IllegalArgumentException e) {
+			// ignore
+		}
+	}
+
+	/**
+	 * 生成したフラグメントシェーダーがタップ数分のサンプリングと処理方法毎の演算を含むかどうか
+	 */
+	@Test
+	public void fragmentShader() {
+		final int radius = 3;
+		final String conv = SeparableKernel.fragmentShader(SeparableKernel.MODE_CONVOLUTION, radius);
+		assertTrue(conv.contains("uTexOffset;"));
+		assertTrue(conv.contains("uWeights[" + (radius * 2 + 1) + "]"));
+		assertEquals(radius * 2 + 1, count(conv, "texture2D("));
+		final String dilation = SeparableKernel.fragmentShader(SeparableKernel.MODE_DILATION, radius);
+		assertEquals(radius * 2 + 1, count(dilation, "texture2D("));
+		assertTrue(dilation.contains("max("));
+		assertFalse(dilation.contains("uWeights"));
+		final String erosion = SeparableKernel.fragmentShader(SeparableKernel.MODE_EROSION, radius);
+		assertTrue(erosion.contains("min("));
+		assertFalse(erosion.contains("uWeights"));
+	}
+
+	private static int count(final String s, final String sub) {
+		int result = 0;
+		for (int ix = s.indexOf(sub); ix >= 0; ix = s.indexOf(sub, ix + sub.length())) {
+			result++;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,319 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.egl.EGLContextTokens;
+import com.serenegiant.gl.ShaderProgramCache;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.gl.ShaderProgramCache用のローカルユニットテストクラス
+ * GLの代わりにFakeBackendを使ってキャッシュのキーと参照カウンタ、
+ * プログラムバイナリの保存・読み込みをテストする
+ */
+public class ShaderProgramCacheUnitTests {
+
+	private static final String VS = "attribute vec4 aPosition;\nvoid main() { gl_Position = aPosition; }\n";
+	private static final String FS1 = "void main() { gl_FragColor = vec4(1.0); }\n";
+	private static final String FS2 = "void main() { gl_FragColor = vec4(0.0); }\n";
+
+	/**
+	 * プログラム番号をEGLコンテキスト毎に1からの連番で割り当てるだけのBackend
+	 * 実際のGL|ESと同じく別のEGLコンテキストでは同じプログラム番号を再利用する
+	 * プログラムバイナリはソースのバイト列そのものとする
+	 */
+	private static class FakeBackend implements ShaderProgramCache.Backend {
+		private Object context = "context1";
+		private boolean binarySupported;
+		private String driverId = "driver1";
+		private final Map<Object, Integer> nextPrograms = new HashMap<>();
+		private int compiled;
+		private int loaded;
+		private final List<Integer> deleted = new ArrayList<>();
+
+		@Nullable
+		@Override
+		public Object getCurrentContext() {
+			return context;
+		}
+
+		@Override
+		public int compile(@NonNull final String vs, @NonNull final String fs) {
+			compiled++;
+			return nextProgram();
+		}
+
+		@Override
+		public void deleteProgram(final int program) {
+			deleted.add(program);
+		}
+
+		@Override
+		public boolean isBinarySupported() {
+			return binarySupported;
+		}
+
+		@NonNull
+		@Override
+		public String getDriverId() {
+			return driverId;
+		}
+
+		@Nullable
+		@Override
+		public byte[] getProgramBinary(final int program, @NonNull final int[] format) {
+			format[0] = 0x1234;
+			return new byte[] {(byte)program, 1, 2, 3};
+		}
+
+		@Override
+		public int loadProgramBinary(final int format, @NonNull final byte[] binary) {
+			if ((format != 0x1234) || (binary.length != 4)) {
+				return 0;
+			}
+			loaded++;
+			return nextProgram();
+		}
+
+		private int nextProgram() {
+			final Integer next = nextPrograms.get(context);
+			final int result = next != null ? next : 1;
+			nextPrograms.put(context, result + 1);
+			return result;
+		}
+	}
+
+	/**
+	 * キーがソースの組み合わせ毎に一意になるかどうか
+	 */
+	@Test
+	public void makeKey() {
+		final String key = ShaderProgramCache.makeKey(VS, FS1);
+		assertEquals(key, ShaderProgramCache.makeKey(VS, FS1));
+		assertEquals(key, ShaderProgramCache.makeKey(new String(VS), new String(FS1)));
+		assertNotEquals(key, ShaderProgramCache.makeKey(VS, FS2));
+		// 区切り位置が違うだけの組み合わせは別のキーになる
+		assertNotEquals(ShaderProgramCache.makeKey("ab", "c"), ShaderProgramCache.makeKey("a", "bc"));
+		// ドライバーが違えばプログラムバイナリのファイル名も違う
+		assertNotEquals(ShaderProgramCache.makeBinaryName("driver1", key),
+			ShaderProgramCache.makeBinaryName("driver2", key));
+		assertTrue(ShaderProgramCache.makeBinaryName("driver1", key).endsWith(".bin"));
+	}
+
+	/**
+	 * 同じEGLコンテキスト・同じソースならシェーダープログラムを共有して
+	 * 参照カウンタが0になった時に破棄するかどうか
+	 */
+	@Test
+	public void refCount() {
+		final FakeBackend backend = new FakeBackend();
+		final ShaderProgramCache cache = new ShaderProgramCache(backend);
+		final ShaderProgramCache.Program p1 = cache.acquire(VS, FS1);
+		final ShaderProgramCache.Program p2 = cache.acquire(VS, FS1);
+		final ShaderProgramCache.Program p3 = cache.acquire(VS, FS2);
+		assertNotNull(p1);
+		assertSame(p1, p2);
+		assertNotSame(p1, p3);
+		assertEquals(2, p1.getRefCount());
+		assertEquals(2, backend.compiled);
+		assertEquals(1, cache.getHitCount());
+		assertEquals(2, cache.getCachedCount());
+		cache.release(p1);
+		assertTrue(backend.deleted.isEmpty());
+		cache.release(p2);
+		assertEquals(Arrays.asList(p1.getProgram()), backend.deleted);
+		// 余分に返却しても二重に破棄しない
+		cache.release(p2);
+		assertEquals(1, backend.deleted.size());
+		assertEquals(1, cache.getCachedCount());
+		// 破棄した後はコンパイルし直す
+		final ShaderProgramCache.Program p4 = cache.acquire(VS, FS1);
+		assertNotSame(p1, p4);
+		assertEquals(3, backend.compiled);
+	}
+
+	/**
+	 * EGLコンテキストが違えば共有せず、破棄したEGLコンテキストのシェーダープログラムは
+	 * glDeleteProgramを呼ばないかどうか
+	 */
+	@Test
+	public void perContext() {
+		final FakeBackend backend = new FakeBackend();
+		final ShaderProgramCache cache = new ShaderProgramCache(backend);
+		final ShaderProgramCache.Program p1 = cache.acquire(VS, FS1);
+		backend.context = "context2";
+		final ShaderProgramCache.Program p2 = cache.acquire(VS, FS1);
+		assertNotSame(p1, p2);
+		assertEquals(2, backend.compiled);
+		cache.removeContext("context1");
+		assertEquals(1, cache.getCachedCount());
+		cache.release(p1);
+		assertTrue(backend.deleted.isEmpty());
+		// EGLコンテキストが無いときはキャッシュせずにコンパイルする
+		backend.context = null;
+		final ShaderProgramCache.Program p3 = cache.acquire(VS, FS1);
+		final ShaderProgramCache.Program p4 = cache.acquire(VS, FS1);
+		assertNotSame(p3, p4);
+		assertEquals(4, backend.compiled);
+	}
+
+	/**
+	 * EGLコンテキストが破棄されて同じハンドルのEGLコンテキストが生成されたときに
+	 * プログラム番号が同じでも古いシェーダープログラムを返さないかどうか
+	 * (EGLコンテキストのトークンが変わるのでキャッシュに当たらない)
+	 */
+	@Test
+	public void staleContext() {
+		final FakeBackend backend = new FakeBackend();
+		final ShaderProgramCache cache = new ShaderProgramCache(backend);
+		final Object token1 = new Object();
+		backend.context = token1;
+		final ShaderProgramCache.Program p1 = cache.acquire(VS, FS1);
+		final ShaderProgramCache.Program p2 = cache.acquire(VS, FS2);
+		assertEquals(1, p1.getProgram());
+		assertEquals(2, p2.getProgram());
+		// EGLコンテキストが破棄されて同じハンドルで新しいEGLコンテキストが生成された
+		final Object token2 = new Object();
+		backend.context = token2;
+		final ShaderProgramCache.Program p3 = cache.acquire(VS, FS2);
+		final ShaderProgramCache.Program p4 = cache.acquire(VS, FS1);
+		// 新しいEGLコンテキストでは同じプログラム番号が別のシェーダープログラムに割り当てられる
+		assertEquals(p1.getProgram(), p3.getProgram());
+		assertEquals(p2.getProgram(), p4.getProgram());
+		assertNotSame(p1, p4);
+		assertNotSame(p2, p3);
+		assertEquals(4, backend.compiled);
+		assertEquals(0, cache.getHitCount());
+		// 破棄されたEGLコンテキストのキャッシュを削除すると
+		// 返却してもglDeleteProgramを呼ばない(新しいEGLコンテキストのシェーダープログラムを破棄しない)
+		cache.removeContext(token1);
+		assertEquals(2, cache.getCachedCount());
+		cache.release(p1);
+		cache.release(p2);
+		assertTrue(backend.deleted.isEmpty());
+		// 新しいEGLコンテキストのシェーダープログラムはそのまま共有する
+		assertSame(p3, cache.acquire(VS, FS2));
+		assertEquals(1, cache.getHitCount());
+	}
+
+	/**
+	 * 同じハンドルのEGLコンテキストを生成し直すと別のトークンになるかどうか
+	 */
+	@Test
+	public void contextTokens() {
+		final Object handle = "handle";
+		assertNull(EGLContextTokens.getToken(handle));
+		final Object token1 = EGLContextTokens.register(handle);
+		assertSame(token1, EGLContextTokens.getToken(handle));
+		EGLContextTokens.unregister(handle);
+		assertNull(EGLContextTokens.getToken(handle));
+		final Object token2 = EGLContextTokens.register(handle);
+		assertNotSame(token1, token2);
+		assertNotEquals(token1, token2);
+		// 破棄時に#unregisterが呼ばれなくても生成し直せば別のトークンになる
+		final Object token3 = EGLContextTokens.register(handle);
+		assertNotEquals(token2, token3);
+		assertSame(token3, EGLContextTokens.getToken(handle));
+		EGLContextTokens.unregister(handle);
+	}
+
+	/**
+	 * 共有しているシェーダープログラムを使うオブジェクトが変わったかどうかを判定できるかどうか
+	 */
+	@Test
+	public void owner() {
+		final ShaderProgramCache cache = new ShaderProgramCache(new FakeBackend());
+		final ShaderProgramCache.Program p = cache.acquire(VS, FS1);
+		final Object owner1 = new Object();
+		final Object owner2 = new Object();
+		assertTrue(p.setOwner(owner1));
+		assertFalse(p.setOwner(owner1));
+		assertTrue(p.setOwner(owner2));
+		assertTrue(p.setOwner(owner1));
+	}
+
+	/**
+	 * プログラムバイナリを保存して次回はコンパイルせずに読み込むかどうか
+	 */
+	@Test
+	public void binary() throws IOException {
+		final File dir = File.createTempFile("spc", "");
+		assertTrue(dir.delete());
+		try {
+			final FakeBackend backend = new FakeBackend();
+			backend.binarySupported = true;
+			final ShaderProgramCache cache = new ShaderProgramCache(backend);
+			cache.setBinaryCacheDir(dir);
+			cache.acquire(VS, FS1);
+			assertEquals(1, backend.compiled);
+			assertEquals(1, dir.listFiles().length);
+			// 別プロセス相当(新しいキャッシュ)ならプログラムバイナリから読み込む
+			final ShaderProgramCache cache2 = new ShaderProgramCache(backend);
+			cache2.setBinaryCacheDir(dir);
+			assertNotNull(cache2.acquire(VS, FS1));
+			assertEquals(1, backend.compiled);
+			assertEquals(1, backend.loaded);
+			assertEquals(1, cache2.getBinaryLoadCount());
+			// ドライバーが変わればプログラムバイナリは使わずにコンパイルする
+			backend.driverId = "driver2";
+			final ShaderProgramCache cache3 = new ShaderProgramCache(backend);
+			cache3.setBinaryCacheDir(dir);
+			cache3.acquire(VS, FS1);
+			assertEquals(2, backend.compiled);
+			assertEquals(1, backend.loaded);
+			// 壊れたプログラムバイナリは削除してコンパイルし直す
+			for (final File f: dir.listFiles()) {
+				final java.io.FileOutputStream out = new java.io.FileOutputStream(f);
+				try {
+					out.write(new byte[] {1, 2, 3});
+				} finally {
+					out.close();
+				}
+			}
+			final ShaderProgramCache cache4 = new ShaderProgramCache(backend);
+			cache4.setBinaryCacheDir(dir);
+			assertNotNull(cache4.acquire(VS, FS1));
+			assertEquals(3, backend.compiled);
+		} finally {
+			final File[] files = dir.listFiles();
+			if (files != null) {
+				for (final File f: files) {
+					//noinspection ResultOfMethodCallIgnored
+					f.delete();
+				}
+			}
+			//noinspection ResultOfMethodCallIgnored
+			dir.delete();
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.glutils.StageProfiler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.glutils.StageProfiler用のローカルユニットテストクラス
+ * GLの代わりにFakeBackendを使って段毎の処理時間の集計をテストする
+ */
+public class StageProfilerUnitTests {
+
+	/**
+	 * 時刻を手動で進めて、GPUクエリの結果をテスト側で指定するBackend
+	 */
+	private static class FakeBackend implements StageProfiler.Backend {
+		private long now;
+		private boolean gpuSupported;
+		private boolean available = true;
+		private boolean disjoint;
+		private int nextQuery = 1;
+		private int activeQuery;
+		/**
+		 * 開始した順のクエリ
+		 */
+		private final List<Integer> begun = new ArrayList<>();
+		/**
+		 * クエリ→結果
+		 */
+		private final Map<Integer, Long> results = new HashMap<>();
+		/**
+		 * 次に開始するクエリの結果
+		 */
+		private final List<Long> nextResults = new ArrayList<>();
+
+		@Override
+		public long nanoTime() {
+			return now;
+		}
+
+		@Override
+		public boolean isGpuTimerSupported() {
+			return gpuSupported;
+		}
+
+		@Override
+		public int genQuery() {
+			return nextQuery++;
+		}
+
+		@Override
+		public void beginQuery(final int query) {
+			assertEquals("nested query", 0, activeQuery);
+			activeQuery = query;
+			begun.add(query);
+			results.put(query, nextResults.isEmpty() ? 0L : nextResults.remove(0));
+		}
+
+		@Override
+		public void endQuery() {
+			assertNotEquals("no active query", 0, activeQuery);
+			activeQuery = 0;
+		}
+
+		@Override
+		public boolean isQueryAvailable(final int query) {
+			return available;
+		}
+
+		@Override
+		public long getQueryResult(final int query) {
+			return results.get(query);
+		}
+
+		@Override
+		public boolean checkDisjoint() {
+			final boolean result = disjoint;
+			disjoint = false;
+			return result;
+		}
+	}
+
+	/**
+	 * root→child→grandchildの順に呼び出したとして各段で指定した時間を経過させる
+	 */
+	private static void frame(final StageProfiler profiler, final FakeBackend backend,
+		final long rootNs, final long childNs, final long grandchildNs) {
+
+		assertTrue(profiler.enter("root"));
+		backend.now += rootNs;
+		profiler.enter("child");
+		backend.now += childNs;
+		profiler.enter("grandchild");
+		backend.now += grandchildNs;
+		profiler.exit();
+		profiler.exit();
+		profiler.exit();
+	}
+
+	/**
+	 * 無効時は計測しないかどうか
+	 */
+	@Test
+	public void disabled() {
+		final StageProfiler profiler = new StageProfiler(new FakeBackend(), 10);
+		assertFalse(profiler.isEnabled());
+		assertFalse(profiler.enter("root"));
+		assertTrue(profiler.getStats().isEmpty());
+		assertNull(profiler.getStats("root"));
+	}
+
+	/**
+	 * 下流の段の時間を除いた自己時間を集計するかどうか
+	 */
+	@Test
+	public void selfTime() {
+		final FakeBackend backend = new FakeBackend();
+		final StageProfiler profiler = new StageProfiler(backend, 10);
+		profiler.setEnabled(true);
+		frame(profiler, backend, 10, 30, 5);
+		assertEquals(10, profiler.getStats("root").getCpuPercentileNs(50));
+		assertEquals(30, profiler.getStats("child").getCpuPercentileNs(50));
+		assertEquals(5, profiler.getStats("grandchild").getCpuPercentileNs(50));
+		// 分岐したときは両方の分岐先の時間を除く
+		profiler.reset();
+		assertTrue(profiler.enter("root"));
+		backend.now += 1;
+		profiler.enter("branch1");
+		backend.now += 20;
+		profiler.exit();
+		profiler.enter("branch2");
+		backend.now += 40;
+		profiler.exit();
+		backend.now += 2;
+		profiler.exit();
+		final List<StageProfiler.Stats> stats = profiler.getStats();
+		assertEquals(3, stats.size());
+		// CPU時間の中央値の降順
+		assertEquals("branch2", stats.get(0).getName());
+		assertEquals("branch1", stats.get(1).getName());
+		assertEquals("root", stats.get(2).getName());
+		assertEquals(3, stats.get(2).getCpuPercentileNs(50));
+		assertFalse(stats.get(0).hasGpuTime());
+		assertEquals(-1, stats.get(0).getGpuPercentileNs(50));
+		// 対応していない#exitは無視する
+		profiler.exit();
+		assertEquals(1, profiler.getStats("root").getCount());
+	}
+
+	/**
+	 * 直近のフレームだけでパーセンタイル値を計算するかどうか
+	 */
+	@Test
+	public void percentile() {
+		final FakeBackend backend = new FakeBackend();
+		final StageProfiler profiler = new StageProfiler(backend, 100);
+		profiler.setEnabled(true);
+		for (int i = 100; i >= 1; i--) {
+			profiler.enter("stage");
+			backend.now += i;
+			profiler.exit();
+		}
+		StageProfiler.Stats stats = profiler.getStats("stage");
+		assertEquals(100, stats.getCount());
+		assertEquals(1, stats.getCpuPercentileNs(0));
+		assertEquals(50, stats.getCpuPercentileNs(50));
+		assertEquals(90, stats.getCpuPercentileNs(90));
+		assertEquals(99, stats.getCpuPercentileNs(99));
+		assertEquals(100, stats.getCpuPercentileNs(100));
+		// 古いものから入れ替わる
+		for (int i = 0; i < 50; i++) {
+			profiler.enter("stage");
+			backend.now += 1000;
+			profiler.exit();
+		}
+		stats = profiler.getStats("stage");
+		assertEquals(150, stats.getCount());
+		assertEquals(50, stats.getCpuPercentileNs(50));
+		assertEquals(1000, stats.getCpuPercentileNs(51));
+		assertEquals(1, stats.getCpuPercentileNs(0));
+	}
+
+	/**
+	 * 段が切り替わる毎に経過時間クエリを区切ってフレーム毎に加算するかどうか
+	 */
+	@Test
+	public void gpuTime() {
+		final FakeBackend backend = new FakeBackend();
+		backend.gpuSupported = true;
+		final StageProfiler profiler = new StageProfiler(backend, 10);
+		profiler.setEnabled(true);
+		// root(前半), child, grandchild, child(後半), root(後半)の順に区切られる
+		backend.nextResults.add(5L);
+		backend.nextResults.add(7L);
+		backend.nextResults.add(11L);
+		backend.nextResults.add(13L);
+		backend.nextResults.add(17L);
+		frame(profiler, backend, 1, 1, 1);
+		assertEquals(5, backend.begun.size());
+		// 次のフレームの結果を取得するまでは確定しない
+		assertFalse(profiler.getStats("root").hasGpuTime());
+		frame(profiler, backend, 1, 1, 1);
+		assertEquals(5 + 17, profiler.getStats("root").getGpuPercentileNs(50));
+		assertEquals(7 + 13, profiler.getStats("child").getGpuPercentileNs(50));
+		assertEquals(11, profiler.getStats("grandchild").getGpuPercentileNs(50));
+		// 経過時間クエリは再利用する
+		assertEquals(5, backend.nextQuery - 1);
+		// 結果を取得できないときは待つ(経過時間クエリを新たに生成する)
+		backend.available = false;
+		frame(profiler, backend, 1, 1, 1);
+		assertEquals(5, backend.nextQuery - 1);
+		backend.available = true;
+		backend.disjoint = true;
+		frame(profiler, backend, 1, 1, 1);
+		assertEquals(10, backend.nextQuery - 1);
+		// 不連続になったときは取得した結果を破棄する
+		assertEquals(5 + 17, profiler.getStats("root").getGpuPercentileNs(0));
+		// 以降のクエリの結果は0
+		frame(profiler, backend, 1, 1, 1);
+		frame(profiler, backend, 1, 1, 1);
+		assertEquals(0, profiler.getStats("root").getGpuPercentileNs(0));
+		assertEquals(5 + 17, profiler.getStats("root").getGpuPercentileNs(100));
+		// 無効にすれば経過時間クエリを使わない
+		profiler.setGpuTimingEnabled(false);
+		final int n = backend.begun.size();
+		frame(profiler, backend, 1, 1, 1);
+		assertEquals(n, backend.begun.size());
+	}
+
+	/**
+	 * GPUの経過時間クエリに対応していないときはCPU時間だけを計測するかどうか
+	 */
+	@Test
+	public void gpuNotSupported() {
+		final FakeBackend backend = new FakeBackend();
+		final StageProfiler profiler = new StageProfiler(backend, 10);
+		profiler.setEnabled(true);
+		frame(profiler, backend, 1, 2, 3);
+		frame(profiler, backend, 1, 2, 3);
+		assertTrue(backend.begun.isEmpty());
+		assertFalse(profiler.getStats("root").hasGpuTime());
+		assertEquals(2, profiler.getStats("root").getCount());
+	}
+}
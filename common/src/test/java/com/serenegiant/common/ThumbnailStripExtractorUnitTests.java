@@ -0,0 +1,61 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.mediastore.ThumbnailStripExtractor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.mediastore.ThumbnailStripExtractor用のローカルユニットテストクラス
+ * 並列に使うデコーダー数の計算と映像トラックのMIMEの選択をテストする
+ */
+public class ThumbnailStripExtractorUnitTests {
+
+	/**
+	 * デコーダーの最大インスタンス数の半分・CPUコア数・MAX_DECODERSで制限されるかどうか
+	 */
+	@Test
+	public void maxDecoders() {
+		// 最大インスタンス数が不明ならCPUコア数とMAX_DECODERS(4)で制限する
+		assertEquals(4, ThumbnailStripExtractor.getMaxDecoders(8, 0));
+		assertEquals(2, ThumbnailStripExtractor.getMaxDecoders(2, 0));
+		// 最大インスタンス数の半分で制限する
+		assertEquals(3, ThumbnailStripExtractor.getMaxDecoders(8, 6));
+		assertEquals(1, ThumbnailStripExtractor.getMaxDecoders(8, 2));
+		// 少なくとも1つは使う
+		assertEquals(1, ThumbnailStripExtractor.getMaxDecoders(8, 1));
+		assertEquals(1, ThumbnailStripExtractor.getMaxDecoders(0, 0));
+	}
+
+	/**
+	 * コンテナのMIMEではなく映像トラックのコーデックのMIMEを選択するかどうか
+	 */
+	@Test
+	public void videoMime() {
+		assertEquals("video/avc", ThumbnailStripExtractor.selectVideoMime(
+			new String[] {"audio/mp4a-latm", "video/avc", "video/hevc"}));
+		assertEquals("VIDEO/HEVC", ThumbnailStripExtractor.selectVideoMime(
+			new String[] {null, "VIDEO/HEVC"}));
+		assertNull(ThumbnailStripExtractor.selectVideoMime(new String[] {"audio/mp4a-latm"}));
+		assertNull(ThumbnailStripExtractor.selectVideoMime(new String[0]));
+	}
+}